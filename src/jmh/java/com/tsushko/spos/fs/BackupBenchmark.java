@@ -0,0 +1,86 @@
+package com.tsushko.spos.fs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures backing up a large <code>InMemoryStorage</code>
+ * to a file and restoring the file system from the backup.
+ *
+ * @author Artem Tsushko
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+public class BackupBenchmark {
+
+    /**
+     * size of storage blocks
+     */
+    static final int BLOCK_SIZE = 4096;
+
+    /**
+     * size of the storage in megabytes
+     */
+    @Param({"16", "128"})
+    public int storageSize;
+
+    private FileSystem fs;
+
+    private File backup;
+
+    @Setup
+    public void setUp() throws Exception {
+        int blocksNumber = storageSize * 1024 * 1024 / BLOCK_SIZE;
+        FileSystemParams params = FileSystemParams.getInstance(BLOCK_SIZE,
+                blocksNumber, 64, 4);
+        fs = new FileSystem(params);
+
+        // fill a half of the storage with files
+        int files = 32;
+        byte[] data = new byte[blocksNumber / 2 / files * BLOCK_SIZE];
+        for (int i = 0; i < files; ++i) {
+            String name = FileSystemBenchmark.fileName(i);
+            fs.create(name);
+            int index = fs.open(name);
+            fs.write(index, data);
+            fs.close(index);
+        }
+
+        backup = File.createTempFile("fs-benchmark", ".img");
+        fs.backupStorage(backup);
+    }
+
+    @TearDown
+    public void tearDown() {
+        backup.delete();
+    }
+
+    @Benchmark
+    public void backupStorage() throws Exception {
+        fs.backupStorage(backup);
+    }
+
+    @Benchmark
+    public FileSystem restore() throws Exception {
+        Storage storage = InMemoryStorage.getStorageFromFile(backup);
+        FileSystemParams params = FileSystemParams.getInstance(storage, 4);
+        return new FileSystem(params, storage);
+    }
+}
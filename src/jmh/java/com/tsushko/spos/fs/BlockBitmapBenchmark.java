@@ -0,0 +1,71 @@
+package com.tsushko.spos.fs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the search of a free block, as done by
+ * <code>FileSystem.findFreeBlock</code>, on fragmented volumes.
+ *
+ * @author Artem Tsushko
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockBitmapBenchmark {
+
+    /**
+     * number of blocks of the volume
+     */
+    static final int BLOCKS_NUMBER = 1 << 17;
+
+    /**
+     * every <code>freeEvery</code>-th block of the volume is free,
+     * the rest of them are used
+     */
+    @Param({"2", "64", "4096"})
+    public int freeEvery;
+
+    private BlockBitmap bitmap;
+
+    @Setup
+    public void setUp() {
+        FileSystemParams params = FileSystemParams.getInstance(256,
+                BLOCKS_NUMBER, 8, 4);
+        Storage storage = InMemoryStorage.getStorage(params.blocksNumber,
+                params.blockSize);
+        bitmap = new BlockBitmap(storage, params);
+        for (int i = 0; i < BLOCKS_NUMBER; ++i) {
+            if (i % freeEvery != 0) {
+                bitmap.markUsed(i);
+            }
+        }
+    }
+
+    /**
+     * allocates a free block and frees it at once, so that
+     * the fragmentation is kept, while the search goes on
+     * from the allocated block
+     */
+    @Benchmark
+    public int findFreeBlock() {
+        int block = bitmap.findFree();
+        bitmap.markUsed(block);
+        bitmap.markFree(block);
+        return block;
+    }
+}
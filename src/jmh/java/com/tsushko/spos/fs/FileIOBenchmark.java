@@ -0,0 +1,122 @@
+package com.tsushko.spos.fs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures sequential and random reads and writes of an open file
+ * at several block sizes and transfer sizes.
+ *
+ * @author Artem Tsushko
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileIOBenchmark {
+
+    /**
+     * length of the file read and written, that fits
+     * into the maximum file size at any block size
+     */
+    static final int FILE_LENGTH = 16 * 1024;
+
+    /**
+     * size of storage blocks
+     */
+    @Param({"64", "512", "4096"})
+    public int blockSize;
+
+    /**
+     * number of bytes transferred by one read or write
+     */
+    @Param({"100", "4096"})
+    public int transferSize;
+
+    private FileSystem fs;
+
+    private int index;
+
+    private byte[] data;
+
+    /**
+     * position of the next sequential transfer
+     */
+    private int position;
+
+    private Random random;
+
+    @Setup
+    public void setUp() throws Exception {
+        int blocksNumber = 4 * FILE_LENGTH / blockSize + 64;
+        FileSystemParams params = FileSystemParams.getInstance(blockSize,
+                blocksNumber, 8, 4);
+        fs = new FileSystem(params);
+        fs.create("data");
+        index = fs.open("data");
+        fs.write(index, new byte[FILE_LENGTH]);
+
+        data = new byte[transferSize];
+        random = new Random(42);
+        random.nextBytes(data);
+        position = 0;
+    }
+
+    /**
+     * @return position of the next sequential transfer,
+     *         wrapping around at the end of the file
+     */
+    private int nextPosition() {
+        if (position + transferSize > FILE_LENGTH) {
+            position = 0;
+        }
+        int result = position;
+        position += transferSize;
+        return result;
+    }
+
+    /**
+     * @return a random position at which a transfer fits into the file
+     */
+    private int randomPosition() {
+        return random.nextInt(FILE_LENGTH - transferSize + 1);
+    }
+
+    @Benchmark
+    public byte[] sequentialRead() throws Exception {
+        fs.lseek(index, nextPosition());
+        return fs.read(index, transferSize);
+    }
+
+    @Benchmark
+    public void sequentialWrite() throws Exception {
+        fs.lseek(index, nextPosition());
+        fs.write(index, data);
+    }
+
+    @Benchmark
+    public byte[] randomRead() throws Exception {
+        fs.lseek(index, randomPosition());
+        return fs.read(index, transferSize);
+    }
+
+    @Benchmark
+    public void randomWrite() throws Exception {
+        fs.lseek(index, randomPosition());
+        fs.write(index, data);
+    }
+}
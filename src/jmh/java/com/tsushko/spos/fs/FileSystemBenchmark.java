@@ -0,0 +1,82 @@
+package com.tsushko.spos.fs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the operations on the directory: creating and destroying files,
+ * opening and closing them and listing the directory.
+ *
+ * @author Artem Tsushko
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileSystemBenchmark {
+
+    /**
+     * size of storage blocks
+     */
+    @Param({"64", "512", "4096"})
+    public int blockSize;
+
+    /**
+     * number of files in the directory
+     */
+    @Param({"10", "500"})
+    public int filesNumber;
+
+    private FileSystem fs;
+
+    @Setup
+    public void setUp() throws Exception {
+        // room for all the files, one spare iNode for create/destroy churn
+        FileSystemParams params = FileSystemParams.getInstance(blockSize,
+                2 * filesNumber + 256, filesNumber + 2, 4);
+        fs = new FileSystem(params);
+        for (int i = 0; i < filesNumber; ++i) {
+            fs.create(fileName(i));
+        }
+    }
+
+    /**
+     * @param i number of the file
+     * @return a name unique among the first 10000 files
+     */
+    static String fileName(int i) {
+        return String.format("%04d", i);
+    }
+
+    @Benchmark
+    public void createDestroy() throws Exception {
+        fs.create("tmp");
+        fs.destroy("tmp");
+    }
+
+    @Benchmark
+    public int openClose() throws Exception {
+        int index = fs.open(fileName(filesNumber / 2));
+        fs.close(index);
+        return index;
+    }
+
+    @Benchmark
+    public List<String> directory() {
+        return fs.directory();
+    }
+}
@@ -0,0 +1,405 @@
+package com.tsushko.spos.fs;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An asynchronous facade of a {@link FileSystem}: the operations return
+ * at once with a <code>CompletableFuture</code> of the result and are
+ * executed by a fixed number of threads, so that many operations can be
+ * in flight without a thread per each of them.
+ * <p>
+ * Operations on an open file that use it's current position (read, write,
+ * lseek and close) are executed one by one in the order of submission,
+ * those on different files are executed in parallel. Positional reads
+ * and operations on the directory are not ordered.
+ * <p>
+ * The operations wait for a thread in a queue of limited capacity. When
+ * the queue is full, new operations aren't blocked, but are rejected:
+ * their futures complete exceptionally with
+ * <code>RejectedExecutionException</code>.
+ * <p>
+ * The facade is safe for use by multiple threads.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+public class AsyncFileSystem implements Closeable {
+
+    /**
+     * default capacity of the queue of operations waiting for a thread
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * an operation of the file system
+     *
+     * @param <T> type of the result of the operation
+     */
+    private interface Operation<T> {
+
+        /**
+         * @return result of the operation
+         * @throws Exception if the operation fails
+         */
+        T call() throws Exception;
+    }
+
+    /**
+     * Executes the submitted tasks one by one in the order of submission,
+     * using another executor. The tasks of the queue are run by one thread
+     * of that executor, which takes the next of them as soon as the previous
+     * one completes, so only passing the first of them can be rejected.
+     */
+    private static class SerialExecutor implements Executor {
+
+        /**
+         * the tasks waiting for the previous ones to complete
+         */
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        /**
+         * the executor to run the tasks
+         */
+        private final Executor executor;
+
+        /**
+         * the action performed after the queue becomes empty
+         */
+        private final Runnable onIdle;
+
+        /**
+         * Indicates whether the tasks are being executed
+         */
+        private boolean active;
+
+        /**
+         * Indicates whether new tasks are rejected
+         */
+        private boolean closed;
+
+        /**
+         * @param executor the executor to run the tasks
+         * @param onIdle the action performed after the queue becomes empty
+         */
+        SerialExecutor(Executor executor, Runnable onIdle) {
+            this.executor = executor;
+            this.onIdle = onIdle;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable task) {
+            if (closed) {
+                throw new RejectedExecutionException("The queue is closed");
+            }
+            tasks.add(task);
+            if (!active) {
+                try {
+                    executor.execute(this::runTasks);
+                } catch (RejectedExecutionException e) {
+                    // the queue is empty when it isn't active,
+                    // so the rejected task is the only one
+                    tasks.clear();
+                    throw e;
+                }
+                active = true;
+            }
+        }
+
+        /**
+         * runs the waiting tasks until there are none left
+         */
+        private void runTasks() {
+            Runnable task;
+            while ((task = nextTask()) != null) {
+                task.run();
+            }
+            onIdle.run();
+        }
+
+        /**
+         * @return <code>true</code> if there are no tasks being executed
+         */
+        synchronized boolean isIdle() {
+            return !active;
+        }
+
+        /**
+         * takes the next waiting task, or stops the execution if there is none
+         *
+         * @return the next task, or <code>null</code> if none
+         */
+        private synchronized Runnable nextTask() {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                active = false;
+                notifyAll();
+            }
+            return task;
+        }
+
+        /**
+         * rejects new tasks and waits for the accepted ones to complete
+         *
+         * @throws InterruptedException if interrupted while waiting
+         */
+        synchronized void close() throws InterruptedException {
+            closed = true;
+            while (active) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * the file system to operate on
+     */
+    private final FileSystem fileSystem;
+
+    /**
+     * the threads executing the operations
+     */
+    private final ExecutorService executor;
+
+    /**
+     * the queues of operations on open files, by descriptor index.
+     * A queue is removed as soon as it becomes empty, so that there are
+     * only those of the files with operations in flight.
+     */
+    private final ConcurrentMap<Integer, SerialExecutor> fileQueues
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the facade with the queue of {@link #DEFAULT_QUEUE_CAPACITY}
+     * operations waiting for a thread
+     *
+     * @param fileSystem the file system to operate on
+     * @param threadsNumber number of threads executing the operations
+     */
+    public AsyncFileSystem(FileSystem fileSystem, int threadsNumber) {
+        this(fileSystem, threadsNumber, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param fileSystem the file system to operate on
+     * @param threadsNumber number of threads executing the operations
+     * @param queueCapacity maximum number of operations waiting for a thread;
+     *                      the ones submitted above it are rejected
+     */
+    public AsyncFileSystem(FileSystem fileSystem, int threadsNumber,
+                           int queueCapacity) {
+        this.fileSystem = fileSystem;
+        this.executor = new ThreadPoolExecutor(threadsNumber, threadsNumber,
+                0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * @return the file system operated on
+     */
+    public FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    /**
+     * @see FileSystem#create(String)
+     */
+    public CompletableFuture<Void> create(final String name) {
+        return submit(executor, () -> {
+            fileSystem.create(name);
+            return null;
+        });
+    }
+
+    /**
+     * @see FileSystem#destroy(String)
+     */
+    public CompletableFuture<Void> destroy(final String name) {
+        return submit(executor, () -> {
+            fileSystem.destroy(name);
+            return null;
+        });
+    }
+
+    /**
+     * @see FileSystem#mkdir(String)
+     */
+    public CompletableFuture<Void> mkdir(final String path) {
+        return submit(executor, () -> {
+            fileSystem.mkdir(path);
+            return null;
+        });
+    }
+
+    /**
+     * @see FileSystem#rmdir(String)
+     */
+    public CompletableFuture<Void> rmdir(final String path) {
+        return submit(executor, () -> {
+            fileSystem.rmdir(path);
+            return null;
+        });
+    }
+
+    /**
+     * @see FileSystem#directory()
+     */
+    public CompletableFuture<List<String>> directory() {
+        return submit(executor, fileSystem::directory);
+    }
+
+    /**
+     * @return the future index of the file descriptor
+     * @see FileSystem#open(String)
+     */
+    public CompletableFuture<Integer> open(final String name) {
+        return submit(executor, () -> fileSystem.open(name));
+    }
+
+    /**
+     * @see FileSystem#close(int)
+     */
+    public CompletableFuture<Void> close(final int index) {
+        return submit(fileQueue(index), () -> {
+            fileSystem.close(index);
+            return null;
+        });
+    }
+
+    /**
+     * @see FileSystem#read(int, int)
+     */
+    public CompletableFuture<byte[]> read(final int index, final int count) {
+        return submit(fileQueue(index), () -> fileSystem.read(index, count));
+    }
+
+    /**
+     * @see FileSystem#pread(int, int, int)
+     */
+    public CompletableFuture<byte[]> pread(final int index, final int position,
+                                           final int count) {
+        return submit(executor, () -> fileSystem.pread(index, position, count));
+    }
+
+    /**
+     * @return the future number of bytes written
+     * @see FileSystem#write(int, byte[])
+     */
+    public CompletableFuture<Integer> write(final int index, final byte[] src) {
+        return submit(fileQueue(index), () -> {
+            fileSystem.write(index, src);
+            return src.length;
+        });
+    }
+
+    /**
+     * @see FileSystem#lseek(int, int)
+     */
+    public CompletableFuture<Void> lseek(final int index, final int pos) {
+        return submit(fileQueue(index), () -> {
+            fileSystem.lseek(index, pos);
+            return null;
+        });
+    }
+
+    /**
+     * stops accepting operations and waits for the submitted ones
+     * to complete. The file system is left mounted.
+     */
+    @Override
+    public void close() {
+        boolean interrupted = false;
+        // the queued operations are passed to the threads one by one,
+        // so the queues are drained before the threads are shut down
+        for (SerialExecutor fileQueue : fileQueues.values()) {
+            while (true) {
+                try {
+                    fileQueue.close();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        executor.shutdown();
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * returns the executor of operations on the open file with specified
+     * index, which executes them in the order of submission
+     *
+     * @param index index of the file descriptor
+     * @return the queue of operations on the file
+     */
+    private Executor fileQueue(final int index) {
+        // the task is added under the lock of the map entry,
+        // so that the queue can't be removed before it gets it
+        return task -> fileQueues.compute(index, (i, fileQueue) -> {
+            if (fileQueue == null) {
+                fileQueue = new SerialExecutor(executor, () -> removeFileQueue(i));
+            }
+            fileQueue.execute(task);
+            return fileQueue;
+        });
+    }
+
+    /**
+     * removes the queue of operations on the file if it is empty
+     *
+     * @param index index of the file descriptor
+     */
+    private void removeFileQueue(int index) {
+        fileQueues.computeIfPresent(index,
+                (i, fileQueue) -> fileQueue.isIdle() ? null : fileQueue);
+    }
+
+    /**
+     * executes the operation using specified executor
+     *
+     * @param executor the executor of the operation
+     * @param operation the operation to execute
+     * @param <T> type of the result of the operation
+     * @return the future result of the operation, which completes
+     *         exceptionally if the operation fails or is rejected
+     */
+    private static <T> CompletableFuture<T> submit(Executor executor,
+                                                   final Operation<T> operation) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(operation.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,393 @@
+package com.tsushko.spos.fs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory copy of the free blocks bitmap of a file system.
+ * <p>
+ * The bitmap is kept as an array of <code>long</code> words, where bit
+ * <code>i % 64</code> of word <code>i / 64</code> is set if block
+ * <code>i</code> is used. This matches the on-disk layout, where bit
+ * <code>i % 8</code> of byte <code>i / 8</code> describes block <code>i</code>,
+ * so that the words are the little-endian reading of the bitmap blocks.
+ * <p>
+ * Free blocks are searched word by word with
+ * {@link Long#numberOfTrailingZeros(long)}, starting from a next-fit cursor
+ * that points right after the last allocated block. Runs of free blocks
+ * are searched the same way, but only within a few bitmap blocks from
+ * the block they should follow. Changes are written
+ * back to the storage by {@link #flush()}, which writes only the bitmap
+ * blocks modified since the previous flush.
+ * <p>
+ * The bitmap is safe for use by multiple threads. Each bitmap block has
+ * it's own lock, guarding the words starting in that block, so that blocks
+ * described by different bitmap blocks are allocated and freed in parallel.
+ * A word spanning two bitmap blocks is guarded by the lock of the first one.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+class BlockBitmap {
+
+    /**
+     * number of bitmap blocks, whose blocks are searched by
+     * {@link #findRun(int, int)} before falling back to {@link #findFree()}
+     */
+    static final int SEARCH_WINDOW_BLOCKS = 4;
+
+    /**
+     * the storage holding the bitmap
+     */
+    private final Storage storage;
+
+    /**
+     * file system parameters describing the bitmap location
+     */
+    private final FileSystemParams params;
+
+    /**
+     * bits of the bitmap, bits beyond the last block are always set
+     */
+    private final long[] words;
+
+    /**
+     * flags of the bitmap blocks modified since the last flush, by index
+     * relative to {@link FileSystemParams#BITMAP_BLOCK_INDEX}
+     */
+    private final boolean[] dirtyBlocks;
+
+    /**
+     * locks of the bitmap blocks, by index relative to
+     * {@link FileSystemParams#BITMAP_BLOCK_INDEX}
+     */
+    private final Object[] locks;
+
+    /**
+     * number of free blocks
+     */
+    private final AtomicInteger freeBlocksNumber = new AtomicInteger();
+
+    /**
+     * index of the block the next search starts from
+     */
+    private volatile int cursor;
+
+    /**
+     * constructs a bitmap where all blocks are free.
+     * All the bitmap blocks are considered modified.
+     *
+     * @param storage the storage holding the bitmap
+     * @param params parameters of the file system
+     */
+    BlockBitmap(Storage storage, FileSystemParams params) {
+        this.storage = storage;
+        this.params = params;
+        int bitmapBytes = params.blocksForBitmap * params.blockSize;
+        words = new long[(bitmapBytes + Long.BYTES - 1) / Long.BYTES];
+        dirtyBlocks = new boolean[params.blocksForBitmap];
+        Arrays.fill(dirtyBlocks, true);
+        locks = new Object[params.blocksForBitmap];
+        for (int i = 0; i < locks.length; ++i) {
+            locks[i] = new Object();
+        }
+        freeBlocksNumber.set(params.blocksNumber);
+        markPaddingAsUsed();
+    }
+
+    /**
+     * reads the bitmap from the storage
+     *
+     * @param storage the storage holding the bitmap
+     * @param params parameters of the file system
+     * @return the bitmap read from the storage
+     */
+    static BlockBitmap load(Storage storage, FileSystemParams params) {
+        BlockBitmap bitmap = new BlockBitmap(storage, params);
+        Arrays.fill(bitmap.dirtyBlocks, false);
+
+        ByteBuffer bytes = ByteBuffer.allocate(bitmap.words.length * Long.BYTES);
+        for (int i = 0; i < params.blocksForBitmap; ++i) {
+            bytes.limit(bytes.position() + params.blockSize);
+            storage.readBlock(FileSystemParams.BITMAP_BLOCK_INDEX + i, 0, bytes);
+        }
+        bytes.clear();
+        bytes.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(bitmap.words);
+
+        bitmap.markPaddingAsUsed();
+        int usedBlocksNumber = 0;
+        for (long word : bitmap.words) {
+            usedBlocksNumber += Long.bitCount(word);
+        }
+        bitmap.freeBlocksNumber.set(bitmap.words.length * Long.SIZE - usedBlocksNumber);
+        return bitmap;
+    }
+
+    /**
+     * sets the bits that don't correspond to any block,
+     * so that they are never allocated
+     */
+    private void markPaddingAsUsed() {
+        for (int i = params.blocksNumber; i < words.length * Long.SIZE; ++i) {
+            words[i / Long.SIZE] |= 1L << i;
+        }
+    }
+
+    /**
+     * @param blockNumber index of the block
+     * @return <code>true</code> if the block is used
+     */
+    boolean isUsed(int blockNumber) {
+        int wordIndex = blockNumber / Long.SIZE;
+        synchronized (lockOf(wordIndex)) {
+            return (words[wordIndex] & (1L << blockNumber)) != 0;
+        }
+    }
+
+    /**
+     * @return number of free blocks
+     */
+    int getFreeBlocksNumber() {
+        return freeBlocksNumber.get();
+    }
+
+    /**
+     * @param wordIndex index of a word of the bitmap
+     * @return the lock guarding the word
+     */
+    private Object lockOf(int wordIndex) {
+        return locks[wordIndex * Long.BYTES / params.blockSize];
+    }
+
+    /**
+     * Returns the index of the first free block at or after the
+     * cursor, wrapping around to the beginning of the storage,
+     * or -1 if no free space left. The block remains free, so when
+     * the bitmap is shared by threads, it may be taken by another thread
+     * before it's marked as used; {@link #allocate()} doesn't have this race.
+     *
+     * @return the index of a free block or -1 if not found
+     */
+    int findFree() {
+        if (freeBlocksNumber.get() == 0) {
+            return -1;
+        }
+        int cursor = this.cursor;
+        int startWord = cursor / Long.SIZE;
+        // the start word is visited twice: masked at first, whole after wrapping
+        for (int i = 0; i <= words.length; ++i) {
+            int wordIndex = (startWord + i) % words.length;
+            long freeBits = ~words[wordIndex];
+            if (i == 0) {
+                freeBits &= -1L << cursor;
+            }
+            if (freeBits != 0) {
+                return wordIndex * Long.SIZE + Long.numberOfTrailingZeros(freeBits);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * finds a free block the same way as {@link #findFree()}
+     * and marks it as used in one atomic step
+     *
+     * @return the index of the allocated block or -1 if no free space left
+     */
+    int allocate() {
+        while (true) {
+            int blockNumber = findFree();
+            if (blockNumber == -1) {
+                return -1;
+            }
+            if (markUsedIfFree(blockNumber)) {
+                return blockNumber;
+            }
+            // another thread took the block in the meantime
+        }
+    }
+
+    /**
+     * Returns the first block of a run of <code>count</code> consecutive
+     * free blocks, searching the {@link #SEARCH_WINDOW_BLOCKS} bitmap blocks
+     * worth of blocks from the specified one, wrapping around to the beginning
+     * of the storage. If there is no such run in the window, the first block
+     * of the longest one is returned, and if the window has no free blocks
+     * at all, the search falls back to {@link #findFree()}.
+     * The blocks remain free, like the one returned by {@link #findFree()}.
+     *
+     * @param start index of the block the search starts from
+     * @param count number of blocks wanted
+     * @return the index of the first block of the run or -1 if no free space left
+     */
+    int findRun(int start, int count) {
+        if (freeBlocksNumber.get() == 0) {
+            return -1;
+        }
+        int window = Math.min(params.blocksNumber,
+                SEARCH_WINDOW_BLOCKS * params.blockSize * Byte.SIZE);
+        long best;
+        if (start + window <= params.blocksNumber) {
+            best = findRun(start, start + window, count, 0);
+        } else {
+            // the runs don't wrap around
+            best = findRun(start, params.blocksNumber, count, 0);
+            if ((int) best < count) {
+                best = findRun(0, start + window - params.blocksNumber, count, best);
+            }
+        }
+        return (int) best != 0 ? (int) (best >>> Integer.SIZE) : findFree();
+    }
+
+    /**
+     * Searches the specified range of blocks for the first run of
+     * <code>count</code> free blocks or the longest one shorter than that,
+     * a word at a time. The run is returned packed into a <code>long</code>
+     * holding it's first block in the high half and it's length
+     * in the low half, that is zero if no free block found.
+     *
+     * @param from index of the first block of the range
+     * @param to index of the block right after the range
+     * @param count number of blocks wanted
+     * @param best the longest run found before, packed the same way
+     * @return the longest run found, packed as described above
+     */
+    private long findRun(int from, int to, int count, long best) {
+        int runStart = -1;
+        int position = from;
+        while (position < to) {
+            int wordIndex = position / Long.SIZE;
+            long word = words[wordIndex];
+            long freeBits = ~word & (-1L << position);
+            int nextWord = (wordIndex + 1) * Long.SIZE;
+            if (freeBits == 0) {
+                runStart = -1;
+                position = nextWord;
+                continue;
+            }
+            int firstFree = wordIndex * Long.SIZE + Long.numberOfTrailingZeros(freeBits);
+            if (firstFree != position || runStart == -1) {
+                runStart = firstFree;
+            }
+            long usedBits = word & (-1L << firstFree);
+            int runEnd = Math.min(to, usedBits == 0
+                    ? nextWord : wordIndex * Long.SIZE + Long.numberOfTrailingZeros(usedBits));
+            int runLength = runEnd - runStart;
+            if (runLength > (int) best) {
+                best = (long) runStart << Integer.SIZE | Math.min(runLength, count);
+                if (runLength >= count) {
+                    break;
+                }
+            }
+            position = runEnd;
+        }
+        return best;
+    }
+
+    /**
+     * marks the block with specified index as used, if it's free,
+     * and moves the cursor right after it
+     *
+     * @param blockNumber index of the block
+     * @return <code>true</code> if the block was free
+     */
+    boolean allocate(int blockNumber) {
+        return markUsedIfFree(blockNumber);
+    }
+
+    /**
+     * marks the block with specified index as used and
+     * moves the cursor right after it
+     *
+     * @param blockNumber index of the block
+     */
+    void markUsed(int blockNumber) {
+        markUsedIfFree(blockNumber);
+    }
+
+    /**
+     * marks the block with specified index as used, if it's free,
+     * and moves the cursor right after it
+     *
+     * @param blockNumber index of the block
+     * @return <code>true</code> if the block was free
+     */
+    private boolean markUsedIfFree(int blockNumber) {
+        int wordIndex = blockNumber / Long.SIZE;
+        boolean wasFree;
+        synchronized (lockOf(wordIndex)) {
+            wasFree = (words[wordIndex] & (1L << blockNumber)) == 0;
+            if (wasFree) {
+                words[wordIndex] |= 1L << blockNumber;
+                markDirty(blockNumber);
+            }
+        }
+        if (wasFree) {
+            freeBlocksNumber.decrementAndGet();
+        }
+        cursor = blockNumber + 1 < params.blocksNumber ? blockNumber + 1 : 0;
+        return wasFree;
+    }
+
+    /**
+     * marks the block with specified index as free
+     *
+     * @param blockNumber index of the block
+     */
+    void markFree(int blockNumber) {
+        int wordIndex = blockNumber / Long.SIZE;
+        synchronized (lockOf(wordIndex)) {
+            if ((words[wordIndex] & (1L << blockNumber)) == 0) {
+                return;
+            }
+            words[wordIndex] &= ~(1L << blockNumber);
+            markDirty(blockNumber);
+        }
+        freeBlocksNumber.incrementAndGet();
+    }
+
+    /**
+     * remembers that the bitmap block describing
+     * the specified block was modified.
+     * Must be called holding the lock of the word describing the block.
+     *
+     * @param blockNumber index of the block
+     */
+    private void markDirty(int blockNumber) {
+        dirtyBlocks[blockNumber / (params.blockSize * Byte.SIZE)] = true;
+    }
+
+    /**
+     * writes the bitmap blocks modified since the last flush to the storage
+     */
+    void flush() {
+        ByteBuffer block = null;
+        for (int i = 0; i < dirtyBlocks.length; ++i) {
+            int firstByte = i * params.blockSize;
+            // the first word may start in the previous bitmap block
+            Object firstLock = lockOf(firstByte / Long.BYTES);
+            synchronized (firstLock) {
+                synchronized (locks[i]) {
+                    if (!dirtyBlocks[i]) {
+                        continue;
+                    }
+                    if (block == null) {
+                        block = ByteBuffer.allocate(params.blockSize);
+                    }
+                    block.clear();
+                    for (int byteIndex = firstByte; byteIndex < firstByte + params.blockSize; ++byteIndex) {
+                        block.put((byte) (words[byteIndex / Long.BYTES]
+                                >>> (byteIndex % Long.BYTES * Byte.SIZE)));
+                    }
+                    block.flip();
+                    // written holding the locks, so that an older copy
+                    // is never written over a newer one
+                    storage.writeBlock(block, FileSystemParams.BITMAP_BLOCK_INDEX + i, 0);
+                    dirtyBlocks[i] = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,554 @@
+package com.tsushko.spos.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A write-back cache of blocks, layered over any other {@link Storage}.
+ * <p>
+ * Holds up to <code>capacity</code> blocks and evicts the least recently
+ * used ones first. Modified blocks are written to the underlying storage
+ * when they are evicted or flushed. Pinned blocks are never evicted,
+ * so the number of cached blocks may exceed the capacity by the number
+ * of pinned ones.
+ * <p>
+ * The numbers of cache hits and misses are counted, so that the cache
+ * can be sized for the workload.
+ * <p>
+ * The cache is safe for use by multiple threads. The monitor of the
+ * cache only guards the table of the blocks and the order of their use,
+ * the contents of each block is guarded by a lock of it's own. Blocks
+ * are read from and written to the cached storage holding just the lock
+ * of the block, so that the transfers of different blocks proceed
+ * in parallel. A block is pinned while it's used, so that it's never
+ * evicted in the middle of an operation, and it stays in the table
+ * until it's written back, so that it's never read from the cached
+ * storage before that.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+public class BufferCache implements Storage, Closeable {
+
+    /**
+     * a cached block. The contents and the state of it are guarded
+     * by the lock of the buffer, the pins by the lock of the cache.
+     */
+    private static class Buffer {
+
+        /**
+         * index of the block
+         */
+        final int blockNumber;
+
+        /**
+         * contents of the block
+         */
+        final byte[] data;
+
+        /**
+         * Indicates whether the contents was read from the Storage
+         * or written as a whole
+         */
+        boolean loaded;
+
+        /**
+         * Indicates whether the block was modified since
+         * it was loaded from or last written to the Storage
+         */
+        boolean dirty;
+
+        /**
+         * number of pins holding the block in the cache
+         */
+        int pinCount;
+
+        /**
+         * @param blockNumber index of the block
+         * @param data contents of the block
+         */
+        Buffer(int blockNumber, byte[] data) {
+            this.blockNumber = blockNumber;
+            this.data = data;
+        }
+    }
+
+    /**
+     * the cached storage
+     */
+    private final Storage storage;
+
+    /**
+     * maximum number of unpinned blocks to keep
+     */
+    private final int capacity;
+
+    /**
+     * cached blocks by index in the least recently used first order
+     */
+    private final LinkedHashMap<Integer, Buffer> buffers;
+
+    /**
+     * number of the blocks chosen to be evicted,
+     * which are being written back
+     */
+    private int evicting;
+
+    /**
+     * number of accesses to cached blocks
+     */
+    private long hits;
+
+    /**
+     * number of accesses that had to read a block from the cached storage
+     */
+    private long misses;
+
+    /**
+     * @param storage the storage to cache
+     * @param capacity maximum number of unpinned blocks to keep,
+     *                 must be positive
+     */
+    public BufferCache(Storage storage, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity of buffer cache "
+                    + "must be positive");
+        }
+        this.storage = storage;
+        this.capacity = capacity;
+        this.buffers = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @return the cached storage
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return maximum number of unpinned blocks to keep
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of accesses to cached blocks
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of accesses that had to read a block
+     *         from the cached storage
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * sets the hits and misses counters to zero
+     */
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+    }
+
+    public int getBlocksNumber() {
+        return storage.getBlocksNumber();
+    }
+
+    public int getBlockSize() {
+        return storage.getBlockSize();
+    }
+
+    public byte[] readBlock(int blockNumber) {
+        Buffer buffer = acquire(blockNumber, true);
+        try {
+            synchronized (buffer) {
+                load(buffer);
+                return buffer.data.clone();
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    public void writeBlock(byte[] data, int blockNumber) {
+        if (data.length != getBlockSize()) {
+            String errorMessage = "Block size mismatch: "
+                    + "expected " + getBlockSize() + ", "
+                    + "actual " + data.length;
+            throw new IllegalArgumentException(errorMessage);
+        }
+        Buffer buffer = acquire(blockNumber, false);
+        try {
+            synchronized (buffer) {
+                System.arraycopy(data, 0, buffer.data, 0, data.length);
+                buffer.loaded = true;
+                buffer.dirty = true;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    public void readBlock(int blockNumber, int offset, ByteBuffer dst) {
+        checkRange(offset, dst.remaining());
+        Buffer buffer = acquire(blockNumber, true);
+        try {
+            synchronized (buffer) {
+                load(buffer);
+                dst.put(buffer.data, offset, dst.remaining());
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    public void writeBlock(ByteBuffer src, int blockNumber, int offset) {
+        checkRange(offset, src.remaining());
+        // a whole block is overwritten, no need to read it
+        boolean whole = offset == 0 && src.remaining() == getBlockSize();
+        Buffer buffer = acquire(blockNumber, !whole);
+        try {
+            synchronized (buffer) {
+                if (!whole) {
+                    load(buffer);
+                }
+                src.get(buffer.data, offset, src.remaining());
+                buffer.loaded = true;
+                buffer.dirty = true;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Reads the cached blocks from the cache and the rest of them
+     * directly from the cached storage, without caching them, so that
+     * large sequential reads don't evict the blocks used more often.
+     * Consecutive blocks not in the cache are read in one transfer,
+     * which holds no lock.
+     */
+    public void readBlocks(int firstBlockNumber, ByteBuffer dst) {
+        int blocksNumber = checkBlocks(firstBlockNumber, dst.remaining());
+        int limit = dst.limit();
+        int blockNumber = firstBlockNumber;
+        int end = firstBlockNumber + blocksNumber;
+        while (blockNumber < end) {
+            Buffer buffer = acquireCached(blockNumber, true);
+            if (buffer != null) {
+                try {
+                    synchronized (buffer) {
+                        load(buffer);
+                        dst.put(buffer.data);
+                    }
+                } finally {
+                    release(buffer);
+                }
+                ++blockNumber;
+                continue;
+            }
+            int runEnd = blockNumber + 1;
+            synchronized (this) {
+                while (runEnd < end && !buffers.containsKey(runEnd)) {
+                    ++runEnd;
+                }
+                misses += runEnd - blockNumber;
+            }
+            dst.limit(dst.position() + (runEnd - blockNumber) * getBlockSize());
+            storage.readBlocks(blockNumber, dst);
+            dst.limit(limit);
+            blockNumber = runEnd;
+        }
+    }
+
+    /**
+     * Writes the blocks directly to the cached storage in one transfer
+     * and updates the copies of them in the cache, if any, so that large
+     * sequential writes don't evict the blocks used more often.
+     * The copies are updated first, so that a modified copy evicted
+     * meanwhile is never written over the new contents. The transfer
+     * holds no lock.
+     */
+    public void writeBlocks(ByteBuffer src, int firstBlockNumber) {
+        int blocksNumber = checkBlocks(firstBlockNumber, src.remaining());
+        int start = src.position();
+        ByteBuffer written = src.duplicate();
+        for (int i = 0; i < blocksNumber; ++i) {
+            Buffer buffer = acquireCached(firstBlockNumber + i, false);
+            if (buffer == null) {
+                continue;
+            }
+            try {
+                synchronized (buffer) {
+                    written.position(start + i * getBlockSize());
+                    written.get(buffer.data);
+                    buffer.loaded = true;
+                    buffer.dirty = false;
+                }
+            } finally {
+                release(buffer);
+            }
+        }
+        storage.writeBlocks(src, firstBlockNumber);
+    }
+
+    /**
+     * prevents the block from being evicted until it's unpinned.
+     * The block is loaded into the cache if it's not there yet.
+     *
+     * @param blockNumber the index of the block
+     */
+    public void pin(int blockNumber) {
+        Buffer buffer = acquire(blockNumber, true);
+        synchronized (buffer) {
+            load(buffer);
+        }
+    }
+
+    /**
+     * releases one pin of the block
+     *
+     * @param blockNumber the index of a pinned block
+     * @throws IllegalStateException if the block is not pinned
+     */
+    public void unpin(int blockNumber) {
+        List<Buffer> victims;
+        synchronized (this) {
+            Buffer buffer = buffers.get(blockNumber);
+            if (buffer == null || buffer.pinCount == 0) {
+                throw new IllegalStateException("Block " + blockNumber + " is not pinned");
+            }
+            --buffer.pinCount;
+            victims = chooseVictims();
+        }
+        evict(victims);
+    }
+
+    /**
+     * writes all modified blocks to the cached storage
+     */
+    public void flush() {
+        List<Buffer> cached;
+        synchronized (this) {
+            cached = new ArrayList<>(buffers.values());
+            for (Buffer buffer : cached) {
+                ++buffer.pinCount;
+            }
+        }
+        for (Buffer buffer : cached) {
+            try {
+                synchronized (buffer) {
+                    write(buffer);
+                }
+            } finally {
+                release(buffer);
+            }
+        }
+    }
+
+    /**
+     * flushes the modified blocks and closes the cached storage
+     * if it's <code>Closeable</code>
+     *
+     * @throws IOException if the cached storage fails to close
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (storage instanceof Closeable) {
+            ((Closeable) storage).close();
+        }
+    }
+
+    /**
+     * returns the cached block with specified index pinned, caching it
+     * if necessary. The block must be released by {@link #release(Buffer)}.
+     * The contents of a block cached by this call is not read yet.
+     *
+     * @param blockNumber the index of the block
+     * @param load whether the contents of the block is needed
+     * @return the cached block
+     */
+    private Buffer acquire(int blockNumber, boolean load) {
+        Buffer buffer;
+        List<Buffer> victims;
+        synchronized (this) {
+            buffer = buffers.get(blockNumber);
+            if (buffer != null) {
+                if (load) {
+                    ++hits;
+                }
+            } else {
+                if (blockNumber < 0 || blockNumber >= getBlocksNumber()) {
+                    String errorMessage = "Wrong block number: "
+                            + "expected in range [0," + getBlocksNumber() + "), "
+                            + "actual " + blockNumber;
+                    throw new IndexOutOfBoundsException(errorMessage);
+                }
+                if (load) {
+                    ++misses;
+                }
+                buffer = new Buffer(blockNumber, new byte[getBlockSize()]);
+                buffers.put(blockNumber, buffer);
+            }
+            ++buffer.pinCount;
+            victims = chooseVictims();
+        }
+        evict(victims);
+        return buffer;
+    }
+
+    /**
+     * returns the block with specified index pinned, if it's cached
+     *
+     * @param blockNumber the index of the block
+     * @param load whether the contents of the block is needed
+     * @return the cached block, or <code>null</code> if it's not cached
+     */
+    private synchronized Buffer acquireCached(int blockNumber, boolean load) {
+        Buffer buffer = buffers.get(blockNumber);
+        if (buffer != null) {
+            if (load) {
+                ++hits;
+            }
+            ++buffer.pinCount;
+        }
+        return buffer;
+    }
+
+    /**
+     * releases the pin of the block taken by {@link #acquire(int, boolean)}
+     *
+     * @param buffer the cached block
+     */
+    private synchronized void release(Buffer buffer) {
+        --buffer.pinCount;
+    }
+
+    /**
+     * reads the contents of the block from the cached storage,
+     * if it's not read yet. The lock of the buffer must be held.
+     *
+     * @param buffer the cached block
+     */
+    private void load(Buffer buffer) {
+        if (!buffer.loaded) {
+            storage.readBlock(buffer.blockNumber, 0, ByteBuffer.wrap(buffer.data));
+            buffer.loaded = true;
+        }
+    }
+
+    /**
+     * chooses the least recently used unpinned blocks to be evicted
+     * while there are more than <code>capacity</code> of them,
+     * and pins them until they are written back.
+     * The lock of the cache must be held.
+     *
+     * @return the blocks to evict
+     */
+    private List<Buffer> chooseVictims() {
+        int excess = buffers.size() - evicting - capacity;
+        if (excess <= 0) {
+            return null;
+        }
+        List<Buffer> victims = new ArrayList<>(excess);
+        for (Buffer buffer : buffers.values()) {
+            if (victims.size() == excess) {
+                break;
+            }
+            if (buffer.pinCount == 0) {
+                ++buffer.pinCount;
+                victims.add(buffer);
+            }
+        }
+        evicting += victims.size();
+        return victims;
+    }
+
+    /**
+     * writes the blocks chosen by {@link #chooseVictims()} to the cached
+     * storage if they were modified and removes them from the cache,
+     * unless they were pinned meanwhile
+     *
+     * @param victims the blocks to evict, may be <code>null</code>
+     */
+    private void evict(List<Buffer> victims) {
+        if (victims == null) {
+            return;
+        }
+        for (Buffer buffer : victims) {
+            synchronized (buffer) {
+                write(buffer);
+                synchronized (this) {
+                    --evicting;
+                    if (--buffer.pinCount == 0) {
+                        buffers.remove(buffer.blockNumber);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * writes the block to the cached storage if it was modified.
+     * The lock of the buffer must be held.
+     *
+     * @param buffer the cached block
+     */
+    private void write(Buffer buffer) {
+        if (buffer.dirty) {
+            storage.writeBlock(ByteBuffer.wrap(buffer.data), buffer.blockNumber, 0);
+            buffer.dirty = false;
+        }
+    }
+
+    /**
+     * @param firstBlockNumber the index of the first block
+     * @param length number of bytes in consecutive blocks
+     * @return number of the blocks
+     * @throws IndexOutOfBoundsException if any of the blocks is not in range
+     *         from 0 inclusive to blocksNumber exclusive.
+     * @throws IllegalArgumentException if length is not a multiple of blockSize
+     */
+    private int checkBlocks(int firstBlockNumber, int length) {
+        if (length % getBlockSize() != 0) {
+            String errorMessage = "Length is not a multiple of block size: "
+                    + "block size " + getBlockSize() + ", "
+                    + "length " + length;
+            throw new IllegalArgumentException(errorMessage);
+        }
+        int number = length / getBlockSize();
+        if (firstBlockNumber < 0 || firstBlockNumber + number > getBlocksNumber()) {
+            String errorMessage = "Wrong block range: "
+                    + "expected within [0," + getBlocksNumber() + "), "
+                    + "actual [" + firstBlockNumber + ","
+                    + (firstBlockNumber + number) + ")";
+            throw new IndexOutOfBoundsException(errorMessage);
+        }
+        return number;
+    }
+
+    /**
+     * @param offset offset of the first byte in a block
+     * @param length number of bytes
+     * @throws IllegalArgumentException if the bytes don't fit into a block
+     */
+    private void checkRange(int offset, int length) {
+        if (offset < 0 || offset + length > getBlockSize()) {
+            String errorMessage = "Wrong range in block: "
+                    + "expected within [0," + getBlockSize() + "), "
+                    + "actual [" + offset + "," + (offset + length) + ")";
+            throw new IllegalArgumentException(errorMessage);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.tsushko.spos.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Passes all the operations to another storage, remembering which blocks
+ * were written since the last full backup and since the last backup
+ * of any level, so that incremental and differential backups copy
+ * only the changed blocks.
+ * <p>
+ * The storage is safe for use by multiple threads,
+ * as long as the underlying storage is. The changed blocks are marked
+ * without locking, so that the writes of different threads don't
+ * wait for each other.
+ *
+ * @see StorageBackup
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+class ChangeTrackingStorage implements Storage, Closeable {
+
+    /**
+     * A set of block indexes, whose bits are set and taken by atomic
+     * updates of the words holding them
+     */
+    private static class AtomicBitSet {
+
+        /**
+         * the bits by 64 in a word
+         */
+        private final AtomicLongArray words;
+
+        /**
+         * @param size number of bits
+         */
+        AtomicBitSet(int size) {
+            words = new AtomicLongArray((size + Long.SIZE - 1) / Long.SIZE);
+        }
+
+        /**
+         * sets the bits from <code>from</code> inclusive
+         * to <code>to</code> exclusive
+         */
+        void set(int from, int to) {
+            for (int bit = from; bit < to; ) {
+                int word = bit / Long.SIZE;
+                int end = Math.min(to, (word + 1) * Long.SIZE);
+                long mask = (-1L >>> (Long.SIZE - (end - bit))) << (bit % Long.SIZE);
+                or(word, mask);
+                bit = end;
+            }
+        }
+
+        /**
+         * sets the bits of the word specified by the mask
+         */
+        private void or(int word, long mask) {
+            long bits = words.get(word);
+            // the blocks written often are marked by a read only
+            while ((bits & mask) != mask
+                    && !words.compareAndSet(word, bits, bits | mask)) {
+                bits = words.get(word);
+            }
+        }
+
+        /**
+         * sets the bits set in the specified set
+         */
+        void or(BitSet bits) {
+            long[] other = bits.toLongArray();
+            for (int word = 0; word < other.length; ++word) {
+                or(word, other[word]);
+            }
+        }
+
+        /**
+         * @return a copy of the bits
+         */
+        BitSet get() {
+            long[] copy = new long[words.length()];
+            for (int word = 0; word < copy.length; ++word) {
+                copy[word] = words.get(word);
+            }
+            return BitSet.valueOf(copy);
+        }
+
+        /**
+         * clears the bits, so that none of them set meanwhile is lost
+         *
+         * @return the bits before they were cleared
+         */
+        BitSet getAndClear() {
+            long[] copy = new long[words.length()];
+            for (int word = 0; word < copy.length; ++word) {
+                copy[word] = words.getAndSet(word, 0);
+            }
+            return BitSet.valueOf(copy);
+        }
+    }
+
+    /**
+     * the tracked storage
+     */
+    private final Storage storage;
+
+    /**
+     * blocks written since the last full backup
+     */
+    private final AtomicBitSet changedSinceFull;
+
+    /**
+     * blocks written since the last backup of any level
+     */
+    private final AtomicBitSet changedSinceLast;
+
+    /**
+     * the changes tracked before the backup being made,
+     * restored if it fails
+     */
+    private BitSet pendingSinceFull;
+
+    /**
+     * @see #pendingSinceFull
+     */
+    private BitSet pendingSinceLast;
+
+    /**
+     * identifier of the last full backup, 0 if none was made
+     */
+    private long fullBackupId;
+
+    /**
+     * identifier of the last backup of any level, 0 if none was made
+     */
+    private long lastBackupId;
+
+    /**
+     * @param storage the storage to track
+     */
+    ChangeTrackingStorage(Storage storage) {
+        this.storage = storage;
+        this.changedSinceFull = new AtomicBitSet(storage.getBlocksNumber());
+        this.changedSinceLast = new AtomicBitSet(storage.getBlocksNumber());
+    }
+
+    /**
+     * @return the tracked storage
+     */
+    Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * returns the blocks a backup of specified level must hold and starts
+     * tracking the changes since it, so that the blocks written while
+     * the backup is made are held by the next one
+     *
+     * @param level level of the backup
+     * @return indexes of the blocks
+     */
+    synchronized BitSet startBackup(StorageBackup.Level level) {
+        pendingSinceFull = level == StorageBackup.Level.FULL
+                ? changedSinceFull.getAndClear() : changedSinceFull.get();
+        pendingSinceLast = changedSinceLast.getAndClear();
+        BitSet blocks;
+        switch (level) {
+            case DIFFERENTIAL:
+                blocks = pendingSinceFull;
+                break;
+            case INCREMENTAL:
+                blocks = pendingSinceLast;
+                break;
+            default:
+                blocks = new BitSet(storage.getBlocksNumber());
+                blocks.set(0, storage.getBlocksNumber());
+                break;
+        }
+        return blocks;
+    }
+
+    /**
+     * completes the backup started by {@link #startBackup(StorageBackup.Level)}
+     *
+     * @param level level of the backup
+     * @param id identifier of the backup, if it was written,
+     *           0 if it failed
+     */
+    synchronized void finishBackup(StorageBackup.Level level, long id) {
+        if (id == 0) {
+            // the changes are still to be backed up
+            changedSinceFull.or(pendingSinceFull);
+            changedSinceLast.or(pendingSinceLast);
+        } else {
+            if (level == StorageBackup.Level.FULL) {
+                fullBackupId = id;
+            }
+            lastBackupId = id;
+        }
+        pendingSinceFull = null;
+        pendingSinceLast = null;
+    }
+
+    /**
+     * returns the identifier of the backup, which a backup
+     * of specified level is applied to
+     *
+     * @param level level of the backup
+     * @return identifier of the base backup, 0 for a full backup
+     *         or if there is no backup to base on
+     */
+    synchronized long getBaseId(StorageBackup.Level level) {
+        switch (level) {
+            case DIFFERENTIAL:
+                return fullBackupId;
+            case INCREMENTAL:
+                return lastBackupId;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @param firstBlockNumber index of the first written block
+     * @param count number of written blocks
+     */
+    private void markChanged(int firstBlockNumber, int count) {
+        changedSinceFull.set(firstBlockNumber, firstBlockNumber + count);
+        changedSinceLast.set(firstBlockNumber, firstBlockNumber + count);
+    }
+
+    @Override
+    public int getBlocksNumber() {
+        return storage.getBlocksNumber();
+    }
+
+    @Override
+    public int getBlockSize() {
+        return storage.getBlockSize();
+    }
+
+    @Override
+    public byte[] readBlock(int blockNumber) {
+        return storage.readBlock(blockNumber);
+    }
+
+    @Override
+    public void writeBlock(byte[] data, int blockNumber) {
+        storage.writeBlock(data, blockNumber);
+        markChanged(blockNumber, 1);
+    }
+
+    @Override
+    public void readBlock(int blockNumber, int offset, ByteBuffer dst) {
+        storage.readBlock(blockNumber, offset, dst);
+    }
+
+    @Override
+    public void writeBlock(ByteBuffer src, int blockNumber, int offset) {
+        storage.writeBlock(src, blockNumber, offset);
+        markChanged(blockNumber, 1);
+    }
+
+    @Override
+    public void readBlocks(int firstBlockNumber, ByteBuffer dst) {
+        storage.readBlocks(firstBlockNumber, dst);
+    }
+
+    @Override
+    public void writeBlocks(ByteBuffer src, int firstBlockNumber) {
+        int count = src.remaining() / getBlockSize();
+        storage.writeBlocks(src, firstBlockNumber);
+        markChanged(firstBlockNumber, count);
+    }
+
+    /**
+     * closes the tracked storage, if it's closeable
+     *
+     * @throws IOException if the storage fails to close
+     */
+    @Override
+    public void close() throws IOException {
+        if (storage instanceof Closeable) {
+            ((Closeable) storage).close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.tsushko.spos.fs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A bounded cache of directory entries, mapping the iNode of a directory
+ * and a name in it to the directory entry holding the name and the iNode
+ * it refers to.
+ * <p>
+ * A path is resolved by looking up it's names one by one, starting from
+ * the root directory. As long as all of them are cached, the resolution
+ * reads no directory blocks. The least recently used entries are evicted
+ * first. The cache must be updated on every modification of a directory,
+ * as it's entries are never checked against the directory files.
+ * <p>
+ * The cache is safe for use by multiple threads.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+class DentryCache {
+
+    /**
+     * a used directory entry
+     */
+    static class Entry {
+
+        /**
+         * position of the entry in the directory file
+         */
+        final int position;
+
+        /**
+         * index of the iNode the entry refers to
+         */
+        final int iNodeIndex;
+
+        /**
+         * whether the entry refers to a directory
+         */
+        final boolean directory;
+
+        /**
+         * @param position position of the entry in the directory file
+         * @param iNodeIndex index of the iNode the entry refers to
+         * @param directory whether the entry refers to a directory
+         */
+        Entry(int position, int iNodeIndex, boolean directory) {
+            this.position = position;
+            this.iNodeIndex = iNodeIndex;
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * a name within a directory
+     */
+    private static class Key {
+
+        /**
+         * index of the directory iNode
+         */
+        final int parent;
+
+        /**
+         * the name within the directory
+         */
+        final String name;
+
+        Key(int parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return parent == that.parent && name.equals(that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(parent, name);
+        }
+    }
+
+    /**
+     * maximum number of entries to keep
+     */
+    private final int capacity;
+
+    /**
+     * cached entries in the least recently used first order
+     */
+    private final LinkedHashMap<Key, Entry> entries;
+
+    /**
+     * @param capacity maximum number of entries to keep
+     */
+    DentryCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > DentryCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @param parent index of the directory iNode
+     * @param name the name within the directory
+     * @return the cached entry or <code>null</code> if it's not cached
+     */
+    synchronized Entry get(int parent, String name) {
+        return entries.get(new Key(parent, name));
+    }
+
+    /**
+     * records that the specified directory holds the name
+     *
+     * @param parent index of the directory iNode
+     * @param name the name within the directory
+     * @param entry the directory entry holding the name
+     */
+    synchronized void put(int parent, String name, Entry entry) {
+        entries.put(new Key(parent, name), entry);
+    }
+
+    /**
+     * records that the specified directory no longer holds the name
+     *
+     * @param parent index of the directory iNode
+     * @param name the name within the directory
+     */
+    synchronized void remove(int parent, String name) {
+        entries.remove(new Key(parent, name));
+    }
+}
@@ -0,0 +1,172 @@
+package com.tsushko.spos.fs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A table of descriptors: maps small integer indexes to the entries
+ * they were allocated for.
+ * <p>
+ * Free indexes are kept in a list threaded through the table, so that
+ * both allocating and releasing an index take constant time. The table
+ * grows on demand up to a limit on the number of entries, which can be
+ * changed at any time; lowering it below the current number of entries
+ * only prevents new allocations.
+ * <p>
+ * The table is safe for use by multiple threads.
+ *
+ * @param <T> type of the entries
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+class DescriptorTable<T> {
+
+    /**
+     * number of slots the table has initially, if the limit allows
+     */
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * entries by index, <code>null</code> for free indexes
+     */
+    private Object[] entries;
+
+    /**
+     * for each free index, the next free index in the list or -1
+     */
+    private int[] nextFree;
+
+    /**
+     * the first free index in the list or -1 if all slots are used
+     */
+    private int firstFree = -1;
+
+    /**
+     * number of entries in the table
+     */
+    private int size;
+
+    /**
+     * maximum number of entries in the table
+     */
+    private int limit;
+
+    /**
+     * @param limit maximum number of entries in the table
+     */
+    DescriptorTable(int limit) {
+        this.limit = limit;
+        this.entries = new Object[0];
+        this.nextFree = new int[0];
+        grow(Math.min(limit, INITIAL_CAPACITY));
+    }
+
+    /**
+     * adds the entry to the table
+     *
+     * @param entry the entry to add
+     * @return the index allocated for the entry or -1
+     *         if the table holds the maximum number of entries
+     */
+    synchronized int add(T entry) {
+        if (size >= limit) {
+            return -1;
+        }
+        if (firstFree == -1) {
+            grow(Math.min(limit, Math.max(entries.length * 2, INITIAL_CAPACITY)));
+        }
+        int index = firstFree;
+        firstFree = nextFree[index];
+        entries[index] = entry;
+        ++size;
+        return index;
+    }
+
+    /**
+     * @param index an index in the table
+     * @return the entry with specified index or <code>null</code>
+     *         if the index is not allocated
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T get(int index) {
+        if (index < 0 || index >= entries.length) {
+            return null;
+        }
+        return (T) entries[index];
+    }
+
+    /**
+     * removes the entry with specified index and releases the index
+     *
+     * @param index an index in the table
+     * @return the removed entry or <code>null</code>
+     *         if the index is not allocated
+     */
+    synchronized T remove(int index) {
+        T entry = get(index);
+        if (entry != null) {
+            entries[index] = null;
+            nextFree[index] = firstFree;
+            firstFree = index;
+            --size;
+        }
+        return entry;
+    }
+
+    /**
+     * removes all the entries, except for the ones
+     * with indexes less than <code>from</code>
+     *
+     * @param from the least index to release
+     * @return the removed entries
+     */
+    synchronized List<T> removeAll(int from) {
+        List<T> removed = new ArrayList<>();
+        for (int i = from; i < entries.length; ++i) {
+            T entry = get(i);
+            if (entry != null) {
+                removed.add(entry);
+                remove(i);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return number of entries in the table
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return maximum number of entries in the table
+     */
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param limit maximum number of entries in the table
+     */
+    synchronized void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * extends the table and adds the new slots to the free list,
+     * so that the lower indexes are allocated first
+     *
+     * @param capacity the new number of slots
+     */
+    private void grow(int capacity) {
+        int oldCapacity = entries.length;
+        entries = Arrays.copyOf(entries, capacity);
+        nextFree = Arrays.copyOf(nextFree, capacity);
+        for (int i = capacity - 1; i >= oldCapacity; --i) {
+            nextFree[i] = firstFree;
+            firstFree = i;
+        }
+    }
+}
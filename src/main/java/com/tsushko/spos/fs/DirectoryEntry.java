@@ -0,0 +1,96 @@
+package com.tsushko.spos.fs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An entry of a directory returned by a {@link FileSystem.DirectoryStream}:
+ * the name of a file as it's stored in the directory, the index of
+ * the iNode of the file and, if it was requested, the length of the file.
+ * The name is decoded only when it's asked for.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+public final class DirectoryEntry {
+
+    /**
+     * the bytes of the name
+     */
+    private final byte[] name;
+
+    /**
+     * index of the iNode of the file
+     */
+    private final int iNodeIndex;
+
+    /**
+     * whether the file is a directory
+     */
+    private final boolean directory;
+
+    /**
+     * length of the file in bytes, -1 if it wasn't requested
+     */
+    private final int size;
+
+    /**
+     * @param name the bytes of the name
+     * @param iNodeIndex index of the iNode of the file
+     * @param directory whether the file is a directory
+     * @param size length of the file in bytes, -1 if it wasn't requested
+     */
+    DirectoryEntry(byte[] name, int iNodeIndex, boolean directory, int size) {
+        this.name = name;
+        this.iNodeIndex = iNodeIndex;
+        this.directory = directory;
+        this.size = size;
+    }
+
+    /**
+     * @return a copy of the bytes of the name, encoded in UTF-8
+     */
+    public byte[] getNameBytes() {
+        return Arrays.copyOf(name, name.length);
+    }
+
+    /**
+     * @return the name of the file
+     */
+    public String getName() {
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return index of the iNode of the file
+     */
+    public int getINodeIndex() {
+        return iNodeIndex;
+    }
+
+    /**
+     * @return <code>true</code> if the file is a directory
+     */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return length of the file in bytes, -1 if the sizes
+     *         weren't requested from the stream
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return a string like file_name|file_size, the names of directories
+     *         end with the separator, as listed by {@link FileSystem#directory()}
+     */
+    @Override
+    public String toString() {
+        return getName()
+                + (directory ? String.valueOf(FileSystemParams.PATH_SEPARATOR) : "")
+                + "\t" + size + "B";
+    }
+}
@@ -0,0 +1,547 @@
+package com.tsushko.spos.fs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes the entries of directory files in place, within
+ * the arrays the directory files are read into, so that looking up
+ * a name allocates nothing per entry.
+ * <p>
+ * A directory file is read in chunks of {@link #getChunkSize()} bytes,
+ * starting from the beginning of it, each chunk holding whole entries.
+ * Two formats are supported:
+ * <ul>
+ *     <li>before version 4 of file system data format an entry takes
+ *         {@link FileSystemParams#BYTES_PER_DIRECTORY_ENTRY} bytes:
+ *         the name, cut to {@link FileSystemParams#BYTES_PER_FILE_NAME}
+ *         bytes and padded with zeros, and the iNode index, which has
+ *         {@link FileSystemParams#DIRECTORY_ENTRY_FLAG} set if it's
+ *         a directory. Free entries start with a zero byte.</li>
+ *     <li>since version 4 each block of a directory file is covered by
+ *         records, that never cross the boundary of the block:
+ *         the iNode index, the length of the record, the hash of the name,
+ *         the length of the name, the type of the file and the name itself,
+ *         padded to 4 bytes. The rest of a record is free room for new
+ *         records, so removing a record merges it with the previous one.
+ *         Free records have no name.</li>
+ * </ul>
+ * Since version 5 the blocks of a large directory may be nodes of
+ * a {@link DirectoryIndex}, each of them covered by a free record
+ * that has no room for new records.
+ *
+ * @see FileSystemParams#DIRECTORY_RECORDS_FILE_SYSTEM_VERSION
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+abstract class DirectoryFormat {
+
+    /**
+     * Tests the entries of a directory file, which are read into memory
+     */
+    interface Visitor {
+
+        /**
+         * @param chunk a chunk of the directory file
+         * @param offset offset of an entry in the chunk
+         * @return <code>true</code> to stop at the entry
+         */
+        boolean visit(byte[] chunk, int offset);
+    }
+
+    /**
+     * @param params parameters of a file system
+     * @return the format of the directories of the file system
+     */
+    static DirectoryFormat getInstance(FileSystemParams params) {
+        if (params.version >= FileSystemParams.DIRECTORY_RECORDS_FILE_SYSTEM_VERSION) {
+            return new Records(params);
+        } else {
+            return new Fixed(params);
+        }
+    }
+
+    /**
+     * @return number of bytes of a directory file read at once,
+     *         the chunks start at multiples of it
+     */
+    abstract int getChunkSize();
+
+    /**
+     * @return number of bytes a full directory file grows by
+     */
+    abstract int getAppendSize();
+
+    /**
+     * converts a file name to the form it's stored in a directory entry
+     *
+     * @param name symbolic name of a file
+     * @return the name as it's stored in the directory
+     */
+    abstract String toEntryName(String name);
+
+    /**
+     * @param name symbolic name of a file
+     * @return the bytes the name is stored as
+     */
+    abstract byte[] encodeName(String name);
+
+    /**
+     * @param chunk a chunk of a directory file
+     * @param offset offset of an entry in the chunk
+     * @return offset of the next entry in the chunk
+     */
+    abstract int next(byte[] chunk, int offset);
+
+    /**
+     * @param chunk a chunk of a directory file
+     * @param offset offset of an entry in the chunk
+     * @return <code>true</code> if the entry holds no file
+     */
+    abstract boolean isFree(byte[] chunk, int offset);
+
+    /**
+     * @param chunk a chunk of a directory file
+     * @param offset offset of a used entry in the chunk
+     * @return index of the iNode the entry refers to
+     */
+    abstract int getINodeIndex(byte[] chunk, int offset);
+
+    /**
+     * @param chunk a chunk of a directory file
+     * @param offset offset of a used entry in the chunk
+     * @return <code>true</code> if the entry refers to a directory
+     */
+    abstract boolean isDirectory(byte[] chunk, int offset);
+
+    /**
+     * compares the name of the entry with the specified one,
+     * without decoding it
+     *
+     * @param chunk a chunk of a directory file
+     * @param offset offset of an entry in the chunk
+     * @param name the bytes of a name, as returned by {@link #encodeName(String)}
+     * @param hash the hash of the name
+     * @return <code>true</code> if the entry holds the name
+     */
+    abstract boolean hasName(byte[] chunk, int offset, byte[] name, int hash);
+
+    /**
+     * @param chunk a chunk of a directory file
+     * @param offset offset of a used entry in the chunk
+     * @return the name the entry holds
+     */
+    abstract String getName(byte[] chunk, int offset);
+
+    /**
+     * @param chunk a chunk of a directory file
+     * @param offset offset of a used entry in the chunk
+     * @return a copy of the bytes of the name the entry holds
+     */
+    abstract byte[] getNameBytes(byte[] chunk, int offset);
+
+    /**
+     * @param chunk a chunk of a directory file
+     * @param offset offset of a used entry in the chunk
+     * @return the hash of the name the entry holds
+     */
+    int getHash(byte[] chunk, int offset) {
+        return hash(getNameBytes(chunk, offset));
+    }
+
+    /**
+     * @param block a block of a directory file
+     * @return <code>true</code> if the block is a node of
+     *         a {@link DirectoryIndex}
+     */
+    boolean isIndex(byte[] block) {
+        return false;
+    }
+
+    /**
+     * covers the block with a record, that holds no name
+     * and has no room for new records, but is followed by
+     * a node of a {@link DirectoryIndex}
+     *
+     * @param block a block of a directory file
+     * @return offset of the node in the block
+     */
+    int initIndex(byte[] block) {
+        throw new UnsupportedOperationException("Directories of version "
+                + "older than " + FileSystemParams.DIRECTORY_INDEX_FILE_SYSTEM_VERSION
+                + " can't be indexed");
+    }
+
+    /**
+     * @param chunk a chunk of a directory file
+     * @param offset offset of an entry in the chunk
+     * @param nameLength length of a name in bytes
+     * @return <code>true</code> if the entry has room for
+     *         a new entry holding the name
+     */
+    abstract boolean hasRoom(byte[] chunk, int offset, int nameLength);
+
+    /**
+     * writes a new entry into the room of the specified one
+     *
+     * @param chunk a chunk of a directory file
+     * @param offset offset of an entry having room for the new one
+     * @param name the bytes of the name of the file
+     * @param iNodeIndex index of the iNode of the file
+     * @param directory whether the file is a directory
+     * @return offset of the new entry in the chunk
+     */
+    abstract int put(byte[] chunk, int offset, byte[] name,
+                     int iNodeIndex, boolean directory);
+
+    /**
+     * frees the entry, merging it's room with the neighbouring entries
+     *
+     * @param chunk a chunk of a directory file
+     * @param offset offset of a used entry in the chunk
+     */
+    abstract void remove(byte[] chunk, int offset);
+
+    /**
+     * fills the bytes a directory file grows by with free room
+     *
+     * @param chunk an array of at least {@link #getAppendSize()} bytes
+     */
+    abstract void init(byte[] chunk);
+
+    /**
+     * @param name the bytes of a name
+     * @return the hash stored along with the name
+     */
+    static int hash(byte[] name) {
+        // 32-bit FNV-1a
+        int hash = 0x811C9DC5;
+        for (byte b : name) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * @param bytes an array
+     * @param offset offset of an int in the array
+     * @return the int, stored in big-endian order
+     */
+    static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24
+                | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8
+                | bytes[offset + 3] & 0xFF;
+    }
+
+    /**
+     * @param bytes an array
+     * @param offset offset of an int in the array
+     * @param value the int to store in big-endian order
+     */
+    static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Entries of {@link FileSystemParams#BYTES_PER_DIRECTORY_ENTRY} bytes,
+     * used before version 4 of file system data format
+     */
+    private static class Fixed extends DirectoryFormat {
+
+        private static final int ENTRY_SIZE = FileSystemParams.BYTES_PER_DIRECTORY_ENTRY;
+
+        private final int chunkSize;
+
+        Fixed(FileSystemParams params) {
+            // as many entries as a block holds
+            chunkSize = Math.max(1, params.blockSize / ENTRY_SIZE) * ENTRY_SIZE;
+        }
+
+        @Override
+        int getChunkSize() {
+            return chunkSize;
+        }
+
+        @Override
+        int getAppendSize() {
+            return ENTRY_SIZE;
+        }
+
+        /**
+         * names longer than {@link FileSystemParams#BYTES_PER_FILE_NAME} are cut
+         */
+        @Override
+        String toEntryName(String name) {
+            if (name.length() > FileSystemParams.BYTES_PER_FILE_NAME)
+                return name.substring(0, FileSystemParams.BYTES_PER_FILE_NAME);
+            else
+                return name;
+        }
+
+        @Override
+        byte[] encodeName(String name) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            return bytes.length > FileSystemParams.BYTES_PER_FILE_NAME
+                    ? Arrays.copyOf(bytes, FileSystemParams.BYTES_PER_FILE_NAME)
+                    : bytes;
+        }
+
+        @Override
+        int next(byte[] chunk, int offset) {
+            return offset + ENTRY_SIZE;
+        }
+
+        @Override
+        boolean isFree(byte[] chunk, int offset) {
+            return chunk[offset] == 0;
+        }
+
+        @Override
+        int getINodeIndex(byte[] chunk, int offset) {
+            return getInt(chunk, offset + FileSystemParams.BYTES_PER_FILE_NAME)
+                    & ~FileSystemParams.DIRECTORY_ENTRY_FLAG;
+        }
+
+        @Override
+        boolean isDirectory(byte[] chunk, int offset) {
+            return (getInt(chunk, offset + FileSystemParams.BYTES_PER_FILE_NAME)
+                    & FileSystemParams.DIRECTORY_ENTRY_FLAG) != 0;
+        }
+
+        @Override
+        boolean hasName(byte[] chunk, int offset, byte[] name, int hash) {
+            return Arrays.equals(chunk, offset, offset + name.length, name, 0, name.length)
+                    && (name.length == FileSystemParams.BYTES_PER_FILE_NAME
+                        || chunk[offset + name.length] == 0);
+        }
+
+        @Override
+        String getName(byte[] chunk, int offset) {
+            int length = 0;
+            while (length < FileSystemParams.BYTES_PER_FILE_NAME
+                    && chunk[offset + length] != 0) {
+                ++length;
+            }
+            return new String(chunk, offset, length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        byte[] getNameBytes(byte[] chunk, int offset) {
+            int length = 0;
+            while (length < FileSystemParams.BYTES_PER_FILE_NAME
+                    && chunk[offset + length] != 0) {
+                ++length;
+            }
+            return Arrays.copyOfRange(chunk, offset, offset + length);
+        }
+
+        @Override
+        boolean hasRoom(byte[] chunk, int offset, int nameLength) {
+            return isFree(chunk, offset);
+        }
+
+        @Override
+        int put(byte[] chunk, int offset, byte[] name, int iNodeIndex, boolean directory) {
+            Arrays.fill(chunk, offset, offset + ENTRY_SIZE, (byte) 0);
+            System.arraycopy(name, 0, chunk, offset, name.length);
+            putInt(chunk, offset + FileSystemParams.BYTES_PER_FILE_NAME, directory
+                    ? iNodeIndex | FileSystemParams.DIRECTORY_ENTRY_FLAG
+                    : iNodeIndex);
+            return offset;
+        }
+
+        @Override
+        void remove(byte[] chunk, int offset) {
+            Arrays.fill(chunk, offset, offset + ENTRY_SIZE, (byte) 0);
+        }
+
+        @Override
+        void init(byte[] chunk) {
+            Arrays.fill(chunk, 0, ENTRY_SIZE, (byte) 0);
+        }
+    }
+
+    /**
+     * Variable-length records covering the blocks of a directory file,
+     * used since version 4 of file system data format
+     */
+    private static class Records extends DirectoryFormat {
+
+        private static final int INODE_INDEX = 0;
+        private static final int LENGTH = 4;
+        private static final int HASH = 8;
+        private static final int NAME_LENGTH = 12;
+        private static final int TYPE = 13;
+        private static final int NAME = FileSystemParams.DIRECTORY_RECORD_HEADER_SIZE;
+
+        private static final byte FILE = 1;
+        private static final byte DIRECTORY = 2;
+        private static final byte INDEX = 3;
+
+        private final int blockSize;
+
+        Records(FileSystemParams params) {
+            blockSize = params.blockSize;
+        }
+
+        /**
+         * @param nameLength length of a name in bytes
+         * @return number of bytes a record holding the name needs
+         */
+        private static int getSize(int nameLength) {
+            return (NAME + nameLength + 3) & ~3;
+        }
+
+        /**
+         * @return number of bytes the record takes in use
+         */
+        private int getUsedSize(byte[] chunk, int offset) {
+            return isFree(chunk, offset) ? 0 : getSize(chunk[offset + NAME_LENGTH] & 0xFF);
+        }
+
+        @Override
+        int getChunkSize() {
+            return blockSize;
+        }
+
+        @Override
+        int getAppendSize() {
+            return blockSize;
+        }
+
+        @Override
+        String toEntryName(String name) {
+            return name;
+        }
+
+        @Override
+        byte[] encodeName(String name) {
+            return name.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        int next(byte[] chunk, int offset) {
+            int length = getInt(chunk, offset + LENGTH);
+            if (length < NAME || offset + length > blockSize) {
+                throw new IllegalStateException("Corrupted directory record "
+                        + "of length " + length);
+            }
+            return offset + length;
+        }
+
+        @Override
+        boolean isFree(byte[] chunk, int offset) {
+            return chunk[offset + NAME_LENGTH] == 0;
+        }
+
+        @Override
+        int getINodeIndex(byte[] chunk, int offset) {
+            return getInt(chunk, offset + INODE_INDEX);
+        }
+
+        @Override
+        boolean isDirectory(byte[] chunk, int offset) {
+            return chunk[offset + TYPE] == DIRECTORY;
+        }
+
+        @Override
+        boolean hasName(byte[] chunk, int offset, byte[] name, int hash) {
+            return getInt(chunk, offset + HASH) == hash
+                    && (chunk[offset + NAME_LENGTH] & 0xFF) == name.length
+                    && Arrays.equals(chunk, offset + NAME, offset + NAME + name.length,
+                                     name, 0, name.length);
+        }
+
+        @Override
+        String getName(byte[] chunk, int offset) {
+            return new String(chunk, offset + NAME, chunk[offset + NAME_LENGTH] & 0xFF,
+                              StandardCharsets.UTF_8);
+        }
+
+        @Override
+        byte[] getNameBytes(byte[] chunk, int offset) {
+            return Arrays.copyOfRange(chunk, offset + NAME,
+                    offset + NAME + (chunk[offset + NAME_LENGTH] & 0xFF));
+        }
+
+        @Override
+        int getHash(byte[] chunk, int offset) {
+            return getInt(chunk, offset + HASH);
+        }
+
+        @Override
+        boolean isIndex(byte[] block) {
+            return block[TYPE] == INDEX;
+        }
+
+        @Override
+        int initIndex(byte[] block) {
+            init(block);
+            block[TYPE] = INDEX;
+            return NAME;
+        }
+
+        @Override
+        boolean hasRoom(byte[] chunk, int offset, int nameLength) {
+            return chunk[offset + TYPE] != INDEX
+                    && getInt(chunk, offset + LENGTH) - getUsedSize(chunk, offset)
+                       >= getSize(nameLength);
+        }
+
+        @Override
+        int put(byte[] chunk, int offset, byte[] name, int iNodeIndex, boolean directory) {
+            int length = getInt(chunk, offset + LENGTH);
+            int used = getUsedSize(chunk, offset);
+            if (used != 0) {
+                // the new record takes the room after the used part
+                putInt(chunk, offset + LENGTH, used);
+                offset += used;
+                length -= used;
+            }
+            putInt(chunk, offset + INODE_INDEX, iNodeIndex);
+            putInt(chunk, offset + LENGTH, length);
+            putInt(chunk, offset + HASH, hash(name));
+            chunk[offset + NAME_LENGTH] = (byte) name.length;
+            chunk[offset + TYPE] = directory ? DIRECTORY : FILE;
+            System.arraycopy(name, 0, chunk, offset + NAME, name.length);
+            return offset;
+        }
+
+        @Override
+        void remove(byte[] chunk, int offset) {
+            int previous = -1;
+            for (int i = 0; i < offset; i = next(chunk, i)) {
+                previous = i;
+            }
+            int merged;
+            if (previous != -1) {
+                putInt(chunk, previous + LENGTH, getInt(chunk, previous + LENGTH)
+                        + getInt(chunk, offset + LENGTH));
+                merged = previous;
+            } else {
+                // the first record of the block stays, without a name
+                putInt(chunk, offset + INODE_INDEX, 0);
+                putInt(chunk, offset + HASH, 0);
+                chunk[offset + NAME_LENGTH] = 0;
+                chunk[offset + TYPE] = 0;
+                merged = offset;
+            }
+            int following = next(chunk, merged);
+            if (following < blockSize && isFree(chunk, following)) {
+                putInt(chunk, merged + LENGTH, getInt(chunk, merged + LENGTH)
+                        + getInt(chunk, following + LENGTH));
+            }
+        }
+
+        @Override
+        void init(byte[] chunk) {
+            Arrays.fill(chunk, 0, blockSize, (byte) 0);
+            putInt(chunk, LENGTH, blockSize);
+        }
+    }
+}
@@ -0,0 +1,570 @@
+package com.tsushko.spos.fs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hashed tree indexing the blocks of a large directory, so that
+ * a name is looked up reading one block per level of the tree
+ * instead of the whole directory.
+ * <p>
+ * A directory is indexed once it's first block gets full. The records of
+ * the first block move to a new block, and the first block becomes
+ * the root of the tree. The leaves of the tree are blocks of records,
+ * each of them holding the names, which hashes are in a range. A node
+ * of the tree is a block starting with a record that holds no name,
+ * followed by {@link #HEADER_SIZE} bytes:
+ * <ul>
+ *     <li>number of the levels of nodes below the node,
+ *         0 if the node links to leaves</li>
+ *     <li>number of the links the node holds</li>
+ * </ul>
+ * and by the links, each of them being the lowest hash of the names
+ * below the link and the index of a block in the directory file.
+ * The links of a node are sorted by hash, the hash of the first
+ * one is not compared.
+ * <p>
+ * A full leaf is split in two halves by hash, so the names having
+ * the same hash are always held by the same leaf. A full node is
+ * split the same way, up to the root, which gets the links of the
+ * two halves as the tree grows by a level. Leaves and nodes are never
+ * merged back. The entries are listed in the order of the hashes.
+ * <p>
+ * New blocks are written before the blocks linking to them, so if the
+ * storage runs out of free blocks, some blocks may be left unlinked,
+ * but no entry gets lost. A split is not started, if the directory
+ * would exceed the maximum file size. The tree is dropped then,
+ * and the directory is scanned as an unindexed one, so the room
+ * left in the leaves is still used.
+ *
+ * @see DirectoryFormat
+ * @see FileSystemParams#DIRECTORY_INDEX_FILE_SYSTEM_VERSION
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+class DirectoryIndex {
+
+    /**
+     * The blocks of an indexed directory file
+     */
+    interface Blocks {
+
+        /**
+         * @return number of blocks of the directory file
+         */
+        int getBlocksNumber();
+
+        /**
+         * @param blockNumber number of a block of the directory file
+         * @param block the array to read the block to
+         */
+        void read(int blockNumber, byte[] block);
+
+        /**
+         * @param blockNumber number of a block of the directory file,
+         *                    the number of blocks to append a block
+         * @param block the contents of the block
+         * @throws ReadWriteException if the directory can't grow
+         */
+        void write(int blockNumber, byte[] block) throws ReadWriteException;
+    }
+
+    /**
+     * number of bytes of a node preceding the links
+     */
+    static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * number of bytes of a link
+     */
+    private static final int LINK_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * the minimal number of links a node must hold
+     */
+    private static final int MIN_LINKS = 3;
+
+    /**
+     * the offset of the name to put into a leaf being split
+     */
+    private static final long NO_OFFSET = 0xFFFFFFFFL;
+
+    /**
+     * returned by {@link #readLeaf(Blocks, int, byte[])} after the last leaf
+     */
+    static final long NO_LEAF = Long.MAX_VALUE;
+
+    /**
+     * the format of the leaves
+     */
+    private final DirectoryFormat format;
+
+    /**
+     * size of a block
+     */
+    private final int blockSize;
+
+    /**
+     * offset of the header of a node in it's block
+     */
+    private final int header;
+
+    /**
+     * maximum number of links a node holds
+     */
+    private final int maxLinks;
+
+    /**
+     * maximum number of blocks of a directory file
+     */
+    private final int maxBlocks;
+
+    /**
+     * @param format the format of the directory files
+     * @param blockSize size of a block
+     * @param maxFileSize maximum size of a directory file
+     */
+    private DirectoryIndex(DirectoryFormat format, int blockSize, int maxFileSize) {
+        this.format = format;
+        this.blockSize = blockSize;
+        header = format.initIndex(new byte[blockSize]);
+        maxLinks = (blockSize - header - HEADER_SIZE) / LINK_SIZE;
+        maxBlocks = maxFileSize / blockSize;
+    }
+
+    /**
+     * @param params parameters of a file system
+     * @param format the format of the directories of the file system
+     * @return the index of the large directories of the file system or
+     *         <code>null</code> if it's directories are not indexed
+     */
+    static DirectoryIndex getInstance(FileSystemParams params, DirectoryFormat format) {
+        if (params.version < FileSystemParams.DIRECTORY_INDEX_FILE_SYSTEM_VERSION) {
+            return null;
+        }
+        DirectoryIndex index = new DirectoryIndex(format, params.blockSize,
+                                                  params.maxFileSize);
+        // a block too small to hold a few links is not indexed
+        return index.maxLinks >= MIN_LINKS ? index : null;
+    }
+
+    /**
+     * @param directory the blocks of a directory
+     * @param block an array of a block size
+     * @return <code>true</code> if the directory is indexed
+     */
+    boolean isIndexed(Blocks directory, byte[] block) {
+        if (directory.getBlocksNumber() == 0) {
+            return false;
+        }
+        directory.read(0, block);
+        return format.isIndex(block);
+    }
+
+    /**
+     * indexes a directory of one block
+     *
+     * @param directory the blocks of the directory
+     * @throws ReadWriteException if the directory can't grow
+     */
+    void create(Blocks directory) throws ReadWriteException {
+        byte[] block = new byte[blockSize];
+        directory.read(0, block);
+        directory.write(1, block);
+        initNode(block, 0);
+        insertLink(block, Integer.MIN_VALUE, 1);
+        directory.write(0, block);
+    }
+
+    /**
+     * looks up the name in the leaf, which holds it's hash
+     *
+     * @param directory the blocks of an indexed directory
+     * @param name the bytes of the name
+     * @param hash the hash of the name
+     * @param block an array of a block size, the leaf is left in it
+     * @return position of the entry in the directory file or -1
+     *         if the name is not present in the directory
+     */
+    int lookUp(Blocks directory, byte[] name, int hash, byte[] block) {
+        int[] path = findPath(directory, hash, block);
+        int leaf = path[path.length - 1];
+        for (int offset = 0; offset < blockSize; offset = format.next(block, offset)) {
+            if (format.hasName(block, offset, name, hash)) {
+                return leaf * blockSize + offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * puts a new entry into the leaf, which holds it's hash,
+     * splitting the leaf if it's full
+     *
+     * @param directory the blocks of an indexed directory
+     * @param name the bytes of the name of the file
+     * @param iNodeIndex index of the iNode of the file
+     * @param isDirectory whether the file is a directory
+     * @return position of the new entry in the directory file or -1
+     *         if the leaf is full and the directory can't grow to split it
+     * @throws ReadWriteException if the storage is out of free blocks
+     */
+    int insert(Blocks directory, byte[] name, int iNodeIndex, boolean isDirectory)
+            throws ReadWriteException {
+        int hash = DirectoryFormat.hash(name);
+        byte[] block = new byte[blockSize];
+        while (true) {
+            int[] path = findPath(directory, hash, block);
+            int leaf = path[path.length - 1];
+            for (int offset = 0; offset < blockSize; offset = format.next(block, offset)) {
+                if (format.hasRoom(block, offset, name.length)) {
+                    offset = format.put(block, offset, name, iNodeIndex, isDirectory);
+                    directory.write(leaf, block);
+                    return leaf * blockSize + offset;
+                }
+            }
+            if (directory.getBlocksNumber() + getSplitBlocksNumber(directory, path)
+                    > maxBlocks) {
+                return -1;
+            }
+            splitLeaf(directory, path, block, hash);
+        }
+    }
+
+    /**
+     * returns the number of the blocks a split of the leaf adds:
+     * the upper half of the leaf, the upper halves of the full nodes
+     * above it, and the node the links of the root move to,
+     * if the root is full too
+     *
+     * @param directory the blocks of an indexed directory
+     * @param path the path to the leaf
+     * @return number of the new blocks
+     */
+    private int getSplitBlocksNumber(Blocks directory, int[] path) {
+        byte[] block = new byte[blockSize];
+        int count = 1;
+        for (int depth = path.length - 2; depth >= 0; --depth) {
+            directory.read(path[depth], block);
+            if (getCount(block) < maxLinks) {
+                break;
+            }
+            count += depth == 0 ? 2 : 1;
+        }
+        return count;
+    }
+
+    /**
+     * turns the indexed directory back into an unindexed one, which
+     * entries are scanned through: the root and the other nodes
+     * become blocks of free room. The root is cleared first,
+     * so the tree is never left linking to a cleared node.
+     *
+     * @param directory the blocks of an indexed directory
+     * @throws ReadWriteException if the directory can't be written
+     */
+    void drop(Blocks directory) throws ReadWriteException {
+        byte[] block = new byte[blockSize];
+        List<Integer> nodes = new ArrayList<>();
+        nodes.add(0);
+        for (int i = 0; i < nodes.size(); ++i) {
+            directory.read(nodes.get(i), block);
+            if (getLevels(block) > 0) {
+                for (int j = 0; j < getCount(block); ++j) {
+                    nodes.add(getBlockNumber(block, j));
+                }
+            }
+        }
+        for (int node : nodes) {
+            format.init(block);
+            directory.write(node, block);
+        }
+    }
+
+    /**
+     * reads the leaves in the order of hashes and returns the position
+     * of the first entry the visitor stops at
+     *
+     * @param directory the blocks of an indexed directory
+     * @param block an array of a block size, the leaf holding
+     *              the entry is left in it
+     * @param visitor visits the entries in turn, free ones included
+     * @return position of the entry in the directory file or -1
+     *         if the visitor stops at none of them
+     */
+    int scan(Blocks directory, byte[] block, DirectoryFormat.Visitor visitor) {
+        return scan(directory, 0, block, visitor);
+    }
+
+    /**
+     * @see #scan(Blocks, byte[], DirectoryFormat.Visitor)
+     * @param node number of the block of a node
+     */
+    private int scan(Blocks directory, int node, byte[] block,
+                     DirectoryFormat.Visitor visitor) {
+        directory.read(node, block);
+        int levels = getLevels(block);
+        int[] children = new int[getCount(block)];
+        for (int i = 0; i < children.length; ++i) {
+            children[i] = getBlockNumber(block, i);
+        }
+        for (int child : children) {
+            int pos;
+            if (levels > 0) {
+                pos = scan(directory, child, block, visitor);
+            } else {
+                directory.read(child, block);
+                pos = -1;
+                for (int offset = 0; offset < blockSize; offset = format.next(block, offset)) {
+                    if (visitor.visit(block, offset)) {
+                        pos = child * blockSize + offset;
+                        break;
+                    }
+                }
+            }
+            if (pos != -1) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * reads the leaf holding the hash, so that the leaves are read
+     * one by one in the order of hashes. Unlike positions of the entries,
+     * the hashes are not changed by the splits of the leaves.
+     *
+     * @param directory the blocks of an indexed directory
+     * @param hash the lowest hash of the leaf to read,
+     *             {@link Integer#MIN_VALUE} for the first leaf
+     * @param block an array of a block size, the leaf is left in it
+     * @return the lowest hash of the next leaf or {@link #NO_LEAF}
+     *         if it's the last one
+     */
+    long readLeaf(Blocks directory, int hash, byte[] block) {
+        long next = NO_LEAF;
+        directory.read(0, block);
+        for (int levels = getLevels(block); levels >= 0; --levels) {
+            int index = search(block, hash);
+            if (index + 1 < getCount(block)) {
+                // the links of the deeper nodes have the closer hashes
+                next = getHash(block, index + 1);
+            }
+            directory.read(getBlockNumber(block, index), block);
+        }
+        return next;
+    }
+
+    /**
+     * @param directory the blocks of an indexed directory
+     * @param hash hash of a name
+     * @param block an array of a block size, the leaf is left in it
+     * @return numbers of the blocks of the nodes from the root
+     *         to the leaf holding the hash, and of the leaf
+     */
+    private int[] findPath(Blocks directory, int hash, byte[] block) {
+        directory.read(0, block);
+        int[] path = new int[getLevels(block) + 2];
+        for (int depth = 1; depth < path.length; ++depth) {
+            path[depth] = getBlockNumber(block, search(block, hash));
+            directory.read(path[depth], block);
+        }
+        return path;
+    }
+
+    /**
+     * splits the full leaf in two halves by hash, the upper half
+     * moves to a new block. The hash of the name to put is counted
+     * in, so that a leaf of one long name is split too.
+     *
+     * @param directory the blocks of an indexed directory
+     * @param path the path to the leaf
+     * @param block the contents of the leaf
+     * @param hash hash of the name to put into the leaf
+     * @throws ReadWriteException if the leaf can't be split
+     *         or the directory can't grow
+     */
+    private void splitLeaf(Blocks directory, int[] path, byte[] block, int hash)
+            throws ReadWriteException {
+        // the hashes of the records in the high bits, the offsets in the low ones,
+        // the name to put has no offset
+        long[] records = new long[blockSize / FileSystemParams.DIRECTORY_RECORD_HEADER_SIZE + 1];
+        int count = 0;
+        for (int offset = 0; offset < blockSize; offset = format.next(block, offset)) {
+            if (!format.isFree(block, offset)) {
+                records[count++] = (long) format.getHash(block, offset) << 32 | offset;
+            }
+        }
+        records[count++] = (long) hash << 32 | NO_OFFSET;
+        Arrays.sort(records, 0, count);
+
+        int split = count / 2;
+        while (split < count && hashOf(records[split]) == hashOf(records[split - 1])) {
+            ++split;
+        }
+        if (split == count) {
+            split = count / 2;
+            while (split > 0 && hashOf(records[split]) == hashOf(records[split - 1])) {
+                --split;
+            }
+        }
+        if (split == 0) {
+            throw new ReadWriteException("Too many names with the same hash "
+                    + "in the directory");
+        }
+
+        byte[] lower = new byte[blockSize];
+        byte[] upper = new byte[blockSize];
+        copyRecords(block, records, 0, split, lower);
+        copyRecords(block, records, split, count, upper);
+        int leaf = directory.getBlocksNumber();
+        directory.write(leaf, upper);
+        insertLink(directory, path, path.length - 2, hashOf(records[split]), leaf);
+        directory.write(path[path.length - 1], lower);
+    }
+
+    /**
+     * adds a link to the node, splitting the node if it's full
+     *
+     * @param directory the blocks of an indexed directory
+     * @param path the path from the root to the node
+     * @param depth depth of the node in the path
+     * @param hash the lowest hash of the names below the link
+     * @param child number of the linked block
+     * @throws ReadWriteException if the directory can't grow
+     */
+    private void insertLink(Blocks directory, int[] path, int depth, int hash, int child)
+            throws ReadWriteException {
+        byte[] block = new byte[blockSize];
+        directory.read(path[depth], block);
+        int count = getCount(block);
+        if (count < maxLinks) {
+            insertLink(block, hash, child);
+            directory.write(path[depth], block);
+        } else if (depth == 0) {
+            int levels = getLevels(block);
+            // the links of the root move to a new node below it
+            int node = directory.getBlocksNumber();
+            directory.write(node, block);
+            initNode(block, levels + 1);
+            insertLink(block, Integer.MIN_VALUE, node);
+            directory.write(0, block);
+
+            int[] grown = new int[path.length + 1];
+            grown[1] = node;
+            System.arraycopy(path, 1, grown, 2, path.length - 1);
+            insertLink(directory, grown, 1, hash, child);
+        } else {
+            int split = count / 2;
+            int splitHash = getHash(block, split);
+            byte[] upper = new byte[blockSize];
+            initNode(upper, getLevels(block));
+            for (int i = split; i < count; ++i) {
+                insertLink(upper, getHash(block, i), getBlockNumber(block, i));
+            }
+            DirectoryFormat.putInt(block, header + Integer.BYTES, split);
+            insertLink(hash < splitHash ? block : upper, hash, child);
+
+            int node = directory.getBlocksNumber();
+            directory.write(node, upper);
+            insertLink(directory, path, depth - 1, splitHash, node);
+            directory.write(path[depth], block);
+        }
+    }
+
+    /**
+     * puts the records into a new leaf, one after another
+     *
+     * @param block the leaf holding the records
+     * @param records the hashes and the offsets of the records
+     * @param from index of the first record to copy
+     * @param to index after the last record to copy
+     * @param leaf the array to put the new leaf to
+     */
+    private void copyRecords(byte[] block, long[] records, int from, int to, byte[] leaf) {
+        format.init(leaf);
+        int last = 0;
+        for (int i = from; i < to; ++i) {
+            int offset = (int) records[i];
+            if (offset == (int) NO_OFFSET) {
+                continue;
+            }
+            last = format.put(leaf, last, format.getNameBytes(block, offset),
+                              format.getINodeIndex(block, offset),
+                              format.isDirectory(block, offset));
+        }
+    }
+
+    /**
+     * @param block an array of a block size
+     * @param levels number of the levels of nodes below the node
+     */
+    private void initNode(byte[] block, int levels) {
+        format.initIndex(block);
+        DirectoryFormat.putInt(block, header, levels);
+        DirectoryFormat.putInt(block, header + Integer.BYTES, 0);
+    }
+
+    /**
+     * adds a link to the node, keeping the links sorted by hash
+     *
+     * @param block a node having room for the link
+     * @param hash the lowest hash of the names below the link
+     * @param child number of the linked block
+     */
+    private void insertLink(byte[] block, int hash, int child) {
+        int count = getCount(block);
+        int index = count == 0 ? 0 : search(block, hash) + 1;
+        int offset = getLinkOffset(index);
+        System.arraycopy(block, offset, block, offset + LINK_SIZE,
+                         (count - index) * LINK_SIZE);
+        DirectoryFormat.putInt(block, offset, hash);
+        DirectoryFormat.putInt(block, offset + Integer.BYTES, child);
+        DirectoryFormat.putInt(block, header + Integer.BYTES, count + 1);
+    }
+
+    /**
+     * @param block a node
+     * @param hash hash of a name
+     * @return index of the last link, which hash is not greater
+     *         than the specified one, the first link if there is none
+     */
+    private int search(byte[] block, int hash) {
+        int low = 1;
+        int high = getCount(block) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (getHash(block, middle) <= hash) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high < 1 ? 0 : high;
+    }
+
+    private static int hashOf(long record) {
+        return (int) (record >> 32);
+    }
+
+    private int getLevels(byte[] block) {
+        return DirectoryFormat.getInt(block, header);
+    }
+
+    private int getCount(byte[] block) {
+        return DirectoryFormat.getInt(block, header + Integer.BYTES);
+    }
+
+    private int getLinkOffset(int index) {
+        return header + HEADER_SIZE + index * LINK_SIZE;
+    }
+
+    private int getHash(byte[] block, int index) {
+        return DirectoryFormat.getInt(block, getLinkOffset(index));
+    }
+
+    private int getBlockNumber(byte[] block, int index) {
+        return DirectoryFormat.getInt(block, getLinkOffset(index) + Integer.BYTES);
+    }
+}
@@ -0,0 +1,23 @@
+package com.tsushko.spos.fs;
+
+/**
+ * Describes the exception to be thrown when a directory
+ * to be removed still holds files
+ */
+public class DirectoryNotEmptyException extends Exception{
+
+    public DirectoryNotEmptyException() {}
+
+    public DirectoryNotEmptyException(String msg) {
+        super(msg);
+    }
+
+    public DirectoryNotEmptyException(String msg, Exception cause) {
+        super(msg,cause);
+    }
+
+    public DirectoryNotEmptyException(Exception cause) {
+        super(cause);
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.tsushko.spos.fs;
+
+/**
+ * Describes the exception to be thrown when a file
+ * to be removed is open
+ */
+public class FileBusyException extends Exception{
+
+    public FileBusyException() {}
+
+    public FileBusyException(String msg) {
+        super(msg);
+    }
+
+    public FileBusyException(String msg, Exception cause) {
+        super(msg,cause);
+    }
+
+    public FileBusyException(Exception cause) {
+        super(cause);
+    }
+
+}
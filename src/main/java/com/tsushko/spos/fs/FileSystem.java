@@ -3,18 +3,67 @@ package com.tsushko.spos.fs;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Emulates a simple file system. The file system is deployed on
  * a {@link Storage}. All it's parameters are specified by a
  * {@link FileSystemParams} object.
+ * <p>
+ * Files are opened in sessions, each having it's own table of file
+ * descriptors, like processes in UNIX. The file operations of this class
+ * use the descriptors of the default session.
+ * <p>
+ * Files are organized in a tree of directories. A file is named by
+ * it's path: the names of the directories leading to it from the root
+ * directory and the name of the file, separated by
+ * {@link FileSystemParams#PATH_SEPARATOR}. The names looked up recently
+ * are kept in a {@link DentryCache}, so resolving a path mostly reads
+ * no directory blocks. The entries of directory files are laid out
+ * by a {@link DirectoryFormat}, which compares the names while they
+ * are still bytes. Large directories are indexed by
+ * a {@link DirectoryIndex}, so looking a name up reads a few blocks
+ * of them.
+ * <p>
+ * The blocks written past the end of a file get their storage blocks
+ * only when the file is flushed: on close, {@link #sync()}, backups,
+ * or when too many of them are kept in memory. Space is reserved for
+ * them at write time, so a write still fails at once if no free space
+ * is left, while the blocks of a flush are allocated consecutively.
+ * <p>
+ * All the operations are safe to be called by multiple threads.
+ * Each open file has it's own read/write lock, so that different files
+ * are read and written in parallel. Positional reads take it shared,
+ * so they proceed in parallel even on the same open file. Creating and
+ * destroying files and directories takes the directory lock exclusively,
+ * while opening files and listing directories take it shared.
+ * The in-memory copies of the iNode table and the free blocks bitmap
+ * are guarded by a lock per block of them.
+ * <p>
+ * If the file system has a {@link Journal}, the metadata is written
+ * through it, so that creating and destroying files and allocating blocks
+ * of them either reach the storage completely or not at all. The updates
+ * are committed in batches, when the journal gets full and by
+ * {@link #sync()}.
+ * <p>
+ * Locks are always taken in this order: the directory lock, a file lock,
+ * the journal updates lock, the lock of a directory file,
+ * the open files table, the iNode cache, an iNode table block lock,
+ * a bitmap block lock, the journal, the buffer cache.
  *
  * @author Artem Tsushko
  * @version 1.0
@@ -26,19 +75,113 @@ public class FileSystem {
     /**
      * a storage on which the file system is deployed
      */
-    private static Storage storage;
+    private final Storage storage;
+
+    /**
+     * the storage the metadata is written to: the journal,
+     * or the storage itself if the file system has no journal
+     */
+    private final Storage metadata;
+
+    /**
+     * the metadata journal or <code>null</code> if it's disabled
+     */
+    private final Journal journal;
 
     /**
      * holds all the parameters of this file system
      */
-    private static FileSystemParams params;
+    private final FileSystemParams params;
+
+    /**
+     * the storage the file system was mounted on, keeping track
+     * of the blocks changed since the last backups
+     */
+    private final ChangeTrackingStorage device;
+
+    /**
+     * the cache of storage blocks or <code>null</code> if it's disabled
+     */
+    private BufferCache bufferCache;
+
+    /**
+     * in-memory copy of the free blocks bitmap
+     */
+    private final BlockBitmap bitmap;
+
+    /**
+     * number of free blocks reserved for the blocks written to open files,
+     * that are not allocated yet, and for the indirect blocks they need
+     */
+    private final AtomicInteger reservedBlocks = new AtomicInteger();
+
+    /**
+     * indexes of iNodes not yet assigned to any file
+     */
+    private BitSet freeINodes;
+
+    /**
+     * recently used and open files' iNodes
+     */
+    private final INodeCache iNodeCache;
+
+    /**
+     * locks of the iNode table blocks, guarding the <code>INode</code>
+     * objects representing the iNodes stored in each block
+     */
+    private final Object[] iNodeLocks;
+
+    /**
+     * the system-wide open files table: open files by iNode index,
+     * each of them shared by all the descriptors of the file
+     */
+    private final Map<Integer, File> openFiles = new HashMap<>();
+
+    /**
+     * the root directory, which is not held by any directory entry
+     */
+    private static final DentryCache.Entry ROOT_ENTRY = new DentryCache.Entry(-1, 0, true);
+
+    /**
+     * the buffer of each thread a link of an indirect block is read or
+     * written through, so that following the links allocates nothing
+     */
+    private static final ThreadLocal<ByteBuffer> LINK_BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(FileSystemParams.BYTES_PER_BLOCK_INDEX));
+
+    /**
+     * the root directory file, it is always open
+     */
+    private final File directoryFile;
+
+    /**
+     * the format of the entries of the directory files
+     */
+    private final DirectoryFormat format;
+
+    /**
+     * the index of large directories or <code>null</code>
+     * if the file system doesn't support it
+     */
+    private final DirectoryIndex directoryIndex;
+
+    /**
+     * the session which descriptors are used by the file operations
+     * of this class
+     */
+    private final Session defaultSession;
 
     /**
-     * Open files table, which keeps track of open files
-     * The <code>OFT[0]</code> entry is reserved for the directory,
-     * it is always open
+     * recently looked up directory entries
      */
-    private File[] OFT;
+    private final DentryCache dentryCache
+            = new DentryCache(FileSystemParams.DENTRY_CACHE_SIZE);
+
+    /**
+     * guards the directories: their contents, the dentry cache
+     * and the free iNodes
+     */
+    private final ReentrantReadWriteLock directoryLock = new ReentrantReadWriteLock();
 
     /**
      * Constructs new <code>FileSystem</code> with specified parameters
@@ -47,9 +190,98 @@ public class FileSystem {
      * @param fileSystemParams contains runtime and initialization parameters
      */
     public FileSystem(FileSystemParams fileSystemParams) {
-        params = fileSystemParams;
-        storage = InMemoryStorage.getStorage(params.blocksNumber, params.blockSize);
+        this(fileSystemParams,
+             InMemoryStorage.getStorage(fileSystemParams.blocksNumber,
+                                        fileSystemParams.blockSize),
+             true);
+    }
+
+    /**
+     * Constructs the file system object to manipulate the
+     * file system on the specified storage.
+     *
+     * @param fileSystemParams contains runtime and initialization parameters,
+     *                         recovered from the superblock on the storage
+     * @param storage the storage on which the file system is deployed
+     */
+    public FileSystem(FileSystemParams fileSystemParams, Storage storage) {
+        this(fileSystemParams, storage, false);
+    }
+
+    /**
+     * Constructs the file system object to manipulate the
+     * file system on the specified storage, optionally deploying
+     * a new empty file system on it first.
+     *
+     * @param fileSystemParams contains runtime and initialization parameters
+     * @param storage the storage on which the file system is deployed
+     * @param format  if <code>true</code>, a new file system is written
+     *                to the storage, otherwise the storage must already
+     *                hold a file system described by fileSystemParams
+     * @throws IllegalArgumentException if the storage is too small
+     *         or it's block size doesn't match fileSystemParams
+     */
+    public FileSystem(FileSystemParams fileSystemParams, Storage storage,
+                      boolean format) {
+        if (storage.getBlockSize() != fileSystemParams.blockSize
+                || storage.getBlocksNumber() < fileSystemParams.blocksNumber) {
+            throw new IllegalArgumentException("The storage doesn't match "
+                    + "the file system parameters");
+        }
+        this.params = fileSystemParams;
+        this.format = DirectoryFormat.getInstance(params);
+        directoryIndex = DirectoryIndex.getInstance(params, this.format);
+        device = new ChangeTrackingStorage(storage);
+        storage = device;
+        if (params.bufferCacheSize > 0) {
+            bufferCache = new BufferCache(storage, params.bufferCacheSize);
+            storage = bufferCache;
+        }
+        this.storage = storage;
+        if (params.journalBlocks > 0) {
+            journal = new Journal(storage, params);
+            if (format) {
+                journal.reset();
+            } else {
+                journal.replay();
+            }
+            metadata = journal;
+        } else {
+            journal = null;
+            metadata = storage;
+        }
+        iNodeLocks = new Object[params.blocksForINodes];
+        for (int i = 0; i < iNodeLocks.length; ++i) {
+            iNodeLocks[i] = new Object();
+        }
+
+        if (format) {
+            bitmap = new BlockBitmap(metadata, params);
+            format();
+        } else {
+            bitmap = BlockBitmap.load(metadata, params);
+        }
+        freeINodes = findFreeINodes();
+        iNodeCache = new INodeCache(this, FileSystemParams.INODE_CACHE_SIZE);
+
+        //open directory
+        INode directory = iNodeCache.get(0);
+        directoryFile = new File(directory, true);
+        defaultSession = new Session(params.maxOpenFiles);
+
+        if (journal != null) {
+            journal.setFlush(this::flushMetadata);
+            if (format) {
+                journal.commit();
+            }
+        }
+    }
 
+    /**
+     * writes an empty file system to the storage: the superblock,
+     * free blocks bitmap, free iNodes and an empty directory
+     */
+    private void format() {
         writeSuperblock();
 
         // mark meta-data blocks as used
@@ -65,38 +297,12 @@ public class FileSystem {
 
         // write directory
         INode directory = new INode(0);
-        int firstDirectoryBlock = findFreeBlock();
+        int firstDirectoryBlock = allocateFreeBlock();
         assert firstDirectoryBlock == params.filesBlockIndex;
-        markBlockAsUsed(firstDirectoryBlock);
         directory.blockIndexes[0] = firstDirectoryBlock;
         directory.length = 0;
         directory.writeToStorage();
-
-        // create OFT
-        OFT = new File[params.openFilesTableSize];
-
-        //open directory in OFT[0]
-        OFT[0] = new File(directory);
-    }
-
-    /**
-     * Constructs the file system object to manipulate the
-     * file system on the specified storage.
-     *
-     * @param fileSystemParams contains runtime and initialization parameters,
-     *                         recovered from the superblock on the storage
-     * @param storage the storage on which the file system is deployed
-     */
-    public FileSystem(FileSystemParams fileSystemParams, Storage storage) {
-        this.params = fileSystemParams;
-        this.storage = storage;
-
-        // create OFT
-        OFT = new File[params.openFilesTableSize];
-
-        //open directory in OFT[0]
-        INode directory = readINodeFromStorage(0);
-        OFT[0] = new File(directory);
+        bitmap.flush();
     }
 
     /**
@@ -107,15 +313,19 @@ public class FileSystem {
      * @see Storage
      */
     private void writeSuperblock() {
-        ByteBuffer superblockBuffer = ByteBuffer.allocate(params.blockSize);
-        superblockBuffer.putInt(FileSystemParams.FILE_SYSTEM_VERSION);
+        boolean journaled = params.version >= FileSystemParams.JOURNAL_FILE_SYSTEM_VERSION;
+        ByteBuffer superblockBuffer = ByteBuffer.allocate(journaled
+                ? FileSystemParams.JOURNAL_SUPER_BLOCK_SIZE
+                : FileSystemParams.SUPER_BLOCK_SIZE);
+        superblockBuffer.putInt(params.version);
         superblockBuffer.putInt(params.blockSize);
         superblockBuffer.putInt(params.blocksNumber);
         superblockBuffer.putInt(params.iNodesNumber);
+        if (journaled) {
+            superblockBuffer.putInt(params.journalBlocks);
+        }
         superblockBuffer.flip();
-        byte[] superblock = new byte[params.blockSize];
-        superblockBuffer.get(superblock,0,FileSystemParams.SUPER_BLOCK_SIZE);
-        storage.writeBlock(superblock,FileSystemParams.SUPER_BLOCK_INDEX);
+        metadata.writeBlock(superblockBuffer,FileSystemParams.SUPER_BLOCK_INDEX,0);
     }
 
     /**
@@ -125,15 +335,10 @@ public class FileSystem {
      * @param blockNumber index of the block
      */
     private void markBlockAsFree(int blockNumber) {
-        int offsetBlocks = FileSystemParams.BITMAP_BLOCK_INDEX
-                + blockNumber / (params.blockSize * Byte.SIZE);
-        int offsetBytes = (blockNumber % (params.blockSize * Byte.SIZE)) / Byte.SIZE;
-        int offsetBits = (blockNumber % (params.blockSize * Byte.SIZE)) % Byte.SIZE;
-        byte[] bitmapBlock = storage.readBlock(offsetBlocks);
-        byte b = bitmapBlock[offsetBytes];
-        b = (byte) (b & ~(1 << offsetBits));
-        bitmapBlock[offsetBytes] = b;
-        storage.writeBlock(bitmapBlock,offsetBlocks);
+        bitmap.markFree(blockNumber);
+        if (journal != null) {
+            journal.free(blockNumber);
+        }
     }
 
     /**
@@ -142,50 +347,257 @@ public class FileSystem {
      *
      * @param blockNumber index of the block
      */
-    private static void markBlockAsUsed(int blockNumber) {
-        int offsetBlocks = FileSystemParams.BITMAP_BLOCK_INDEX
-                + blockNumber / (params.blockSize * Byte.SIZE);
-        int offsetBytes = (blockNumber % (params.blockSize * Byte.SIZE)) / Byte.SIZE;
-        int offsetBits = (blockNumber % (params.blockSize * Byte.SIZE)) % Byte.SIZE;
-        byte[] bitmapBlock = storage.readBlock(offsetBlocks);
-        byte b = bitmapBlock[offsetBytes];
-        b = (byte) (b | (1 << offsetBits));
-        bitmapBlock[offsetBytes] = b;
-        storage.writeBlock(bitmapBlock,offsetBlocks);
+    private void markBlockAsUsed(int blockNumber) {
+        bitmap.markUsed(blockNumber);
     }
 
     /**
-     * Searches through the free space bitmap and returns
-     * the index of a free block or -1 if no free space left
+     * Searches through the free space bitmap for a free block
+     * and marks it as used. The search starts right after
+     * the last allocated block. The blocks freed since the last
+     * commit of the journal are skipped.
      *
-     * @return the index of a free block or -1 if not found
-     */
-    private static int findFreeBlock() {
-        for (int bitmapBlockIndex = 0;
-             bitmapBlockIndex < params.blocksForBitmap;
-             ++bitmapBlockIndex) {
-            byte[] biteBlock = storage.readBlock(
-                    bitmapBlockIndex + FileSystemParams.BITMAP_BLOCK_INDEX);
-            for (int bitmapByteIndex = 0;
-                 bitmapByteIndex < params.blockSize;
-                 ++bitmapByteIndex) {
-                byte bitmapByte = biteBlock[bitmapByteIndex];
-                for (int bitmapBitIndex = 0;
-                     bitmapBitIndex < Byte.SIZE;
-                     ++bitmapBitIndex) {
-                    if (((bitmapByte>>bitmapBitIndex) & 1) == 0) {
-                        int index = (((bitmapBlockIndex * params.blockSize)
-                                        + bitmapByteIndex) * Byte.SIZE)
-                                        + bitmapBitIndex;
-                        if (index < params.blocksNumber)
-                            return index;
-                        else
-                            return -1;
-                    }
+     * @return the index of the allocated block or -1 if no free space left
+     */
+    private int allocateFreeBlock() {
+        return allocateFreeBlock(false);
+    }
+
+    /**
+     * @see #allocateFreeBlock()
+     * @param reserved whether the block was reserved by {@link #reserveBlocks(int)},
+     *                 otherwise the reserved blocks are not allocated
+     * @return the index of the allocated block or -1 if no free space left
+     */
+    private int allocateFreeBlock(boolean reserved) {
+        if (!reserved) {
+            if (!reserveBlocks(1)) {
+                return -1;
+            }
+            try {
+                return allocateFreeBlock(true);
+            } finally {
+                releaseBlocks(1);
+            }
+        }
+        if (journal == null) {
+            return bitmap.allocate();
+        }
+        List<Integer> skipped = null;
+        int blockIndex;
+        while ((blockIndex = bitmap.allocate()) != -1 && journal.isFreed(blockIndex)) {
+            if (skipped == null) {
+                skipped = new ArrayList<>();
+            }
+            skipped.add(blockIndex);
+        }
+        if (skipped != null) {
+            for (int freed : skipped) {
+                bitmap.markFree(freed);
+            }
+        }
+        return blockIndex;
+    }
+
+    /**
+     * reserves free blocks, so that they are allocated only by the one
+     * who reserved them. The blocks freed since the last commit
+     * of the journal are not reserved, as they can't be allocated yet,
+     * so the journal is committed if they are needed.
+     *
+     * @param count number of blocks
+     * @return <code>true</code> if the blocks were reserved,
+     *         <code>false</code> if no free space left
+     */
+    private boolean reserveBlocks(int count) {
+        while (true) {
+            int reserved = reservedBlocks.get();
+            int available = bitmap.getFreeBlocksNumber() - reserved
+                    - (journal == null ? 0 : journal.getFreedBlocksNumber());
+            if (count > available) {
+                if (journal != null && journal.commitFreedBlocks()) {
+                    continue;
                 }
+                return false;
+            }
+            if (reservedBlocks.compareAndSet(reserved, reserved + count)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * releases the blocks reserved by {@link #reserveBlocks(int)}
+     * that were allocated or are no longer needed
+     *
+     * @param count number of blocks
+     */
+    private void releaseBlocks(int count) {
+        reservedBlocks.addAndGet(-count);
+    }
+
+    /**
+     * returns the number of the indirect blocks allocated along with
+     * the block of a file with specified number, given that the blocks
+     * of files are allocated in order
+     *
+     * @param fileBlockNumber number of the block within the file
+     * @return number of the indirect blocks the block needs
+     */
+    private int getNewIndirectBlocksNumber(int fileBlockNumber) {
+        int perBlock = params.indirectBlockLinksNumber;
+        int n = fileBlockNumber - params.directBlockLinksNumber;
+        if (n < 0) {
+            return 0;
+        }
+        if (n == 0) {
+            // the single indirect block
+            return 1;
+        }
+        n -= perBlock;
+        if (n < 0) {
+            return 0;
+        }
+        if (n == 0) {
+            // the double indirect block and the first single one it links to
+            return 2;
+        }
+        return n % perBlock == 0 ? 1 : 0;
+    }
+
+    /**
+     * starts an update of the metadata, which must be committed
+     * to the journal as a whole. If the blocks the update may allocate
+     * are freed by the running transaction, it's committed first,
+     * as the blocks can't be allocated in the middle of the update.
+     *
+     * @see Journal#begin()
+     */
+    private void beginUpdate() {
+        if (journal != null) {
+            if (bitmap.getFreeBlocksNumber() - reservedBlocks.get()
+                    - journal.getFreedBlocksNumber() < Journal.MAX_BLOCKS_PER_UPDATE) {
+                journal.commitFreedBlocks();
+            }
+            journal.begin();
+        }
+    }
+
+    /**
+     * ends an update of the metadata started by {@link #beginUpdate()}
+     */
+    private void endUpdate() {
+        if (journal != null) {
+            journal.end();
+        }
+    }
+
+    /**
+     * returns the lock guarding the <code>INode</code> object
+     * representing the iNode with specified index
+     *
+     * @param index index of the iNode
+     * @return the lock of the iNode table block holding the iNode
+     */
+    Object iNodeLock(int index) {
+        return iNodeLocks[index * FileSystemParams.INODE_SIZE / params.blockSize];
+    }
+
+    /**
+     * allocates a new indirect block, that holds no links yet
+     *
+     * @param reserved whether the block was reserved by {@link #reserveBlocks(int)}
+     * @return index of the allocated block or -1 if no free space left
+     */
+    private int allocateIndirectBlock(boolean reserved) {
+        int blockIndex = allocateFreeBlock(reserved);
+        if (blockIndex == -1) {
+            return -1;
+        }
+        byte[] noLinks = new byte[params.blockSize];
+        Arrays.fill(noLinks, (byte) -1);
+        metadata.writeBlock(ByteBuffer.wrap(noLinks), blockIndex, 0);
+        return blockIndex;
+    }
+
+    /**
+     * reads a block link from an indirect block
+     *
+     * @param indirectBlockIndex index of the indirect block
+     * @param linkIndex index of the link within the indirect block
+     * @return the block index the link holds, -1 if the link is not used
+     */
+    private int readLink(int indirectBlockIndex, int linkIndex) {
+        ByteBuffer buffer = LINK_BUFFER.get();
+        buffer.clear();
+        metadata.readBlock(indirectBlockIndex,
+                linkIndex * FileSystemParams.BYTES_PER_BLOCK_INDEX, buffer);
+        return buffer.getInt(0);
+    }
+
+    /**
+     * writes a block link to an indirect block
+     *
+     * @param indirectBlockIndex index of the indirect block
+     * @param linkIndex index of the link within the indirect block
+     * @param blockIndex the block index to hold
+     */
+    private void writeLink(int indirectBlockIndex, int linkIndex, int blockIndex) {
+        ByteBuffer buffer = LINK_BUFFER.get();
+        buffer.clear();
+        buffer.putInt(blockIndex);
+        buffer.flip();
+        metadata.writeBlock(buffer, indirectBlockIndex,
+                linkIndex * FileSystemParams.BYTES_PER_BLOCK_INDEX);
+    }
+
+    /**
+     * marks the blocks the indirect block links to as free,
+     * as well as the indirect block itself
+     *
+     * @param indirectBlockIndex index of the indirect block
+     * @param depth 1 for a single indirect block, whose links point to
+     *              blocks of the file, 2 for a double indirect block
+     */
+    private void freeIndirectBlock(int indirectBlockIndex, int depth) {
+        ByteBuffer links = ByteBuffer.allocate(params.blockSize);
+        metadata.readBlock(indirectBlockIndex, 0, links);
+        links.flip();
+        while (links.remaining() >= FileSystemParams.BYTES_PER_BLOCK_INDEX) {
+            int blockIndex = links.getInt();
+            if (blockIndex == -1) {
+                continue;
+            }
+            if (depth > 1) {
+                freeIndirectBlock(blockIndex, depth - 1);
+            } else {
+                markBlockAsFree(blockIndex);
+            }
+        }
+        markBlockAsFree(indirectBlockIndex);
+    }
+
+    /**
+     * marks all the blocks occupied by the file
+     * the specified iNode points to as free
+     *
+     * @param iNode INode object representing a used iNode
+     */
+    private void freeBlocks(INode iNode) {
+        int[] blockIndexes = iNode.blockIndexes;
+        for (int i = 0; i < blockIndexes.length; ++i) {
+            int blockIndex = blockIndexes[i];
+            if (blockIndex == -1) {
+                continue;
+            }
+            if (i < params.directBlockLinksNumber) {
+                markBlockAsFree(blockIndex);
+            } else {
+                // the links after the direct ones point to indirect blocks
+                // of growing depth
+                freeIndirectBlock(blockIndex, i - params.directBlockLinksNumber + 1);
             }
         }
-        return -1;
     }
 
     /**
@@ -193,7 +605,7 @@ public class FileSystem {
      * Allows to manipulate iNode fields. In order to apply any
      * changes this object should be written back to storage.
      */
-     static class INode {
+    class INode {
 
         /**
          * index of the iNode represented, a value in range
@@ -212,12 +624,46 @@ public class FileSystem {
         /**
          * the indexes of emulated storage blocks this iNode points to.
          * If next block is not used, it's index is -1.
-         * If {@link FileSystemParams#INODE_BLOCK_LINKS_NUMBER}
-         * is not sufficient to hold all file blocks, the last block index
-         * points to a block, that holds indexes of another file blocks
+         * Since version 2 of file system data format only the first
+         * {@link FileSystemParams#directBlockLinksNumber} of them point to
+         * blocks of the file, the next one points to a single indirect block
+         * and the last one points to a double indirect block
+         *
+         * @see #getBlockIndex(int)
          */
         public int[] blockIndexes;
 
+        /**
+         * the length of the part of the file, that has it's blocks
+         * allocated on the Storage. The length written to the Storage
+         * doesn't exceed it, so that the iNode stored never covers
+         * the blocks of an open file, that are not allocated yet.
+         */
+        int allocatedLength = Integer.MAX_VALUE;
+
+        /**
+         * Indicates whether this object was modified since it was
+         * read from or last written to the Storage
+         *
+         * @see INodeCache
+         */
+        boolean dirty;
+
+        /**
+         * number of open files referring to this iNode
+         *
+         * @see INodeCache
+         */
+        int pinCount;
+
+        /**
+         * Indicates whether the iNode was freed, so that this object
+         * must never be cached or written to the Storage again
+         *
+         * @see INodeCache#free(INode, INode)
+         */
+        volatile boolean unlinked;
+
         /**
          * constructs free iNode representation with specified index
          * @param index index of iNode this object will represents
@@ -244,59 +690,196 @@ public class FileSystem {
             this.blockIndexes = blockIndexes;
         }
 
-        public void writeToStorage() {
-            // check index
-            if (index >= params.iNodesNumber) {
-                throw new IndexOutOfBoundsException("incorrect iNode index: "
-                        + "expected in range [0," + params.iNodesNumber + "), "
-                        + "actual " + index);
+        /**
+         * returns the index of the storage block holding the block
+         * of the file with specified number
+         *
+         * @param fileBlockNumber number of the block within the file
+         * @return the index of the storage block or -1 if the block
+         *         of the file is not allocated yet
+         */
+        int getBlockIndex(int fileBlockNumber) {
+            if ((long) fileBlockNumber * params.blockSize >= params.maxFileSize) {
+                // there is no link for the block
+                return -1;
             }
+            synchronized (iNodeLock(index)) {
+                return lookUpBlockIndex(fileBlockNumber);
+            }
+        }
 
-            // get byte[] representation of this iNode
-            byte[] iNodeBytes = new byte[FileSystemParams.INODE_SIZE];
-            ByteBuffer buffer = ByteBuffer.allocate(FileSystemParams.INODE_SIZE);
-            buffer.putInt(length);
-            for(int blockIndex : blockIndexes) {
-                buffer.putInt(blockIndex);
+        /**
+         * @see #getBlockIndex(int)
+         */
+        private int lookUpBlockIndex(int fileBlockNumber) {
+            int direct = params.directBlockLinksNumber;
+            if (fileBlockNumber < direct) {
+                return blockIndexes[fileBlockNumber];
             }
-            buffer.flip();
-            buffer.get(iNodeBytes);
 
-            // offset relative to first block containing iNodes: params.iNodesBlockIndex
-            int offsetBytes = index * FileSystemParams.INODE_SIZE % params.blockSize;
-            int offsetBlocks = index * FileSystemParams.INODE_SIZE / params.blockSize;
+            int perBlock = params.indirectBlockLinksNumber;
+            int n = fileBlockNumber - direct;
+            if (n < perBlock) {
+                int single = blockIndexes[FileSystemParams.SINGLE_INDIRECT_LINK_INDEX];
+                return single == -1 ? -1 : readLink(single, n);
+            }
 
-            // the length of the part of iNode bytes that will be written to the next block
-            int lengthInBlock2 =  (offsetBytes + FileSystemParams.INODE_SIZE) > params.blockSize
-                    ? (offsetBytes + FileSystemParams.INODE_SIZE) % params.blockSize
-                    : 0;
+            n -= perBlock;
+            int dbl = blockIndexes[FileSystemParams.DOUBLE_INDIRECT_LINK_INDEX];
+            if (dbl == -1) {
+                return -1;
+            }
+            int single = readLink(dbl, n / perBlock);
+            return single == -1 ? -1 : readLink(single, n % perBlock);
+        }
 
+        /**
+         * makes the block of the file with specified number refer to
+         * the specified storage block, allocating indirect blocks
+         * when necessary. This object should be marked as dirty afterwards.
+         *
+         * @param fileBlockNumber number of the block within the file
+         * @param blockIndex index of the storage block
+         * @throws ReadWriteException if no free space left
+         *         to allocate an indirect block
+         */
+        void setBlockIndex(int fileBlockNumber, int blockIndex)
+                throws ReadWriteException {
+            setBlockIndex(fileBlockNumber, blockIndex, false);
+        }
 
-            // the length of the part of iNode bytes that will be written to the current block
-            int lengthInBlock1 = FileSystemParams.INODE_SIZE - lengthInBlock2;
+        /**
+         * @see #setBlockIndex(int, int)
+         * @param fileBlockNumber number of the block within the file
+         * @param blockIndex index of the storage block
+         * @param reserved whether the indirect blocks were reserved
+         *                 by {@link #reserveBlocks(int)}
+         * @throws ReadWriteException if no free space left
+         *         to allocate an indirect block
+         */
+        void setBlockIndex(int fileBlockNumber, int blockIndex, boolean reserved)
+                throws ReadWriteException {
+            synchronized (iNodeLock(index)) {
+                linkBlockIndex(fileBlockNumber, blockIndex, reserved);
+            }
+        }
 
-            byte[] block1 = storage.readBlock(params.iNodesBlockIndex + offsetBlocks);
-            System.arraycopy(iNodeBytes,0,block1,offsetBytes,lengthInBlock1);
-            storage.writeBlock(block1,params.iNodesBlockIndex + offsetBlocks);
+        /**
+         * @see #setBlockIndex(int, int, boolean)
+         */
+        private void linkBlockIndex(int fileBlockNumber, int blockIndex, boolean reserved)
+                throws ReadWriteException {
+            int direct = params.directBlockLinksNumber;
+            if (fileBlockNumber < direct) {
+                blockIndexes[fileBlockNumber] = blockIndex;
+                return;
+            }
 
-            // if our iNode resides in two disk blocks
-            if (lengthInBlock2 != 0) {
-                byte[] block2 = storage.readBlock(params.iNodesBlockIndex + offsetBlocks + 1);
-                System.arraycopy(iNodeBytes,lengthInBlock1,block2,0,lengthInBlock2);
-                storage.writeBlock(block2,params.iNodesBlockIndex + offsetBlocks + 1);
+            int perBlock = params.indirectBlockLinksNumber;
+            int n = fileBlockNumber - direct;
+            if (n < perBlock) {
+                int single = getIndirectBlock(FileSystemParams.SINGLE_INDIRECT_LINK_INDEX,
+                                              reserved);
+                writeLink(single, n, blockIndex);
+                return;
             }
-        }
-    }
 
-    /**
-     * constructs a new INode object that is a representation
+            n -= perBlock;
+            int dbl = getIndirectBlock(FileSystemParams.DOUBLE_INDIRECT_LINK_INDEX, reserved);
+            int single = readLink(dbl, n / perBlock);
+            if (single == -1) {
+                single = allocateIndirectBlock(reserved);
+                if (single == -1) {
+                    throw new ReadWriteException("No free space left "
+                            + "to allocate an indirect block");
+                }
+                writeLink(dbl, n / perBlock, single);
+            }
+            writeLink(single, n % perBlock, blockIndex);
+        }
+
+        /**
+         * returns the indirect block the specified link of this iNode
+         * points to, allocating it if necessary
+         *
+         * @param linkIndex index of the link in <code>blockIndexes</code>
+         * @param reserved whether the block was reserved by {@link #reserveBlocks(int)}
+         * @return index of the indirect block
+         * @throws ReadWriteException if no free space left
+         *         to allocate the indirect block
+         */
+        private int getIndirectBlock(int linkIndex, boolean reserved)
+                throws ReadWriteException {
+            if (blockIndexes[linkIndex] == -1) {
+                int blockIndex = allocateIndirectBlock(reserved);
+                if (blockIndex == -1) {
+                    throw new ReadWriteException("No free space left "
+                            + "to allocate an indirect block");
+                }
+                blockIndexes[linkIndex] = blockIndex;
+            }
+            return blockIndexes[linkIndex];
+        }
+
+        public void writeToStorage() {
+            // check index
+            if (index >= params.iNodesNumber) {
+                throw new IndexOutOfBoundsException("incorrect iNode index: "
+                        + "expected in range [0," + params.iNodesNumber + "), "
+                        + "actual " + index);
+            }
+
+            // an older state must never be written over a newer one
+            synchronized (iNodeLock(index)) {
+                writeFields();
+            }
+        }
+
+        /**
+         * @see #writeToStorage()
+         */
+        private void writeFields() {
+            // get byte representation of this iNode
+            ByteBuffer buffer = ByteBuffer.allocate(FileSystemParams.INODE_SIZE);
+            buffer.putInt(Math.min(length, allocatedLength));
+            for(int blockIndex : blockIndexes) {
+                buffer.putInt(blockIndex);
+            }
+
+            // offset relative to first block containing iNodes: params.iNodesBlockIndex
+            int offsetBytes = index * FileSystemParams.INODE_SIZE % params.blockSize;
+            int offsetBlocks = index * FileSystemParams.INODE_SIZE / params.blockSize;
+
+            // the length of the part of iNode bytes that will be written to the next block
+            int lengthInBlock2 =  (offsetBytes + FileSystemParams.INODE_SIZE) > params.blockSize
+                    ? (offsetBytes + FileSystemParams.INODE_SIZE) % params.blockSize
+                    : 0;
+
+
+            // the length of the part of iNode bytes that will be written to the current block
+            int lengthInBlock1 = FileSystemParams.INODE_SIZE - lengthInBlock2;
+
+            buffer.position(0);
+            buffer.limit(lengthInBlock1);
+            metadata.writeBlock(buffer,params.iNodesBlockIndex + offsetBlocks,offsetBytes);
+
+            // if our iNode resides in two disk blocks
+            if (lengthInBlock2 != 0) {
+                buffer.limit(FileSystemParams.INODE_SIZE);
+                metadata.writeBlock(buffer,params.iNodesBlockIndex + offsetBlocks + 1,0);
+            }
+        }
+    }
+
+    /**
+     * constructs a new INode object that is a representation
      * of the iNode with specified index stored on Storage
      *
      * @param index index of iNode to read from Storage
      * @return An INode object representing the iNode
      *         with specified index on Storage
      */
-    static INode readINodeFromStorage(int index) {
+    INode readINodeFromStorage(int index) {
         if (index >= params.iNodesNumber) {
             throw new IndexOutOfBoundsException("incorrect iNode index: "
                     + "expected in range [0," + params.iNodesNumber + "), "
@@ -315,23 +898,22 @@ public class FileSystem {
         // the length of the part of iNode bytes that will be written to the current block
         int lengthInBlock1 = FileSystemParams.INODE_SIZE - lengthInBlock2;
 
-        // get byte[] representation of the iNode constructed
-        byte[] iNodeBytes = new byte[FileSystemParams.INODE_SIZE];
-
-        byte[] block1 = storage.readBlock(params.iNodesBlockIndex + offsetBlocks);
-        System.arraycopy(block1,offsetBytes,iNodeBytes,0,lengthInBlock1);
+        // get byte representation of the iNode constructed
+        ByteBuffer buffer = ByteBuffer.allocate(FileSystemParams.INODE_SIZE);
+        buffer.limit(lengthInBlock1);
+        metadata.readBlock(params.iNodesBlockIndex + offsetBlocks, offsetBytes, buffer);
 
         // if our iNode resides in two disk blocks
         if (lengthInBlock2 != 0) {
-            byte[] block2 = storage.readBlock(params.iNodesBlockIndex + offsetBlocks + 1);
-            System.arraycopy(block2,0,iNodeBytes,lengthInBlock1,lengthInBlock2);
+            buffer.limit(FileSystemParams.INODE_SIZE);
+            metadata.readBlock(params.iNodesBlockIndex + offsetBlocks + 1, 0, buffer);
         }
 
         int length;
         int[] blockIndexes = new int[FileSystemParams.INODE_BLOCK_LINKS_NUMBER];
 
         // take length and blockIndexes out from byte representation
-        ByteBuffer buffer = ByteBuffer.wrap(iNodeBytes);
+        buffer.flip();
         length = buffer.getInt();
         for(int i = 0; i < blockIndexes.length; ++i) {
             blockIndexes[i] = buffer.getInt();
@@ -341,41 +923,79 @@ public class FileSystem {
         return new INode(index,length,blockIndexes);
     }
 
+    /**
+     * Scans the iNodes table and returns the indexes of iNodes
+     * not yet assigned to any file. Only the lengths of iNodes are decoded.
+     *
+     * @return indexes of free iNodes
+     */
+    private BitSet findFreeINodes() {
+        // read the whole table, as iNodes may reside in two blocks
+        ByteBuffer table = ByteBuffer.allocate(params.iNodesNumber * FileSystemParams.INODE_SIZE);
+        for (int i = 0; i < params.blocksForINodes; ++i) {
+            table.limit(Math.min(table.capacity(), table.position() + params.blockSize));
+            metadata.readBlock(params.iNodesBlockIndex + i, 0, table);
+        }
+
+        BitSet freeINodes = new BitSet(params.iNodesNumber);
+        for (int i = 0; i < params.iNodesNumber; ++i) {
+            if (table.getInt(i * FileSystemParams.INODE_SIZE) == -1) {
+                freeINodes.set(i);
+            }
+        }
+        return freeINodes;
+    }
+
     /**
      * Looks for an iNode not yet assigned to any file and
      * returns the INode object representing it or
-     * <code>null</code> in case no free iNodes left
+     * <code>null</code> in case no free iNodes left.
+     * The iNode remains free until it's taken by {@link #create(String)}.
      *
      * @return an INode object representing the free iNode
      *         or null if not found
      *
      */
     INode findFreeINode() {
-
-        for (int i = 0; i < params.iNodesNumber; ++i) {
-            INode iNode = readINodeFromStorage(i);
-            if (iNode.length == -1) {
-                return iNode;
-            }
-        }
-        return null;
+        int index = freeINodes.nextSetBit(0);
+        return index == -1 ? null : new INode(index);
     }
 
     /**
-     * An entry in open files table (OFT), keeps track of an open file
+     * An entry in the system-wide open files table, keeps track
+     * of an open file. All the descriptors of the file share the entry,
+     * each of them keeps it's own position, which is set as the current
+     * position of the file before every operation using it.
      */
-    static class File{
+    class File{
         /**
          * An INode object representing the iNode assigned to this file
          */
         INode iNode;
 
+        /**
+         * whether this file is a directory
+         */
+        final boolean directory;
+
+        /**
+         * the storage holding the blocks of this file: the metadata
+         * storage for directories, the storage itself for other files
+         */
+        final Storage storage;
+
         /**
          * A buffer used by read and write operations.
          * The buffer size is size of one block in the Storage
          */
         byte[] buffer;
 
+        /**
+         * A <code>ByteBuffer</code> backed by <code>buffer</code>,
+         * used to transfer it's contents from and to the Storage
+         */
+        ByteBuffer bufferView;
+
         /**
          * Indicates whether the buffered block was modified since
          * it was loaded from or last written to the Storage
@@ -398,6 +1018,45 @@ public class FileSystem {
          */
         int bufferedBlockLinkIndex = -1;
 
+        /**
+         * The index of the Storage block in the buffer,
+         * so that it's not looked up through indirect blocks again
+         */
+        int bufferedBlockIndex = -1;
+
+        /**
+         * the blocks written past the allocated blocks of this file, in order
+         * of their numbers within the file. The Storage blocks are allocated
+         * for them only when this file is flushed, or when there are
+         * {@link FileSystemParams#MAX_DELAYED_BLOCKS} of them, so that
+         * the blocks written together are allocated consecutively.
+         * The blocks of directories are never delayed.
+         */
+        final List<byte[]> delayedBlocks = new ArrayList<>();
+
+        /**
+         * the number within the file of the first of <code>delayedBlocks</code>
+         */
+        int firstDelayedBlock;
+
+        /**
+         * number of free blocks reserved for the delayed blocks
+         * and the indirect blocks they need
+         */
+        int reservedBlocks;
+
+        /**
+         * Guards this entry. Positional reads hold it shared,
+         * any other operation on the file must hold it exclusively
+         */
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * number of descriptors referring to this file,
+         * guarded by the open files table
+         */
+        int refCount;
+
         /**
          * Constructs a file table entry for the file
          * the specified iNode points to.
@@ -405,14 +1064,215 @@ public class FileSystem {
          * @param iNode INode object representing a used iNode, that is
          *              an iNode is assigned to some file, it's length
          *              and first block index are not -1
+         * @param directory whether the file is a directory
          */
-        public File(INode iNode) {
-            if(iNode.length == -1 || iNode.blockIndexes[0] == -1) {
+        public File(INode iNode, boolean directory) {
+            if(iNode.length == -1 || iNode.getBlockIndex(0) == -1) {
                 throw new IllegalArgumentException(
                         "the specified iNode is free, "
                         + "that is doesn't point to any file");
             }
             this.iNode = iNode;
+            this.directory = directory;
+            this.storage = directory ? metadata : FileSystem.this.storage;
+            iNodeCache.pin(iNode);
+            this.buffer = new byte[params.blockSize];
+            this.bufferView = ByteBuffer.wrap(buffer);
+        }
+
+        /**
+         * writes the buffer to the Storage if it was modified
+         * since it was loaded from or last written to the Storage,
+         * allocating the Storage blocks for the delayed blocks first
+         */
+        void flush() {
+            writeBuffer();
+            allocateDelayedBlocks();
+        }
+
+        /**
+         * writes the buffer, if it was modified since it was loaded
+         * or last written, to the Storage or to the delayed block it holds
+         */
+        private void writeBuffer() {
+            if (modified) {
+                // should not happen because in this case modified will be false
+                assert bufferedBlockLinkIndex != -1;
+
+                if (bufferedBlockIndex == -1) {
+                    byte[] delayed = getDelayedBlock(bufferedBlockLinkIndex);
+                    System.arraycopy(buffer, 0, delayed, 0, buffer.length);
+                } else {
+                    bufferView.clear();
+                    storage.writeBlock(bufferView, bufferedBlockIndex, 0);
+                }
+                modified = false;
+            }
+        }
+
+        /**
+         * @param fileBlockNumber number of the block within this file
+         * @return the contents of the delayed block with specified number
+         *         or <code>null</code> if the block is not delayed
+         */
+        private byte[] getDelayedBlock(int fileBlockNumber) {
+            int i = fileBlockNumber - firstDelayedBlock;
+            return i >= 0 && i < delayedBlocks.size() ? delayedBlocks.get(i) : null;
+        }
+
+        /**
+         * adds a delayed block of zeros with specified number, which must
+         * follow the last block of this file, reserving a free block for it
+         * and for the indirect blocks it needs. The delayed blocks are
+         * allocated first if there are too many of them. In case of failure
+         * the length of the file is set to the current position.
+         *
+         * @param fileBlockNumber number of the block within the file
+         * @return the contents of the delayed block
+         * @throws ReadWriteException if no free space left to reserve
+         *         the blocks or the maximum file size is reached
+         */
+        private byte[] delayBlock(int fileBlockNumber) throws ReadWriteException {
+            if (delayedBlocks.size() == FileSystemParams.MAX_DELAYED_BLOCKS) {
+                allocateDelayedBlocks();
+            }
+            try {
+                if ((long) fileBlockNumber * params.blockSize >= params.maxFileSize) {
+                    throw new ReadWriteException("The maximum file size is reached");
+                }
+                int count = 1 + getNewIndirectBlocksNumber(fileBlockNumber);
+                if (!reserveBlocks(count)) {
+                    throw new ReadWriteException("No free space left "
+                            + "to expand the file");
+                }
+                reservedBlocks += count;
+            } catch (ReadWriteException e) {
+                // update file length
+                synchronized (iNodeLock(iNode.index)) {
+                    iNode.length = position;
+                }
+                iNodeCache.markDirty(iNode);
+                throw e;
+            }
+            if (delayedBlocks.isEmpty()) {
+                firstDelayedBlock = fileBlockNumber;
+                synchronized (iNodeLock(iNode.index)) {
+                    iNode.allocatedLength = fileBlockNumber * params.blockSize;
+                }
+            }
+            byte[] delayed = new byte[params.blockSize];
+            delayedBlocks.add(delayed);
+            return delayed;
+        }
+
+        /**
+         * Allocates the Storage blocks for the delayed blocks of this file
+         * and writes the blocks to the Storage. The blocks are allocated
+         * consecutively, right after the last allocated block of the file
+         * if possible, unless the free space is fragmented. The delayed
+         * blocks of a file, whose iNode was freed, are dropped.
+         *
+         * @see INode#unlinked
+         */
+        private void allocateDelayedBlocks() {
+            if (delayedBlocks.isEmpty()) {
+                return;
+            }
+            writeBuffer();
+            int count = delayedBlocks.size();
+            int allocated = 0;
+            boolean unlinked = iNode.unlinked;
+            if (!unlinked) {
+                beginUpdate();
+                try {
+                    allocated = allocateRuns();
+                } finally {
+                    endUpdate();
+                }
+            }
+
+            if (allocated < count) {
+                // the blocks, that are not allocated, are lost
+                synchronized (iNodeLock(iNode.index)) {
+                    iNode.length = Math.min(iNode.length,
+                            (firstDelayedBlock + allocated) * params.blockSize);
+                }
+                if (bufferedBlockLinkIndex >= firstDelayedBlock + allocated) {
+                    bufferedBlockLinkIndex = -1;
+                }
+            }
+            if (bufferedBlockLinkIndex >= firstDelayedBlock
+                    && bufferedBlockLinkIndex < firstDelayedBlock + allocated) {
+                bufferedBlockIndex = iNode.getBlockIndex(bufferedBlockLinkIndex);
+            }
+            delayedBlocks.clear();
+            releaseBlocks(reservedBlocks);
+            reservedBlocks = 0;
+            synchronized (iNodeLock(iNode.index)) {
+                iNode.allocatedLength = Integer.MAX_VALUE;
+            }
+            if (!unlinked) {
+                iNodeCache.markDirty(iNode);
+            }
+        }
+
+        /**
+         * @see #allocateDelayedBlocks()
+         * @return number of the delayed blocks allocated and written,
+         *         less than all of them only if the reserved blocks were lost
+         */
+        private int allocateRuns() {
+            int count = delayedBlocks.size();
+            int goal = firstDelayedBlock == 0
+                    ? -1 : iNode.getBlockIndex(firstDelayedBlock - 1) + 1;
+            int allocated = 0;
+            while (allocated < count) {
+                int runStart = bitmap.findRun(goal >= 0 && goal < params.blocksNumber
+                        ? goal : 0, count - allocated);
+                int runLength = 0;
+                while (runStart != -1 && allocated + runLength < count
+                        && runStart + runLength < params.blocksNumber
+                        && (journal == null || !journal.isFreed(runStart + runLength))
+                        && bitmap.allocate(runStart + runLength)) {
+                    ++runLength;
+                }
+                if (runLength == 0) {
+                    // the run was taken by another file in the meantime
+                    // or it was freed by the running transaction
+                    runStart = allocateFreeBlock(true);
+                    if (runStart == -1) {
+                        return allocated;
+                    }
+                    runLength = 1;
+                }
+
+                ByteBuffer run = ByteBuffer.allocate(runLength * params.blockSize);
+                boolean linked = true;
+                for (int i = 0; i < runLength; ++i) {
+                    try {
+                        iNode.setBlockIndex(firstDelayedBlock + allocated + i,
+                                            runStart + i, true);
+                    } catch (ReadWriteException e) {
+                        for (int j = i; j < runLength; ++j) {
+                            markBlockAsFree(runStart + j);
+                        }
+                        runLength = i;
+                        linked = false;
+                        break;
+                    }
+                    run.put(delayedBlocks.get(allocated + i));
+                }
+                run.flip();
+                if (runLength != 0) {
+                    storage.writeBlocks(run, runStart);
+                }
+                allocated += runLength;
+                if (!linked) {
+                    return allocated;
+                }
+                goal = runStart + runLength;
+            }
+            return allocated;
         }
 
 
@@ -425,149 +1285,521 @@ public class FileSystem {
          *         count bytes
          */
         public byte[] read(int count) throws ReadWriteException{
+            // the buffer to collect the data read from this file
+            byte[] result = new byte[count];
+            read(result, 0, count);
+            return result;
+        }
+
+        /**
+         * Reads <code>count</code> bytes from this file starting from
+         * the current position in the file into the specified array
+         * @param result the array to read the bytes into
+         * @param offsetInResult the offset in result of the first byte read
+         * @param count number of bytes to read
+         * @throws ReadWriteException if end of file is reached before reading
+         *         count bytes
+         * @throws IndexOutOfBoundsException if the bytes don't fit into result
+         */
+        public void read(byte[] result, int offsetInResult, int count)
+                throws ReadWriteException{
 
+            checkArrayRange(result, offsetInResult, count);
+            read(new ByteBuffer[] {ByteBuffer.wrap(result, offsetInResult, count)});
+        }
+
+        /**
+         * Reads bytes from this file starting from the current position
+         * in the file into the specified buffers, in order, until each
+         * of them is full
+         * @param dsts the buffers to read the bytes into
+         * @throws ReadWriteException if end of file is reached before
+         *         filling all the buffers
+         */
+        void read(ByteBuffer[] dsts) throws ReadWriteException {
+            long count = 0;
+            for (ByteBuffer dst : dsts) {
+                count += dst.remaining();
+            }
             if (position + count > iNode.length) {
                 throw new ReadWriteException("End of file will be reached before reading "
                         + count + " bytes!");
             }
+            for (ByteBuffer dst : dsts) {
+                readFully(dst);
+            }
+        }
 
-            // the buffer to collect the data read from this file
-            byte[] result = new byte[count];
+        /**
+         * Reads <code>dst.remaining()</code> bytes from this file starting
+         * from the current position in the file, which is not checked
+         * against the file length
+         * @param dst the buffer to read the bytes into
+         */
+        private void readFully(ByteBuffer dst) throws ReadWriteException {
 
-            if(currentBlockLinkIndex != bufferedBlockLinkIndex) {
-                loadCurrentBlock();
-            }
+            // number of bytes to read
+            int count = dst.remaining();
 
             // position in the current block
             int offsetInBlock = position % params.blockSize;
 
-            // number of bytes to read from the current block
-            int bytesToRead = Math.min(count, params.blockSize - offsetInBlock);
-
-            // current write position in result buffer
-            int offsetInResult = 0;
+            // the head, that is not a whole block, is read through the buffer
+            if (offsetInBlock != 0 || count < params.blockSize) {
+                if(currentBlockLinkIndex != bufferedBlockLinkIndex) {
+                    loadCurrentBlock();
+                }
 
-            System.arraycopy(buffer,offsetInBlock,result,offsetInResult,bytesToRead);
+                // number of bytes to read from the current block
+                int bytesToRead = Math.min(count, params.blockSize - offsetInBlock);
 
-            offsetInResult += bytesToRead;
-            position += bytesToRead;
-            currentBlockLinkIndex =  position / params.blockSize;
-            count -= bytesToRead;
+                dst.put(buffer, offsetInBlock, bytesToRead);
 
-            offsetInBlock = 0;
-            while (count != 0) {
-                assert count > 0;
-                loadCurrentBlock();
-                bytesToRead = Math.min(count, params.blockSize);
-                System.arraycopy(buffer,offsetInBlock,result,offsetInResult,bytesToRead);
-                offsetInResult += bytesToRead;
                 position += bytesToRead;
                 currentBlockLinkIndex =  position / params.blockSize;
                 count -= bytesToRead;
             }
-            return result;
+
+            // whole blocks are read straight into the destination
+            int blocksToRead = count / params.blockSize;
+            if (blocksToRead != 0) {
+                readBlocks(dst, blocksToRead);
+                count -= blocksToRead * params.blockSize;
+            }
+
+            // the tail, that is not a whole block, is read through the buffer
+            if (count != 0) {
+                if(currentBlockLinkIndex != bufferedBlockLinkIndex) {
+                    loadCurrentBlock();
+                }
+                dst.put(buffer, 0, count);
+                position += count;
+                currentBlockLinkIndex =  position / params.blockSize;
+            }
         }
 
         /**
-         * Loads the block corresponding to <code>currentBlockLinkIndex</code>
-         * (if it exists) into <code>buffer</code> or allocates a new block
-         * if <code>currentBlockLinkIndex</code> is -1.
-         * @throws ReadWriteException if no free space left to allocate a new block
+         * Reads <code>count</code> bytes from this file starting from
+         * the specified position into the specified array without using
+         * or moving the current position. The blocks are read directly
+         * from the Storage, except for the buffered one if it was modified,
+         * so that the caller only needs to hold the lock shared.
+         *
+         * @param pos position in the file of the first byte to read
+         * @param dst the array to read the bytes into
+         * @param offset the offset in dst of the first byte read
+         * @param count number of bytes to read
+         * @throws ReadWriteException if end of file is reached before reading
+         *         count bytes
+         * @throws IndexOutOfBoundsException if pos is negative or
+         *         the bytes don't fit into dst
          */
-        void loadCurrentBlock() throws ReadWriteException{
-            if(modified) {
-                // should not happen because in this case modified will be false
-                assert bufferedBlockLinkIndex != -1;
+        void pread(int pos, byte[] dst, int offset, int count)
+                throws ReadWriteException {
 
-                storage.writeBlock(buffer,iNode.blockIndexes[bufferedBlockLinkIndex]);
+            checkArrayRange(dst, offset, count);
+            if (pos < 0) {
+                throw new IndexOutOfBoundsException("Invalid pos! "
+                        + "The minimum allowed pos is 0, "
+                        + "the specified pos is " + pos);
+            }
+            if (pos + count > iNode.length) {
+                throw new ReadWriteException("End of file will be reached before reading "
+                        + count + " bytes!");
             }
-            if (iNode.blockIndexes[currentBlockLinkIndex] != -1) {
-                buffer = storage.readBlock(iNode.blockIndexes[currentBlockLinkIndex]);
-            } else {
-                int freeBlockIndex = findFreeBlock();
-                if (freeBlockIndex == -1) {
-                    // update file length
-                    iNode.length = position;
-                    iNode.writeToStorage();
 
-                    throw new ReadWriteException("No free space left "
-                            + "to expand the file");
+            ByteBuffer target = ByteBuffer.wrap(dst, offset, count);
+            while (target.hasRemaining()) {
+                int blockLinkIndex = pos / params.blockSize;
+                int offsetInBlock = pos % params.blockSize;
+                int bytesToRead;
+                if (modified && blockLinkIndex == bufferedBlockLinkIndex) {
+                    // the Storage doesn't have the latest contents of the block
+                    bytesToRead = Math.min(target.remaining(), params.blockSize - offsetInBlock);
+                    target.put(buffer, offsetInBlock, bytesToRead);
+                } else if (offsetInBlock == 0 && target.remaining() >= params.blockSize) {
+                    int blocksToRead = target.remaining() / params.blockSize;
+                    if (modified && bufferedBlockLinkIndex > blockLinkIndex
+                            && bufferedBlockLinkIndex < blockLinkIndex + blocksToRead) {
+                        blocksToRead = bufferedBlockLinkIndex - blockLinkIndex;
+                    }
+                    readStoredBlocks(blockLinkIndex, target, blocksToRead);
+                    bytesToRead = blocksToRead * params.blockSize;
+                } else {
+                    bytesToRead = Math.min(target.remaining(), params.blockSize - offsetInBlock);
+                    int limit = target.limit();
+                    target.limit(target.position() + bytesToRead);
+                    int blockIndex = iNode.getBlockIndex(blockLinkIndex);
+                    if (blockIndex == -1) {
+                        target.put(getDelayedBlock(blockLinkIndex), offsetInBlock, bytesToRead);
+                    } else {
+                        storage.readBlock(blockIndex, offsetInBlock, target);
+                    }
+                    target.limit(limit);
                 }
-                iNode.blockIndexes[currentBlockLinkIndex] = freeBlockIndex;
-                markBlockAsUsed(freeBlockIndex);
-                iNode.writeToStorage();
-                buffer = new byte[params.blockSize];
+                pos += bytesToRead;
             }
-            modified = false;
-            bufferedBlockLinkIndex = currentBlockLinkIndex;
         }
 
         /**
-         * sequentially writes all bytes from <code>src</code> to this file
-         * starting from current position in the file
+         * Writes all bytes from <code>src</code> to this file starting
+         * from the specified position, leaving the current position as is
          *
+         * @param pos position in the file of the first byte to write
          * @param src array of bytes to write to file
          * @throws ReadWriteException if no free space left to expand the file
+         * @throws IndexOutOfBoundsException if pos is greater than
+         *         the file length or less then zero.
          */
-        public void write(byte[] src) throws ReadWriteException{
-
-            // number of bytes to write
-            int count = src.length;
-
-            if(currentBlockLinkIndex != bufferedBlockLinkIndex) {
-                loadCurrentBlock();
+        void pwrite(int pos, byte[] src) throws ReadWriteException {
+            int currentPosition = position;
+            lseek(pos);
+            try {
+                write(src);
+            } finally {
+                position = currentPosition;
+                currentBlockLinkIndex = position / params.blockSize;
             }
+        }
 
-            // position in the current block
-            int offsetInBlock = position % params.blockSize;
-
-            // number of bytes to write to the current block
-            int bytesToWrite = Math.min(count, params.blockSize - offsetInBlock);
-
-            // current read position in source buffer
-            int offsetInSource = 0;
+        /**
+         * @param array an array of bytes
+         * @param offset offset of the first byte in the array
+         * @param count number of bytes
+         * @throws IndexOutOfBoundsException if the bytes don't fit into the array
+         */
+        private void checkArrayRange(byte[] array, int offset, int count) {
+            if (offset < 0 || count < 0 || offset + count > array.length) {
+                throw new IndexOutOfBoundsException("Wrong range in array: "
+                        + "expected within [0," + array.length + "), "
+                        + "actual [" + offset + "," + (offset + count) + ")");
+            }
+        }
 
-            // write to the buffer
-            System.arraycopy(src,offsetInSource,buffer,offsetInBlock,bytesToWrite);
-            modified = true;
+        /**
+         * Reads whole blocks of this file starting from the current position,
+         * which must be at a block boundary, directly from the Storage
+         * bypassing the buffer. Blocks that are consecutive on the Storage
+         * are read in one transfer.
+         *
+         * @param dst the buffer to read the blocks into
+         * @param blocksNumber number of blocks to read
+         */
+        private void readBlocks(ByteBuffer dst, int blocksNumber) {
+            assert position % params.blockSize == 0;
 
-            offsetInSource += bytesToWrite;
-            position += bytesToWrite;
-            currentBlockLinkIndex =  position / params.blockSize;
-            count -= bytesToWrite;
+            // the buffered block may be newer than its copy on the Storage
+            writeBuffer();
 
-            offsetInBlock = 0;
-            while (count != 0) {
-                assert count > 0;
-                loadCurrentBlock();
-                bytesToWrite = Math.min(count, params.blockSize);
+            readStoredBlocks(currentBlockLinkIndex, dst, blocksNumber);
 
-                // write to the buffer
-                System.arraycopy(src,offsetInSource,buffer,offsetInBlock,bytesToWrite);
-                modified = true;
+            position += blocksNumber * params.blockSize;
+            currentBlockLinkIndex = position / params.blockSize;
+        }
 
-                offsetInSource += bytesToWrite;
-                position += bytesToWrite;
-                currentBlockLinkIndex =  position / params.blockSize;
-                count -= bytesToWrite;
+        /**
+         * Reads whole blocks of this file, as they are stored on the Storage
+         * or held by the delayed blocks, ignoring the buffer. Blocks that
+         * are consecutive on the Storage are read in one transfer.
+         *
+         * @param firstBlockLinkIndex the index of the block link
+         *                            corresponding to the first block
+         * @param dst the buffer to read the blocks into
+         * @param blocksNumber number of blocks to read
+         */
+        private void readStoredBlocks(int firstBlockLinkIndex, ByteBuffer dst,
+                                      int blocksNumber) {
+            int runStart = -1;
+            int runLength = 0;
+            for (int i = 0; i < blocksNumber; ++i) {
+                int blockIndex = iNode.getBlockIndex(firstBlockLinkIndex + i);
+                if (runLength != 0 && blockIndex == runStart + runLength) {
+                    ++runLength;
+                    continue;
+                }
+                if (runLength != 0) {
+                    readRun(dst, runStart, runLength);
+                    runLength = 0;
+                }
+                if (blockIndex == -1) {
+                    dst.put(getDelayedBlock(firstBlockLinkIndex + i));
+                    continue;
+                }
+                runStart = blockIndex;
+                runLength = 1;
+            }
+            if (runLength != 0) {
+                readRun(dst, runStart, runLength);
             }
-
-            // update file length
-            iNode.length = Math.max(iNode.length, position);
-            iNode.writeToStorage();
-
         }
 
         /**
-         * moves the current position of this file to <code>pos</code>,
-         * where pos is an integer specifying the number of bytes
-         * from the beginning of the file.
+         * reads consecutive blocks from the Storage
          *
-         * @throws IndexOutOfBoundsException if pos is greater than
-         * the file length or less then zero.
+         * @param dst the buffer to read the blocks into
+         * @param firstBlockIndex index of the first Storage block
+         * @param blocksNumber number of blocks to read
          */
-        public void lseek(int pos) {
-            if (pos > iNode.length || pos < 0)
+        private void readRun(ByteBuffer dst, int firstBlockIndex, int blocksNumber) {
+            int limit = dst.limit();
+            dst.limit(dst.position() + blocksNumber * params.blockSize);
+            storage.readBlocks(firstBlockIndex, dst);
+            dst.limit(limit);
+        }
+
+        /**
+         * Loads the block corresponding to <code>currentBlockLinkIndex</code>
+         * (if it exists) into <code>buffer</code> or adds a new block
+         * if <code>currentBlockLinkIndex</code> is -1. The new block of
+         * a directory is allocated at once, the one of a file is delayed.
+         * @throws ReadWriteException if no free space left to allocate a new block
+         */
+        void loadCurrentBlock() throws ReadWriteException{
+            writeBuffer();
+            int blockIndex = iNode.getBlockIndex(currentBlockLinkIndex);
+            byte[] delayed;
+            if (blockIndex != -1) {
+                bufferView.clear();
+                storage.readBlock(blockIndex, 0, bufferView);
+            } else if ((delayed = getDelayedBlock(currentBlockLinkIndex)) != null) {
+                System.arraycopy(delayed, 0, buffer, 0, buffer.length);
+            } else if (directory) {
+                blockIndex = allocateBlock(currentBlockLinkIndex);
+                Arrays.fill(buffer, (byte) 0);
+            } else {
+                delayBlock(currentBlockLinkIndex);
+                Arrays.fill(buffer, (byte) 0);
+            }
+            modified = false;
+            bufferedBlockLinkIndex = currentBlockLinkIndex;
+            bufferedBlockIndex = blockIndex;
+        }
+
+        /**
+         * allocates a new Storage block for the block of this file
+         * with specified number. In case of failure the length
+         * of the file is set to the current position.
+         *
+         * @param fileBlockNumber number of the block within the file
+         * @return index of the allocated Storage block
+         * @throws ReadWriteException if no free space left to allocate
+         *         the block or an indirect block
+         */
+        private int allocateBlock(int fileBlockNumber) throws ReadWriteException {
+            beginUpdate();
+            try {
+                return allocateAndLinkBlock(fileBlockNumber);
+            } finally {
+                endUpdate();
+            }
+        }
+
+        /**
+         * @see #allocateBlock(int)
+         */
+        private int allocateAndLinkBlock(int fileBlockNumber) throws ReadWriteException {
+            int blockIndex = allocateFreeBlock();
+            try {
+                if (blockIndex == -1) {
+                    throw new ReadWriteException("No free space left "
+                            + "to expand the file");
+                }
+                try {
+                    iNode.setBlockIndex(fileBlockNumber, blockIndex);
+                } catch (ReadWriteException e) {
+                    markBlockAsFree(blockIndex);
+                    throw e;
+                }
+            } catch (ReadWriteException e) {
+                // update file length
+                synchronized (iNodeLock(iNode.index)) {
+                    iNode.length = position;
+                }
+                iNodeCache.markDirty(iNode);
+                throw e;
+            }
+            iNodeCache.markDirty(iNode);
+            return blockIndex;
+        }
+
+        /**
+         * sequentially writes all bytes from <code>src</code> to this file
+         * starting from current position in the file
+         *
+         * @param src array of bytes to write to file
+         * @throws ReadWriteException if no free space left to expand the file
+         */
+        public void write(byte[] src) throws ReadWriteException{
+            write(new ByteBuffer[] {ByteBuffer.wrap(src)});
+        }
+
+        /**
+         * sequentially writes all bytes remaining in the specified buffers,
+         * in order, to this file starting from current position in the file.
+         * The length of the file is updated once for all of them.
+         *
+         * @param srcs the buffers holding the bytes to write to file
+         * @throws ReadWriteException if no free space left to expand the file
+         */
+        void write(ByteBuffer[] srcs) throws ReadWriteException {
+            for (ByteBuffer src : srcs) {
+                writeFully(src);
+            }
+
+            // update file length
+            synchronized (iNodeLock(iNode.index)) {
+                iNode.length = Math.max(iNode.length, position);
+            }
+            iNodeCache.markDirty(iNode);
+        }
+
+        /**
+         * writes all bytes remaining in <code>src</code> to this file
+         * starting from current position in the file, without updating
+         * the length of the file
+         *
+         * @param src the buffer holding the bytes to write to file
+         * @throws ReadWriteException if no free space left to expand the file
+         */
+        private void writeFully(ByteBuffer src) throws ReadWriteException {
+
+            // number of bytes to write
+            int count = src.remaining();
+
+            // position in the current block
+            int offsetInBlock = position % params.blockSize;
+
+            // the head, that is not a whole block, is written through the buffer
+            if (offsetInBlock != 0 || count < params.blockSize) {
+                if(currentBlockLinkIndex != bufferedBlockLinkIndex) {
+                    loadCurrentBlock();
+                }
+
+                // number of bytes to write to the current block
+                int bytesToWrite = Math.min(count, params.blockSize - offsetInBlock);
+
+                // write to the buffer
+                src.get(buffer, offsetInBlock, bytesToWrite);
+                modified = true;
+
+                position += bytesToWrite;
+                currentBlockLinkIndex =  position / params.blockSize;
+                count -= bytesToWrite;
+            }
+
+            // whole blocks are written straight from the source
+            int blocksToWrite = count / params.blockSize;
+            if (blocksToWrite != 0) {
+                writeBlocks(src, blocksToWrite);
+                count -= blocksToWrite * params.blockSize;
+            }
+
+            // the tail, that is not a whole block, is written through the buffer
+            if (count != 0) {
+                if(currentBlockLinkIndex != bufferedBlockLinkIndex) {
+                    loadCurrentBlock();
+                }
+                src.get(buffer, 0, count);
+                modified = true;
+                position += count;
+                currentBlockLinkIndex =  position / params.blockSize;
+            }
+        }
+
+        /**
+         * Writes whole blocks to this file starting from the current position,
+         * which must be at a block boundary, directly to the Storage
+         * bypassing the buffer. Missing blocks are delayed, or allocated
+         * for a directory. Blocks that are consecutive on the Storage
+         * are written in one transfer.
+         *
+         * @param src the buffer holding the blocks to write
+         * @param blocksNumber number of blocks to write
+         * @throws ReadWriteException if no free space left to expand the file,
+         *         the blocks preceding the missing one are written anyway
+         */
+        private void writeBlocks(ByteBuffer src, int blocksNumber)
+                throws ReadWriteException {
+            assert position % params.blockSize == 0;
+
+            // the buffered block is overwritten, if it's among the written ones
+            if (bufferedBlockLinkIndex >= currentBlockLinkIndex
+                    && bufferedBlockLinkIndex < currentBlockLinkIndex + blocksNumber) {
+                modified = false;
+                bufferedBlockLinkIndex = -1;
+                bufferedBlockIndex = -1;
+            }
+
+            int runStart = -1;
+            int runLength = 0;
+            for (int i = 0; i < blocksNumber; ++i) {
+                int blockIndex = iNode.getBlockIndex(currentBlockLinkIndex);
+                byte[] delayed = null;
+                if (blockIndex == -1) {
+                    try {
+                        if (directory) {
+                            blockIndex = allocateBlock(currentBlockLinkIndex);
+                        } else {
+                            delayed = getDelayedBlock(currentBlockLinkIndex);
+                            if (delayed == null) {
+                                delayed = delayBlock(currentBlockLinkIndex);
+                            }
+                        }
+                    } catch (ReadWriteException e) {
+                        // the preceding blocks are written in any case
+                        if (runLength != 0) {
+                            writeRun(src, runStart, runLength);
+                        }
+                        throw e;
+                    }
+                }
+                if (delayed != null) {
+                    if (runLength != 0) {
+                        writeRun(src, runStart, runLength);
+                        runLength = 0;
+                    }
+                    src.get(delayed);
+                } else if (runLength != 0 && blockIndex == runStart + runLength) {
+                    ++runLength;
+                } else {
+                    if (runLength != 0) {
+                        writeRun(src, runStart, runLength);
+                    }
+                    runStart = blockIndex;
+                    runLength = 1;
+                }
+                position += params.blockSize;
+                currentBlockLinkIndex = position / params.blockSize;
+            }
+            if (runLength != 0) {
+                writeRun(src, runStart, runLength);
+            }
+        }
+
+        /**
+         * writes consecutive blocks to the Storage
+         *
+         * @param src the buffer holding the blocks to write
+         * @param firstBlockIndex index of the first Storage block
+         * @param blocksNumber number of blocks to write
+         */
+        private void writeRun(ByteBuffer src, int firstBlockIndex, int blocksNumber) {
+            int limit = src.limit();
+            src.limit(src.position() + blocksNumber * params.blockSize);
+            storage.writeBlocks(src, firstBlockIndex);
+            src.limit(limit);
+        }
+
+        /**
+         * moves the current position of this file to <code>pos</code>,
+         * where pos is an integer specifying the number of bytes
+         * from the beginning of the file.
+         *
+         * @throws IndexOutOfBoundsException if pos is greater than
+         * the file length or less then zero.
+         */
+        public void lseek(int pos) {
+            if (pos > iNode.length || pos < 0)
                 throw new IndexOutOfBoundsException("Invalid pos! "
                         + "The maximum allowed pos is immediately after "
                         + "the end of file, the minimum pos is 0, "
@@ -579,531 +1811,1698 @@ public class FileSystem {
 
 
     /**
-     * sequentially read a number of bytes from the file with specified index
-     * starting from current position in the file
+     * sequentially read a number of bytes from the file with specified index
+     * starting from current position in the file
+     *
+     * @param index index of the file descriptor
+     * @param count number of bytes to read
+     * @return array of bytes read from the file
+     * @throws ReadWriteException if end of file is reached before reading
+     *         count bytes
+     * @throws IllegalArgumentException if the file with specified index is not
+     *         opened
+     */
+    public byte[] read(int index, int count) throws ReadWriteException {
+        return defaultSession.read(index, count);
+    }
+
+    /**
+     * sequentially read a number of bytes from the file with specified index
+     * starting from current position in the file into the specified array
+     *
+     * @param index index of the file descriptor
+     * @param dst the array to read the bytes into
+     * @param offset the offset in dst of the first byte read
+     * @param count number of bytes to read
+     * @throws ReadWriteException if end of file is reached before reading
+     *         count bytes
+     * @throws IllegalArgumentException if the file with specified index is not
+     *         opened
+     * @throws IndexOutOfBoundsException if the bytes don't fit into dst
+     */
+    public void read(int index, byte[] dst, int offset, int count)
+            throws ReadWriteException {
+        defaultSession.read(index, dst, offset, count);
+    }
+
+    /**
+     * sequentially reads bytes from the file with specified index starting
+     * from current position in the file into the specified buffers, in order,
+     * until each of them is full. Block-aligned parts of the buffers are
+     * read directly from the Storage.
+     *
+     * @param index index of the file descriptor
+     * @param dsts the buffers to read the bytes into
+     * @throws ReadWriteException if end of file is reached before
+     *         filling all the buffers
+     * @throws IllegalArgumentException if the file with specified index is not
+     *         opened
+     */
+    public void readv(int index, ByteBuffer[] dsts) throws ReadWriteException {
+        defaultSession.readv(index, dsts);
+    }
+
+    /**
+     * reads a number of bytes from the file with specified index
+     * starting from the specified position in the file. The current
+     * position in the file is neither used nor changed, so positional
+     * reads of one open file proceed in parallel.
+     *
+     * @param index index of the file descriptor
+     * @param position position in the file of the first byte to read
+     * @param count number of bytes to read
+     * @return array of bytes read from the file
+     * @throws ReadWriteException if end of file is reached before reading
+     *         count bytes
+     * @throws IllegalArgumentException if the file with specified index is not
+     *         opened
+     * @throws IndexOutOfBoundsException if position is negative
+     */
+    public byte[] pread(int index, int position, int count) throws ReadWriteException {
+        return defaultSession.pread(index, position, count);
+    }
+
+    /**
+     * reads a number of bytes from the file with specified index
+     * starting from the specified position in the file into the specified
+     * array. The current position in the file is neither used nor changed,
+     * so positional reads of one open file proceed in parallel.
+     *
+     * @param index index of the file descriptor
+     * @param position position in the file of the first byte to read
+     * @param dst the array to read the bytes into
+     * @param offset the offset in dst of the first byte read
+     * @param count number of bytes to read
+     * @throws ReadWriteException if end of file is reached before reading
+     *         count bytes
+     * @throws IllegalArgumentException if the file with specified index is not
+     *         opened
+     * @throws IndexOutOfBoundsException if position is negative
+     *         or the bytes don't fit into dst
+     */
+    public void pread(int index, int position, byte[] dst, int offset, int count)
+            throws ReadWriteException {
+        defaultSession.pread(index, position, dst, offset, count);
+    }
+
+    /**
+     * Sequentially writes all bytes from <code>src</code> to the file
+     * with specified index starting from current position in the file
+     *
+     * @param index index of the file descriptor
+     * @param src array of bytes to write to file
+     * @throws ReadWriteException if max file size was reached
+     *         or if no free space left to expand the file
+     * @throws IllegalArgumentException if the file with specified index
+     *         is not opened or if it's the directory
+     */
+    public void write(int index, byte[] src) throws ReadWriteException{
+        defaultSession.write(index, src);
+    }
+
+    /**
+     * sequentially writes all bytes remaining in the specified buffers,
+     * in order, to the file with specified index starting from current
+     * position in the file, as if they were concatenated into one array.
+     * Block-aligned parts of the buffers are written directly to the Storage
+     * and the iNode is updated once for all of them.
+     *
+     * @param index index of the file descriptor
+     * @param srcs the buffers holding the bytes to write to file
+     * @throws ReadWriteException if max file size was reached
+     *         or if no free space left to expand the file
+     * @throws IllegalArgumentException if the file with specified index
+     *         is not opened or if it's the directory
+     */
+    public void writev(int index, ByteBuffer[] srcs) throws ReadWriteException {
+        defaultSession.writev(index, srcs);
+    }
+
+    /**
+     * Writes all bytes from <code>src</code> to the file with specified
+     * index starting from the specified position in the file.
+     * The current position in the file is neither used nor changed.
+     *
+     * @param index index of the file descriptor
+     * @param position position in the file of the first byte to write,
+     *                 at most the length of the file
+     * @param src array of bytes to write to file
+     * @throws ReadWriteException if max file size was reached
+     *         or if no free space left to expand the file
+     * @throws IllegalArgumentException if the file with specified index
+     *         is not opened or if it's the directory
+     * @throws IndexOutOfBoundsException if position is greater than
+     *         the file length or less than zero
+     */
+    public void pwrite(int index, int position, byte[] src) throws ReadWriteException {
+        defaultSession.pwrite(index, position, src);
+    }
+
+    /**
+     * moves the current position of the file with specified index
+     * to <code>pos</code>, where pos is an integer specifying
+     * the number of bytes from the beginning of the file.
+     * <p>
+     * When a file is initially opened, the current position
+     * is automatically set to zero. After each read or write operation,
+     * it points to the byte immediately following the one
+     * that was accessed last.
+     * <code>lseek</code> permits the position to be explicitly changed
+     * without reading or writing the data. Seeking to position 0
+     * implements a reset command, so that the entire file
+     * can be reread or rewritten from the beginning.
+     *
+     * @param index index of the file descriptor
+     * @param pos an integer specifying the number of bytes
+     *            from the beginning of the file
+     *
+     * @throws IllegalArgumentException if if the file with specified index
+     *         is not opened
+     * @throws IndexOutOfBoundsException if pos is greater than the file length
+     */
+    public void lseek(int index, int pos) {
+        defaultSession.lseek(index, pos);
+    }
+
+    /**
+     * looks up the file with specified path and returns the entry
+     * of the system-wide open files table for it, opening the file
+     * if it's not open yet. The entry must be released with
+     * {@link #releaseFile(File)} when it's no longer used.
+     *
+     * @param path path of the file
+     * @return the open file
+     * @throws FileNotFoundException if the file with specified path
+     *                               doesn't exist or it's a directory
+     */
+    private File openFile(String path) throws FileNotFoundException {
+
+        // the file must not be destroyed until it's open
+        directoryLock.readLock().lock();
+        try {
+            // find corresponding directory entry
+            DentryCache.Entry dirEntry = lookUpPath(splitPath(path));
+
+            // check if the file with specified name exists
+            if (dirEntry == null)
+                throw new FileNotFoundException();
+            if (dirEntry.directory)
+                throw new FileNotFoundException(path + " is a directory");
+
+            return acquireFile(dirEntry.iNodeIndex, false);
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * returns the entry of the system-wide open files table
+     * for the file with specified iNode, opening the file
+     * if it's not open yet, and adds a reference to it
+     *
+     * @param iNodeIndex index of the iNode of the file
+     * @param directory whether the file is a directory
+     * @return the open file
+     */
+    private File acquireFile(int iNodeIndex, boolean directory) {
+        synchronized (openFiles) {
+            File file = openFiles.get(iNodeIndex);
+            if (file == null) {
+                file = new File(iNodeCache.get(iNodeIndex), directory);
+                openFiles.put(iNodeIndex, file);
+            }
+            ++file.refCount;
+            return file;
+        }
+    }
+
+    /**
+     * returns the open directory with specified iNode, opening it
+     * if it's not open yet. The directory must be released with
+     * {@link #closeDirectory(File)} when it's no longer used.
+     *
+     * @param iNodeIndex index of the iNode of the directory
+     * @return the open directory
+     */
+    private File openDirectory(int iNodeIndex) {
+        return iNodeIndex == 0 ? directoryFile : acquireFile(iNodeIndex, true);
+    }
+
+    /**
+     * releases the directory opened by {@link #openDirectory(int)},
+     * writing it's buffer to the metadata storage. The root directory
+     * is always open, it's buffer is written along with the rest
+     * of the metadata.
+     *
+     * @param directory an open directory
+     */
+    private void closeDirectory(File directory) {
+        if (directory == directoryFile) {
+            return;
+        }
+        directory.lock.writeLock().lock();
+        try {
+            releaseFile(directory);
+        } finally {
+            directory.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * writes the buffer and the iNode of the open file to storage
+     * and releases one reference to it. The file is removed from
+     * the system-wide open files table when it's no longer referenced.
+     * The lock of the file must be held exclusively.
+     *
+     * @param file an open file
+     */
+    private void releaseFile(File file) {
+        file.flush();
+        synchronized (openFiles) {
+            if (--file.refCount == 0) {
+                openFiles.remove(file.iNode.index);
+                iNodeCache.unpin(file.iNode);
+            } else {
+                iNodeCache.flush(file.iNode);
+            }
+        }
+    }
+
+    /**
+     * An entry in a descriptor table, refers to an open file
+     * and keeps the current position in it
+     */
+    class Descriptor {
+
+        /**
+         * the open file
+         */
+        final File file;
+
+        /**
+         * the current position in the file, guarded by the lock of the file
+         */
+        int position;
+
+        /**
+         * Indicates whether this descriptor was closed,
+         * guarded by the lock of the file
+         */
+        boolean closed;
+
+        /**
+         * @param file the open file
+         */
+        Descriptor(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * A session of the file system, like a process in UNIX: has it's own
+     * table of file descriptors, so that sessions can't use each other's
+     * files. The descriptors of one file opened in several sessions refer
+     * to the same entry of the system-wide open files table, sharing
+     * one buffer and one cached iNode. The descriptor with index 0 refers
+     * to the directory, it is always open.
+     * <p>
+     * The number of files open in the session is limited,
+     * the limit can be changed at any time.
+     */
+    public class Session implements Closeable {
+
+        /**
+         * descriptors of the files open in this session by index
+         */
+        private final DescriptorTable<Descriptor> descriptors;
+
+        /**
+         * @param maxOpenFiles maximum number of files that can be open
+         *                     in the session, excluding the directory
+         */
+        private Session(int maxOpenFiles) {
+            descriptors = new DescriptorTable<>(maxOpenFiles + 1);
+            descriptors.add(new Descriptor(directoryFile));
+        }
+
+        /**
+         * @return maximum number of files that can be open
+         *         in the session, excluding the directory
+         */
+        public int getMaxOpenFiles() {
+            return descriptors.getLimit() - 1;
+        }
+
+        /**
+         * changes the maximum number of files that can be open in the session.
+         * The files already open remain open if the new limit is lower.
+         *
+         * @param maxOpenFiles maximum number of files that can be open
+         *                     in the session, excluding the directory
+         */
+        public void setMaxOpenFiles(int maxOpenFiles) {
+            if (maxOpenFiles < 0) {
+                throw new IllegalArgumentException("The maximum number of open "
+                        + "files must not be negative");
+            }
+            descriptors.setLimit(maxOpenFiles + 1);
+        }
+
+        /**
+         * @see FileSystem#open(String)
+         */
+        public int open(String name)
+                throws  FileNotFoundException,
+                        OpenFilesNumberException {
+            File file = openFile(name);
+            int index = descriptors.add(new Descriptor(file));
+            if (index == -1) {
+                file.lock.writeLock().lock();
+                try {
+                    releaseFile(file);
+                } finally {
+                    file.lock.writeLock().unlock();
+                }
+                throw new OpenFilesNumberException();
+            }
+            return index;
+        }
+
+        /**
+         * @see FileSystem#close(int)
+         */
+        public void close(int index) throws FileNotFoundException {
+            if (index < 1) {
+                throw new IndexOutOfBoundsException("Expected index greater "
+                        + "than 0, actual " + index);
+            }
+            Descriptor descriptor = descriptors.remove(index);
+            if (descriptor == null) {
+                throw new FileNotFoundException("The file with specified index"
+                        + " is not opened");
+            }
+            close(descriptor);
+        }
+
+        /**
+         * closes all the files open in the session
+         */
+        @Override
+        public void close() {
+            for (Descriptor descriptor : descriptors.removeAll(1)) {
+                close(descriptor);
+            }
+        }
+
+        /**
+         * @see FileSystem#read(int, int)
+         */
+        public byte[] read(int index, int count) throws ReadWriteException {
+            Descriptor descriptor = lock(index, false);
+            try {
+                return descriptor.file.read(count);
+            } finally {
+                unlock(descriptor, false);
+            }
+        }
+
+        /**
+         * @see FileSystem#read(int, byte[], int, int)
+         */
+        public void read(int index, byte[] dst, int offset, int count)
+                throws ReadWriteException {
+            Descriptor descriptor = lock(index, false);
+            try {
+                descriptor.file.read(dst, offset, count);
+            } finally {
+                unlock(descriptor, false);
+            }
+        }
+
+        /**
+         * @see FileSystem#readv(int, ByteBuffer[])
+         */
+        public void readv(int index, ByteBuffer[] dsts) throws ReadWriteException {
+            Descriptor descriptor = lock(index, false);
+            try {
+                descriptor.file.read(dsts);
+            } finally {
+                unlock(descriptor, false);
+            }
+        }
+
+        /**
+         * @see FileSystem#pread(int, int, int)
+         */
+        public byte[] pread(int index, int position, int count) throws ReadWriteException {
+            byte[] result = new byte[count];
+            pread(index, position, result, 0, count);
+            return result;
+        }
+
+        /**
+         * @see FileSystem#pread(int, int, byte[], int, int)
+         */
+        public void pread(int index, int position, byte[] dst, int offset, int count)
+                throws ReadWriteException {
+            Descriptor descriptor = lock(index, true);
+            try {
+                descriptor.file.pread(position, dst, offset, count);
+            } finally {
+                unlock(descriptor, true);
+            }
+        }
+
+        /**
+         * @see FileSystem#write(int, byte[])
+         */
+        public void write(int index, byte[] src) throws ReadWriteException {
+            checkNotDirectory(index);
+            Descriptor descriptor = lock(index, false);
+            try {
+                checkMaxFileSize(descriptor.position, src.length);
+                descriptor.file.write(src);
+            } finally {
+                unlock(descriptor, false);
+            }
+        }
+
+        /**
+         * @see FileSystem#writev(int, ByteBuffer[])
+         */
+        public void writev(int index, ByteBuffer[] srcs) throws ReadWriteException {
+            checkNotDirectory(index);
+            long count = 0;
+            for (ByteBuffer src : srcs) {
+                count += src.remaining();
+            }
+            Descriptor descriptor = lock(index, false);
+            try {
+                checkMaxFileSize(descriptor.position, count);
+                descriptor.file.write(srcs);
+            } finally {
+                unlock(descriptor, false);
+            }
+        }
+
+        /**
+         * @see FileSystem#pwrite(int, int, byte[])
+         */
+        public void pwrite(int index, int position, byte[] src) throws ReadWriteException {
+            checkNotDirectory(index);
+            Descriptor descriptor = lock(index, false);
+            try {
+                checkMaxFileSize(position, src.length);
+                descriptor.file.pwrite(position, src);
+            } finally {
+                unlock(descriptor, false);
+            }
+        }
+
+        /**
+         * @see FileSystem#lseek(int, int)
+         */
+        public void lseek(int index, int pos) {
+            Descriptor descriptor = lock(index, false);
+            try {
+                descriptor.file.lseek(pos);
+            } finally {
+                unlock(descriptor, false);
+            }
+        }
+
+        /**
+         * returns the descriptor with specified index, holding the lock
+         * of it's file. If the lock is held exclusively, the current
+         * position of the file is set to the one of the descriptor.
+         *
+         * @param index index of the file descriptor
+         * @param shared whether the lock is held shared or exclusively
+         * @return the descriptor, which file's lock is held
+         *         by the current thread
+         * @throws IllegalArgumentException if the file with specified index
+         *         is not opened
+         * @throws IndexOutOfBoundsException if the index is out of bounds
+         *         of the descriptor table
+         */
+        private Descriptor lock(int index, boolean shared) {
+            Descriptor descriptor = descriptors.get(index);
+            int limit = descriptors.getLimit();
+            if (descriptor == null && (index < 0 || index >= limit)) {
+                throw new IndexOutOfBoundsException("Expected index in range [0,"
+                        + limit + "), actual " + index);
+            }
+            if (descriptor != null) {
+                File file = descriptor.file;
+                Lock lock = shared ? file.lock.readLock() : file.lock.writeLock();
+                lock.lock();
+                // the descriptor could be closed while the lock was awaited
+                if (!descriptor.closed) {
+                    if (!shared) {
+                        file.lseek(descriptor.position);
+                    }
+                    return descriptor;
+                }
+                lock.unlock();
+            }
+            throw new IllegalArgumentException("No file opened with index " + index);
+        }
+
+        /**
+         * releases the lock of the descriptor's file, taken by
+         * {@link #lock(int, boolean)}, keeping the current position
+         * of the file in the descriptor if the lock was held exclusively
+         *
+         * @param descriptor the locked descriptor
+         * @param shared whether the lock is held shared or exclusively
+         */
+        private void unlock(Descriptor descriptor, boolean shared) {
+            if (shared) {
+                descriptor.file.lock.readLock().unlock();
+            } else {
+                descriptor.position = descriptor.file.position;
+                descriptor.file.lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * closes the descriptor, which was removed from the table
+         *
+         * @param descriptor the descriptor to close
+         */
+        private void close(Descriptor descriptor) {
+            File file = descriptor.file;
+            file.lock.writeLock().lock();
+            try {
+                descriptor.closed = true;
+                releaseFile(file);
+            } finally {
+                file.lock.writeLock().unlock();
+            }
+            bitmap.flush();
+        }
+
+        /**
+         * @param index index of the file descriptor
+         * @throws IllegalArgumentException if it's the directory
+         */
+        private void checkNotDirectory(int index) {
+            if (index == 0) {
+                throw new IllegalArgumentException("The directory can only be modified "
+                        + "by creating and destroying files");
+            }
+        }
+
+        /**
+         * @param position position in the file of the first byte to write
+         * @param count number of bytes to write
+         * @throws ReadWriteException if max file size will be reached
+         */
+        private void checkMaxFileSize(long position, long count)
+                throws ReadWriteException {
+            if (position + count > params.maxFileSize) {
+                throw new ReadWriteException("Max file size will be reached " +
+                        "before writing " + count + " bytes");
+            }
+        }
+    }
+
+    /**
+     * The blocks of a directory file, as they are read and written
+     * by the {@link DirectoryIndex}
+     */
+    private class DirectoryBlocks implements DirectoryIndex.Blocks {
+
+        /**
+         * an open directory
+         */
+        private final File directory;
+
+        /**
+         * @param directory an open directory
+         */
+        DirectoryBlocks(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public int getBlocksNumber() {
+            return directory.iNode.length / params.blockSize;
+        }
+
+        @Override
+        public void read(int blockNumber, byte[] block) {
+            directory.lock.readLock().lock();
+            try {
+                directory.pread(blockNumber * params.blockSize, block, 0, block.length);
+            } catch (ReadWriteException e) {
+                throw new IllegalStateException("The directory index links to "
+                        + "the block " + blockNumber + ", which doesn't exist", e);
+            } finally {
+                directory.lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void write(int blockNumber, byte[] block) throws ReadWriteException {
+            if (blockNumber * params.blockSize + block.length > params.maxFileSize) {
+                throw new ReadWriteException("Out of free directory entries");
+            }
+            writeChunk(directory, blockNumber * params.blockSize, block, block.length);
+        }
+    }
+
+    /**
+     * splits the path into the names of the directories leading
+     * to the file and the name of the file, as they are stored
+     * in directory entries. Empty names are skipped, so the path
+     * may start with the separator.
+     *
+     * @param path names separated by {@link FileSystemParams#PATH_SEPARATOR}
+     * @return the names, none for the root directory
+     */
+    private String[] splitPath(String path) {
+        List<String> names = new ArrayList<>();
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf(FileSystemParams.PATH_SEPARATOR, start);
+            if (end == -1) {
+                end = path.length();
+            }
+            if (end > start) {
+                names.add(format.toEntryName(path.substring(start, end)));
+            }
+            start = end + 1;
+        }
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * looks up the directories named by the first names
+     * of a path, starting from the root directory
+     *
+     * @param names the names of a path
+     * @param count number of the directories to look up
+     * @return index of the iNode of the last directory looked up
+     * @throws FileNotFoundException if some of the directories doesn't exist
+     */
+    private int walk(String[] names, int count) throws FileNotFoundException {
+        int iNodeIndex = 0;
+        for (int i = 0; i < count; ++i) {
+            DentryCache.Entry entry = lookUp(iNodeIndex, names[i]);
+            if (entry == null || !entry.directory) {
+                throw new FileNotFoundException("The directory "
+                        + names[i] + " doesn't exist");
+            }
+            iNodeIndex = entry.iNodeIndex;
+        }
+        return iNodeIndex;
+    }
+
+    /**
+     * looks up the file named by a path
+     *
+     * @param names the names of the path
+     * @return the directory entry holding the file, {@link #ROOT_ENTRY}
+     *         if there are no names or <code>null</code> if the
+     *         file is not present in it's directory
+     * @throws FileNotFoundException if some of the directories
+     *         leading to the file doesn't exist
+     */
+    private DentryCache.Entry lookUpPath(String[] names) throws FileNotFoundException {
+        if (names.length == 0) {
+            return ROOT_ENTRY;
+        }
+        int parent = walk(names, names.length - 1);
+        return lookUp(parent, names[names.length - 1]);
+    }
+
+    /**
+     * looks up the name in the directory, which is read only if the name
+     * is not found in the dentry cache
+     *
+     * @param parent index of the iNode of the directory
+     * @param name the name as it's stored in the directory
+     * @return the directory entry holding the name or <code>null</code>
+     *         if the name is not present in the directory
+     */
+    private DentryCache.Entry lookUp(int parent, String name) {
+        DentryCache.Entry entry = dentryCache.get(parent, name);
+        if (entry == null) {
+            File directory = openDirectory(parent);
+            try {
+                entry = findFileInDirectory(directory, name);
+            } finally {
+                closeDirectory(directory);
+            }
+            if (entry != null) {
+                dentryCache.put(parent, name, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * reads the directory from the start, a chunk of
+     * {@link DirectoryFormat#getChunkSize()} bytes at once,
+     * and returns the position of the first entry the visitor stops at.
+     * The chunk holding the entry is left in the array.
+     *
+     * @param directory an open directory
+     * @param chunk an array of {@link DirectoryFormat#getChunkSize()} bytes
+     * @param visitor visits the entries in turn, free ones included
+     * @return position of the entry in the directory file or -1
+     *         if the visitor stops at none of them
+     */
+    private int scanDirectory(File directory, byte[] chunk,
+                              DirectoryFormat.Visitor visitor) {
+        directory.lock.readLock().lock();
+        try {
+            int length = directory.iNode.length;
+            for (int pos = 0; pos < length; pos += chunk.length) {
+                int count = Math.min(chunk.length, length - pos);
+                directory.pread(pos, chunk, 0, count);
+                for (int offset = 0; offset < count; offset = format.next(chunk, offset)) {
+                    if (visitor.visit(chunk, offset)) {
+                        return pos + offset;
+                    }
+                }
+            }
+            return -1;
+        } catch (ReadWriteException e) {
+            // can't happen: the reads stop at the end of the directory
+            throw new IllegalStateException(e);
+        } finally {
+            directory.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param directory an open directory
+     * @param chunk an array of {@link DirectoryFormat#getChunkSize()} bytes
+     * @return <code>true</code> if the directory has a {@link DirectoryIndex}
+     */
+    private boolean isIndexed(File directory, byte[] chunk) {
+        return directoryIndex != null
+                && directoryIndex.isIndexed(new DirectoryBlocks(directory), chunk);
+    }
+
+    /**
+     * visits the entries of the directory like
+     * {@link #scanDirectory(File, byte[], DirectoryFormat.Visitor)},
+     * the entries of an indexed directory in the order of hashes
+     *
+     * @param directory an open directory
+     * @param chunk an array of {@link DirectoryFormat#getChunkSize()} bytes
+     * @param visitor visits the entries in turn, free ones included
+     * @return position of the entry in the directory file or -1
+     *         if the visitor stops at none of them
+     */
+    private int scanEntries(File directory, byte[] chunk,
+                            DirectoryFormat.Visitor visitor) {
+        if (isIndexed(directory, chunk)) {
+            return directoryIndex.scan(new DirectoryBlocks(directory), chunk, visitor);
+        }
+        return scanDirectory(directory, chunk, visitor);
+    }
+
+    /**
+     * writes a chunk of the directory file back
+     *
+     * @param directory an open directory
+     * @param pos position of the chunk in the directory file
+     * @param chunk the array holding the chunk
+     * @param count number of bytes of the chunk
+     * @throws ReadWriteException if the directory can't grow
+     */
+    private void writeChunk(File directory, int pos, byte[] chunk, int count)
+            throws ReadWriteException {
+        directory.lock.writeLock().lock();
+        try {
+            directory.lseek(pos);
+            directory.write(new ByteBuffer[] {ByteBuffer.wrap(chunk, 0, count)});
+        } finally {
+            directory.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * returns the directory entry corresponding to the specified file
+     * or <code>null</code> if the file is not present in the directory.
+     * The entries are compared to the name without decoding them,
+     * only one leaf of an indexed directory is read.
+     *
+     * @param directory an open directory
+     * @param fileName the name of the file as it's stored in the directory
+     * @return the directory entry corresponding to the specified file
+     *         or <code>null</code> if the file is not present in the directory
+     */
+    private DentryCache.Entry findFileInDirectory(File directory, String fileName) {
+        byte[] name = format.encodeName(fileName);
+        int hash = DirectoryFormat.hash(name);
+        byte[] chunk = new byte[format.getChunkSize()];
+        int pos;
+        if (isIndexed(directory, chunk)) {
+            pos = directoryIndex.lookUp(new DirectoryBlocks(directory), name, hash, chunk);
+        } else {
+            pos = scanDirectory(directory, chunk,
+                    (c, offset) -> format.hasName(c, offset, name, hash));
+        }
+        if (pos == -1) {
+            return null;
+        }
+        int offset = pos % chunk.length;
+        return new DentryCache.Entry(pos, format.getINodeIndex(chunk, offset),
+                                     format.isDirectory(chunk, offset));
+    }
+
+    /**
+     * puts a new entry into the first entry of the directory having room
+     * for it, the directory grows by {@link DirectoryFormat#getAppendSize()}
+     * bytes if none has. A directory, which first block is full, gets
+     * a {@link DirectoryIndex}, if the file system supports it. The index
+     * is dropped, if the directory can't grow to split a full leaf.
+     *
+     * @param directory an open directory
+     * @param name the bytes of the name of the file
+     * @param iNodeIndex index of the iNode of the file
+     * @param isDirectory whether the file is a directory
+     * @return position of the new entry in the directory file
+     * @throws ReadWriteException if the directory is full
+     *         or the storage is out of free blocks
+     */
+    private int putDirectoryEntry(File directory, byte[] name,
+                                  int iNodeIndex, boolean isDirectory)
+            throws ReadWriteException {
+        byte[] chunk = new byte[format.getChunkSize()];
+        if (isIndexed(directory, chunk)) {
+            DirectoryBlocks blocks = new DirectoryBlocks(directory);
+            int pos = directoryIndex.insert(blocks, name, iNodeIndex, isDirectory);
+            if (pos != -1) {
+                return pos;
+            }
+            // the tree can't grow, the room left in it's leaves is used
+            directoryIndex.drop(blocks);
+        }
+        int pos = scanDirectory(directory, chunk,
+                (c, offset) -> format.hasRoom(c, offset, name.length));
+        if (pos == -1 && directoryIndex != null
+                && directory.iNode.length == params.blockSize) {
+            DirectoryBlocks blocks = new DirectoryBlocks(directory);
+            directoryIndex.create(blocks);
+            return directoryIndex.insert(blocks, name, iNodeIndex, isDirectory);
+        }
+        int chunkPos;
+        int count;
+        int offset;
+        if (pos != -1) {
+            chunkPos = pos - pos % chunk.length;
+            count = Math.min(chunk.length, directory.iNode.length - chunkPos);
+            offset = format.put(chunk, pos - chunkPos, name, iNodeIndex, isDirectory);
+        } else {
+            chunkPos = directory.iNode.length;
+            count = format.getAppendSize();
+            if (chunkPos + count > params.maxFileSize) {
+                throw new ReadWriteException("Out of free directory entries");
+            }
+            format.init(chunk);
+            offset = format.put(chunk, 0, name, iNodeIndex, isDirectory);
+        }
+        writeChunk(directory, chunkPos, chunk, count);
+        return chunkPos + offset;
+    }
+
+    /**
+     * frees the directory entry
+     * @param directory an open directory
+     * @param entry the directory entry that will be removed
+     * @param name the name the entry holds
+     */
+    private void removeDirectoryEntry(File directory, DentryCache.Entry entry,
+                                      String name) {
+        byte[] chunk = new byte[format.getChunkSize()];
+        int pos = entry.position;
+        if (isIndexed(directory, chunk)) {
+            // the entries move as the leaves split
+            byte[] nameBytes = format.encodeName(name);
+            pos = directoryIndex.lookUp(new DirectoryBlocks(directory), nameBytes,
+                                        DirectoryFormat.hash(nameBytes), chunk);
+        }
+        int chunkPos = pos - pos % chunk.length;
+        int count;
+        directory.lock.writeLock().lock();
+        try {
+            count = Math.min(chunk.length, directory.iNode.length - chunkPos);
+            directory.pread(chunkPos, chunk, 0, count);
+            format.remove(chunk, pos - chunkPos);
+            writeChunk(directory, chunkPos, chunk, count);
+        } catch (ReadWriteException e) {
+            throw new IllegalArgumentException("The directory entry " +
+                    "at position " + pos + " doesn't exist");
+        } finally {
+            directory.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * creates a new file with specified path
+     * @param path path of the file, the length of each name in it
+     *             is at most {@link FileSystemParams#maxFileNameLength}
+     *             bytes, in file systems older than version 4 longer
+     *             names are cut
+     * @throws FileAlreadyExistsException if the file with specified
+     *                                    path already exists
+     * @throws FileNotFoundException if the directory to create
+     *                               the file in doesn't exist
+     * @throws ReadWriteException   if the file system is out of some resource,
+     *                              like storage blocks, iNodes
+     *                              or directory entries
+     * @throws IllegalArgumentException if the name is too long
+     */
+    public void create(String path)
+            throws  FileAlreadyExistsException,
+                    FileNotFoundException,
+                    ReadWriteException {
+        createEntry(path, false);
+    }
+
+    /**
+     * creates a new empty directory with specified path
+     * @param path path of the directory, the length of each name in it
+     *             is at most {@link FileSystemParams#maxFileNameLength}
+     *             bytes, in file systems older than version 4 longer
+     *             names are cut
+     * @throws FileAlreadyExistsException if the file or directory with
+     *                                    specified path already exists
+     * @throws FileNotFoundException if the directory to create
+     *                               the directory in doesn't exist
+     * @throws ReadWriteException   if the file system is out of some resource,
+     *                              like storage blocks, iNodes
+     *                              or directory entries
+     * @throws IllegalArgumentException if the name is too long
+     */
+    public void mkdir(String path)
+            throws  FileAlreadyExistsException,
+                    FileNotFoundException,
+                    ReadWriteException {
+        createEntry(path, true);
+    }
+
+    /**
+     * @see #create(String)
+     * @see #mkdir(String)
+     */
+    private void createEntry(String path, boolean isDirectory)
+            throws  FileAlreadyExistsException,
+                    FileNotFoundException,
+                    ReadWriteException {
+        directoryLock.writeLock().lock();
+        beginUpdate();
+        try {
+            String[] names = splitPath(path);
+
+            // the root directory always exists
+            if (names.length == 0)
+                throw new FileAlreadyExistsException();
+            int parent = walk(names, names.length - 1);
+            String name = names[names.length - 1];
+            byte[] nameBytes = format.encodeName(name);
+            if (nameBytes.length > params.maxFileNameLength)
+                throw new IllegalArgumentException("The name " + name + " is longer than "
+                        + params.maxFileNameLength + " bytes");
+
+            // check if the file with specified name exists
+            if (lookUp(parent, name) != null)
+                throw new FileAlreadyExistsException();
+
+            File directory = openDirectory(parent);
+            try {
+                // find free iNode
+                INode iNode = findFreeINode();
+                if (iNode == null) {
+                    throw new ReadWriteException("Out of free iNodes");
+                }
+                int iNodeIndex = iNode.index;
+
+                // allocate storage block
+                int blockIndex = allocateFreeBlock();
+                if (blockIndex == -1) {
+                    throw new ReadWriteException("Out of free space");
+                }
+
+                // put directory entry, the directory may grow
+                int pos;
+                try {
+                    pos = putDirectoryEntry(directory, nameBytes, iNodeIndex, isDirectory);
+                } catch (ReadWriteException e) {
+                    markBlockAsFree(blockIndex);
+                    throw e;
+                }
+
+                // create a file
+                freeINodes.clear(iNodeIndex);
+                iNode.length = 0;
+                iNode.blockIndexes[0] = blockIndex;
+                iNodeCache.markDirty(iNode);
+                dentryCache.put(parent, name,
+                        new DentryCache.Entry(pos, iNodeIndex, isDirectory));
+                bitmap.flush();
+            } finally {
+                closeDirectory(directory);
+            }
+        } finally {
+            endUpdate();
+            directoryLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * removes the file with specified path and frees resources.
+     * A file open in any session can't be removed.
+     *
+     * @param path path of the file
+     * @throws FileNotFoundException if the file with specified path
+     *                               doesn't exist or it's a directory
+     * @throws FileBusyException if the file is open
+     */
+    public void destroy(String path)
+            throws  FileNotFoundException,
+                    FileBusyException {
+        directoryLock.writeLock().lock();
+        beginUpdate();
+        try {
+            String[] names = splitPath(path);
+            DentryCache.Entry dirEntry = lookUpPath(names);
+
+            // check if the file with specified name exists
+            if (dirEntry == null)
+                throw new FileNotFoundException();
+            if (dirEntry.directory)
+                throw new FileNotFoundException(path + " is a directory");
+
+            // files are opened holding the directory lock,
+            // so the file stays closed until it's removed
+            synchronized (openFiles) {
+                if (openFiles.containsKey(dirEntry.iNodeIndex))
+                    throw new FileBusyException("The file " + path + " is open");
+            }
+
+            removeEntry(names, dirEntry);
+        } finally {
+            endUpdate();
+            directoryLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * removes the empty directory with specified path and frees resources
      *
-     * @param index index of the file in OFT
-     * @param count number of bytes to read
-     * @return array of bytes read from the file
-     * @throws ReadWriteException if end of file is reached before reading
-     *         count bytes
-     * @throws IllegalArgumentException if the file with specified index is not
-     *         opened
+     * @param path path of the directory
+     * @throws FileNotFoundException if the directory with specified path
+     *                               doesn't exist
+     * @throws DirectoryNotEmptyException if the directory holds any files
+     *                                    or directories
+     * @throws IllegalArgumentException if it's the root directory
      */
-    public byte[] read(int index, int count) throws ReadWriteException {
+    public void rmdir(String path)
+            throws  FileNotFoundException,
+                    DirectoryNotEmptyException {
+        directoryLock.writeLock().lock();
+        beginUpdate();
+        try {
+            String[] names = splitPath(path);
+            DentryCache.Entry dirEntry = lookUpPath(names);
+            if (dirEntry == ROOT_ENTRY)
+                throw new IllegalArgumentException("The root directory can't be removed");
 
-        File file = OFT[index];
+            // check if the directory with specified name exists
+            if (dirEntry == null || !dirEntry.directory)
+                throw new FileNotFoundException("The directory " + path + " doesn't exist");
 
-        if(file == null) {
-            throw new IllegalArgumentException("No file opened with index " + index);
-        }
+            File directory = openDirectory(dirEntry.iNodeIndex);
+            try {
+                byte[] chunk = new byte[format.getChunkSize()];
+                if (scanEntries(directory, chunk,
+                        (c, offset) -> !format.isFree(c, offset)) != -1)
+                    throw new DirectoryNotEmptyException();
+            } finally {
+                closeDirectory(directory);
+            }
 
-        return file.read(count);
+            removeEntry(names, dirEntry);
+        } finally {
+            endUpdate();
+            directoryLock.writeLock().unlock();
+        }
     }
 
     /**
-     * Sequentially writes all bytes from <code>src</code> to the file
-     * with specified index starting from current position in the file
+     * removes the directory entry and frees the iNode
+     * and the blocks it refers to
      *
-     * @param index index of the file in OFT
-     * @param src array of bytes to write to file
-     * @throws ReadWriteException if max file size was reached
-     *         or if no free space left to expand the file
-     * @throws IllegalArgumentException if the file with specified index
-     *         is not opened
+     * @param names the names of the path of the file
+     * @param dirEntry the directory entry holding the file
+     * @throws FileNotFoundException if the directory holding
+     *                               the file doesn't exist
      */
-    public void write(int index, byte[] src) throws ReadWriteException{
+    private void removeEntry(String[] names, DentryCache.Entry dirEntry)
+            throws FileNotFoundException {
+        int parent = walk(names, names.length - 1);
 
-        File file = OFT[index];
+        // find occupied resources
+        int iNodeIndex = dirEntry.iNodeIndex;
+        INode iNode = iNodeCache.get(iNodeIndex);
 
-        if(file == null) {
-            throw new IllegalArgumentException("No file opened with index " + index);
-        }
-        if (file.position + src.length > params.maxFileSize) {
-            throw new ReadWriteException("Max file size will be reached " +
-                    "before writing " + src.length + " bytes");
+        // release resources
+
+        // remove directory entry
+        File directory = openDirectory(parent);
+        try {
+            removeDirectoryEntry(directory, dirEntry, names[names.length - 1]);
+        } finally {
+            closeDirectory(directory);
         }
+        dentryCache.remove(parent, names[names.length - 1]);
 
-        file.write(src);
+        // release storage blocks
+        freeBlocks(iNode);
 
+        // release iNode
+        iNodeCache.free(iNode, new INode(iNodeIndex));
+        freeINodes.set(iNodeIndex);
+        bitmap.flush();
     }
 
     /**
-     * moves the current position of the file with specified index
-     * to <code>pos</code>, where pos is an integer specifying
-     * the number of bytes from the beginning of the file.
-     * <p>
-     * When a file is initially opened, the current position
-     * is automatically set to zero. After each read or write operation,
-     * it points to the byte immediately following the one
-     * that was accessed last.
-     * <code>lseek</code> permits the position to be explicitly changed
-     * without reading or writing the data. Seeking to position 0
-     * implements a reset command, so that the entire file
-     * can be reread or rewritten from the beginning.
-     *
-     * @param index index of the file in OFT
-     * @param pos an integer specifying the number of bytes
-     *            from the beginning of the file
+     * lists the names of all files and directories in the root
+     * directory and their lengths
+     * @return list of strings like file_name|file_size,
+     *         the names of directories end with the separator
+     */
+    public List<String> directory() {
+        try {
+            return directory("");
+        } catch (FileNotFoundException e) {
+            // the root directory always exists
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * lists the names of all files and directories in the directory
+     * with specified path and their lengths
+     * @param path path of the directory
+     * @return list of strings like file_name|file_size,
+     *         the names of directories end with the separator
+     * @throws FileNotFoundException if the directory with specified path
+     *                               doesn't exist
+     */
+    public List<String> directory(String path) throws FileNotFoundException {
+        // the directory doesn't change until it's listed
+        directoryLock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            DirectoryStream stream = newDirectoryStream(path, true);
+            while (stream.hasNext()) {
+                result.add(stream.next().toString());
+            }
+            return result;
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * opens a stream of the entries of the directory with specified path,
+     * which reads the directory lazily
      *
-     * @throws IllegalArgumentException if if the file with specified index
-     *         is not opened
-     * @throws IndexOutOfBoundsException if pos is greater than the file length
+     * @param path path of the directory
+     * @param sizes whether to read the lengths of the files
+     * @return the stream of the entries
+     * @throws FileNotFoundException if the directory with specified path
+     *                               doesn't exist
+     * @see DirectoryStream
      */
-    public void lseek(int index, int pos) {
-        File file = OFT[index];
-        if(file == null) {
-            throw new IllegalArgumentException("No file opened with index " + index);
+    public DirectoryStream newDirectoryStream(String path, boolean sizes)
+            throws FileNotFoundException {
+        directoryLock.readLock().lock();
+        try {
+            String[] names = splitPath(path);
+            DentryCache.Entry dirEntry = lookUpPath(names);
+            if (dirEntry == null || !dirEntry.directory)
+                throw new FileNotFoundException("The directory " + path + " doesn't exist");
+            return new DirectoryStream(names, dirEntry.iNodeIndex, sizes);
+        } finally {
+            directoryLock.readLock().unlock();
         }
-        file.lseek(pos);
     }
 
     /**
-     * a convenience class to represent a directory entry
+     * A stream of the entries of a directory, which reads the directory
+     * lazily: only the entries of one block of it are kept in memory.
+     * The lengths of the files, if they are requested, are read for
+     * a block of entries at once, reading each block of the iNode table
+     * once for all the iNodes it holds. The entries of an indexed
+     * directory are returned in the order of hashes.
+     * <p>
+     * The stream is weakly consistent: it holds no locks between
+     * the blocks, so the entries created or removed while the stream
+     * is read may or may not be returned. The stream ends if the
+     * directory is removed.
      */
-    private class DirectoryEntry {
+    public class DirectoryStream implements Iterator<DirectoryEntry> {
 
         /**
-         * the name of file or null if entry is empty
+         * the names of the path of the directory
          */
-        String name;
+        private final String[] names;
 
         /**
-         * the index of iNode corresponding to the file
+         * index of the iNode of the directory
          */
-        int iNodeIndex;
+        private final int iNodeIndex;
 
+        /**
+         * whether to read the lengths of the files
+         */
+        private final boolean sizes;
 
         /**
-         * constructs an object representation of a directory entry
-         * with given parameters, that can be later converted to bytes
-         * and written to directory file on storage
-         *
-         * @param fileName name of file,
-         *                 max {@link FileSystemParams#BYTES_PER_FILE_NAME}
-         *                 bytes. If the name is larger, it will be cut.
-         * @param iNodeIndex index of iNode representing the file
-         */
-        public DirectoryEntry(String fileName, int iNodeIndex) {
-
-            // construct name
-            if(fileName != null
-                    && fileName.length()
-                    > FileSystemParams.BYTES_PER_FILE_NAME)
-                this.name = fileName.substring(
-                        0,FileSystemParams.BYTES_PER_FILE_NAME);
-            else
-                this.name = fileName;
-
-            // construct iNode index
-            this.iNodeIndex = iNodeIndex;
-        }
+         * the array the blocks of the directory are read to
+         */
+        private final byte[] chunk = new byte[format.getChunkSize()];
 
         /**
-         * Constructs an instance of the DirectoryEntry class
-         * form a directory entry's byte representation
-         * in the directory file on storage
-         * @param byteRepresentation directory entry's byte representation
-         *                           in the directory file on storage
+         * the entries of the last block read
          */
-        public DirectoryEntry(byte[] byteRepresentation) {
+        private final List<DirectoryEntry> entries = new ArrayList<>();
 
-            // construct name
-            StringBuilder buffer = new StringBuilder();
-            int i;
-            for (i = 0; i < FileSystemParams.BYTES_PER_FILE_NAME; ++i) {
-                if (byteRepresentation[i] == 0)
-                    break;
-                buffer.append((char) byteRepresentation[i]);
-            }
-            if (i != 0) {
-                name = buffer.toString();
-            } else {
-                name = null;
-            }
+        /**
+         * index of the next entry to return
+         */
+        private int next;
 
-            // get iNode index
-            iNodeIndex = ByteBuffer.wrap(byteRepresentation,
-                            FileSystemParams.BYTES_PER_FILE_NAME,
-                            FileSystemParams.BYTES_PER_INODE_INDEX)
-                    .getInt();
+        /**
+         * whether the first block was read
+         */
+        private boolean started;
 
-        }
+        /**
+         * whether the directory was indexed, when the first block was read
+         */
+        private boolean indexed;
+
+        /**
+         * position of the next block to read, if the directory is not indexed
+         */
+        private int position;
 
+        /**
+         * the lowest hash of the next leaf to read, if the directory is indexed
+         */
+        private long hash = Integer.MIN_VALUE;
 
+        /**
+         * whether all the blocks were read
+         */
+        private boolean end;
 
         /**
-         * returns byte representation of this entry
-         * @return byte representation of this entry
+         * @param names the names of the path of the directory
+         * @param iNodeIndex index of the iNode of the directory
+         * @param sizes whether to read the lengths of the files
          */
-        byte[] getBytes() {
-            byte[] bytes = new byte[FileSystemParams.BYTES_PER_DIRECTORY_ENTRY];
+        private DirectoryStream(String[] names, int iNodeIndex, boolean sizes) {
+            this.names = names;
+            this.iNodeIndex = iNodeIndex;
+            this.sizes = sizes;
+        }
 
-            // get name bytes
-            if (name != null && name.length() > 0) {
-                byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
-                System.arraycopy(nameBytes, 0, bytes, 0,
-                        Math.min(nameBytes.length,
-                                FileSystemParams.BYTES_PER_FILE_NAME));
+        @Override
+        public boolean hasNext() {
+            while (next == entries.size() && !end) {
+                readBlock();
             }
+            return next < entries.size();
+        }
 
-            //get iNodeIndex bytes
-            ByteBuffer buffer =
-                    ByteBuffer.allocate(FileSystemParams.BYTES_PER_INODE_INDEX);
-            buffer.putInt(iNodeIndex);
-            buffer.flip();
-            buffer.get(bytes,
-                    FileSystemParams.BYTES_PER_FILE_NAME,
-                    FileSystemParams.BYTES_PER_INODE_INDEX);
-
-            return bytes;
+        @Override
+        public DirectoryEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return entries.get(next++);
         }
 
         /**
-         * writes this directory entry to the directory slot
-         * with specified index
-         *
-         * @param index index of the target directory slot
+         * reads the entries of the next block of the directory
          */
-        public void writeToDirectory(int index) {
+        private void readBlock() {
+            entries.clear();
+            next = 0;
+            directoryLock.readLock().lock();
             try {
-                lseek(0, index * FileSystemParams.BYTES_PER_DIRECTORY_ENTRY);
-                write(0, getBytes());
-
-            } catch (Exception e) {
-                throw new IllegalArgumentException("The directory slot " +
-                        "with index " + index + " doesn't exist");
+                // the directory may be removed between the blocks
+                DentryCache.Entry dirEntry = lookUpPath(names);
+                if (dirEntry == null || dirEntry.iNodeIndex != iNodeIndex) {
+                    end = true;
+                    return;
+                }
+                File directory = openDirectory(iNodeIndex);
+                try {
+                    readBlock(directory);
+                } finally {
+                    closeDirectory(directory);
+                }
+            } catch (FileNotFoundException e) {
+                end = true;
+            } finally {
+                directoryLock.readLock().unlock();
             }
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            DirectoryEntry that = (DirectoryEntry) o;
-            return Objects.equals(name, that.name);
+        /**
+         * @see #readBlock()
+         * @param directory the open directory
+         */
+        private void readBlock(File directory) {
+            boolean isIndexed = isIndexed(directory, chunk);
+            if (!started) {
+                started = true;
+                indexed = isIndexed;
+            }
+            if (indexed) {
+                // the index is dropped, when the directory can't grow
+                if (hash == DirectoryIndex.NO_LEAF || !isIndexed) {
+                    end = true;
+                    return;
+                }
+                hash = directoryIndex.readLeaf(new DirectoryBlocks(directory), (int) hash, chunk);
+                addEntries(chunk.length);
+            } else {
+                // a directory gets indexed only after it's first block is full,
+                // so all it's entries were returned then
+                if (isIndexed || position >= directory.iNode.length) {
+                    end = true;
+                    return;
+                }
+                int count = Math.min(chunk.length, directory.iNode.length - position);
+                directory.lock.readLock().lock();
+                try {
+                    directory.pread(position, chunk, 0, count);
+                } catch (ReadWriteException e) {
+                    // can't happen: the reads stop at the end of the directory
+                    throw new IllegalStateException(e);
+                } finally {
+                    directory.lock.readLock().unlock();
+                }
+                position += chunk.length;
+                addEntries(count);
+            }
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(name);
+        /**
+         * adds the used entries of the block read to the list
+         *
+         * @param count number of bytes read
+         */
+        private void addEntries(int count) {
+            int used = 0;
+            for (int offset = 0; offset < count; offset = format.next(chunk, offset)) {
+                if (!format.isFree(chunk, offset)) {
+                    ++used;
+                }
+            }
+            int[] iNodeIndexes = new int[used];
+            int i = 0;
+            for (int offset = 0; offset < count; offset = format.next(chunk, offset)) {
+                if (!format.isFree(chunk, offset)) {
+                    iNodeIndexes[i++] = format.getINodeIndex(chunk, offset);
+                }
+            }
+            int[] lengths = sizes ? readLengths(iNodeIndexes) : null;
+            i = 0;
+            for (int offset = 0; offset < count; offset = format.next(chunk, offset)) {
+                if (!format.isFree(chunk, offset)) {
+                    entries.add(new DirectoryEntry(format.getNameBytes(chunk, offset),
+                            iNodeIndexes[i], format.isDirectory(chunk, offset),
+                            sizes ? lengths[i] : -1));
+                    ++i;
+                }
+            }
         }
     }
 
     /**
-     * returns index of the directory entry corresponding to the specified file
-     * or -1 if the file is not present in the directory
-     * @param fileName symbolic name of the file to look for
-     * @return index of the directory entry corresponding to the specified file
-     *         or -1 if the file is not present in the directory
+     * reads the lengths of the files: the cached iNodes are used,
+     * and each block of the iNode table is read once for all
+     * the other iNodes it holds
+     *
+     * @param iNodeIndexes indexes of the iNodes of the files
+     * @return the lengths of the files in the same order
      */
-    private int findFileInDirectory(String fileName) {
-        DirectoryEntry searchPattern = new DirectoryEntry(fileName,-1);
-        DirectoryEntry currentEntry;
-        File directory = OFT[0];
-
-        directory.lseek(0);
-        for (int pos = 0;
-             pos < directory.iNode.length;
-             pos += FileSystemParams.BYTES_PER_DIRECTORY_ENTRY) {
-            try {
-                currentEntry = new DirectoryEntry(
-                        directory.read(FileSystemParams.BYTES_PER_DIRECTORY_ENTRY));
-                if (currentEntry.equals(searchPattern)) {
-                    return pos / FileSystemParams.BYTES_PER_DIRECTORY_ENTRY;
+    private int[] readLengths(int[] iNodeIndexes) {
+        int[] lengths = new int[iNodeIndexes.length];
+        // the iNode indexes in the high bits, the positions in the low ones
+        long[] order = new long[iNodeIndexes.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = (long) iNodeIndexes[i] << 32 | i;
+        }
+        Arrays.sort(order);
+
+        ByteBuffer table = ByteBuffer.allocate(params.blockSize);
+        int tableBlock = -1;
+        for (long entry : order) {
+            int index = (int) (entry >>> 32);
+            int i = (int) entry;
+            int block = index * FileSystemParams.INODE_SIZE / params.blockSize;
+            int offset = index * FileSystemParams.INODE_SIZE % params.blockSize;
+            INode cached = iNodeCache.peek(index);
+            if (cached != null
+                    || offset + FileSystemParams.BYTES_PER_FILE_SIZE > params.blockSize) {
+                INode iNode = cached != null ? cached : iNodeCache.get(index);
+                synchronized (iNodeLock(index)) {
+                    lengths[i] = iNode.length;
                 }
-            } catch (ReadWriteException e) {
-                logger.error(e);
+                continue;
+            }
+            if (block != tableBlock) {
+                table.clear();
+                synchronized (iNodeLocks[block]) {
+                    metadata.readBlock(params.iNodesBlockIndex + block, 0, table);
+                }
+                tableBlock = block;
             }
+            lengths[i] = table.getInt(offset);
         }
-        return -1;
+        return lengths;
     }
 
     /**
-     * searches through the directory and returns the index of first free slot
-     * or -1 if the directory is full
-     * @return  index of the first free slot in the directory
-     *          or -1 if the directory is full
+     * opens a file with specified path for reading/writing
+     * and returns the index of the file descriptor,
+     * which is used for subsequent read, write, lseek, and close operations
+     *
+     * @param name path of the file that will be opened
+     * @return  the index of the opened file, which is used for
+     *          subsequent read, write, lseek, and close operations
+     * @throws FileNotFoundException    if the file with specified path
+     *                                  doesn't exist or it's a directory
+     * @throws OpenFilesNumberException if the maximum number of open
+     *                                  files was exceeded
      */
-    private int findFreeDirectoryEntry() {
-        int slotIndex = 0;
-        File directory = OFT[0];
-        byte[] searchPattern
-                = new byte[FileSystemParams.BYTES_PER_DIRECTORY_ENTRY];
-        byte[] currentEntry;
-
-
-        directory.lseek(0);
-        for (int pos = 0;
-             pos < directory.iNode.length;
-             pos += FileSystemParams.BYTES_PER_DIRECTORY_ENTRY) {
-            try {
-                currentEntry = directory.read(FileSystemParams.BYTES_PER_DIRECTORY_ENTRY);
-                if (Arrays.equals(currentEntry, searchPattern)) {
-                    return pos / FileSystemParams.BYTES_PER_DIRECTORY_ENTRY;
-                }
-            } catch (ReadWriteException e) {
-                logger.error(e);
-            }
-        }
-        if(params.maxFileSize - directory.iNode.length
-                > FileSystemParams.BYTES_PER_DIRECTORY_ENTRY) {
-            return directory.iNode.length
-                    / FileSystemParams.BYTES_PER_DIRECTORY_ENTRY;
-        } else {
-            return -1;
-        }
+    public int open(String name)
+            throws  FileNotFoundException,
+                    OpenFilesNumberException {
+        return defaultSession.open(name);
     }
 
     /**
-     * reads the directory entry with specified index
-     * from the directory on storage
+     * closes the specified file and frees resources
      *
-     * @param index the index of the directory entry
-     * @return object representation of the directory
-     *         entry with specified index
+     * @param index index of the file descriptor,
+     *              that was returned by
+     *              {@link #open(String)}
+     * @throws FileNotFoundException    if the file with specified index
+     *                                  is not opened
      */
-    private DirectoryEntry readDirectoryEntry(int index) {
-        try {
-            lseek(0, index * FileSystemParams.BYTES_PER_DIRECTORY_ENTRY);
-            byte[] directoryEntryBytes
-                    = read(0,FileSystemParams.BYTES_PER_DIRECTORY_ENTRY);
-            return new DirectoryEntry(directoryEntryBytes);
+    public void close(int index)
+            throws FileNotFoundException {
+        defaultSession.close(index);
+    }
 
-        } catch (Exception e) {
-            throw new IllegalArgumentException("The directory entry " +
-                    "with index " + index + " doesn't exist");
-        }
+    /**
+     * writes the buffers of all open files, which were modified
+     * since they were loaded, the modified iNodes, the modified
+     * part of free blocks bitmap and the modified cached blocks
+     * to the storage. If the file system has a journal,
+     * the running transaction is committed.
+     */
+    public void sync() {
+        flushOpenFiles();
     }
 
     /**
-     * frees the directory slot with specified index
-     * @param index index of the directory entry
-     *              that will be removed
+     * writes the buffer of the directory, the modified iNodes and
+     * the modified part of free blocks bitmap to the metadata storage
      */
-    private void removeDirectoryEntry(int index) {
-        byte[] freeSlot
-                = new byte[FileSystemParams.BYTES_PER_DIRECTORY_ENTRY];
+    private void flushMetadata() {
+        directoryFile.lock.writeLock().lock();
         try {
-            lseek(0, index * FileSystemParams.BYTES_PER_DIRECTORY_ENTRY);
-            write(0, freeSlot);
-
-        } catch (Exception e) {
-            throw new IllegalArgumentException("The directory entry " +
-                    "with index " + index + " doesn't exist");
+            directoryFile.flush();
+        } finally {
+            directoryFile.lock.writeLock().unlock();
         }
+        iNodeCache.flush();
+        bitmap.flush();
     }
 
     /**
-     * creates a new file with specified name
-     * @param name symbolic file name, maximum length is
-     *             {@link FileSystemParams#MAX_FILE_NAME_LENGTH}
-     * @throws FileAlreadyExistsException if the file with specified
-     *                                    symbolic name already exists
-     *                                    in the directory
-     * @throws ReadWriteException   if the file system is out of some resource,
-     *                              like storage blocks, iNodes
-     *                              or directory slots
+     * @see #sync()
      */
-    public void create(String name)
-            throws  FileAlreadyExistsException,
-                    ReadWriteException {
-
-        // check if the file with specified name exists
-        if (findFileInDirectory(name) != -1)
-            throw new FileAlreadyExistsException();
-
-        // find free directory slot
-        int dirEntryIndex = findFreeDirectoryEntry();
-        if (dirEntryIndex == -1) {
-            throw new ReadWriteException("Out of free directory slots");
+    private void flushOpenFiles() {
+        List<File> files;
+        synchronized (openFiles) {
+            files = new ArrayList<>(openFiles.values());
         }
-
-        // find free iNode
-        INode iNode = findFreeINode();
-        if (iNode == null) {
-            throw new ReadWriteException("Out of free iNodes");
+        for (File file : files) {
+            file.lock.writeLock().lock();
+            try {
+                file.flush();
+            } finally {
+                file.lock.writeLock().unlock();
+            }
         }
-        int iNodeIndex = iNode.index;
-
-        // find free storage block
-        int blockIndex = findFreeBlock();
-        if (blockIndex == -1) {
-            throw new ReadWriteException("Out of free space");
+        if (journal != null) {
+            journal.commit();
+        } else {
+            flushMetadata();
+        }
+        if (bufferCache != null) {
+            bufferCache.flush();
         }
-
-        // create a file
-        iNode.length = 0;
-        iNode.blockIndexes[0] = blockIndex;
-        markBlockAsUsed(blockIndex);
-        iNode.writeToStorage();
-        DirectoryEntry directoryEntry = new DirectoryEntry(name,iNodeIndex);
-        directoryEntry.writeToDirectory(dirEntryIndex);
-
     }
 
     /**
-     * removes the file with specified name and frees resources
+     * flushes buffers of open files and saves the current state
+     * of the storage to the specified file
      *
-     * @param name symbolic name of the file
-     * @throws FileNotFoundException if the file with specified name
-     *                               doesn't exist in the directory
+     * @param file the real file to which the storage backup will be written to
+     * @throws IOException if any usual I/O exception occurs during backup
+     *         or if the storage doesn't support backups
      */
-    public void destroy(String name)
-            throws  FileNotFoundException {
-
-        int dirEntryIndex = findFileInDirectory(name);
-
-        // check if the file with specified name exists
-        if (dirEntryIndex == -1)
-            throw new FileNotFoundException();
-
-        // find occupied resources
-        DirectoryEntry directoryEntry = readDirectoryEntry(dirEntryIndex);
-        int iNodeIndex = directoryEntry.iNodeIndex;
-        INode iNode = readINodeFromStorage(iNodeIndex);
-        int[] blockIndexes = iNode.blockIndexes;
-
-        // release resources
-
-        // remove directory entry
-        removeDirectoryEntry(dirEntryIndex);
-
-        // release iNode
-        iNode = new INode(iNodeIndex);
-        iNode.writeToStorage();
-
-        // release storage blocks
-        for (int blockIndex : blockIndexes) {
-            markBlockAsFree(blockIndex);
+    public void backupStorage(java.io.File file) throws IOException{
+        // no files are created or destroyed during the backup
+        directoryLock.writeLock().lock();
+        try {
+            flushOpenFiles();
+            Storage device = this.device.getStorage();
+            if (device instanceof InMemoryStorage) {
+                ((InMemoryStorage) device).saveToFile(file);
+            } else if (device instanceof MappedFileStorage) {
+                ((MappedFileStorage) device).saveToFile(file);
+            } else {
+                throw new IOException("Backups are not supported by "
+                        + device.getClass().getSimpleName());
+            }
+        } finally {
+            directoryLock.writeLock().unlock();
         }
     }
 
     /**
-     * lists the names of all files and their lengths
-     * @return list of strings like file_name|file_size
+     * flushes buffers of open files and saves the blocks of the storage
+     * to the specified file: all of them for a full backup, otherwise
+     * only the ones changed since the last full backup or since the last
+     * backup of any level, made after the file system was mounted.
+     * The storage is restored from the chain of backups by
+     * {@link StorageBackup#restore(java.io.File...)}.
+     *
+     * @param file the real file to which the backup will be written to
+     * @param level level of the backup
+     * @throws IOException if any usual I/O exception occurs during backup
+     *         or if there is no backup to base a differential
+     *         or an incremental backup on
      */
-    public List<String> directory() {
-        List<String> result = new LinkedList<>();
-        DirectoryEntry emptyEntry = new DirectoryEntry(null,-1);
-        DirectoryEntry currentEntry;
-        File directory = OFT[0];
-
-        directory.lseek(0);
-        for (int pos = 0;
-             pos < directory.iNode.length;
-             pos += FileSystemParams.BYTES_PER_DIRECTORY_ENTRY) {
+    public void backup(java.io.File file, StorageBackup.Level level) throws IOException {
+        // no files are created or destroyed during the backup
+        directoryLock.writeLock().lock();
+        try {
+            flushOpenFiles();
+            long baseId = device.getBaseId(level);
+            if (level != StorageBackup.Level.FULL && baseId == 0) {
+                throw new IOException("No backup to base the "
+                        + level.name().toLowerCase() + " backup on, "
+                        + "a full backup must be made first");
+            }
+            long id;
+            do {
+                id = ThreadLocalRandom.current().nextLong();
+            } while (id == 0);
+            BitSet blocks = device.startBackup(level);
             try {
-                currentEntry = new DirectoryEntry(
-                        directory.read(FileSystemParams.BYTES_PER_DIRECTORY_ENTRY));
-                if (!currentEntry.equals(emptyEntry)) {
-                    int size = readINodeFromStorage(currentEntry.iNodeIndex).length;
-                    result.add(currentEntry.name + "\t" + size + "B");
-                }
-            } catch (ReadWriteException e) {
-                logger.error(e);
+                StorageBackup.write(device.getStorage(), blocks, level, id, baseId, file);
+            } catch (IOException | RuntimeException e) {
+                device.finishBackup(level, 0);
+                throw e;
             }
+            device.finishBackup(level, id);
+        } finally {
+            directoryLock.writeLock().unlock();
         }
-
-        return result;
     }
 
     /**
-     * opens a file with specified symbolic name for reading/writing
-     * and returns the index of the opened file in OFT (open files table),
-     * which is used for subsequent read, write, lseek, and close operations
+     * starts a new session, which has it's own descriptors of open files.
+     * The session is limited to {@link FileSystemParams#maxOpenFiles}
+     * open files at first.
      *
-     * @param name symbolic name of the file that will be opened
-     * @return  the index of the opened file, which is used for
-     *          subsequent read, write, lseek, and close operations
-     * @throws FileNotFoundException    if the file with specified name
-     *                                  doesn't exist in the directory
-     * @throws OpenFilesNumberException if the maximum number of open
-     *                                  files was exceeded
+     * @return the new session
      */
-    public int open(String name)
-            throws  FileNotFoundException,
-                    OpenFilesNumberException {
-
-        // find corresponding directory entry
-        int dirEntryIndex = findFileInDirectory(name);
-
-        // check if the file with specified name exists
-        if (dirEntryIndex == -1)
-            throw new FileNotFoundException();
-
-        DirectoryEntry directoryEntry = readDirectoryEntry(dirEntryIndex);
-
-        /* create an INode object representing the iNode
-           corresponding to the file
-        */
-        INode iNode = readINodeFromStorage(directoryEntry.iNodeIndex);
-
-        // find free slot in open files table (OFT);
-        int indexOFT = 0;
-        for (indexOFT = 1; indexOFT < OFT.length; ++indexOFT) {
-            if (OFT[indexOFT] == null)
-                break;
-        }
-        if (indexOFT == OFT.length) {
-            throw new OpenFilesNumberException();
-        }
-
-        // open the file
-        OFT[indexOFT] = new File(iNode);
-        return indexOFT;
+    public Session newSession() {
+        return new Session(params.maxOpenFiles);
+    }
 
+    /**
+     * @return parameters of this file system
+     */
+    public FileSystemParams getParams() {
+        return params;
     }
 
     /**
-     * closes the specified file and frees resources
+     * returns the cache of storage blocks, which can be used to
+     * get the cache hits and misses statistics
      *
-     * @param index index of the file in OFT,
-     *              that was returned by
-     *              {@link #open(String)}
-     * @throws FileNotFoundException    if the file with specified index
-     *                                  is not opened
+     * @return the cache of storage blocks or <code>null</code>
+     *         if the file system was mounted without it
+     * @see FileSystemParams#bufferCacheSize
      */
-    public void close(int index)
-            throws FileNotFoundException {
-
-        if (index < 1 || index >= OFT.length) {
-            throw new IndexOutOfBoundsException("Expected index in range [1,"
-                    + OFT.length + "), actual " + index);
-        }
-        if (OFT[index] == null) {
-            throw new FileNotFoundException("The file with specified index"
-                    + " is not opened");
-        }
-
-
-        // write buffer to storage
-        if (OFT[index].modified) {
-            storage.writeBlock(OFT[index].buffer,
-                    OFT[index].iNode.blockIndexes[OFT[index].bufferedBlockLinkIndex]);
-        }
-
-        // free the OFT entry
-        OFT[index] = null;
+    public BufferCache getBufferCache() {
+        return bufferCache;
     }
 
     /**
-     * flushes buffers of open files and saves the current state
-     * of the storage to the specified file
+     * flushes buffers of open files, closes all of them
+     * and releases the storage. The file system can't be used
+     * after it's unmounted.
      *
-     * @param file the real file to which the storage backup will be written to
-     * @throws IOException if any usual I/O exception occurs during backup
+     * @throws IOException if the storage fails to release it's resources
      */
-    public void backupStorage(java.io.File file) throws IOException{
-        for (int index = 0; index < OFT.length; ++index) {
-            // write buffer to storage
-            if (OFT[index] != null && OFT[index].modified) {
-                storage.writeBlock(OFT[index].buffer,
-                        OFT[index].iNode.blockIndexes[OFT[index].bufferedBlockLinkIndex]);
-                OFT[index].modified = false;
+    public void unmount() throws IOException {
+        directoryLock.writeLock().lock();
+        try {
+            flushOpenFiles();
+            defaultSession.descriptors.removeAll(1);
+            synchronized (openFiles) {
+                openFiles.clear();
+            }
+            if (storage instanceof Closeable) {
+                ((Closeable) storage).close();
             }
+        } finally {
+            directoryLock.writeLock().unlock();
         }
-        ((InMemoryStorage) storage).saveToFile(file);
     }
 
 }
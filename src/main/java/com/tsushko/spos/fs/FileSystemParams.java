@@ -7,8 +7,11 @@ import java.util.Properties;
  * Specifies all application-wide parameters, used for
  * both initialization and runtime.
  * <p>
- * Three parameters can be specified during initialization:
- * size of block, number of blocks and number of iNodes.
+ * Four parameters can be specified during initialization:
+ * size of block, number of blocks, number of iNodes and number
+ * of blocks of the metadata journal.
+ * Two more, the maximum number of open files and the size of buffer
+ * cache, only affect the runtime and can differ between mounts.
  * Values of the rest of parameters are either constant
  * or derived (calculated).
  *
@@ -18,9 +21,53 @@ import java.util.Properties;
 public class FileSystemParams {
 
     /**
-     * current version of file system data format
+     * current version of file system data format.
+     * <ul>
+     *     <li>version 1 - all the block links of an iNode
+     *         point to blocks of the file</li>
+     *     <li>version 2 - the first block link of an iNode points to
+     *         the first block of the file, the second one points to
+     *         a single indirect block, the third one - to a double
+     *         indirect block</li>
+     *     <li>version 3 - the superblock also holds the number of blocks
+     *         of the metadata journal, that follows the iNode table</li>
+     *     <li>version 4 - directories hold variable-length records
+     *         instead of entries of {@link #BYTES_PER_DIRECTORY_ENTRY}
+     *         bytes</li>
+     *     <li>version 5 - a directory, which first block gets full,
+     *         is indexed by a hashed tree of it's blocks</li>
+     * </ul>
+     * New file systems are created in the current version, unless the block
+     * is too small to hold it's superblock, then in version 2
+     */
+    public static final int FILE_SYSTEM_VERSION = 5;
+
+    /**
+     * the oldest version of file system data format
+     * that can have a metadata journal
      */
-    public static final int FILE_SYSTEM_VERSION = 1;
+    public static final int JOURNAL_FILE_SYSTEM_VERSION = 3;
+
+    /**
+     * the oldest version of file system data format
+     * which directories hold variable-length records
+     *
+     * @see DirectoryFormat
+     */
+    public static final int DIRECTORY_RECORDS_FILE_SYSTEM_VERSION = 4;
+
+    /**
+     * the oldest version of file system data format
+     * which large directories are indexed
+     *
+     * @see DirectoryIndex
+     */
+    public static final int DIRECTORY_INDEX_FILE_SYSTEM_VERSION = 5;
+
+    /**
+     * the oldest version of file system data format that can be mounted
+     */
+    public static final int MIN_FILE_SYSTEM_VERSION = 1;
 
     /**
      * number of bytes to store index of some iNode,
@@ -41,22 +88,44 @@ public class FileSystemParams {
     public static final int BYTES_PER_FILE_SIZE = Integer.BYTES;
 
     /**
-     * number of bytes to store a name of file
-     * for example in directory entry
+     * number of bytes to store a name of file in directory entry
+     * before version 4 of file system data format
      */
     public static final int BYTES_PER_FILE_NAME = 4;
 
     /**
      * number of bytes to store a directory entry
+     * before version 4 of file system data format
      */
     public static final int BYTES_PER_DIRECTORY_ENTRY
             = BYTES_PER_FILE_NAME + BYTES_PER_INODE_INDEX;
 
+    /**
+     * the bit of the iNode index in a directory entry,
+     * which is set if the entry refers to a directory
+     * (before version 4 of file system data format)
+     */
+    public static final int DIRECTORY_ENTRY_FLAG = 0x80000000;
+
     /**
      * Number of links to blocks of the <code>Storage</code> in each iNode
      */
     public static final int INODE_BLOCK_LINKS_NUMBER = 3;
 
+    /**
+     * Index of the iNode block link pointing to a single indirect block,
+     * that holds links to the blocks of the file
+     * (since version 2 of file system data format)
+     */
+    public static final int SINGLE_INDIRECT_LINK_INDEX = 1;
+
+    /**
+     * Index of the iNode block link pointing to a double indirect block,
+     * that holds links to single indirect blocks
+     * (since version 2 of file system data format)
+     */
+    public static final int DOUBLE_INDIRECT_LINK_INDEX = 2;
+
     /**
      * Number of bytes that one iNode occupies on <code>Storage</code>
      */
@@ -65,14 +134,28 @@ public class FileSystemParams {
 
     /**
      * Maximal length of file name in bytes
+     * (since version 4 of file system data format)
+     *
+     * @see #maxFileNameLength
+     */
+    public static final int MAX_FILE_NAME_LENGTH = 255;
+
+    /**
+     * number of bytes of a directory record preceding the name
+     * (since version 4 of file system data format)
      */
-    public static final int MAX_FILE_NAME_LENGTH = BYTES_PER_FILE_NAME;
+    public static final int DIRECTORY_RECORD_HEADER_SIZE = 14;
+
+    /**
+     * Separates the names of directories and of the file in a path
+     */
+    public static final char PATH_SEPARATOR = '/';
 
     /**
      * Index of superblock - the block of emulated IO device
      * that contains filesystem metadata:
      * <ul>
-     *     <li>FILE_SYSTEM_VERSION</li>
+     *     <li>version</li>
      *     <li>blockSize</li>
      *     <li>blocksNumber</li>
      *     <li>iNodesNumber</li>
@@ -84,7 +167,7 @@ public class FileSystemParams {
      * Size of superblock - the block of emulated IO device
      * that contains filesystem metadata:
      * <ul>
-     *     <li>FILE_SYSTEM_VERSION</li>
+     *     <li>version</li>
      *     <li>blockSize</li>
      *     <li>blocksNumber</li>
      *     <li>iNodesNumber</li>
@@ -92,6 +175,15 @@ public class FileSystemParams {
      */
     public static final int SUPER_BLOCK_SIZE = 4 * Integer.BYTES;
 
+    /**
+     * Size of superblock of a file system with metadata journal,
+     * since version 3 of file system data format it also contains
+     * <ul>
+     *     <li>journalBlocks</li>
+     * </ul>
+     */
+    public static final int JOURNAL_SUPER_BLOCK_SIZE = SUPER_BLOCK_SIZE + Integer.BYTES;
+
     /**
      * Index of the first block of emulated IO device
      * that contains bitmap of free blocks
@@ -105,6 +197,39 @@ public class FileSystemParams {
      */
     public static final int MIN_BLOCK_SIZE = Math.max(SUPER_BLOCK_SIZE, INODE_SIZE);
 
+    /**
+     * The maximum number of iNodes of closed files kept in memory
+     */
+    public static final int INODE_CACHE_SIZE = 256;
+
+    /**
+     * The maximum number of directory entries kept in memory
+     *
+     * @see DentryCache
+     */
+    public static final int DENTRY_CACHE_SIZE = 4096;
+
+    /**
+     * The number of blocks kept in buffer cache
+     * unless specified otherwise
+     *
+     * @see BufferCache
+     */
+    public static final int DEFAULT_BUFFER_CACHE_SIZE = 64;
+
+    /**
+     * The maximum number of blocks written to an open file, that are
+     * kept in memory until the storage blocks are allocated for them
+     */
+    public static final int MAX_DELAYED_BLOCKS = 32;
+
+    /**
+     * Version of file system data format
+     *
+     * @see #FILE_SYSTEM_VERSION
+     */
+    public final int version;
+
     /**
      * Size of block in emulated IO device
      */
@@ -136,6 +261,22 @@ public class FileSystemParams {
      */
     public final int blocksForINodes;
 
+    /**
+     * Index of the first block of emulated IO device
+     * that contains the metadata journal
+     *
+     * @see Journal
+     */
+    public final int journalBlockIndex;
+
+    /**
+     * Number of blocks allocated for the metadata journal
+     * in emulated IO device, 0 means that metadata is not journaled
+     *
+     * @see Journal
+     */
+    public final int journalBlocks;
+
     /**
      * Index of the first block of emulated IO device
      * that contains files and directories
@@ -153,30 +294,63 @@ public class FileSystemParams {
      */
     public final int openFilesTableSize;
 
+    /**
+     * Number of iNode block links pointing directly to blocks of the file
+     */
+    public final int directBlockLinksNumber;
+
+    /**
+     * Number of block links an indirect block holds
+     */
+    public final int indirectBlockLinksNumber;
+
     /**
      * Maximum length of file in bytes
      */
     public final int maxFileSize;
 
+    /**
+     * Maximum length of file name in bytes: {@link #MAX_FILE_NAME_LENGTH},
+     * unless a directory record holding it doesn't fit in a block.
+     * Before version 4 of file system data format longer names are cut
+     * to {@link #BYTES_PER_FILE_NAME} bytes.
+     */
+    public final int maxFileNameLength;
+
+    /**
+     * The number of blocks kept in buffer cache,
+     * 0 means that the storage is not cached
+     *
+     * @see BufferCache
+     */
+    public final int bufferCacheSize;
+
 
     /**
      * Takes all user-specified parameters as constructor arguments.
      * The rest of parameters are either constant or derived (calculated).
      *
+     * @param version      version of file system data format
      * @param blockSize    size of each block of emulated IO device
      * @param blocksNumber number of blocks in emulated IO device
      * @param iNodesNumber number of iNodes
      * @param maxOpenFilesNumber maximum number of files that can be opened
      *                           at the same time, excluding the directory
+     * @param bufferCacheSize number of blocks kept in buffer cache
+     * @param journalBlocks number of blocks of the metadata journal
      *
      * @see Storage
      */
-    private FileSystemParams(int blockSize, int blocksNumber, int iNodesNumber,
-                             int maxOpenFilesNumber) {
+    private FileSystemParams(int version, int blockSize, int blocksNumber,
+                             int iNodesNumber, int maxOpenFilesNumber,
+                             int bufferCacheSize, int journalBlocks) {
+        this.version = version;
         this.blockSize = blockSize;
         this.blocksNumber = blocksNumber;
         this.iNodesNumber = iNodesNumber;
+        this.journalBlocks = journalBlocks;
         this.maxOpenFiles = maxOpenFilesNumber;
+        this.bufferCacheSize = bufferCacheSize;
 
         if (this.blocksNumber % (Byte.SIZE * this.blockSize) == 0) {
             blocksForBitmap = this.blocksNumber / (Byte.SIZE * this.blockSize);
@@ -192,11 +366,31 @@ public class FileSystemParams {
             blocksForINodes = (this.iNodesNumber * INODE_SIZE) / this.blockSize + 1;
         }
 
-        filesBlockIndex = iNodesBlockIndex + blocksForINodes;
+        journalBlockIndex = iNodesBlockIndex + blocksForINodes;
+        filesBlockIndex = journalBlockIndex + journalBlocks;
 
         openFilesTableSize = maxOpenFiles + 1;
 
-        maxFileSize = Math.min(blockSize * INODE_BLOCK_LINKS_NUMBER, Integer.MAX_VALUE);
+        indirectBlockLinksNumber = blockSize / BYTES_PER_BLOCK_INDEX;
+
+        long maxFileBlocks;
+        if (version == 1) {
+            directBlockLinksNumber = INODE_BLOCK_LINKS_NUMBER;
+            maxFileBlocks = directBlockLinksNumber;
+        } else {
+            directBlockLinksNumber = SINGLE_INDIRECT_LINK_INDEX;
+            maxFileBlocks = directBlockLinksNumber + indirectBlockLinksNumber
+                    + (long) indirectBlockLinksNumber * indirectBlockLinksNumber;
+        }
+        maxFileSize = (int) Math.min(maxFileBlocks * blockSize, Integer.MAX_VALUE);
+
+        if (version >= DIRECTORY_RECORDS_FILE_SYSTEM_VERSION) {
+            // records are padded to 4 bytes
+            maxFileNameLength = Math.min(MAX_FILE_NAME_LENGTH,
+                    (blockSize & ~3) - DIRECTORY_RECORD_HEADER_SIZE);
+        } else {
+            maxFileNameLength = BYTES_PER_FILE_NAME;
+        }
     }
 
     /**
@@ -217,12 +411,85 @@ public class FileSystemParams {
      */
     public static FileSystemParams getInstance(int blockSize, int blocksNumber,
                                                int iNodesNumber, int maxOpenFilesNumber) {
+        return getInstance(blockSize, blocksNumber, iNodesNumber, maxOpenFilesNumber,
+                           DEFAULT_BUFFER_CACHE_SIZE);
+    }
+
+    /**
+     * Takes all user-specified parameters as arguments and returns a new
+     * instance of <code>FileSystemParams</code>, with the rest of parameters
+     * either constant or derived (calculated).
+     *
+     * @param blockSize          size of each block of emulated IO device
+     * @param blocksNumber       number of blocks in emulated IO device
+     * @param iNodesNumber       number of iNodes
+     * @param maxOpenFilesNumber maximum number of files that can be opened
+     *                           at the same time, excluding the directory
+     * @param bufferCacheSize    number of blocks kept in buffer cache,
+     *                           0 disables the cache
+     * @return new instance of FileSystemParams
+     * @throws IllegalArgumentException if the input arguments don't fulfill
+     *         the minimal requirements or don't match each other
+     *
+     * @see Storage
+     * @see BufferCache
+     */
+    public static FileSystemParams getInstance(int blockSize, int blocksNumber,
+                                               int iNodesNumber, int maxOpenFilesNumber,
+                                               int bufferCacheSize) {
+        return getInstance(blockSize, blocksNumber, iNodesNumber, maxOpenFilesNumber,
+                           bufferCacheSize, 0);
+    }
+
+    /**
+     * Takes all user-specified parameters as arguments and returns a new
+     * instance of <code>FileSystemParams</code>, with the rest of parameters
+     * either constant or derived (calculated).
+     *
+     * @param blockSize          size of each block of emulated IO device
+     * @param blocksNumber       number of blocks in emulated IO device
+     * @param iNodesNumber       number of iNodes
+     * @param maxOpenFilesNumber maximum number of files that can be opened
+     *                           at the same time, excluding the directory
+     * @param bufferCacheSize    number of blocks kept in buffer cache,
+     *                           0 disables the cache
+     * @param journalBlocks      number of blocks of the metadata journal,
+     *                           0 disables journaling
+     * @return new instance of FileSystemParams
+     * @throws IllegalArgumentException if the input arguments don't fulfill
+     *         the minimal requirements or don't match each other
+     *
+     * @see Storage
+     * @see BufferCache
+     * @see Journal
+     */
+    public static FileSystemParams getInstance(int blockSize, int blocksNumber,
+                                               int iNodesNumber, int maxOpenFilesNumber,
+                                               int bufferCacheSize, int journalBlocks) {
         if(blockSize < MIN_BLOCK_SIZE) {
             throw new IllegalArgumentException("The specified size of block is too small. "
                     + "The minimal supported block size is " + MIN_BLOCK_SIZE);
         }
-        FileSystemParams instance = new FileSystemParams(blockSize,blocksNumber,
-                                                         iNodesNumber,maxOpenFilesNumber);
+        checkBufferCacheSize(bufferCacheSize);
+        if (journalBlocks < 0) {
+            throw new IllegalArgumentException("The number of journal blocks "
+                    + "can't be negative");
+        }
+        if (journalBlocks > 0 && blockSize < JOURNAL_SUPER_BLOCK_SIZE) {
+            throw new IllegalArgumentException("The specified size of block is too small. "
+                    + "The minimal block size of a file system with journal is "
+                    + JOURNAL_SUPER_BLOCK_SIZE);
+        }
+        FileSystemParams instance = new FileSystemParams(
+                blockSize >= JOURNAL_SUPER_BLOCK_SIZE ? FILE_SYSTEM_VERSION : 2,
+                blockSize,blocksNumber,
+                iNodesNumber,maxOpenFilesNumber,
+                bufferCacheSize, journalBlocks);
+        if (journalBlocks > 0 && journalBlocks < Journal.getMinBlocksNumber(instance)) {
+            throw new IllegalArgumentException("The specified number of journal blocks "
+                    + "is too small. The journal needs at least "
+                    + Journal.getMinBlocksNumber(instance) + " blocks");
+        }
         if(blocksNumber <= instance.filesBlockIndex) {
             throw new IllegalArgumentException("The specified number of blocks is too small. "
                     + "You need at least " + instance.filesBlockIndex + " blocks to hold "
@@ -242,6 +509,10 @@ public class FileSystemParams {
      * <li><code>maxOpenFilesNumber</code> -  maximum number of files
      * that can be opened at the same time, excluding the directory</li>
      * </ul>
+     * and optionally <code>bufferCacheSize</code> - number of blocks kept
+     * in buffer cache, {@link #DEFAULT_BUFFER_CACHE_SIZE} if not specified,
+     * and <code>journalBlocks</code> - number of blocks of the metadata
+     * journal, 0 if not specified.
      *
      * @param properties Properties object containing the properties listed above
      * @return new instance of FileSystemParams
@@ -255,7 +526,11 @@ public class FileSystemParams {
         int iNodesNumber = Integer.parseInt(properties.getProperty("iNodesNumber"));
         int maxOpenFilesNumber = Integer.parseInt(
                 properties.getProperty("maxOpenFilesNumber"));
-        return getInstance(blockSize, blocksNumber, iNodesNumber, maxOpenFilesNumber);
+        int bufferCacheSize = Integer.parseInt(properties.getProperty(
+                "bufferCacheSize", String.valueOf(DEFAULT_BUFFER_CACHE_SIZE)));
+        int journalBlocks = Integer.parseInt(properties.getProperty("journalBlocks", "0"));
+        return getInstance(blockSize, blocksNumber, iNodesNumber, maxOpenFilesNumber,
+                           bufferCacheSize, journalBlocks);
     }
 
     /**
@@ -266,21 +541,66 @@ public class FileSystemParams {
      *                           at the same time, excluding the directory
      * @return new instance of FileSystemParams
      * @throws VersionMismatchException if the version of file system on the storage
-     * doesn't match the current version of file system data format
+     * is not in range from {@link #MIN_FILE_SYSTEM_VERSION}
+     * to {@link #FILE_SYSTEM_VERSION}
      * @see #FILE_SYSTEM_VERSION
      * @see Storage
      */
     public static FileSystemParams getInstance(Storage storage, int maxOpenFilesNumber)
             throws VersionMismatchException{
-        byte[] superblock = storage.readBlock(SUPER_BLOCK_INDEX);
-        ByteBuffer byteBuffer = ByteBuffer.wrap(superblock);
+        return getInstance(storage, maxOpenFilesNumber, DEFAULT_BUFFER_CACHE_SIZE);
+    }
+
+    /**
+     * Takes file system parameters from the superblock of specified Storage.
+     *
+     * @param storage a Storage object, restored from backup file
+     * @param maxOpenFilesNumber maximum number of files that can be opened
+     *                           at the same time, excluding the directory
+     * @param bufferCacheSize number of blocks kept in buffer cache,
+     *                        0 disables the cache
+     * @return new instance of FileSystemParams
+     * @throws VersionMismatchException if the version of file system on the storage
+     * is not in range from {@link #MIN_FILE_SYSTEM_VERSION}
+     * to {@link #FILE_SYSTEM_VERSION}
+     * @see #FILE_SYSTEM_VERSION
+     * @see Storage
+     * @see BufferCache
+     */
+    public static FileSystemParams getInstance(Storage storage, int maxOpenFilesNumber,
+                                               int bufferCacheSize)
+            throws VersionMismatchException{
+        checkBufferCacheSize(bufferCacheSize);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(SUPER_BLOCK_SIZE);
+        storage.readBlock(SUPER_BLOCK_INDEX, 0, byteBuffer);
+        byteBuffer.flip();
         int version = byteBuffer.getInt();
-        if(version != FILE_SYSTEM_VERSION)
-            throw new VersionMismatchException();
+        if(version < MIN_FILE_SYSTEM_VERSION || version > FILE_SYSTEM_VERSION)
+            throw new VersionMismatchException("Unsupported file system version "
+                    + version + ", expected from " + MIN_FILE_SYSTEM_VERSION
+                    + " to " + FILE_SYSTEM_VERSION);
         int blockSize = byteBuffer.getInt();
         int blocksNumber = byteBuffer.getInt();
         int iNodesNumber = byteBuffer.getInt();
-        return new FileSystemParams(blockSize,blocksNumber,
-                                    iNodesNumber,maxOpenFilesNumber);
+        int journalBlocks = 0;
+        if (version >= JOURNAL_FILE_SYSTEM_VERSION) {
+            byteBuffer.clear().limit(Integer.BYTES);
+            storage.readBlock(SUPER_BLOCK_INDEX, SUPER_BLOCK_SIZE, byteBuffer);
+            journalBlocks = byteBuffer.getInt(0);
+        }
+        return new FileSystemParams(version,blockSize,blocksNumber,
+                                    iNodesNumber,maxOpenFilesNumber,
+                                    bufferCacheSize, journalBlocks);
+    }
+
+    /**
+     * @param bufferCacheSize number of blocks kept in buffer cache
+     * @throws IllegalArgumentException if the size is negative
+     */
+    private static void checkBufferCacheSize(int bufferCacheSize) {
+        if (bufferCacheSize < 0) {
+            throw new IllegalArgumentException("The size of buffer cache "
+                    + "can't be negative");
+        }
     }
 }
\ No newline at end of file
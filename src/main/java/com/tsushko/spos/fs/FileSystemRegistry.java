@@ -0,0 +1,120 @@
+package com.tsushko.spos.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of the file systems mounted in one process by name,
+ * so that many volumes can be driven at the same time.
+ * <p>
+ * The registry is safe for use by multiple threads.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+public class FileSystemRegistry implements Closeable {
+
+    /**
+     * mounted file systems by name
+     */
+    private final ConcurrentMap<String, FileSystem> fileSystems
+            = new ConcurrentHashMap<>();
+
+    /**
+     * registers the file system under specified name
+     *
+     * @param name name of the volume, unique within the registry
+     * @param fileSystem the file system to register
+     * @return the registered file system
+     * @throws IllegalArgumentException if a file system is already
+     *         mounted under specified name
+     */
+    public FileSystem mount(String name, FileSystem fileSystem) {
+        if (fileSystems.putIfAbsent(name, fileSystem) != null) {
+            throw new IllegalArgumentException("A file system is already "
+                    + "mounted as " + name);
+        }
+        return fileSystem;
+    }
+
+    /**
+     * deploys a new file system with specified parameters on a new
+     * <code>InMemoryStorage</code> and registers it under specified name
+     *
+     * @param name name of the volume, unique within the registry
+     * @param params parameters of the new file system
+     * @return the new file system
+     * @throws IllegalArgumentException if a file system is already
+     *         mounted under specified name
+     */
+    public FileSystem mount(String name, FileSystemParams params) {
+        if (fileSystems.containsKey(name)) {
+            throw new IllegalArgumentException("A file system is already "
+                    + "mounted as " + name);
+        }
+        return mount(name, new FileSystem(params));
+    }
+
+    /**
+     * @param name name of the volume
+     * @return the file system mounted under specified name
+     *         or <code>null</code> if there is no such volume
+     */
+    public FileSystem get(String name) {
+        return fileSystems.get(name);
+    }
+
+    /**
+     * @return names of the mounted volumes
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(fileSystems.keySet());
+    }
+
+    /**
+     * unmounts the file system registered under specified name
+     * and removes it from the registry
+     *
+     * @param name name of the volume
+     * @throws IllegalArgumentException if there is no such volume
+     * @throws IOException if the storage fails to release it's resources
+     * @see FileSystem#unmount()
+     */
+    public void unmount(String name) throws IOException {
+        FileSystem fileSystem = fileSystems.remove(name);
+        if (fileSystem == null) {
+            throw new IllegalArgumentException("No file system is mounted as "
+                    + name);
+        }
+        fileSystem.unmount();
+    }
+
+    /**
+     * unmounts all the registered file systems
+     *
+     * @throws IOException if some storage fails to release it's resources,
+     *         the rest of file systems are unmounted anyway
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (String name : fileSystems.keySet()) {
+            try {
+                unmount(name);
+            } catch (IllegalArgumentException e) {
+                // unmounted by another thread
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
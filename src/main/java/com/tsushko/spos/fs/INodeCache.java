@@ -0,0 +1,174 @@
+package com.tsushko.spos.fs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded write-back cache of iNodes, keyed by iNode index.
+ * <p>
+ * Modified iNodes are only marked as dirty and written to the storage
+ * when they are evicted or flushed. The least recently used iNodes are
+ * evicted first, except for the pinned ones: an iNode is pinned while
+ * some file referring to it is open, so that there is exactly one
+ * <code>INode</code> object per open file. Because of that, the number
+ * of cached iNodes may exceed the capacity by the number of pinned ones.
+ * <p>
+ * The cache is safe for use by multiple threads. Dirty iNodes are written
+ * holding the lock of their iNode table block, so their fields must be
+ * modified holding the same lock.
+ *
+ * @see FileSystem#iNodeLock(int)
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+class INodeCache {
+
+    /**
+     * the file system the iNodes belong to
+     */
+    private final FileSystem fileSystem;
+
+    /**
+     * maximum number of unpinned iNodes to keep
+     */
+    private final int capacity;
+
+    /**
+     * cached iNodes by index in the least recently used first order
+     */
+    private final LinkedHashMap<Integer, FileSystem.INode> iNodes;
+
+    /**
+     * @param fileSystem the file system the iNodes belong to
+     * @param capacity maximum number of unpinned iNodes to keep
+     */
+    INodeCache(FileSystem fileSystem, int capacity) {
+        this.fileSystem = fileSystem;
+        this.capacity = capacity;
+        this.iNodes = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * returns the cached iNode with specified index,
+     * reading it from the storage if it's not cached
+     *
+     * @param index index of the iNode
+     * @return the cached iNode
+     */
+    synchronized FileSystem.INode get(int index) {
+        FileSystem.INode iNode = iNodes.get(index);
+        if (iNode == null) {
+            iNode = fileSystem.readINodeFromStorage(index);
+            iNodes.put(index, iNode);
+            evict();
+        }
+        return iNode;
+    }
+
+    /**
+     * returns the cached iNode with specified index
+     * without reading it from the storage
+     *
+     * @param index index of the iNode
+     * @return the cached iNode or <code>null</code> if it's not cached
+     */
+    synchronized FileSystem.INode peek(int index) {
+        return iNodes.get(index);
+    }
+
+    /**
+     * marks the specified iNode as modified and caches it, replacing
+     * another object representing the same iNode, if any
+     *
+     * @param iNode the modified iNode
+     */
+    synchronized void markDirty(FileSystem.INode iNode) {
+        if (iNode.unlinked) {
+            return;
+        }
+        iNode.dirty = true;
+        FileSystem.INode cached = iNodes.put(iNode.index, iNode);
+        if (cached != null && cached != iNode) {
+            iNode.pinCount = cached.pinCount;
+        }
+        if (cached == null) {
+            evict();
+        }
+    }
+
+    /**
+     * replaces the iNode with a free one, that is written to the storage
+     * in it's place. The replaced object is marked as unlinked, so that
+     * it's never cached or written again.
+     *
+     * @param iNode the cached iNode to free
+     * @param free the free iNode with the same index
+     */
+    synchronized void free(FileSystem.INode iNode, FileSystem.INode free) {
+        iNode.unlinked = true;
+        iNode.dirty = false;
+        free.dirty = true;
+        if (iNodes.put(free.index, free) == null) {
+            evict();
+        }
+    }
+
+    /**
+     * prevents the iNode from being evicted until it's unpinned
+     *
+     * @param iNode a cached iNode
+     */
+    synchronized void pin(FileSystem.INode iNode) {
+        ++iNode.pinCount;
+    }
+
+    /**
+     * releases one pin of the iNode and writes it to the storage if it's dirty
+     *
+     * @param iNode a cached iNode
+     */
+    synchronized void unpin(FileSystem.INode iNode) {
+        --iNode.pinCount;
+        flush(iNode);
+    }
+
+    /**
+     * writes the iNode to the storage if it's dirty
+     *
+     * @param iNode a cached iNode
+     */
+    synchronized void flush(FileSystem.INode iNode) {
+        if (iNode.dirty && !iNode.unlinked) {
+            iNode.writeToStorage();
+            iNode.dirty = false;
+        }
+    }
+
+    /**
+     * writes all dirty iNodes to the storage
+     */
+    synchronized void flush() {
+        for (FileSystem.INode iNode : iNodes.values()) {
+            flush(iNode);
+        }
+    }
+
+    /**
+     * evicts the least recently used unpinned iNodes
+     * while there are more than <code>capacity</code> of them
+     */
+    private void evict() {
+        Iterator<Map.Entry<Integer, FileSystem.INode>> iterator
+                = iNodes.entrySet().iterator();
+        int excess = iNodes.size() - capacity;
+        while (excess > 0 && iterator.hasNext()) {
+            FileSystem.INode iNode = iterator.next().getValue();
+            if (iNode.pinCount == 0) {
+                flush(iNode);
+                iterator.remove();
+                --excess;
+            }
+        }
+    }
+}
@@ -4,6 +4,8 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Emulates HDD as a sequence of blocks represented by array of bytes.
@@ -12,6 +14,12 @@ import java.io.*;
  * <code>Storage</code> interface, as well as some additional methods
  * for saving it's state to file, such as {@link #saveToFile(File)} and
  * {@link #getStorageFromFile(File)}.
+ * <p>
+ * The state is saved as a raw image in the format of
+ * {@link MappedFileStorage}: a header followed by the contents
+ * of all blocks, so a saved storage can also be mounted as an image file.
+ * Files written by older versions, which serialized the whole object,
+ * can still be read.
  *
  * @author Artem Tsushko
  * @version 1.0
@@ -28,6 +36,11 @@ public class InMemoryStorage implements Storage, Serializable {
      */
     private static final Logger logger = LogManager.getLogger();
 
+    /**
+     * the approximate number of bytes transferred to or from a file at once
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+
     /**
      * Number of blocks
      * @serial non-negative
@@ -77,12 +90,7 @@ public class InMemoryStorage implements Storage, Serializable {
     }
 
     public byte[] readBlock(int blockNumber) {
-        if (blockNumber < 0 || blockNumber >= blocksNumber) {
-            String errorMessage = "Wrong block number: "
-                    + "expected in range [0," + blocksNumber + "), "
-                    + "actual " + blockNumber;
-            throw new IndexOutOfBoundsException(errorMessage);
-        }
+        checkBlockNumber(blockNumber);
         byte[] block = new byte[blockSize];
         System.arraycopy(storage, blockNumber * blockSize, block, 0, blockSize);
         return block;
@@ -96,27 +104,106 @@ public class InMemoryStorage implements Storage, Serializable {
                     + "actual " + data.length;
             throw new IllegalArgumentException(errorMessage);
         }
+        checkBlockNumber(blockNumber);
+
+        System.arraycopy(data, 0, storage, blockNumber * blockSize, blockSize);
+    }
+
+    public void readBlock(int blockNumber, int offset, ByteBuffer dst) {
+        checkBlockNumber(blockNumber);
+        checkRange(offset, dst.remaining());
+        dst.put(storage, blockNumber * blockSize + offset, dst.remaining());
+    }
+
+    public void writeBlock(ByteBuffer src, int blockNumber, int offset) {
+        checkBlockNumber(blockNumber);
+        checkRange(offset, src.remaining());
+        src.get(storage, blockNumber * blockSize + offset, src.remaining());
+    }
+
+    public void readBlocks(int firstBlockNumber, ByteBuffer dst) {
+        checkBlocks(firstBlockNumber, dst.remaining());
+        dst.put(storage, firstBlockNumber * blockSize, dst.remaining());
+    }
+
+    public void writeBlocks(ByteBuffer src, int firstBlockNumber) {
+        checkBlocks(firstBlockNumber, src.remaining());
+        src.get(storage, firstBlockNumber * blockSize, src.remaining());
+    }
+
+    /**
+     * @param firstBlockNumber the index of the first block
+     * @param length number of bytes in consecutive blocks
+     * @throws IndexOutOfBoundsException if any of the blocks is not in range
+     *         from 0 inclusive to blocksNumber exclusive.
+     * @throws IllegalArgumentException if length is not a multiple of blockSize
+     */
+    private void checkBlocks(int firstBlockNumber, int length) {
+        if (length % blockSize != 0) {
+            String errorMessage = "Length is not a multiple of block size: "
+                    + "block size " + blockSize + ", "
+                    + "length " + length;
+            throw new IllegalArgumentException(errorMessage);
+        }
+        checkBlockNumber(firstBlockNumber);
+        if (length != 0) {
+            checkBlockNumber(firstBlockNumber + length / blockSize - 1);
+        }
+    }
+
+    /**
+     * @param blockNumber the index of block to check
+     * @throws IndexOutOfBoundsException if blockNumber is not in range
+     *         from 0 inclusive to blocksNumber exclusive.
+     */
+    private void checkBlockNumber(int blockNumber) {
         if (blockNumber < 0 || blockNumber >= blocksNumber) {
             String errorMessage = "Wrong block number: "
                     + "expected in range [0," + blocksNumber + "), "
                     + "actual " + blockNumber;
             throw new IndexOutOfBoundsException(errorMessage);
         }
+    }
 
-        System.arraycopy(data, 0, storage, blockNumber * blockSize, blockSize);
+    /**
+     * @param offset offset of the first byte in a block
+     * @param length number of bytes
+     * @throws IllegalArgumentException if the bytes don't fit into a block
+     */
+    private void checkRange(int offset, int length) {
+        if (offset < 0 || offset + length > blockSize) {
+            String errorMessage = "Wrong range in block: "
+                    + "expected within [0," + blockSize + "), "
+                    + "actual [" + offset + "," + (offset + length) + ")";
+            throw new IllegalArgumentException(errorMessage);
+        }
     }
 
     /**
-     * Saves this instance's state to specified file
+     * Saves this instance's state to specified file as a raw image
      *
-     * @param file the file to write a serialized form
-     *             of this Storage to
+     * @param file the file to write the image of this Storage to
      * @throws IOException if any usual I/O error occurs
      */
     public void saveToFile(File file) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(file);
-             ObjectOutputStream oos = new ObjectOutputStream(fos)) {
-            oos.writeObject(this);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            FileChannel channel = fos.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(MappedFileStorage.HEADER_SIZE);
+            header.putInt(MappedFileStorage.IMAGE_MAGIC)
+                  .putInt(MappedFileStorage.IMAGE_VERSION)
+                  .putInt(blockSize)
+                  .putInt(blocksNumber)
+                  .flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            for (int position = 0; position < storage.length; ) {
+                ByteBuffer chunk = ByteBuffer.wrap(storage, position,
+                        Math.min(CHUNK_SIZE, storage.length - position));
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk);
+                }
+            }
         }
     }
 
@@ -131,8 +218,66 @@ public class InMemoryStorage implements Storage, Serializable {
         return new InMemoryStorage(blocksNumber, blockSize);
     }
 
+    /**
+     * creates a new instance and recovers it's state from the specified file.
+     * The blocks of a raw image are read right into the new instance,
+     * without an intermediate copy.
+     *
+     * @param file the file that contains a raw image or,
+     *             if written by older versions, a serialized
+     *             instance of InMemoryStorage
+     * @return a new instance with it's state recovered from specified file
+     *
+     * @throws IOException if any general I/O error occurs
+     * @throws ClassNotFoundException if Class of a serialized object cannot be found
+     */
+    public static InMemoryStorage getStorageFromFile(File file)
+            throws IOException, ClassNotFoundException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(MappedFileStorage.HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) != -1) {
+                // read until the header is complete or the file ends
+            }
+            if (header.hasRemaining()
+                    || header.getInt(0) != MappedFileStorage.IMAGE_MAGIC) {
+                logger.debug(file + " is not a raw image, reading a serialized storage");
+                return getStorageFromSerializedFile(file);
+            }
+            header.flip().position(Integer.BYTES);
+            int version = header.getInt();
+            if (version != MappedFileStorage.IMAGE_VERSION) {
+                throw new IOException("Unsupported image version " + version);
+            }
+            int blockSize = header.getInt();
+            int blocksNumber = header.getInt();
+            if (blockSize <= 0 || blocksNumber <= 0
+                    || (long) blockSize * blocksNumber > Integer.MAX_VALUE
+                    || channel.size() < MappedFileStorage.HEADER_SIZE
+                                        + (long) blockSize * blocksNumber) {
+                throw new IOException(file + " is corrupted");
+            }
+
+            InMemoryStorage storage = new InMemoryStorage(blocksNumber, blockSize);
+            byte[] blocks = storage.storage;
+            for (int position = 0; position < blocks.length; ) {
+                ByteBuffer chunk = ByteBuffer.wrap(blocks, position,
+                        Math.min(CHUNK_SIZE, blocks.length - position));
+                while (chunk.hasRemaining()) {
+                    int read = channel.read(chunk);
+                    if (read == -1) {
+                        throw new IOException(file + " is truncated");
+                    }
+                    position += read;
+                }
+            }
+            return storage;
+        }
+    }
+
     /**
      * creates a new instance and recovers it's state from the specified file
+     * written by older versions
      *
      * @param file the file that contains serialized instance of InMemoryStorage
      * @return a new instance with it's state recovered from specified file
@@ -140,7 +285,7 @@ public class InMemoryStorage implements Storage, Serializable {
      * @throws IOException if any general I/O error occurs
      * @throws ClassNotFoundException if Class of a serialized object cannot be found
      */
-    public static InMemoryStorage getStorageFromFile(File file)
+    private static InMemoryStorage getStorageFromSerializedFile(File file)
             throws IOException, ClassNotFoundException {
         InMemoryStorage storage;
         try (FileInputStream fis = new FileInputStream(file);
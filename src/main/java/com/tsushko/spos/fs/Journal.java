@@ -0,0 +1,615 @@
+package com.tsushko.spos.fs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of the file system metadata: the superblock,
+ * the free blocks bitmap, the iNode table, the directory and the indirect
+ * blocks. It is deployed on the blocks of the storage following the iNode
+ * table, see {@link FileSystemParams#journalBlocks}.
+ * <p>
+ * The journal is a <code>Storage</code> the metadata is written to.
+ * Written blocks are not passed to the underlying storage at once, but
+ * collected as whole images in the running transaction, from which they
+ * are also read back. {@link #commit()} writes the transaction
+ * to the journal blocks, followed by a commit block holding the checksum
+ * of the transaction, and only then writes the images to their home
+ * locations. If the file system crashes before the commit block is
+ * written, none of the updates of the transaction reach the storage,
+ * otherwise {@link #replay()} completes the transaction at the next mount.
+ * <p>
+ * A transaction groups all the updates made since the previous commit,
+ * so a block modified by many of them, like a bitmap block or an iNode
+ * table block, is written only twice per commit. Each update of the
+ * metadata, like creating a file or allocating a block of it, must be
+ * made between {@link #begin()} and {@link #end()}, so that a transaction
+ * never holds half of an update. Each running update reserves space
+ * in the transaction for the blocks it may write, and the update that
+ * doesn't fit waits for the transaction to be committed, so it's
+ * committed when it gets close to the capacity of the journal or on demand.
+ * <p>
+ * Blocks freed by the running transaction are not reused until it's
+ * committed, since after a crash they would still be used by the files
+ * they were freed from. The transaction is committed early, when
+ * the free space is short of the blocks it freed.
+ * <p>
+ * Layout of the journal:
+ * <ul>
+ *     <li>header block: magic number, sequence number of the transaction,
+ *         number of blocks in it</li>
+ *     <li>tag blocks: home block indexes of the blocks of the transaction</li>
+ *     <li>images of the blocks of the transaction</li>
+ *     <li>commit block: magic number, sequence number, number of blocks
+ *         and the CRC-32 checksum of the tags and the images</li>
+ * </ul>
+ * <p>
+ * The journal is safe for use by multiple threads. The blocks, that are
+ * not in the running transaction, are read from the underlying storage
+ * without holding the lock of the journal, so that the reads of metadata
+ * proceed in parallel. A block is only read from there if it's not in
+ * the transaction, and the commit writes the images to their home
+ * locations before it clears the transaction, so such a read is never stale.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+class Journal implements Storage {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * marks the header of a transaction that wasn't checkpointed yet
+     */
+    private static final int HEADER_MAGIC = 0x4A524E4C;
+
+    /**
+     * marks the commit block of a transaction
+     */
+    private static final int COMMIT_MAGIC = 0x434D4954;
+
+    /**
+     * the maximum number of metadata blocks an update can write
+     * besides the bitmap and the iNode table: indirect blocks,
+     * directory blocks and the nodes of a directory index
+     * split by the update
+     */
+    static final int MAX_BLOCKS_PER_UPDATE = 16;
+
+    /**
+     * the storage holding the journal and the metadata
+     */
+    private final Storage storage;
+
+    /**
+     * parameters of the file system
+     */
+    private final FileSystemParams params;
+
+    /**
+     * the maximum number of blocks in a transaction
+     */
+    private final int capacity;
+
+    /**
+     * the number of blocks a transaction may grow by after an update
+     * is admitted to it: the update and the flush of the metadata caches.
+     * Each of the other updates running reserves
+     * {@link #MAX_BLOCKS_PER_UPDATE} blocks more.
+     */
+    private final int reserve;
+
+    /**
+     * number of the updates admitted to the running transaction
+     * and not ended yet, not counting the nested ones
+     */
+    private int runningUpdates;
+
+    /**
+     * images of the blocks written by the running transaction,
+     * by home block index in the order of the first write
+     */
+    private final Map<Integer, byte[]> transaction = new LinkedHashMap<>();
+
+    /**
+     * blocks freed by the running transaction
+     */
+    private final BitSet freedBlocks = new BitSet();
+
+    /**
+     * held shared by the updates and exclusively by the commit
+     */
+    private final ReentrantReadWriteLock updates = new ReentrantReadWriteLock();
+
+    /**
+     * writes the modified metadata cached by the file system
+     * to this journal before each commit
+     */
+    private Runnable flush;
+
+    /**
+     * sequence number of the running transaction
+     */
+    private int sequence;
+
+    /**
+     * number of transactions committed
+     */
+    private long commits;
+
+    /**
+     * @param storage the storage holding the journal and the metadata
+     * @param params parameters of the file system with a journal
+     */
+    Journal(Storage storage, FileSystemParams params) {
+        this.storage = storage;
+        this.params = params;
+        this.capacity = getCapacity(params.blockSize, params.journalBlocks);
+        this.reserve = getReserve(params);
+    }
+
+    /**
+     * @param params parameters of a file system
+     * @return the minimal number of journal blocks, so that the journal
+     *         can hold a transaction of two updates at least
+     */
+    static int getMinBlocksNumber(FileSystemParams params) {
+        int blocks = 2;
+        while (getCapacity(params.blockSize, blocks) < 2 * getReserve(params)) {
+            ++blocks;
+        }
+        return blocks;
+    }
+
+    /**
+     * @param blockSize size of a block
+     * @param journalBlocks number of journal blocks
+     * @return the maximum number of blocks in a transaction
+     */
+    private static int getCapacity(int blockSize, int journalBlocks) {
+        // without the header and the commit block
+        int blocks = journalBlocks - 2;
+        while (blocks > 0 && blocks + getTagBlocksNumber(blockSize, blocks) > journalBlocks - 2) {
+            --blocks;
+        }
+        return Math.max(blocks, 0);
+    }
+
+    /**
+     * @see #reserve
+     */
+    private static int getReserve(FileSystemParams params) {
+        // the superblock, the bitmap and the iNode table may all be flushed
+        // into the transaction on commit
+        return 1 + params.blocksForBitmap + params.blocksForINodes
+                + MAX_BLOCKS_PER_UPDATE;
+    }
+
+    /**
+     * @param blockSize size of a block
+     * @param count number of blocks in a transaction
+     * @return number of blocks holding the tags of the transaction
+     */
+    private static int getTagBlocksNumber(int blockSize, int count) {
+        int tagsBytes = count * FileSystemParams.BYTES_PER_BLOCK_INDEX;
+        return (tagsBytes + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * @param flush writes the modified metadata cached by the file system
+     *              to this journal before each commit
+     */
+    void setFlush(Runnable flush) {
+        this.flush = flush;
+    }
+
+    /**
+     * starts an update of the metadata, committing the running
+     * transaction first if it may not hold the update
+     */
+    void begin() {
+        // an update can't wait for the commit, as long as it's
+        // nested in another update of the same thread,
+        // and it fits into the space reserved for that one
+        if (!isNested()) {
+            while (!admit()) {
+                commit();
+            }
+        }
+        updates.readLock().lock();
+    }
+
+    /**
+     * ends an update started by {@link #begin()}
+     */
+    void end() {
+        updates.readLock().unlock();
+        if (!isNested()) {
+            synchronized (this) {
+                --runningUpdates;
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the current thread runs an update
+     *         or a commit
+     */
+    private boolean isNested() {
+        return updates.getReadHoldCount() != 0 || updates.isWriteLockedByCurrentThread();
+    }
+
+    /**
+     * reserves the space for one more update in the running transaction.
+     * The space stays reserved when the transaction is committed before
+     * the update starts, since the update then goes to the next one.
+     *
+     * @return <code>true</code> if the transaction can hold the update
+     *         besides the ones already running
+     */
+    private synchronized boolean admit() {
+        if (transaction.size() + reserve + runningUpdates * MAX_BLOCKS_PER_UPDATE
+                > capacity) {
+            return false;
+        }
+        ++runningUpdates;
+        return true;
+    }
+
+    /**
+     * remembers that the block was freed by the running transaction,
+     * and drops the image of it, if any
+     *
+     * @param blockNumber index of the freed block
+     */
+    synchronized void free(int blockNumber) {
+        transaction.remove(blockNumber);
+        freedBlocks.set(blockNumber);
+    }
+
+    /**
+     * @param blockNumber index of a block
+     * @return <code>true</code> if the block was freed by the running
+     *         transaction, so it must not be allocated until the commit
+     */
+    synchronized boolean isFreed(int blockNumber) {
+        return freedBlocks.get(blockNumber);
+    }
+
+    /**
+     * @return number of blocks freed by the running transaction
+     */
+    synchronized int getFreedBlocksNumber() {
+        return freedBlocks.cardinality();
+    }
+
+    /**
+     * commits the running transaction, if it freed any blocks, so that
+     * they can be allocated again. Nothing is done while the current
+     * thread runs an update, as the commit would wait for it.
+     *
+     * @return <code>true</code> if the transaction was committed
+     */
+    boolean commitFreedBlocks() {
+        if (isNested() || getFreedBlocksNumber() == 0) {
+            return false;
+        }
+        commit();
+        return true;
+    }
+
+    /**
+     * @return number of transactions committed since the journal was opened
+     */
+    synchronized long getCommits() {
+        return commits;
+    }
+
+    /**
+     * waits for the running updates to end, writes the blocks modified
+     * by them to the journal and then to their home locations
+     */
+    void commit() {
+        updates.writeLock().lock();
+        try {
+            if (flush != null) {
+                flush.run();
+            }
+            synchronized (this) {
+                if (!transaction.isEmpty()) {
+                    writeTransaction();
+                    checkpoint();
+                    ++commits;
+                }
+                transaction.clear();
+                freedBlocks.clear();
+                ++sequence;
+            }
+        } finally {
+            updates.writeLock().unlock();
+        }
+    }
+
+    /**
+     * writes the tags, the images and the commit block of the running
+     * transaction to the journal, followed by the header
+     */
+    private void writeTransaction() {
+        int count = transaction.size();
+        if (count > capacity) {
+            throw new IllegalStateException("The transaction of " + count
+                    + " blocks doesn't fit in the journal");
+        }
+        int tagBlocks = getTagBlocksNumber(params.blockSize, count);
+        ByteBuffer tags = ByteBuffer.allocate(tagBlocks * params.blockSize);
+        CRC32 checksum = new CRC32();
+        int blockNumber = params.journalBlockIndex + 1 + tagBlocks;
+        for (Map.Entry<Integer, byte[]> entry : transaction.entrySet()) {
+            tags.putInt(entry.getKey());
+            checksum.update(entry.getValue());
+            storage.writeBlock(entry.getValue(), blockNumber++);
+        }
+        checksum.update(tags.array(), 0, tags.position());
+        tags.clear();
+        storage.writeBlocks(tags, params.journalBlockIndex + 1);
+        storage.writeBlock(record(COMMIT_MAGIC, count, (int) checksum.getValue()),
+                           blockNumber);
+        flushStorage();
+        storage.writeBlock(record(HEADER_MAGIC, count, 0), params.journalBlockIndex);
+        flushStorage();
+    }
+
+    /**
+     * writes the images of the running transaction to their home
+     * locations and marks the journal as empty
+     */
+    private void checkpoint() {
+        for (Map.Entry<Integer, byte[]> entry : transaction.entrySet()) {
+            storage.writeBlock(entry.getValue(), entry.getKey());
+        }
+        flushStorage();
+        storage.writeBlock(record(0, 0, 0), params.journalBlockIndex);
+        flushStorage();
+    }
+
+    /**
+     * marks the journal as empty, discarding whatever it holds.
+     * Used when a new file system is written to the storage.
+     */
+    synchronized void reset() {
+        transaction.clear();
+        freedBlocks.clear();
+        storage.writeBlock(record(0, 0, 0), params.journalBlockIndex);
+    }
+
+    /**
+     * completes the transaction found in the journal, if it was committed
+     * but not written to the home locations of it's blocks, and marks
+     * the journal as empty. Must be called before the metadata
+     * is read at mount.
+     *
+     * @return <code>true</code> if a transaction was completed
+     */
+    synchronized boolean replay() {
+        ByteBuffer header = ByteBuffer.wrap(storage.readBlock(params.journalBlockIndex));
+        int magic = header.getInt();
+        sequence = header.getInt() + 1;
+        int count = header.getInt();
+        if (magic != HEADER_MAGIC) {
+            return false;
+        }
+        boolean replayed = false;
+        if (count > 0 && count <= capacity) {
+            int tagBlocks = getTagBlocksNumber(params.blockSize, count);
+            ByteBuffer tags = ByteBuffer.allocate(tagBlocks * params.blockSize);
+            storage.readBlocks(params.journalBlockIndex + 1, tags);
+            tags.flip();
+            CRC32 checksum = new CRC32();
+            int blockNumber = params.journalBlockIndex + 1 + tagBlocks;
+            for (int i = 0; i < count; ++i) {
+                byte[] image = storage.readBlock(blockNumber++);
+                transaction.put(tags.getInt(), image);
+                checksum.update(image);
+            }
+            checksum.update(tags.array(), 0, tags.position());
+            ByteBuffer commit = ByteBuffer.wrap(storage.readBlock(blockNumber));
+            replayed = commit.getInt() == COMMIT_MAGIC
+                    && commit.getInt() == sequence - 1
+                    && commit.getInt() == count
+                    && commit.getInt() == (int) checksum.getValue()
+                    && areHomeLocations(transaction.keySet());
+        }
+        if (replayed) {
+            logger.info("Replaying " + count + " blocks of journal transaction "
+                    + (sequence - 1));
+            checkpoint();
+        } else {
+            logger.warn("Discarding incomplete journal transaction " + (sequence - 1));
+            storage.writeBlock(record(0, 0, 0), params.journalBlockIndex);
+            flushStorage();
+        }
+        transaction.clear();
+        return replayed;
+    }
+
+    /**
+     * @param blockNumbers indexes of blocks from the tags of a transaction
+     * @return <code>true</code> if all of them are outside of the journal
+     */
+    private boolean areHomeLocations(Iterable<Integer> blockNumbers) {
+        for (int blockNumber : blockNumbers) {
+            if (blockNumber < 0 || blockNumber >= params.blocksNumber
+                    || (blockNumber >= params.journalBlockIndex
+                        && blockNumber < params.filesBlockIndex)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param magic the magic number of the record
+     * @param count number of blocks in the transaction
+     * @param checksum checksum of the transaction
+     * @return a block holding a header or a commit record
+     *         of the running transaction
+     */
+    private byte[] record(int magic, int count, int checksum) {
+        ByteBuffer record = ByteBuffer.allocate(params.blockSize);
+        record.putInt(magic).putInt(sequence).putInt(count).putInt(checksum);
+        return record.array();
+    }
+
+    /**
+     * writes the cached blocks of the underlying storage, if any,
+     * so that the journal blocks written before reach the device
+     * before the ones written after
+     */
+    private void flushStorage() {
+        if (storage instanceof BufferCache) {
+            ((BufferCache) storage).flush();
+        }
+    }
+
+    /**
+     * returns the image of the block in the running transaction,
+     * adding it to the transaction if it's not there yet
+     *
+     * @param blockNumber index of the block
+     * @param load whether the current contents of the block is needed
+     * @return the image of the block
+     * @throws IndexOutOfBoundsException if blockNumber is not in range
+     *         from 0 inclusive to blocksNumber exclusive.
+     */
+    private byte[] getImage(int blockNumber, boolean load) {
+        checkBlockNumber(blockNumber);
+        byte[] image = transaction.get(blockNumber);
+        if (image == null) {
+            image = load ? storage.readBlock(blockNumber) : new byte[params.blockSize];
+            transaction.put(blockNumber, image);
+        }
+        return image;
+    }
+
+    @Override
+    public int getBlocksNumber() {
+        return storage.getBlocksNumber();
+    }
+
+    @Override
+    public int getBlockSize() {
+        return storage.getBlockSize();
+    }
+
+    @Override
+    public byte[] readBlock(int blockNumber) {
+        synchronized (this) {
+            byte[] image = transaction.get(blockNumber);
+            if (image != null) {
+                return image.clone();
+            }
+        }
+        return storage.readBlock(blockNumber);
+    }
+
+    @Override
+    public synchronized void writeBlock(byte[] data, int blockNumber) {
+        if (data.length != params.blockSize) {
+            throw new IllegalArgumentException("Expected " + params.blockSize
+                    + " bytes, actual " + data.length);
+        }
+        System.arraycopy(data, 0, getImage(blockNumber, false), 0, data.length);
+    }
+
+    @Override
+    public void readBlock(int blockNumber, int offset, ByteBuffer dst) {
+        synchronized (this) {
+            byte[] image = transaction.get(blockNumber);
+            if (image != null) {
+                checkRange(offset, dst.remaining());
+                dst.put(image, offset, dst.remaining());
+                return;
+            }
+        }
+        storage.readBlock(blockNumber, offset, dst);
+    }
+
+    @Override
+    public synchronized void writeBlock(ByteBuffer src, int blockNumber, int offset) {
+        checkRange(offset, src.remaining());
+        boolean whole = offset == 0 && src.remaining() == params.blockSize;
+        src.get(getImage(blockNumber, !whole), offset, src.remaining());
+    }
+
+    @Override
+    public void readBlocks(int firstBlockNumber, ByteBuffer dst) {
+        checkBlocks(firstBlockNumber, dst.remaining());
+        int limit = dst.limit();
+        for (int blockNumber = firstBlockNumber; dst.position() < limit; ++blockNumber) {
+            dst.limit(Math.min(limit, dst.position() + params.blockSize));
+            readBlock(blockNumber, 0, dst);
+        }
+        dst.limit(limit);
+    }
+
+    @Override
+    public synchronized void writeBlocks(ByteBuffer src, int firstBlockNumber) {
+        checkBlocks(firstBlockNumber, src.remaining());
+        int limit = src.limit();
+        for (int blockNumber = firstBlockNumber; src.position() < limit; ++blockNumber) {
+            src.limit(Math.min(limit, src.position() + params.blockSize));
+            writeBlock(src, blockNumber, 0);
+        }
+        src.limit(limit);
+    }
+
+    /**
+     * @param firstBlockNumber the index of the first block
+     * @param length number of bytes in consecutive blocks
+     * @throws IndexOutOfBoundsException if any of the blocks is not in range
+     *         from 0 inclusive to blocksNumber exclusive.
+     * @throws IllegalArgumentException if length is not a multiple of blockSize
+     */
+    private void checkBlocks(int firstBlockNumber, int length) {
+        if (length % params.blockSize != 0) {
+            throw new IllegalArgumentException("Expected a multiple of "
+                    + params.blockSize + " bytes, actual " + length);
+        }
+        checkBlockNumber(firstBlockNumber);
+        if (length != 0) {
+            checkBlockNumber(firstBlockNumber + length / params.blockSize - 1);
+        }
+    }
+
+    /**
+     * @param blockNumber the index of block to check
+     * @throws IndexOutOfBoundsException if blockNumber is not in range
+     *         from 0 inclusive to blocksNumber exclusive.
+     */
+    private void checkBlockNumber(int blockNumber) {
+        if (blockNumber < 0 || blockNumber >= storage.getBlocksNumber()) {
+            throw new IndexOutOfBoundsException("Expected block number in range [0,"
+                    + storage.getBlocksNumber() + "), actual " + blockNumber);
+        }
+    }
+
+    /**
+     * @param offset offset within a block
+     * @param length number of bytes to transfer
+     * @throws IllegalArgumentException if the range exceeds the block
+     */
+    private void checkRange(int offset, int length) {
+        if (offset < 0 || offset + length > params.blockSize) {
+            throw new IllegalArgumentException("Expected offset and length "
+                    + "within the block of " + params.blockSize + " bytes, actual "
+                    + offset + " and " + length);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.tsushko.spos.fs;
 
 import java.io.*;
+import java.util.Properties;
 
 /**
  * Launcher for the shell
@@ -13,11 +14,25 @@ public class Main {
     /**
      * launches the shell with given input and output files if specified,
      * otherwise input is taken from <code>System.in</code>
-     * and output is streamed to <code>System.out</code>
+     * and output is streamed to <code>System.out</code>.
+     * With <code>-server</code> option serves shell sessions
+     * of one file system instead.
      * @param args args[0] - name of input file
      *             args[1] - name of output file
+     *             or
+     *             args[0] - <code>-server</code>
+     *             args[1] - port number or Unix domain socket path
+     *             args[2] - name of the properties file
+     *             with the file system parameters
+     * @see ShellServer
+     * @see FileSystemParams#getInstance(java.util.Properties)
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("-server")) {
+            serve(args);
+            return;
+        }
+
         InputStream in;
         PrintStream out;
 
@@ -44,4 +59,33 @@ public class Main {
 
         new Shell(in,out).run();
     }
+
+    /**
+     * deploys a new file system and serves shell sessions of it
+     * until the process is terminated
+     * @param args args[1] - port number or Unix domain socket path
+     *             args[2] - name of the properties file
+     *             with the file system parameters
+     */
+    private static void serve(String[] args) {
+        if (args.length < 3) {
+            System.err.println("usage: -server <port|socket path> <properties file>");
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream file = new FileInputStream(args[2])) {
+            properties.load(file);
+        } catch (IOException e) {
+            System.err.println("unable to read file " + args[2]);
+            return;
+        }
+        FileSystem fileSystem = new FileSystem(FileSystemParams.getInstance(properties));
+        try (ShellServer server = new ShellServer(fileSystem,
+                ShellServer.parseAddress(args[1]))) {
+            System.out.println("serving on " + server.getAddress());
+            server.serve();
+        } catch (IOException e) {
+            System.err.println("error: " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,360 @@
+package com.tsushko.spos.fs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Emulates HDD as a raw image file mapped into memory.
+ * <p>
+ * Blocks are read and written in place through one or several
+ * <code>MappedByteBuffer</code> segments, so an image can be mounted
+ * without loading it into the heap. Each segment holds a whole number
+ * of blocks and is at most <code>Integer.MAX_VALUE</code> bytes long,
+ * which allows images larger than 2 GB.
+ * <p>
+ * The image file starts with a header of {@link #HEADER_SIZE} bytes:
+ * <ul>
+ *     <li>{@link #IMAGE_MAGIC}</li>
+ *     <li>{@link #IMAGE_VERSION}</li>
+ *     <li>blockSize</li>
+ *     <li>blocksNumber</li>
+ * </ul>
+ * followed by the contents of all blocks.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+public class MappedFileStorage implements Storage, Closeable {
+
+    /**
+     * log4j2 <code>Logger</code> object for this class
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * identifies an image file
+     */
+    public static final int IMAGE_MAGIC = 0x46534D49;
+
+    /**
+     * current version of the image file format
+     */
+    public static final int IMAGE_VERSION = 1;
+
+    /**
+     * size of the image file header in bytes
+     */
+    public static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    /**
+     * Number of blocks
+     */
+    private final int blocksNumber;
+
+    /**
+     * Size of each block in bytes
+     */
+    private final int blockSize;
+
+    /**
+     * Number of blocks in each mapped segment
+     */
+    private final int blocksPerSegment;
+
+    /**
+     * the image file
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * mapped regions of the image file, each holding
+     * <code>blocksPerSegment</code> blocks (the last one may hold less)
+     */
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * Maps the blocks of an opened image file into memory
+     *
+     * @param file         the image file
+     * @param blocksNumber number of blocks
+     * @param blockSize    size of block in bytes
+     * @throws IOException if the file can't be mapped
+     */
+    private MappedFileStorage(RandomAccessFile file, int blocksNumber, int blockSize)
+            throws IOException {
+        this.file = file;
+        this.blocksNumber = blocksNumber;
+        this.blockSize = blockSize;
+        this.blocksPerSegment = Integer.MAX_VALUE / blockSize;
+
+        int segmentsNumber = blocksNumber / blocksPerSegment
+                + (blocksNumber % blocksPerSegment == 0 ? 0 : 1);
+        segments = new MappedByteBuffer[segmentsNumber];
+        FileChannel channel = file.getChannel();
+        for (int i = 0; i < segmentsNumber; ++i) {
+            int blocksInSegment = Math.min(blocksPerSegment,
+                    blocksNumber - i * blocksPerSegment);
+            long position = HEADER_SIZE + (long) i * blocksPerSegment * blockSize;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    position, (long) blocksInSegment * blockSize);
+        }
+    }
+
+    public int getBlocksNumber() {
+        return blocksNumber;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public byte[] readBlock(int blockNumber) {
+        byte[] block = new byte[blockSize];
+        getBlockView(blockNumber).get(block);
+        return block;
+    }
+
+    public void writeBlock(byte[] data, int blockNumber) {
+        if (data.length != blockSize) {
+            String errorMessage = "Block size mismatch: "
+                    + "expected " + blockSize + ", "
+                    + "actual " + data.length;
+            throw new IllegalArgumentException(errorMessage);
+        }
+        getBlockView(blockNumber).put(data);
+    }
+
+    public void readBlock(int blockNumber, int offset, ByteBuffer dst) {
+        ByteBuffer view = getBlockView(blockNumber);
+        checkRange(offset, dst.remaining());
+        view.position(view.position() + offset);
+        view.limit(view.position() + dst.remaining());
+        dst.put(view);
+    }
+
+    public void writeBlock(ByteBuffer src, int blockNumber, int offset) {
+        ByteBuffer view = getBlockView(blockNumber);
+        checkRange(offset, src.remaining());
+        view.position(view.position() + offset);
+        view.put(src);
+    }
+
+    public void readBlocks(int firstBlockNumber, ByteBuffer dst) {
+        int blocksNumber = checkBlocks(firstBlockNumber, dst.remaining());
+        while (blocksNumber > 0) {
+            ByteBuffer view = getSegmentView(firstBlockNumber, blocksNumber);
+            int blocksInView = view.remaining() / blockSize;
+            int limit = dst.limit();
+            dst.limit(dst.position() + view.remaining());
+            dst.put(view);
+            dst.limit(limit);
+            firstBlockNumber += blocksInView;
+            blocksNumber -= blocksInView;
+        }
+    }
+
+    public void writeBlocks(ByteBuffer src, int firstBlockNumber) {
+        int blocksNumber = checkBlocks(firstBlockNumber, src.remaining());
+        while (blocksNumber > 0) {
+            ByteBuffer view = getSegmentView(firstBlockNumber, blocksNumber);
+            int blocksInView = view.remaining() / blockSize;
+            int limit = src.limit();
+            src.limit(src.position() + view.remaining());
+            view.put(src);
+            src.limit(limit);
+            firstBlockNumber += blocksInView;
+            blocksNumber -= blocksInView;
+        }
+    }
+
+    /**
+     * @param firstBlockNumber the index of the first block
+     * @param length number of bytes in consecutive blocks
+     * @return number of the blocks
+     * @throws IndexOutOfBoundsException if any of the blocks is not in range
+     *         from 0 inclusive to blocksNumber exclusive.
+     * @throws IllegalArgumentException if length is not a multiple of blockSize
+     */
+    private int checkBlocks(int firstBlockNumber, int length) {
+        if (length % blockSize != 0) {
+            String errorMessage = "Length is not a multiple of block size: "
+                    + "block size " + blockSize + ", "
+                    + "length " + length;
+            throw new IllegalArgumentException(errorMessage);
+        }
+        int number = length / blockSize;
+        if (firstBlockNumber < 0 || firstBlockNumber + number > blocksNumber
+                || (number == 0 && firstBlockNumber >= blocksNumber)) {
+            String errorMessage = "Wrong block range: "
+                    + "expected within [0," + blocksNumber + "), "
+                    + "actual [" + firstBlockNumber + ","
+                    + (firstBlockNumber + number) + ")";
+            throw new IndexOutOfBoundsException(errorMessage);
+        }
+        return number;
+    }
+
+    /**
+     * returns a view of consecutive blocks within one mapped segment
+     *
+     * @param firstBlockNumber the index of the first block
+     * @param blocksNumber the maximum number of blocks in the view
+     * @return a buffer sharing content with the mapped segment, which
+     *         remaining bytes are the blocks from the first one up to
+     *         <code>blocksNumber</code> blocks or the end of the segment
+     */
+    private ByteBuffer getSegmentView(int firstBlockNumber, int blocksNumber) {
+        ByteBuffer view = getBlockView(firstBlockNumber);
+        int blocksInSegment = blocksPerSegment - firstBlockNumber % blocksPerSegment;
+        view.limit(view.position() + Math.min(blocksNumber, blocksInSegment) * blockSize);
+        return view;
+    }
+
+    /**
+     * @param offset offset of the first byte in a block
+     * @param length number of bytes
+     * @throws IllegalArgumentException if the bytes don't fit into a block
+     */
+    private void checkRange(int offset, int length) {
+        if (offset < 0 || offset + length > blockSize) {
+            String errorMessage = "Wrong range in block: "
+                    + "expected within [0," + blockSize + "), "
+                    + "actual [" + offset + "," + (offset + length) + ")";
+            throw new IllegalArgumentException(errorMessage);
+        }
+    }
+
+    /**
+     * returns a view of the mapped segment, positioned
+     * at the start of the block with specified number
+     *
+     * @param blockNumber the index of the block
+     * @return a buffer sharing content with the mapped segment,
+     *         which position points to the specified block
+     * @throws IndexOutOfBoundsException if blockNumber is not in range
+     *         from 0 inclusive to blocksNumber exclusive.
+     */
+    private ByteBuffer getBlockView(int blockNumber) {
+        if (blockNumber < 0 || blockNumber >= blocksNumber) {
+            String errorMessage = "Wrong block number: "
+                    + "expected in range [0," + blocksNumber + "), "
+                    + "actual " + blockNumber;
+            throw new IndexOutOfBoundsException(errorMessage);
+        }
+        ByteBuffer view = segments[blockNumber / blocksPerSegment].duplicate();
+        view.position((blockNumber % blocksPerSegment) * blockSize);
+        return view;
+    }
+
+    /**
+     * Forces all changes made to the mapped blocks
+     * to be written to the image file
+     */
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Copies the image file to the specified file
+     *
+     * @param target the file to write a copy of this image to
+     * @throws IOException if any usual I/O error occurs
+     */
+    public void saveToFile(File target) throws IOException {
+        force();
+        FileChannel channel = file.getChannel();
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+            FileChannel targetChannel = fos.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, targetChannel);
+            }
+        }
+    }
+
+    /**
+     * Flushes all changes to the image file and closes it.
+     * The storage can't be used after it's closed.
+     *
+     * @throws IOException if any usual I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        file.close();
+        logger.debug("image file closed");
+    }
+
+    /**
+     * Creates a new image file with specified number of blocks
+     * and block size and maps it into memory. If the file exists,
+     * it is overwritten.
+     *
+     * @param file          the image file to create
+     * @param blocksNumber  number of blocks
+     * @param blockSize     size of block in bytes
+     * @return a new instance of MappedFileStorage with specified parameters
+     * @throws IOException if any usual I/O error occurs
+     */
+    public static MappedFileStorage getStorage(File file, int blocksNumber, int blockSize)
+            throws IOException {
+        if (blocksNumber <= 0 || blockSize <= 0) {
+            throw new IllegalArgumentException("Both blocks number and block size "
+                    + "must be positive");
+        }
+        RandomAccessFile imageFile = new RandomAccessFile(file, "rw");
+        try {
+            imageFile.setLength(0);
+            imageFile.setLength(HEADER_SIZE + (long) blocksNumber * blockSize);
+            imageFile.writeInt(IMAGE_MAGIC);
+            imageFile.writeInt(IMAGE_VERSION);
+            imageFile.writeInt(blockSize);
+            imageFile.writeInt(blocksNumber);
+            return new MappedFileStorage(imageFile, blocksNumber, blockSize);
+        } catch (IOException e) {
+            imageFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing image file and maps it into memory.
+     * No blocks are read until they are accessed.
+     *
+     * @param file the image file
+     * @return a new instance backed by the specified image file
+     * @throws IOException if the file is not an image file
+     *         or if any usual I/O error occurs
+     */
+    public static MappedFileStorage getStorageFromFile(File file) throws IOException {
+        RandomAccessFile imageFile = new RandomAccessFile(file, "rw");
+        try {
+            if (imageFile.length() < HEADER_SIZE
+                    || imageFile.readInt() != IMAGE_MAGIC) {
+                throw new IOException(file + " is not a storage image");
+            }
+            int version = imageFile.readInt();
+            if (version != IMAGE_VERSION) {
+                throw new IOException("Unsupported image version " + version);
+            }
+            int blockSize = imageFile.readInt();
+            int blocksNumber = imageFile.readInt();
+            if (blockSize <= 0 || blocksNumber <= 0 || imageFile.length()
+                    < HEADER_SIZE + (long) blocksNumber * blockSize) {
+                throw new IOException(file + " is corrupted");
+            }
+            return new MappedFileStorage(imageFile, blocksNumber, blockSize);
+        } catch (IOException e) {
+            imageFile.close();
+            throw e;
+        }
+    }
+}
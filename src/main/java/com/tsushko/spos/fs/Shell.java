@@ -9,6 +9,11 @@ import java.util.Scanner;
 /**
  * A command line shell that users will use
  * to communicate with the emulated file system
+ * <p>
+ * Files are opened in a session of the file system of it's own.
+ * A shell either owns it's file system, which it loads and unmounts
+ * itself, or shares it with other shells, in which case the files opened
+ * in the shell are closed on exit and the file system is left mounted.
  *
  * @author Artem Tsushko
  * @version 1.0
@@ -30,6 +35,16 @@ public class Shell {
      */
     private FileSystem fileSystem;
 
+    /**
+     * Indicates whether the file system is shared with other shells
+     */
+    private final boolean shared;
+
+    /**
+     * the session of the file system, in which the files are opened
+     */
+    private FileSystem.Session session;
+
 
     /**
      * takes input and output streams as constructor parameters
@@ -39,18 +54,34 @@ public class Shell {
     public Shell(InputStream in, PrintStream out) {
         this.in = new Scanner(in);
         this.out = out;
+        this.shared = false;
+    }
+
+    /**
+     * constructs a session of the file system shared with other shells,
+     * which can't be loaded or unmounted from the session
+     * @param in the input stream
+     * @param out the output stream
+     * @param fileSystem the shared file system
+     */
+    public Shell(InputStream in, PrintStream out, FileSystem fileSystem) {
+        this.in = new Scanner(in);
+        this.out = out;
+        this.fileSystem = fileSystem;
+        this.session = fileSystem.newSession();
+        this.shared = true;
     }
 
     /**
      * starts the shell and dispatches the commands
-     * until the exit command is met
+     * until the exit command is met or the input ends
      */
     public void run() {
         String command;
         out.println("File System Simulator v1.0");
         do {
             out.print("FS> ");
-            command = in.next();
+            command = in.hasNext() ? in.next() : "exit";
             switch (command) {
                 case "in":
                     load();
@@ -58,12 +89,21 @@ public class Shell {
                 case "sv":
                     save();
                     break;
+                case "bk":
+                    backup();
+                    break;
                 case "cr":
                     create();
                     break;
                 case "de":
                     destroy();
                     break;
+                case "md":
+                    mkdir();
+                    break;
+                case "rm":
+                    rmdir();
+                    break;
                 case "op":
                     open();
                     break;
@@ -82,7 +122,11 @@ public class Shell {
                 case "dr":
                     directory();
                     break;
+                case "st":
+                    statistics();
+                    break;
                 case "exit":
+                    unmount();
                     break;
                 default:
                     out.println("Command not recognized!");
@@ -97,20 +141,44 @@ public class Shell {
      * <ul>
      *     <li>backup - 2nd argument specifies backup file name,
      *         3rd - maximum number of open files</li>
+     *     <li>restore - 2nd argument specifies maximum number of open
+     *         files, the rest of the line - names of the full backup
+     *         and of the backups to apply to it</li>
      *     <li>input - 2nd argument specifies block size,
      *         3rd - blocks number,
      *         4th - iNodes number,
      *         5th - maximum number of open files</li>
      *     <li>properties - 2nd argument specifies the name
      *         of the properties file, that holds all the parameters</li>
+     *     <li>image - 2nd argument specifies image file name,
+     *         3rd - maximum number of open files</li>
+     *     <li>newimage - 2nd argument specifies image file name,
+     *         3rd - block size,
+     *         4th - blocks number,
+     *         5th - iNodes number,
+     *         6th - maximum number of open files</li>
      * </ul>
      */
     private void load() {
+        if (shared) {
+            in.nextLine();
+            out.println("error: the disk is shared and can't be reloaded");
+            return;
+        }
         String command = in.next();
         switch (command) {
             case "backup":
                 loadFromBackup();
                 break;
+            case "restore":
+                loadFromBackupChain();
+                break;
+            case "image":
+                loadFromImage();
+                break;
+            case "newimage":
+                loadNewImage();
+                break;
             case "input":
                 loadFromInput();
                 break;
@@ -148,10 +216,154 @@ public class Shell {
             return;
         }
 
-        fileSystem = new FileSystem(params,storage);
+        unmount();
+        mount(new FileSystem(params,storage));
+        out.println("disk restored");
+    }
+
+    /**
+     * loads the file system from a chain of backups.
+     * The first argument specifies maximum number of open files,
+     * the rest of the line - names of the full backup and of the
+     * differential and incremental backups to apply to it
+     *
+     * @see StorageBackup
+     */
+    private void loadFromBackupChain() {
+        int maxOpenFilesNumber = in.nextInt();
+        String[] fileNames = in.nextLine().trim().split("\\s+");
+        File[] files = new File[fileNames.length];
+        for (int i = 0; i < fileNames.length; ++i) {
+            files[i] = new File(fileNames[i]);
+        }
+        Storage storage;
+        FileSystemParams params;
+        try {
+            storage = StorageBackup.restore(files);
+            params = FileSystemParams.getInstance(storage, maxOpenFilesNumber);
+        } catch (IOException | VersionMismatchException e) {
+            out.println("error: " + e.getMessage());
+            return;
+        }
+
+        unmount();
+        mount(new FileSystem(params,storage));
         out.println("disk restored");
     }
 
+    /**
+     * mounts the file system from an image file, without loading
+     * the image into memory.
+     * The first argument specifies image file name,
+     * the second - maximum number of open files
+     *
+     * @see MappedFileStorage
+     */
+    private void loadFromImage() {
+        String fileName = in.next();
+        int maxOpenFilesNumber = in.nextInt();
+        MappedFileStorage storage;
+        try {
+            storage = MappedFileStorage.getStorageFromFile(new File(fileName));
+        } catch (IOException e) {
+            out.println("error: " + e.getMessage());
+            return;
+        }
+
+        FileSystemParams params;
+        try {
+            params = FileSystemParams.getInstance(storage, maxOpenFilesNumber);
+        } catch (VersionMismatchException e) {
+            out.println("error: " + e.getMessage());
+            closeQuietly(storage);
+            return;
+        }
+
+        unmount();
+        mount(new FileSystem(params,storage));
+        out.println("disk mounted");
+    }
+
+    /**
+     * creates a new image file and deploys a new file system on it.
+     * 1st argument specifies image file name,
+     * 2nd - block size,
+     * 3rd - blocks number,
+     * 4th - iNodes number,
+     * 5th - maximum number of open files.
+     *
+     * @see MappedFileStorage
+     */
+    private void loadNewImage() {
+        String fileName = in.next();
+        int blockSize = in.nextInt();
+        int blocksNumber = in.nextInt();
+        int iNodesNumber = in.nextInt();
+        int maxOpenFilesNumber = in.nextInt();
+        FileSystemParams params;
+        params = FileSystemParams.getInstance(
+                blockSize,
+                blocksNumber,
+                iNodesNumber,
+                maxOpenFilesNumber);
+        MappedFileStorage storage;
+        try {
+            storage = MappedFileStorage.getStorage(
+                    new File(fileName), blocksNumber, blockSize);
+        } catch (IOException e) {
+            out.println("error: " + e.getMessage());
+            return;
+        }
+        unmount();
+        mount(new FileSystem(params,storage,true));
+        out.println("disk initialized");
+    }
+
+    /**
+     * closes the storage, that failed to be mounted,
+     * reporting but not propagating the errors
+     *
+     * @param storage the storage to close
+     */
+    private void closeQuietly(Closeable storage) {
+        try {
+            storage.close();
+        } catch (IOException e) {
+            out.println("error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * unmounts the current file system, if any. The shared file system
+     * is left mounted, only the files opened in this shell are closed.
+     */
+    private void unmount() {
+        if (shared) {
+            session.close();
+            return;
+        }
+        if (fileSystem == null) {
+            return;
+        }
+        try {
+            fileSystem.unmount();
+        } catch (IOException e) {
+            out.println("error: " + e.getMessage());
+        }
+        fileSystem = null;
+        session = null;
+    }
+
+    /**
+     * makes the specified file system the current one
+     *
+     * @param fileSystem the mounted file system
+     */
+    private void mount(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+        this.session = fileSystem.newSession();
+    }
+
     /**
      * loads a new file system. File system parameters are taken from input.
      * 1st argument specifies block size,
@@ -170,7 +382,8 @@ public class Shell {
                 blocksNumber,
                 iNodesNumber,
                 maxOpenFilesNumber);
-        fileSystem = new FileSystem(params);
+        unmount();
+        mount(new FileSystem(params));
         out.println("disk initialized");
     }
 
@@ -185,6 +398,8 @@ public class Shell {
      * <li><code>maxOpenFilesNumber</code> -  maximum number of files
      * that can be opened at the same time, excluding the directory</li>
      * </ul>
+     * and optionally <code>bufferCacheSize</code> - number of blocks
+     * kept in buffer cache.
      */
     private void loadFromProperties() {
         String fileName = in.next();
@@ -197,21 +412,10 @@ public class Shell {
             out.println("error: " + e.getMessage());
             return;
         }
-        int blockSize = Integer.parseInt(
-                properties.getProperty("blockSize"));
-        int blocksNumber = Integer.parseInt(
-                properties.getProperty("blocksNumber"));
-        int iNodesNumber = Integer.parseInt(
-                properties.getProperty("iNodesNumber"));
-        int maxOpenFilesNumber = Integer.parseInt(
-                properties.getProperty("maxOpenFilesNumber"));
         FileSystemParams params;
-        params = FileSystemParams.getInstance(
-                blockSize,
-                blocksNumber,
-                iNodesNumber,
-                maxOpenFilesNumber);
-        fileSystem = new FileSystem(params);
+        params = FileSystemParams.getInstance(properties);
+        unmount();
+        mount(new FileSystem(params));
         out.println("disk initialized");
     }
 
@@ -229,11 +433,44 @@ public class Shell {
         out.println("disk saved");
     }
 
+    /**
+     * saves the blocks of the storage to the specified file.
+     * The 1st argument is the level of the backup: <code>full</code>,
+     * <code>diff</code> for the blocks changed since the last full backup
+     * or <code>incr</code> for the blocks changed since the last backup,
+     * the 2nd one is the file name.
+     */
+    private void backup() {
+        String level = in.next();
+        File file = new File(in.next());
+        StorageBackup.Level backupLevel;
+        switch (level) {
+            case "full":
+                backupLevel = StorageBackup.Level.FULL;
+                break;
+            case "diff":
+                backupLevel = StorageBackup.Level.DIFFERENTIAL;
+                break;
+            case "incr":
+                backupLevel = StorageBackup.Level.INCREMENTAL;
+                break;
+            default:
+                out.println("error: unknown backup level " + level);
+                return;
+        }
+        try {
+            fileSystem.backup(file, backupLevel);
+            out.println("disk backed up");
+        } catch (IOException e) {
+            out.println("error: " + e.getMessage());
+        }
+    }
+
     /**
      * creates a new file.
-     * The next argument is the file's name.
-     * The name's size in bytes should be at most
-     * {@link FileSystemParams#BYTES_PER_FILE_NAME}
+     * The next argument is the file's path.
+     * The size in bytes of each name in the path should be at most
+     * {@link FileSystemParams#maxFileNameLength}
      */
     private void create() {
         String fileName = in.next();
@@ -244,11 +481,49 @@ public class Shell {
             out.println("error: the file with name "
                         + fileName
                         + " already exists.");
-        } catch (ReadWriteException e) {
+        } catch (FileNotFoundException | ReadWriteException
+                 | IllegalArgumentException e) {
             out.println("error: " + e.getMessage());
         }
     }
 
+    /**
+     * creates a new directory.
+     * The next argument is the directory's path.
+     * The size in bytes of each name in the path should be at most
+     * {@link FileSystemParams#maxFileNameLength}
+     */
+    private void mkdir() {
+        String path = in.next();
+        try {
+            fileSystem.mkdir(path);
+            out.println("directory " + path + " created");
+        } catch (FileAlreadyExistsException e) {
+            out.println("error: the file with name "
+                        + path
+                        + " already exists.");
+        } catch (FileNotFoundException | ReadWriteException
+                 | IllegalArgumentException e) {
+            out.println("error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * removes the empty directory with specified path.
+     * The next argument is the directory's path.
+     */
+    private void rmdir() {
+        String path = in.next();
+        try {
+            fileSystem.rmdir(path);
+            out.println("directory " + path + " removed");
+        } catch (FileNotFoundException | IllegalArgumentException e) {
+            out.println("error: " + e.getMessage());
+        } catch (DirectoryNotEmptyException e) {
+            out.println("error: the directory " + path + " is not empty.");
+        }
+    }
+
     /**
      * removes the file with specified name and frees resources
      * The next argument is the file's name.
@@ -262,6 +537,8 @@ public class Shell {
             out.println("error: the file with name "
                     + fileName
                     + " doesn't exist.");
+        } catch (FileBusyException e) {
+            out.println("error: the file " + fileName + " is open.");
         }
 
     }
@@ -274,7 +551,7 @@ public class Shell {
     private void open() {
         String fileName = in.next();
         try {
-            int index = fileSystem.open(fileName);
+            int index = session.open(fileName);
             out.println("file " + fileName + " opened, index=" + index);
         } catch (FileNotFoundException e) {
             out.println("error: the file with name "
@@ -294,7 +571,7 @@ public class Shell {
     private void close() {
         int index = in.nextInt();
         try {
-            fileSystem.close(index);
+            session.close(index);
             out.println("file with index " + index + " closed");
         } catch (FileNotFoundException e) {
             out.println("error: " + e.getMessage());
@@ -310,7 +587,7 @@ public class Shell {
         int index = in.nextInt();
         int count = in.nextInt();
         try {
-            byte[] bytes = fileSystem.read(index,count);
+            byte[] bytes = session.read(index,count);
             out.println(count + " bytes read: " + getBytesString(bytes));
         } catch (ReadWriteException | IllegalArgumentException e) {
             out.println("error: " + e.getMessage());
@@ -348,7 +625,7 @@ public class Shell {
         int count = in.nextInt();
         byte[] bytes = getStringBytes(character,count);
         try {
-            fileSystem.write(index,bytes);
+            session.write(index,bytes);
             out.println(count + " bytes written");
         } catch (ReadWriteException | IllegalArgumentException e) {
             out.println("error: " + e.getMessage());
@@ -383,7 +660,7 @@ public class Shell {
         int index = in.nextInt();
         int pos = in.nextInt();
         try {
-            fileSystem.lseek(index, pos);
+            session.lseek(index, pos);
             out.println("current position is " + pos);
         } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
             out.println("error: " + e.getMessage());
@@ -391,12 +668,35 @@ public class Shell {
     }
 
     /**
-     * list's the files in the directory and their sizes
+     * list's the files in the directory and their sizes.
+     * The rest of the line is the directory's path,
+     * the root directory is listed if it's empty.
      */
     private void directory() {
-        List<String> directory = fileSystem.directory();
-        for (String entry : directory) {
-            out.println(entry);
+        String path = in.nextLine().trim();
+        FileSystem.DirectoryStream directory;
+        try {
+            directory = fileSystem.newDirectoryStream(path, true);
+        } catch (FileNotFoundException e) {
+            out.println("error: " + e.getMessage());
+            return;
+        }
+        while (directory.hasNext()) {
+            out.println(directory.next());
+        }
+    }
+
+    /**
+     * prints the buffer cache statistics
+     */
+    private void statistics() {
+        BufferCache cache = fileSystem.getBufferCache();
+        if (cache == null) {
+            out.println("buffer cache is disabled");
+            return;
         }
+        out.println("buffer cache: " + cache.getCapacity() + " blocks, "
+                + cache.getHits() + " hits, "
+                + cache.getMisses() + " misses");
     }
 }
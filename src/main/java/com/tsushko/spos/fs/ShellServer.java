@@ -0,0 +1,172 @@
+package com.tsushko.spos.fs;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves shell sessions of one mounted file system to many clients
+ * at the same time, over a TCP or a Unix domain socket.
+ * <p>
+ * Each connection gets it's own {@link Shell} running on it's own
+ * virtual thread, so that hundreds of mostly idle sessions don't need
+ * hundreds of platform threads. The sessions share the file system,
+ * but each of them can only use the files it opened.
+ *
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+public class ShellServer implements Closeable {
+
+    /**
+     * log4j2 <code>Logger</code> object for this class
+     */
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * the shared file system
+     */
+    private final FileSystem fileSystem;
+
+    /**
+     * the address the connections are accepted on
+     */
+    private final SocketAddress address;
+
+    /**
+     * the channel accepting the connections
+     */
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * the virtual threads running the sessions
+     */
+    private final ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * connections of the running sessions
+     */
+    private final Set<SocketChannel> clients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param fileSystem the file system to share between the sessions
+     * @param address the address to accept connections on,
+     *                an <code>InetSocketAddress</code> or
+     *                an <code>UnixDomainSocketAddress</code>
+     * @throws IOException if the address can't be bound
+     */
+    public ShellServer(FileSystem fileSystem, SocketAddress address) throws IOException {
+        this.fileSystem = fileSystem;
+        this.serverChannel = ServerSocketChannel.open(
+                address instanceof UnixDomainSocketAddress
+                        ? StandardProtocolFamily.UNIX
+                        : StandardProtocolFamily.INET);
+        try {
+            serverChannel.bind(address);
+            this.address = serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * parses the address to accept connections on
+     *
+     * @param address a port number, to accept connections from
+     *                the local host over TCP, or a path of
+     *                a Unix domain socket
+     * @return the socket address
+     */
+    public static SocketAddress parseAddress(String address) {
+        try {
+            int port = Integer.parseInt(address);
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        } catch (NumberFormatException e) {
+            return UnixDomainSocketAddress.of(address);
+        }
+    }
+
+    /**
+     * @return the address the connections are accepted on
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * accepts connections and starts a session for each of them
+     * until the server is closed
+     *
+     * @throws IOException if a connection fails to be accepted
+     */
+    public void serve() throws IOException {
+        while (true) {
+            final SocketChannel client;
+            try {
+                client = serverChannel.accept();
+            } catch (AsynchronousCloseException e) {
+                return;
+            }
+            clients.add(client);
+            sessions.execute(() -> session(client));
+        }
+    }
+
+    /**
+     * runs a shell over the connection until the client exits
+     * or disconnects
+     *
+     * @param client the connection of the session
+     */
+    private void session(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            if (!serverChannel.isOpen()) {
+                // accepted while the server was being closed
+                return;
+            }
+            PrintStream out = new PrintStream(Channels.newOutputStream(channel), true);
+            new Shell(Channels.newInputStream(channel), out, fileSystem).run();
+            out.flush();
+        } catch (IOException e) {
+            logger.error(e);
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    /**
+     * stops accepting connections, disconnects the clients and waits
+     * for their sessions to end. The file system is left mounted.
+     *
+     * @throws IOException if the channels fail to close
+     */
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        sessions.close();
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+        }
+    }
+}
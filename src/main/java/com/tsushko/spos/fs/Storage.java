@@ -1,5 +1,7 @@
 package com.tsushko.spos.fs;
 
+import java.nio.ByteBuffer;
+
 /**
  * Defines basic operations that every storage device emulator must support
  *
@@ -48,4 +50,85 @@ public interface Storage {
      * @see #getBlockSize()
      */
     void writeBlock(byte[] data, int blockNumber);
+
+    /**
+     * reads <code>dst.remaining()</code> bytes of the block with specified
+     * <code>blockNumber</code>, starting from <code>offset</code> in the block,
+     * into the <code>dst</code> buffer. The position of <code>dst</code>
+     * is advanced by the number of bytes read.
+     *
+     * @param blockNumber the index of block to read
+     * @param offset the offset in the block of the first byte to read
+     * @param dst the buffer to read the bytes into
+     *
+     * @throws IndexOutOfBoundsException if blockNumber is not in range
+     *         from 0 inclusive to blocksNumber-1 exclusive.
+     * @throws IllegalArgumentException if the requested bytes
+     *         don't fit into the block
+     *
+     * @see #getBlocksNumber()
+     * @see #getBlockSize()
+     */
+    void readBlock(int blockNumber, int offset, ByteBuffer dst);
+
+    /**
+     * writes <code>src.remaining()</code> bytes from the <code>src</code>
+     * buffer to the block with specified <code>blockNumber</code>,
+     * starting from <code>offset</code> in the block. The rest of the
+     * block is left intact. The position of <code>src</code> is advanced
+     * by the number of bytes written.
+     *
+     * @param src the buffer holding the bytes to write
+     * @param blockNumber the index of block to write data to
+     * @param offset the offset in the block of the first byte to write
+     *
+     * @throws IndexOutOfBoundsException if blockNumber is not in range
+     *         from 0 inclusive to blocksNumber-1 exclusive.
+     * @throws IllegalArgumentException if the bytes to write
+     *         don't fit into the block
+     *
+     * @see #getBlocksNumber()
+     * @see #getBlockSize()
+     */
+    void writeBlock(ByteBuffer src, int blockNumber, int offset);
+
+    /**
+     * reads <code>dst.remaining()</code> bytes of consecutive blocks,
+     * starting from the block with specified <code>firstBlockNumber</code>,
+     * into the <code>dst</code> buffer in one transfer. The position
+     * of <code>dst</code> is advanced by the number of bytes read.
+     *
+     * @param firstBlockNumber the index of the first block to read
+     * @param dst the buffer to read the blocks into, the number of bytes
+     *            remaining in it must be a multiple of the blockSize
+     *
+     * @throws IndexOutOfBoundsException if any of the blocks is not in range
+     *         from 0 inclusive to blocksNumber-1 exclusive.
+     * @throws IllegalArgumentException if <code>dst.remaining()</code>
+     *         is not a multiple of the blockSize
+     *
+     * @see #getBlocksNumber()
+     * @see #getBlockSize()
+     */
+    void readBlocks(int firstBlockNumber, ByteBuffer dst);
+
+    /**
+     * writes <code>src.remaining()</code> bytes from the <code>src</code>
+     * buffer to consecutive blocks, starting from the block with specified
+     * <code>firstBlockNumber</code>, in one transfer. The position
+     * of <code>src</code> is advanced by the number of bytes written.
+     *
+     * @param src the buffer holding the blocks to write, the number
+     *            of bytes remaining in it must be a multiple of the blockSize
+     * @param firstBlockNumber the index of the first block to write
+     *
+     * @throws IndexOutOfBoundsException if any of the blocks is not in range
+     *         from 0 inclusive to blocksNumber-1 exclusive.
+     * @throws IllegalArgumentException if <code>src.remaining()</code>
+     *         is not a multiple of the blockSize
+     *
+     * @see #getBlocksNumber()
+     * @see #getBlockSize()
+     */
+    void writeBlocks(ByteBuffer src, int firstBlockNumber);
 }
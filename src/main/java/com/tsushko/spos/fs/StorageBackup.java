@@ -0,0 +1,325 @@
+package com.tsushko.spos.fs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * Writes backups of a storage that hold either all of it's blocks
+ * or only the ones changed since a previous backup, and restores
+ * the storage from a chain of them.
+ * <p>
+ * A backup file starts with a header of {@link #HEADER_SIZE} bytes:
+ * <ul>
+ *     <li>{@link #BACKUP_MAGIC}</li>
+ *     <li>{@link #BACKUP_VERSION}</li>
+ *     <li>level of the backup</li>
+ *     <li>blockSize</li>
+ *     <li>blocksNumber</li>
+ *     <li>identifier of the backup</li>
+ *     <li>identifier of the backup this one is applied to,
+ *         0 for a full backup</li>
+ * </ul>
+ * followed by runs of consecutive blocks, each of them being the index
+ * of the first block, the number of blocks and their contents.
+ * The index -1 ends the backup.
+ * <p>
+ * A chain of backups to restore starts with a full backup. A differential
+ * backup in the chain must be based on that full backup, an incremental
+ * one - on the backup right before it.
+ *
+ * @see FileSystem#backup(File, Level)
+ * @author Artem Tsushko
+ * @version 1.0
+ */
+public final class StorageBackup {
+
+    /**
+     * Level of a backup: which blocks it holds
+     */
+    public enum Level {
+
+        /**
+         * all the blocks of the storage
+         */
+        FULL,
+
+        /**
+         * the blocks changed since the last full backup
+         */
+        DIFFERENTIAL,
+
+        /**
+         * the blocks changed since the last backup of any level
+         */
+        INCREMENTAL
+    }
+
+    /**
+     * identifies a backup file
+     */
+    public static final int BACKUP_MAGIC = 0x46534250;
+
+    /**
+     * current version of the backup file format
+     */
+    public static final int BACKUP_VERSION = 1;
+
+    /**
+     * size of the backup file header in bytes
+     */
+    public static final int HEADER_SIZE = 5 * Integer.BYTES + 2 * Long.BYTES;
+
+    /**
+     * size of the header of a run of blocks in bytes
+     */
+    private static final int RUN_HEADER_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * the approximate number of bytes transferred to or from
+     * the backup file at once
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    /**
+     * the header of a backup file
+     */
+    private static class Header {
+        Level level;
+        int blockSize;
+        int blocksNumber;
+        long id;
+        long baseId;
+    }
+
+    private StorageBackup() {
+    }
+
+    /**
+     * writes a backup holding the specified blocks of the storage
+     *
+     * @param storage the storage to back up
+     * @param blocks indexes of the blocks to write
+     * @param level level of the backup
+     * @param id identifier of the backup
+     * @param baseId identifier of the backup this one is applied to
+     * @param file the file to write the backup to
+     * @throws IOException if any usual I/O error occurs
+     */
+    static void write(Storage storage, BitSet blocks, Level level, long id,
+                      long baseId, File file) throws IOException {
+        int blockSize = storage.getBlockSize();
+        int chunkBlocks = Math.max(1, CHUNK_SIZE / blockSize);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + RUN_HEADER_SIZE);
+        ByteBuffer chunk = ByteBuffer.allocate(chunkBlocks * blockSize);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            FileChannel channel = fos.getChannel();
+            header.putInt(BACKUP_MAGIC)
+                  .putInt(BACKUP_VERSION)
+                  .putInt(level.ordinal())
+                  .putInt(blockSize)
+                  .putInt(storage.getBlocksNumber())
+                  .putLong(id)
+                  .putLong(baseId)
+                  .flip();
+            writeFully(channel, header);
+
+            int first = blocks.nextSetBit(0);
+            while (first != -1 && first < storage.getBlocksNumber()) {
+                int end = Math.min(blocks.nextClearBit(first), storage.getBlocksNumber());
+                // runs longer than a chunk are split
+                int count = Math.min(end - first, chunkBlocks);
+                header.clear();
+                header.putInt(first).putInt(count).flip();
+                writeFully(channel, header);
+                chunk.clear().limit(count * blockSize);
+                storage.readBlocks(first, chunk);
+                chunk.flip();
+                writeFully(channel, chunk);
+                first = first + count < end ? first + count : blocks.nextSetBit(end);
+            }
+            header.clear();
+            header.putInt(-1).flip();
+            writeFully(channel, header);
+        }
+    }
+
+    /**
+     * restores a storage from a chain of backups
+     *
+     * @param files the full backup followed by the differential and
+     *              incremental backups to apply to it
+     * @return a new storage holding the blocks of the last backup
+     * @throws IOException if the backups don't form a chain
+     *         or if any usual I/O error occurs
+     */
+    public static InMemoryStorage restore(File... files) throws IOException {
+        if (files.length == 0) {
+            throw new IllegalArgumentException("At least a full backup is needed");
+        }
+        Header header;
+        try (FileInputStream fis = new FileInputStream(files[0])) {
+            header = readHeader(fis.getChannel(), files[0]);
+        }
+        InMemoryStorage storage = InMemoryStorage.getStorage(header.blocksNumber,
+                                                             header.blockSize);
+        restore(storage, files);
+        return storage;
+    }
+
+    /**
+     * applies a chain of backups to the storage
+     *
+     * @param storage the storage to write the blocks to
+     * @param files the full backup followed by the differential and
+     *              incremental backups to apply to it
+     * @throws IOException if the backups don't form a chain, don't match
+     *         the storage or if any usual I/O error occurs
+     */
+    public static void restore(Storage storage, File... files) throws IOException {
+        long fullId = 0;
+        long previousId = 0;
+        for (File file : files) {
+            try (FileInputStream fis = new FileInputStream(file)) {
+                FileChannel channel = fis.getChannel();
+                Header header = readHeader(channel, file);
+                if (header.blockSize != storage.getBlockSize()
+                        || header.blocksNumber != storage.getBlocksNumber()) {
+                    throw new IOException(file + " doesn't match the storage");
+                }
+                switch (header.level) {
+                    case FULL:
+                        fullId = header.id;
+                        break;
+                    case DIFFERENTIAL:
+                        checkBase(file, header, fullId);
+                        break;
+                    case INCREMENTAL:
+                        checkBase(file, header, previousId);
+                        break;
+                }
+                if (fullId == 0) {
+                    throw new IOException("The chain of backups must start "
+                            + "with a full backup, " + file + " is not");
+                }
+                previousId = header.id;
+                readBlocks(channel, storage, file);
+            }
+        }
+    }
+
+    /**
+     * @param file a backup file
+     * @param header the header of the backup
+     * @param expectedBaseId identifier of the backup it must be applied to
+     * @throws IOException if the backup is applied to another backup
+     */
+    private static void checkBase(File file, Header header, long expectedBaseId)
+            throws IOException {
+        if (expectedBaseId == 0 || header.baseId != expectedBaseId) {
+            throw new IOException(file + " is a " + header.level.name().toLowerCase()
+                    + " backup, which doesn't follow the previous backups");
+        }
+    }
+
+    /**
+     * @param channel the channel of a backup file, positioned at the start
+     * @param file the backup file
+     * @return the header of the backup
+     * @throws IOException if the file is not a backup of supported version
+     */
+    private static Header readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(channel, buffer) || buffer.getInt(0) != BACKUP_MAGIC) {
+            throw new IOException(file + " is not a storage backup");
+        }
+        buffer.flip().position(Integer.BYTES);
+        int version = buffer.getInt();
+        if (version != BACKUP_VERSION) {
+            throw new IOException("Unsupported backup version " + version);
+        }
+        int level = buffer.getInt();
+        if (level < 0 || level >= Level.values().length) {
+            throw new IOException(file + " is corrupted");
+        }
+        Header header = new Header();
+        header.level = Level.values()[level];
+        header.blockSize = buffer.getInt();
+        header.blocksNumber = buffer.getInt();
+        header.id = buffer.getLong();
+        header.baseId = buffer.getLong();
+        return header;
+    }
+
+    /**
+     * reads the runs of blocks from the backup and writes them to the storage
+     *
+     * @param channel the channel of a backup file, positioned after the header
+     * @param storage the storage to write the blocks to
+     * @param file the backup file
+     * @throws IOException if the file is corrupted or any usual I/O error occurs
+     */
+    private static void readBlocks(FileChannel channel, Storage storage, File file)
+            throws IOException {
+        int blockSize = storage.getBlockSize();
+        int chunkBlocks = Math.max(1, CHUNK_SIZE / blockSize);
+        ByteBuffer runHeader = ByteBuffer.allocate(RUN_HEADER_SIZE);
+        ByteBuffer chunk = ByteBuffer.allocate(chunkBlocks * blockSize);
+        while (true) {
+            runHeader.clear().limit(Integer.BYTES);
+            if (!readFully(channel, runHeader)) {
+                throw new IOException(file + " is truncated");
+            }
+            int first = runHeader.getInt(0);
+            if (first == -1) {
+                return;
+            }
+            runHeader.limit(RUN_HEADER_SIZE);
+            if (!readFully(channel, runHeader)) {
+                throw new IOException(file + " is truncated");
+            }
+            int count = runHeader.getInt(Integer.BYTES);
+            if (first < 0 || count <= 0 || count > chunkBlocks
+                    || count > storage.getBlocksNumber() - first) {
+                throw new IOException(file + " is corrupted");
+            }
+            chunk.clear().limit(count * blockSize);
+            if (!readFully(channel, chunk)) {
+                throw new IOException(file + " is truncated");
+            }
+            chunk.flip();
+            storage.writeBlocks(chunk, first);
+        }
+    }
+
+    /**
+     * @param channel the channel to write to
+     * @param buffer the bytes to write
+     * @throws IOException if any usual I/O error occurs
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * @param channel the channel to read from
+     * @param buffer the buffer to fill
+     * @return <code>false</code> if the end of the channel was reached
+     *         before the buffer was filled
+     * @throws IOException if any usual I/O error occurs
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
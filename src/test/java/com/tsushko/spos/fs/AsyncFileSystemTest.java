@@ -0,0 +1,104 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests methods of {@link AsyncFileSystem} class.
+ *
+ * @author Artem Tsushko
+ */
+public class AsyncFileSystemTest {
+
+    private FileSystem fs;
+    private AsyncFileSystem async;
+
+    @Before
+    public void setUpFileSystem() {
+        FileSystemParams params = FileSystemParams.getInstance(64, 2048, 32, 16);
+        fs = new FileSystem(params);
+        async = new AsyncFileSystem(fs, 4);
+    }
+
+    @After
+    public void tearDownFileSystem() {
+        async.close();
+    }
+
+    @Test
+    public void testOperationsOnFileAreOrdered() throws Exception {
+        int index = async.create("file")
+                .thenCompose(v -> async.open("file")).get();
+        List<CompletableFuture<Integer>> writes = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            writes.add(async.write(index, new byte[] {(byte) i}));
+        }
+        async.lseek(index, 0);
+        byte[] result = async.read(index, 100).get();
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(1, (int) writes.get(i).get());
+            assertEquals((byte) i, result[i]);
+        }
+        async.close(index).get();
+    }
+
+    @Test
+    public void testOperationsOnDifferentFiles() throws Exception {
+        List<CompletableFuture<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            final String name = "f" + i;
+            final byte[] contents = new byte[1000];
+            Arrays.fill(contents, (byte) i);
+            results.add(async.create(name)
+                    .thenCompose(v -> async.open(name))
+                    .thenCompose(index -> async.write(index, contents)
+                            .thenCompose(count -> async.pread(index, 0, count))
+                            .thenCompose(bytes -> async.close(index)
+                                    .thenApply(v -> bytes))));
+        }
+        for (int i = 0; i < 8; ++i) {
+            byte[] expected = new byte[1000];
+            Arrays.fill(expected, (byte) i);
+            assertArrayEquals(expected, results.get(i).get());
+        }
+        assertEquals(8, async.directory().get().size());
+    }
+
+    @Test
+    public void testFailureCompletesExceptionally() throws Exception {
+        try {
+            async.open("none").get();
+            fail("The file must not be found");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FileNotFoundException);
+        }
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void testClosedFacadeRejectsOperations() throws Exception {
+        async.close();
+        async.create("file").get();
+    }
+
+    @Test
+    public void testClosedFacadeRejectsOperationsOnFile() throws Exception {
+        async.close();
+        // the rejected operation mustn't block the following ones
+        for (int i = 0; i < 2; ++i) {
+            try {
+                async.read(0, 1).get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+
+/**
+ * Tests methods of {@link BlockBitmap} class.
+ *
+ * @author Artem Tsushko
+ */
+public class BlockBitmapTest {
+
+    private FileSystemParams params;
+    private Storage storage;
+    private BlockBitmap bitmap;
+
+    @Before
+    public void setUpBitmap() {
+        // 200 blocks of 16 bytes need 2 bitmap blocks
+        params = FileSystemParams.getInstance(16, 200, 4, 1);
+        storage = InMemoryStorage.getStorage(params.blocksNumber, params.blockSize);
+        bitmap = new BlockBitmap(storage, params);
+    }
+
+    @Test
+    public void testFindFreeIsNextFit() {
+        bitmap.markUsed(0);
+        bitmap.markUsed(1);
+        assertEquals(2, bitmap.findFree());
+        bitmap.markUsed(150);
+        bitmap.markFree(0);
+        assertEquals(151, bitmap.findFree());
+    }
+
+    @Test
+    public void testFindFreeWrapsAround() {
+        for (int i = 0; i < params.blocksNumber; ++i) {
+            bitmap.markUsed(i);
+        }
+        assertEquals(-1, bitmap.findFree());
+        bitmap.markFree(70);
+        assertEquals(70, bitmap.findFree());
+        assertEquals(1, bitmap.getFreeBlocksNumber());
+    }
+
+    @Test
+    public void testFindRun() {
+        for (int i = 0; i < 64; ++i) {
+            bitmap.markUsed(i);
+        }
+        bitmap.markUsed(66);
+        bitmap.markUsed(70);
+        // 64-65, 67-69 and 71-199 are free
+        assertEquals(67, bitmap.findRun(64, 3));
+        assertEquals(71, bitmap.findRun(64, 4));
+        assertEquals(150, bitmap.findRun(150, 2));
+        // the run at the end of the storage is too short
+        assertEquals(71, bitmap.findRun(190, 20));
+        for (int i = 71; i < params.blocksNumber; ++i) {
+            bitmap.markUsed(i);
+        }
+        // the longest run is taken if there is no long enough one
+        assertEquals(67, bitmap.findRun(0, 10));
+        assertTrue(bitmap.allocate(67));
+        assertFalse(bitmap.allocate(67));
+    }
+
+    @Test
+    public void testFindRunSearchesOnlyTheWindow() {
+        // 1000 blocks of 16 bytes need 8 bitmap blocks, the window covers 512 blocks
+        params = FileSystemParams.getInstance(16, 1000, 4, 1);
+        bitmap = new BlockBitmap(InMemoryStorage.getStorage(params.blocksNumber,
+                                                            params.blockSize), params);
+        for (int i = 0; i < params.blocksNumber; ++i) {
+            bitmap.markUsed(i);
+        }
+        for (int i = 700; i < 800; ++i) {
+            bitmap.markFree(i);
+        }
+        // no free blocks in the window, next-fit from the cursor
+        assertEquals(700, bitmap.findRun(0, 10));
+        assertEquals(700, bitmap.findRun(690, 10));
+        // the run at 700 is beyond the window, the shorter one is taken
+        bitmap.markFree(10);
+        bitmap.markFree(11);
+        assertEquals(10, bitmap.findRun(0, 10));
+        // the window wraps around to the beginning of the storage
+        assertEquals(10, bitmap.findRun(900, 10));
+        assertEquals(700, bitmap.findRun(300, 10));
+    }
+
+    @Test
+    public void testFlushAndLoad() {
+        bitmap.markUsed(3);
+        bitmap.markUsed(64);
+        bitmap.markUsed(199);
+        bitmap.flush();
+
+        assertEquals(1 << 3, storage.readBlock(FileSystemParams.BITMAP_BLOCK_INDEX)[0]);
+
+        BlockBitmap loaded = BlockBitmap.load(storage, params);
+        assertTrue(loaded.isUsed(3));
+        assertTrue(loaded.isUsed(64));
+        assertTrue(loaded.isUsed(199));
+        assertFalse(loaded.isUsed(4));
+        assertEquals(params.blocksNumber - 3, loaded.getFreeBlocksNumber());
+    }
+
+    @Test
+    public void testFlushWritesOnlyModifiedBlocks() {
+        bitmap.flush();
+        byte[] garbage = new byte[params.blockSize];
+        garbage[0] = 1;
+        storage.writeBlock(garbage, FileSystemParams.BITMAP_BLOCK_INDEX);
+
+        // block 150 is described by the second bitmap block
+        bitmap.markUsed(150);
+        bitmap.flush();
+        assertArrayEquals(garbage, storage.readBlock(FileSystemParams.BITMAP_BLOCK_INDEX));
+    }
+
+    @Test
+    public void testParallelAllocateTakesDistinctBlocks() throws Exception {
+        final BitSet allocated = new BitSet();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int block = bitmap.allocate(); block != -1; block = bitmap.allocate()) {
+                        synchronized (allocated) {
+                            assertFalse(allocated.get(block));
+                            allocated.set(block);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(params.blocksNumber, allocated.cardinality());
+        assertEquals(0, bitmap.getFreeBlocksNumber());
+    }
+}
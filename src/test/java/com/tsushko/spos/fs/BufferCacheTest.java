@@ -0,0 +1,165 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests methods of {@link BufferCache} class.
+ *
+ * @author Artem Tsushko
+ */
+public class BufferCacheTest {
+
+    private InMemoryStorage storage;
+    private BufferCache cache;
+    static final int TEST_BLOCK_SIZE = 16;
+
+    @Before
+    public void setUpCache() {
+        storage = InMemoryStorage.getStorage(16, TEST_BLOCK_SIZE);
+        byte[] block = new byte[TEST_BLOCK_SIZE];
+        for (int i = 0; i < 16; ++i) {
+            Arrays.fill(block, (byte) i);
+            storage.writeBlock(block, i);
+        }
+        cache = new BufferCache(storage, 2);
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        cache.readBlock(1);
+        cache.readBlock(2);
+        cache.readBlock(1, 4, ByteBuffer.allocate(4));
+        cache.readBlock(3);
+        cache.readBlock(2);
+        assertEquals(1, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testWriteBack() {
+        byte[] expected = new byte[TEST_BLOCK_SIZE];
+        Arrays.fill(expected, (byte) 100);
+        cache.writeBlock(expected, 1);
+        assertArrayEquals(expected, cache.readBlock(1));
+        assertEquals(1, storage.readBlock(1)[0]);
+
+        cache.flush();
+        assertArrayEquals(expected, storage.readBlock(1));
+    }
+
+    @Test
+    public void testEvictionWritesModifiedBlock() {
+        cache.writeBlock(ByteBuffer.wrap(new byte[] {100}), 1, 3);
+        cache.readBlock(2);
+        cache.readBlock(3);
+        byte[] expected = new byte[TEST_BLOCK_SIZE];
+        Arrays.fill(expected, (byte) 1);
+        expected[3] = 100;
+        assertArrayEquals(expected, storage.readBlock(1));
+    }
+
+    @Test
+    public void testPinnedBlockIsNotEvicted() {
+        cache.pin(1);
+        cache.writeBlock(ByteBuffer.wrap(new byte[] {100}), 1, 0);
+        cache.readBlock(2);
+        cache.readBlock(3);
+        cache.readBlock(4);
+        assertEquals(1, storage.readBlock(1)[0]);
+
+        cache.unpin(1);
+        cache.readBlock(5);
+        cache.readBlock(6);
+        assertEquals(100, storage.readBlock(1)[0]);
+    }
+
+    @Test
+    public void testFullBlockWriteIsNotRead() {
+        cache.writeBlock(ByteBuffer.allocate(TEST_BLOCK_SIZE), 1, 0);
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testReadBlocksTakesCachedBlocks() {
+        cache.writeBlock(ByteBuffer.wrap(new byte[] {100}), 2, 0);
+        ByteBuffer buffer = ByteBuffer.allocate(3 * TEST_BLOCK_SIZE);
+        cache.readBlocks(1, buffer);
+        assertEquals(1, buffer.get(0));
+        assertEquals(100, buffer.get(TEST_BLOCK_SIZE));
+        assertEquals(3, buffer.get(2 * TEST_BLOCK_SIZE));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testWriteBlocksUpdatesCachedBlocks() {
+        cache.writeBlock(ByteBuffer.wrap(new byte[] {100}), 2, 0);
+        byte[] blocks = new byte[2 * TEST_BLOCK_SIZE];
+        Arrays.fill(blocks, (byte) 50);
+        cache.writeBlocks(ByteBuffer.wrap(blocks), 2);
+        assertEquals(50, storage.readBlock(2)[0]);
+        assertEquals(50, storage.readBlock(3)[0]);
+        assertEquals(50, cache.readBlock(2)[0]);
+
+        // the cached copy is not written over the new contents later
+        cache.flush();
+        assertEquals(50, storage.readBlock(2)[0]);
+    }
+
+    @Test
+    public void testParallelBlocksThroughSmallCache() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < 4; ++t) {
+                final int thread = t;
+                results.add(executor.submit(() -> {
+                    for (int round = 0; round < 2000; ++round) {
+                        int blockNumber = thread + 4 * (round % 4);
+                        byte value = (byte) round;
+                        if (round % 3 == 0) {
+                            byte[] block = new byte[TEST_BLOCK_SIZE];
+                            Arrays.fill(block, value);
+                            cache.writeBlocks(ByteBuffer.wrap(block), blockNumber);
+                        } else {
+                            for (int i = 0; i < TEST_BLOCK_SIZE; ++i) {
+                                cache.writeBlock(ByteBuffer.wrap(new byte[] {value}),
+                                                 blockNumber, i);
+                            }
+                        }
+                        byte[] expected = new byte[TEST_BLOCK_SIZE];
+                        Arrays.fill(expected, value);
+                        assertArrayEquals(expected, cache.readBlock(blockNumber));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        cache.flush();
+        for (int blockNumber = 0; blockNumber < 16; ++blockNumber) {
+            // the last round writing the block
+            int round = 1996 + blockNumber / 4;
+            assertEquals("block " + blockNumber, (byte) round, storage.readBlock(blockNumber)[0]);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testShouldNotUnpinNotPinnedBlock() {
+        cache.readBlock(1);
+        cache.unpin(1);
+    }
+}
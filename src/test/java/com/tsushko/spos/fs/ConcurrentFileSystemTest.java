@@ -0,0 +1,142 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests calling methods of {@link FileSystem} class from multiple threads.
+ *
+ * @author Artem Tsushko
+ */
+public class ConcurrentFileSystemTest {
+
+    static final int THREADS_NUMBER = 8;
+
+    private FileSystem fs;
+    private ExecutorService executor;
+
+    @Before
+    public void setUpFileSystem() {
+        FileSystemParams params = FileSystemParams.getInstance(64, 2048, 32, 16);
+        fs = new FileSystem(params);
+        executor = Executors.newFixedThreadPool(THREADS_NUMBER);
+    }
+
+    @After
+    public void tearDownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testParallelWritesToDifferentFiles() throws Exception {
+        List<Future<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS_NUMBER; ++i) {
+            final String name = "f" + i;
+            final byte value = (byte) i;
+            results.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    fs.create(name);
+                    int index = fs.open(name);
+                    byte[] chunk = new byte[100];
+                    Arrays.fill(chunk, value);
+                    for (int j = 0; j < 50; ++j) {
+                        fs.write(index, chunk);
+                    }
+                    fs.close(index);
+
+                    index = fs.open(name);
+                    byte[] result = fs.read(index, 50 * chunk.length);
+                    fs.close(index);
+                    return result;
+                }
+            }));
+        }
+
+        for (int i = 0; i < THREADS_NUMBER; ++i) {
+            byte[] expected = new byte[5000];
+            Arrays.fill(expected, (byte) i);
+            assertArrayEquals(expected, results.get(i).get());
+        }
+        assertEquals(THREADS_NUMBER, fs.directory().size());
+    }
+
+    @Test
+    public void testParallelCreateAndDestroy() throws Exception {
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS_NUMBER; ++i) {
+            final String name = "c" + i;
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = 0; j < 100; ++j) {
+                        fs.create(name);
+                        int index = fs.open(name);
+                        fs.write(index, new byte[200]);
+                        fs.close(index);
+                        fs.destroy(name);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        assertTrue(fs.directory().isEmpty());
+    }
+
+    @Test
+    public void testParallelFilesThroughBufferCache() throws Exception {
+        // the cache is smaller than the files, so the blocks are evicted
+        // while the other file is read and written
+        FileSystemParams params = FileSystemParams.getInstance(64, 2048, 32, 16, 8, 0);
+        params = FileSystemParams.getInstance(64, 2048, 32, 16, 8,
+                Journal.getMinBlocksNumber(params));
+        fs = new FileSystem(params);
+        assertNotNull(fs.getBufferCache());
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            final String name = "f" + i;
+            final byte value = (byte) (i + 1);
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    fs.create(name);
+                    int index = fs.open(name);
+                    byte[] chunk = new byte[100];
+                    for (int j = 0; j < 200; ++j) {
+                        Arrays.fill(chunk, (byte) (value + j));
+                        fs.pwrite(index, j % 20 * chunk.length, chunk);
+                        assertArrayEquals(chunk,
+                                fs.pread(index, j % 20 * chunk.length, chunk.length));
+                    }
+                    fs.close(index);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        // the blocks were read through the cache
+        assertTrue(fs.getBufferCache().getMisses() > 0);
+        for (int i = 0; i < 2; ++i) {
+            int index = fs.open("f" + i);
+            byte[] data = fs.read(index, 20 * 100);
+            fs.close(index);
+            for (int j = 0; j < 20; ++j) {
+                // the last round writing the chunk
+                assertEquals((byte) (i + 1 + 180 + j), data[j * 100]);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.tsushko.spos.fs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Passes the calls to another storage counting the reads and the writes.
+ * It may also be set to crash after a limited number of writes,
+ * failing all the writes after that.
+ *
+ * @author Artem Tsushko
+ */
+class CountingStorage implements Storage {
+
+    /**
+     * thrown by the storage when it crashes
+     */
+    static class Crash extends RuntimeException {
+    }
+
+    private final Storage storage;
+    private int writesLeft;
+
+    /**
+     * number of the reads of any kind
+     */
+    int reads;
+
+    /**
+     * number of the reads of consecutive blocks
+     */
+    int transfers;
+
+    /**
+     * number of the writes passed to the storage
+     */
+    int writes;
+
+    /**
+     * whether the storage has crashed
+     */
+    boolean crashed;
+
+    /**
+     * @param storage the storage to pass the calls to
+     */
+    CountingStorage(Storage storage) {
+        this(storage, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param storage the storage to pass the calls to
+     * @param writesLeft number of writes passed before the crash
+     */
+    CountingStorage(Storage storage, int writesLeft) {
+        this.storage = storage;
+        this.writesLeft = writesLeft;
+    }
+
+    private void write() {
+        if (writesLeft-- <= 0) {
+            crashed = true;
+            throw new Crash();
+        }
+        ++writes;
+    }
+
+    public int getBlocksNumber() {
+        return storage.getBlocksNumber();
+    }
+
+    public int getBlockSize() {
+        return storage.getBlockSize();
+    }
+
+    public byte[] readBlock(int blockNumber) {
+        ++reads;
+        return storage.readBlock(blockNumber);
+    }
+
+    public void writeBlock(byte[] data, int blockNumber) {
+        write();
+        storage.writeBlock(data, blockNumber);
+    }
+
+    public void readBlock(int blockNumber, int offset, ByteBuffer dst) {
+        ++reads;
+        storage.readBlock(blockNumber, offset, dst);
+    }
+
+    public void writeBlock(ByteBuffer src, int blockNumber, int offset) {
+        write();
+        storage.writeBlock(src, blockNumber, offset);
+    }
+
+    public void readBlocks(int firstBlockNumber, ByteBuffer dst) {
+        ++reads;
+        ++transfers;
+        storage.readBlocks(firstBlockNumber, dst);
+    }
+
+    public void writeBlocks(ByteBuffer src, int firstBlockNumber) {
+        write();
+        storage.writeBlocks(src, firstBlockNumber);
+    }
+}
@@ -0,0 +1,127 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+/**
+ * Tests the delayed allocation of the blocks written to files.
+ *
+ * @author Artem Tsushko
+ */
+public class DelayedAllocationTest extends FileSystemFixture {
+
+    @Override
+    FileSystemParams getParams() {
+        return FileSystemParams.getInstance(64, 256, 32, 5, 0);
+    }
+
+    private static byte[] bytes(int count, int value) {
+        byte[] bytes = new byte[count];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    @Test
+    public void testInterleavedAppendsAreConsecutive() throws Exception {
+        fs.create("a");
+        fs.create("b");
+        int a = fs.open("a");
+        int b = fs.open("b");
+        for (int i = 0; i < 8; ++i) {
+            fs.write(a, bytes(params.blockSize, 'a'));
+            fs.write(b, bytes(params.blockSize / 2, 'b'));
+            fs.write(b, bytes(params.blockSize / 2, 'b'));
+        }
+        fs.close(a);
+        fs.close(b);
+        fs.unmount();
+
+        CountingStorage counting = new CountingStorage(storage);
+        fs = new FileSystem(FileSystemParams.getInstance(storage, 5, 0), counting);
+        for (String name : new String[] {"a", "b"}) {
+            int index = fs.open(name);
+            int transfers = counting.transfers;
+            byte[] data = fs.read(index, 8 * params.blockSize);
+            // the first block is allocated when the file is created
+            assertEquals(name, 2, counting.transfers - transfers);
+            assertArrayEquals(bytes(data.length, name.charAt(0)), data);
+            fs.close(index);
+        }
+    }
+
+    @Test
+    public void testReadBeforeAllocation() throws Exception {
+        fs.create("a");
+        int a = fs.open("a");
+        fs.write(a, bytes(3 * params.blockSize + 10, 1));
+        fs.lseek(a, 0);
+        assertArrayEquals(bytes(3 * params.blockSize + 10, 1),
+                          fs.read(a, 3 * params.blockSize + 10));
+        byte[] dst = new byte[params.blockSize];
+        fs.pread(a, params.blockSize + 5, dst, 0, dst.length);
+        assertArrayEquals(bytes(params.blockSize, 1), dst);
+        assertEquals(Arrays.asList("a\t" + (3 * params.blockSize + 10) + "B"),
+                     fs.directory());
+    }
+
+    @Test
+    public void testSpaceIsReservedByWrites() throws Exception {
+        fs.create("a");
+        fs.create("b");
+        int a = fs.open("a");
+        int written = 0;
+        try {
+            while (true) {
+                fs.write(a, bytes(params.blockSize, 2));
+                written += params.blockSize;
+            }
+        } catch (ReadWriteException e) {
+            // the free space is reserved for the file
+        }
+        assertTrue(written + params.blockSize < params.maxFileSize);
+        int b = fs.open("b");
+        try {
+            fs.write(b, new byte[params.blockSize + 1]);
+            fail("The space reserved for another file was taken");
+        } catch (ReadWriteException e) {
+            // no free space left
+        }
+        fs.close(b);
+        fs.close(a);
+
+        a = fs.open("a");
+        assertArrayEquals(bytes(written, 2), fs.read(a, written));
+        fs.close(a);
+        fs.destroy("a");
+        // the blocks freed are allocated after the commit
+        fs.sync();
+        b = fs.open("b");
+        fs.write(b, bytes(written, 3));
+        fs.close(b);
+    }
+
+    @Test
+    public void testDestroyOfOpenFileLeaksNoBlocks() throws Exception {
+        fs.unmount();
+        int freeBlocks = BlockBitmap.load(storage, params).getFreeBlocksNumber();
+
+        fs = new FileSystem(params, storage);
+        fs.create("a");
+        int a = fs.open("a");
+        fs.write(a, bytes(4 * params.blockSize, 1));
+        try {
+            fs.destroy("a");
+            fail("An open file was destroyed");
+        } catch (FileBusyException e) {
+            // the delayed blocks are still to be written
+        }
+        fs.write(a, bytes(4 * params.blockSize, 2));
+        fs.close(a);
+        fs.destroy("a");
+        fs.unmount();
+
+        assertEquals(freeBlocks, BlockBitmap.load(storage, params).getFreeBlocksNumber());
+    }
+}
@@ -0,0 +1,69 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests methods of {@link DescriptorTable} class.
+ *
+ * @author Artem Tsushko
+ */
+public class DescriptorTableTest {
+
+    private DescriptorTable<String> table;
+
+    @Before
+    public void setUpTable() {
+        table = new DescriptorTable<>(3);
+    }
+
+    @Test
+    public void testLowestIndexesAreAllocatedFirst() {
+        assertEquals(0, table.add("a"));
+        assertEquals(1, table.add("b"));
+        assertEquals(2, table.add("c"));
+        assertEquals("b", table.get(1));
+    }
+
+    @Test
+    public void testReleasedIndexIsReused() {
+        table.add("a");
+        table.add("b");
+        assertEquals("a", table.remove(0));
+        assertNull(table.get(0));
+        assertNull(table.remove(0));
+        assertEquals(0, table.add("c"));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void testLimit() {
+        table.add("a");
+        table.add("b");
+        table.add("c");
+        assertEquals(-1, table.add("d"));
+
+        table.setLimit(20);
+        for (int i = 3; i < 20; ++i) {
+            assertEquals(i, table.add("x"));
+        }
+        assertEquals(-1, table.add("y"));
+
+        // the entries over a lowered limit are kept
+        table.setLimit(1);
+        assertEquals("x", table.get(19));
+        table.remove(19);
+        assertEquals(-1, table.add("z"));
+    }
+
+    @Test
+    public void testRemoveAll() {
+        table.add("a");
+        table.add("b");
+        table.add("c");
+        table.remove(1);
+        assertEquals(1, table.removeAll(1).size());
+        assertEquals(1, table.size());
+        assertEquals("a", table.get(0));
+    }
+}
@@ -0,0 +1,119 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests the {@link DirectoryIndex} of large directories.
+ *
+ * @author Artem Tsushko
+ */
+public class DirectoryIndexTest {
+
+    @Test
+    public void testLookUpReadsFewBlocks() throws Exception {
+        FileSystemParams params = FileSystemParams.getInstance(512, 4096, 2048, 5, 0);
+        InMemoryStorage device = InMemoryStorage.getStorage(params.blocksNumber,
+                                                           params.blockSize);
+        CountingStorage storage = new CountingStorage(device);
+        FileSystem fs = new FileSystem(params, storage, true);
+        fs.mkdir("d");
+        for (int i = 0; i < 2000; ++i) {
+            fs.create("d/file number " + i);
+        }
+        String listing = fs.directory().get(0);
+        int blocks = Integer.parseInt(listing.substring(3, listing.length() - 1))
+                / params.blockSize;
+        fs.unmount();
+
+        fs = new FileSystem(params, storage);
+        int reads = storage.reads;
+        fs.close(fs.open("d/file number 1234"));
+        // the iNodes, the indirect block and two blocks of the directory
+        assertTrue((storage.reads - reads) + " reads of " + blocks + " blocks",
+                storage.reads - reads < blocks / 8);
+
+        List<String> entries = fs.directory("d");
+        assertEquals(2000, entries.size());
+        Set<String> names = new HashSet<>();
+        for (String entry : entries) {
+            names.add(entry.substring(0, entry.indexOf('\t')));
+        }
+        for (int i = 0; i < 2000; ++i) {
+            assertTrue(names.contains("file number " + i));
+        }
+    }
+
+    @Test
+    public void testDirectoryIsFilledAsUnindexedOne() throws Exception {
+        FileSystemParams params = FileSystemParams.getInstance(64, 4096, 1024, 5);
+        InMemoryStorage storage = InMemoryStorage.getStorage(params.blocksNumber,
+                                                            params.blockSize);
+        FileSystem fs = new FileSystem(params, storage, true);
+        fs.mkdir("d");
+        int created = 0;
+        try {
+            while (true) {
+                fs.create(String.format("d/f%03d", created));
+                ++created;
+            }
+        } catch (ReadWriteException e) {
+            // the directory reached the maximum file size
+        }
+        // records of 4-byte names take 20 bytes, a block holds 3 of them
+        assertEquals(params.maxFileSize / params.blockSize * 3, created);
+
+        fs.unmount();
+        fs = new FileSystem(FileSystemParams.getInstance(storage, 5), storage);
+        assertEquals(created, fs.directory("d").size());
+        for (int i = 0; i < created; ++i) {
+            fs.close(fs.open(String.format("d/f%03d", i)));
+        }
+    }
+
+    @Test
+    public void testTreeGrowsAndShrinks() throws Exception {
+        FileSystemParams params = FileSystemParams.getInstance(64, 2048, 512, 5);
+        InMemoryStorage storage = InMemoryStorage.getStorage(params.blocksNumber,
+                                                            params.blockSize);
+        FileSystem fs = new FileSystem(params, storage, true);
+        fs.mkdir("d");
+        int created = 0;
+        try {
+            while (created < 400) {
+                fs.create("d/f" + created);
+                ++created;
+            }
+        } catch (ReadWriteException e) {
+            // the tree of small blocks is full
+        }
+        assertTrue(created + " files", created > 100);
+
+        fs.unmount();
+        fs = new FileSystem(FileSystemParams.getInstance(storage, 5), storage);
+        assertEquals(created, fs.directory("d").size());
+        for (int i = 0; i < created; i += 2) {
+            fs.destroy("d/f" + i);
+        }
+        for (int i = 1; i < created; i += 2) {
+            fs.close(fs.open("d/f" + i));
+        }
+        for (int i = 0; i < created; i += 2) {
+            try {
+                fs.open("d/f" + i);
+                fail("d/f" + i + " was destroyed");
+            } catch (FileNotFoundException e) {
+                // the file doesn't exist
+            }
+        }
+        for (int i = 1; i < created; i += 2) {
+            fs.destroy("d/f" + i);
+        }
+        assertTrue(fs.directory("d").isEmpty());
+        fs.rmdir("d");
+    }
+}
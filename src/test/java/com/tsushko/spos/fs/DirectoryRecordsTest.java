@@ -0,0 +1,97 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests variable-length directory records of version 4
+ * of file system data format and the entries of older versions.
+ *
+ * @author Artem Tsushko
+ */
+public class DirectoryRecordsTest {
+
+    private FileSystemParams params;
+    private InMemoryStorage storage;
+    private FileSystem fs;
+
+    @Before
+    public void setUpFileSystem() {
+        params = FileSystemParams.getInstance(512, 512, 64, 5);
+        storage = InMemoryStorage.getStorage(params.blocksNumber, params.blockSize);
+        fs = new FileSystem(params, storage, true);
+    }
+
+    @Test
+    public void testLongNames() throws Exception {
+        assertEquals(FileSystemParams.FILE_SYSTEM_VERSION, params.version);
+        String name = "a file with a long name";
+        fs.create(name);
+        fs.create("a file");
+        fs.mkdir("a directory with a long name");
+        fs.create("a directory with a long name/" + name);
+        int index = fs.open(name);
+        fs.write(index, new byte[3]);
+        fs.close(index);
+
+        fs.unmount();
+        fs = new FileSystem(FileSystemParams.getInstance(storage, 5), storage);
+        assertEquals(Arrays.asList(name + "\t3B", "a file\t0B",
+                                   "a directory with a long name/\t512B"),
+                     fs.directory());
+        assertEquals(Collections.singletonList(name + "\t0B"),
+                     fs.directory("a directory with a long name"));
+    }
+
+    @Test
+    public void testLongestName() throws Exception {
+        char[] name = new char[params.maxFileNameLength];
+        Arrays.fill(name, 'n');
+        fs.create(new String(name));
+        fs.close(fs.open(new String(name)));
+        try {
+            fs.create(new String(name) + "n");
+            fail("A name longer than " + params.maxFileNameLength + " bytes was created");
+        } catch (IllegalArgumentException e) {
+            // the name is too long
+        }
+    }
+
+    @Test
+    public void testRemovedRecordsAreMerged() throws Exception {
+        fs.mkdir("d");
+        for (int i = 0; i < 40; ++i) {
+            fs.create("d/file number " + i);
+        }
+        String length = fs.directory().get(0);
+        for (int i = 0; i < 40; ++i) {
+            fs.destroy("d/file number " + i);
+        }
+
+        // the freed records of a block hold a name longer than any of them
+        char[] name = new char[params.maxFileNameLength];
+        Arrays.fill(name, 'n');
+        fs.create("d/" + new String(name));
+        fs.create("d/f");
+        assertEquals(length, fs.directory().get(0));
+        assertEquals(2, fs.directory("d").size());
+    }
+
+    @Test
+    public void testNamesAreCutInOlderVersion() throws Exception {
+        params = FileSystemParams.getInstance(16, 512, 32, 5);
+        assertEquals(2, params.version);
+        storage = InMemoryStorage.getStorage(params.blocksNumber, params.blockSize);
+        fs = new FileSystem(params, storage, true);
+        fs.create("testFile");
+        fs.mkdir("dir");
+        fs.create("dir/file");
+        fs.close(fs.open("test"));
+        fs.close(fs.open("dir/fileName"));
+        fs.destroy("testAnother");
+        assertEquals(Collections.singletonList("dir/\t8B"), fs.directory());
+    }
+}
@@ -0,0 +1,116 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Tests the lazy {@link FileSystem.DirectoryStream} of directory entries.
+ *
+ * @author Artem Tsushko
+ */
+public class DirectoryStreamTest extends FileSystemFixture {
+
+    @Override
+    FileSystemParams getParams() {
+        return FileSystemParams.getInstance(512, 4096, 1024, 5, 0);
+    }
+
+    @Test
+    public void testEntries() throws Exception {
+        fs.mkdir("d");
+        fs.mkdir("d/sub");
+        fs.create("d/file");
+        int index = fs.open("d/file");
+        fs.write(index, new byte[5]);
+        fs.close(index);
+
+        FileSystem.DirectoryStream stream = fs.newDirectoryStream("d", false);
+        DirectoryEntry entry = stream.next();
+        assertEquals("sub", entry.getName());
+        assertTrue(entry.isDirectory());
+        assertEquals(-1, entry.getSize());
+        entry = stream.next();
+        assertEquals("file", entry.getName());
+        assertArrayEquals("file".getBytes("UTF-8"), entry.getNameBytes());
+        assertFalse(entry.isDirectory());
+        assertFalse(stream.hasNext());
+        try {
+            stream.next();
+            fail("The stream has no more entries");
+        } catch (NoSuchElementException e) {
+            // the end of the stream
+        }
+
+        stream = fs.newDirectoryStream("d", true);
+        assertEquals("sub/\t0B", stream.next().toString());
+        assertEquals("file\t5B", stream.next().toString());
+
+        try {
+            fs.newDirectoryStream("d/file", false);
+            fail("d/file is not a directory");
+        } catch (FileNotFoundException e) {
+            // not a directory
+        }
+    }
+
+    @Test
+    public void testIndexedDirectory() throws Exception {
+        fs.mkdir("d");
+        for (int i = 0; i < 300; ++i) {
+            fs.create("d/file number " + i);
+        }
+        Map<String, Integer> names = new HashMap<>();
+        FileSystem.DirectoryStream stream = fs.newDirectoryStream("d", false);
+        while (stream.hasNext()) {
+            DirectoryEntry entry = stream.next();
+            assertTrue(entry.getName() + " was returned twice",
+                       names.put(entry.getName(), entry.getINodeIndex()) == null);
+        }
+        assertEquals(300, names.size());
+        for (int i = 0; i < 300; ++i) {
+            assertTrue(names.containsKey("file number " + i));
+        }
+    }
+
+    @Test
+    public void testStreamEndsWhenDirectoryIsRemoved() throws Exception {
+        fs.mkdir("d");
+        FileSystem.DirectoryStream stream = fs.newDirectoryStream("d", false);
+        fs.rmdir("d");
+        assertFalse(stream.hasNext());
+    }
+
+    @Test
+    public void testSizesAreReadByTableBlocks() throws Exception {
+        fs.mkdir("d");
+        for (int i = 0; i < 20; ++i) {
+            fs.create("d/f" + i);
+            int index = fs.open("d/f" + i);
+            fs.write(index, new byte[i]);
+            fs.close(index);
+        }
+        fs.unmount();
+
+        CountingStorage counting = new CountingStorage(storage);
+        fs = new FileSystem(FileSystemParams.getInstance(storage, 5), counting);
+        FileSystem.DirectoryStream stream = fs.newDirectoryStream("d", false);
+        int reads = counting.reads;
+        stream.hasNext();
+        int withoutSizes = counting.reads - reads;
+
+        stream = fs.newDirectoryStream("d", true);
+        reads = counting.reads;
+        int i = 0;
+        while (stream.hasNext()) {
+            assertEquals(i, stream.next().getSize());
+            ++i;
+        }
+        assertEquals(20, i);
+        // 21 iNodes of 16 bytes are held by a single block of the table
+        assertEquals(withoutSizes + 1, counting.reads - reads);
+    }
+}
@@ -0,0 +1,137 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests nested directories, resolution of paths
+ * and the {@link DentryCache}.
+ *
+ * @author Artem Tsushko
+ */
+public class DirectoryTreeTest extends FileSystemFixture {
+
+    @Override
+    FileSystemParams getParams() {
+        return FileSystemParams.getInstance(64, 512, 32, 5);
+    }
+
+    @Test
+    public void testNestedFiles() throws Exception {
+        fs.mkdir("a");
+        fs.mkdir("/a/b");
+        fs.create("a/b/f");
+        fs.create("a/f");
+        write("a/b/f", "deep");
+        write("/a/f", "flat");
+
+        assertEquals(Collections.singletonList("a/\t64B"), fs.directory());
+        assertEquals(Arrays.asList("b/\t64B", "f\t4B"), fs.directory("a"));
+        assertEquals("deep", read("/a/b/f", 4));
+
+        // the tree is read from the storage when mounted again
+        fs.unmount();
+        fs = new FileSystem(FileSystemParams.getInstance(storage, 5), storage);
+        assertEquals("deep", read("a/b/f", 4));
+        assertEquals("flat", read("a/f", 4));
+    }
+
+    @Test
+    public void testSameNamesInDifferentDirectories() throws Exception {
+        fs.mkdir("a");
+        fs.mkdir("b");
+        fs.create("a/f");
+        fs.create("b/f");
+        write("a/f", "one");
+        write("b/f", "two");
+        fs.destroy("a/f");
+        assertEquals("two", read("b/f", 3));
+        fs.create("a/f");
+        assertEquals("", read("a/f", 0));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testShouldNotCreateInMissingDirectory() throws Exception {
+        fs.create("a/f");
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testShouldNotCreateInFile() throws Exception {
+        fs.create("f");
+        fs.create("f/g");
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testShouldNotOpenDirectory() throws Exception {
+        fs.mkdir("a");
+        fs.open("a");
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testShouldNotDestroyDirectory() throws Exception {
+        fs.mkdir("a");
+        fs.destroy("a");
+    }
+
+    @Test(expected = FileAlreadyExistsException.class)
+    public void testShouldNotCreateFileOverDirectory() throws Exception {
+        fs.mkdir("a");
+        fs.create("/a/");
+    }
+
+    @Test
+    public void testRemoveDirectory() throws Exception {
+        fs.mkdir("a");
+        fs.create("a/f");
+        try {
+            fs.rmdir("a");
+            fail("A directory holding a file was removed");
+        } catch (DirectoryNotEmptyException e) {
+            // the directory is not empty
+        }
+        fs.destroy("a/f");
+        fs.rmdir("a");
+        assertTrue(fs.directory().isEmpty());
+        try {
+            fs.create("a/f");
+            fail("A file was created in a removed directory");
+        } catch (FileNotFoundException e) {
+            // the directory doesn't exist
+        }
+    }
+
+    @Test
+    public void testCachedPathReadsNoDirectories() throws Exception {
+        params = FileSystemParams.getInstance(64, 512, 32, 5, 0);
+        CountingStorage counting = new CountingStorage(storage);
+        fs = new FileSystem(params, counting, true);
+        fs.mkdir("a");
+        fs.mkdir("a/b");
+        fs.create("a/b/f");
+        fs.unmount();
+
+        fs = new FileSystem(params, counting);
+        fs.close(fs.open("a/b/f"));
+        int reads = counting.reads;
+        fs.close(fs.open("a/b/f"));
+        assertEquals(reads, counting.reads);
+    }
+
+    private void write(String path, String text) throws Exception {
+        int index = fs.open(path);
+        fs.write(index, text.getBytes());
+        fs.close(index);
+    }
+
+    private String read(String path, int count) throws Exception {
+        int index = fs.open(path);
+        try {
+            return new String(fs.read(index, count));
+        } finally {
+            fs.close(index);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.tsushko.spos.fs;
+
+import org.junit.Before;
+
+/**
+ * A file system formatted anew on a storage in memory before each test.
+ *
+ * @author Artem Tsushko
+ */
+abstract class FileSystemFixture {
+
+    FileSystemParams params;
+    InMemoryStorage storage;
+    FileSystem fs;
+
+    /**
+     * @return parameters of the file system formatted before each test
+     */
+    abstract FileSystemParams getParams();
+
+    @Before
+    public void setUpFileSystem() {
+        params = getParams();
+        storage = InMemoryStorage.getStorage(params.blocksNumber, params.blockSize);
+        fs = new FileSystem(params, storage, true);
+    }
+}
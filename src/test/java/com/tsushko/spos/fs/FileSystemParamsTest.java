@@ -3,6 +3,8 @@ package com.tsushko.spos.fs;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.util.Properties;
+
 /**
  * Created by artem on 15.05.15.
  */
@@ -15,4 +17,17 @@ public class FileSystemParamsTest {
         assertEquals(fsp.filesBlockIndex,8);
     }
 
+    @Test
+    public void testBufferCacheSizeProperty() {
+        Properties properties = new Properties();
+        properties.setProperty("blockSize", "64");
+        properties.setProperty("blocksNumber", "64");
+        properties.setProperty("iNodesNumber", "24");
+        properties.setProperty("maxOpenFilesNumber", "10");
+        assertEquals(FileSystemParams.DEFAULT_BUFFER_CACHE_SIZE,
+                FileSystemParams.getInstance(properties).bufferCacheSize);
+        properties.setProperty("bufferCacheSize", "0");
+        assertEquals(0, FileSystemParams.getInstance(properties).bufferCacheSize);
+    }
+
 }
@@ -0,0 +1,101 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests methods of {@link FileSystemRegistry} class
+ * and using several file systems at the same time.
+ *
+ * @author Artem Tsushko
+ */
+public class FileSystemRegistryTest {
+
+    private FileSystemParams params;
+    private FileSystemRegistry registry;
+
+    @Before
+    public void setUpRegistry() {
+        params = FileSystemParams.getInstance(64, 256, 8, 4);
+        registry = new FileSystemRegistry();
+    }
+
+    @After
+    public void tearDownRegistry() throws Exception {
+        registry.close();
+    }
+
+    @Test
+    public void testVolumesAreIndependent() throws Exception {
+        FileSystem first = registry.mount("first", params);
+        first.create("file");
+        int index = first.open("file");
+        first.write(index, "first".getBytes());
+        first.close(index);
+
+        FileSystem second = registry.mount("second",
+                FileSystemParams.getInstance(128, 128, 16, 4));
+        assertTrue(second.directory().isEmpty());
+        second.create("file");
+        index = second.open("file");
+        second.write(index, "second!".getBytes());
+        second.close(index);
+
+        assertSame(first, registry.get("first"));
+        assertEquals("file\t5B", first.directory().get(0));
+        assertEquals("file\t7B", second.directory().get(0));
+        index = first.open("file");
+        assertArrayEquals("first".getBytes(), first.read(index, 5));
+    }
+
+    @Test
+    public void testUnmount() throws Exception {
+        registry.mount("volume", params);
+        registry.unmount("volume");
+        assertNull(registry.get("volume"));
+        assertTrue(registry.getNames().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShouldNotMountTwiceUnderOneName() {
+        registry.mount("volume", params);
+        registry.mount("volume", params);
+    }
+
+    @Test
+    public void testParallelVolumes() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 16; ++i) {
+                final String name = "volume" + i;
+                final byte[] data = new byte[1000];
+                data[0] = (byte) i;
+                results.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        FileSystem fs = registry.mount(name, params);
+                        fs.create("file");
+                        int index = fs.open("file");
+                        fs.write(index, data);
+                        fs.lseek(index, 0);
+                        return fs.read(index, data.length);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); ++i) {
+                assertEquals(i, results.get(i).get()[0]);
+            }
+            assertEquals(16, registry.getNames().size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -48,13 +48,13 @@ public class FileSystemTest {
         fs.create("testFile");
         opened = fs.open("testFile");
         byte[] arr = "xyxy".getBytes();
-        fs.write(0, arr);
+        fs.write(opened, arr);
         fs.close(opened);
         opened = fs.open("testFile");
     }
     
     @After
-    public void tearDown() throws FileNotFoundException {
+    public void tearDown() throws FileNotFoundException, FileBusyException {
         fs.close(opened);
         fs.destroy("testFile");
     }
@@ -65,7 +65,7 @@ public class FileSystemTest {
     @Test
     public void testRead() throws Exception {
         System.out.println("read on read write exception");
-        int index = 0;
+        int index = opened;
         int count = 4;
         byte[] expResult = {'x','y','x','y'};
         byte[] result = fs.read(index, count);
@@ -79,7 +79,7 @@ public class FileSystemTest {
     @Test(expected = ReadWriteException.class)
     public void testReadOnReadWriteException() throws Exception {
         System.out.println("read");
-        int index = 0;
+        int index = opened;
         int count = 5;
         byte[] expResult = {'x','y','x','y'};
         byte[] result = fs.read(index, count);
@@ -113,6 +113,16 @@ public class FileSystemTest {
         fs.write(100, src);
     }
 
+    /**
+     * Test of write method, of class FileSystem.
+     * Test on writing to the directory.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteOnDirectory() throws Exception {
+        System.out.println("write");
+        fs.write(0, "xyxy".getBytes());
+    }
+
     /**
      * Test of write method, of class FileSystem.
      * Test on exceeding file size.
@@ -120,8 +130,8 @@ public class FileSystemTest {
     @Test(expected = ReadWriteException.class)
     public void testWriteOnWriteException() throws Exception {
         System.out.println("write");
-        byte[] src = new byte[2048];
-        for (int i = 0; i < 2048;++i)
+        byte[] src = new byte[fsp.maxFileSize + 1];
+        for (int i = 0; i < src.length;++i)
             src[i] = 'x';
         fs.write(opened, src);
     }
@@ -135,7 +145,7 @@ public class FileSystemTest {
     public void testLseek() throws ReadWriteException {
         System.out.println("lseek");
         int pos = 4;
-        fs.read(0, 4);
+        fs.read(opened, 4);
     }
     /**
      * Test of lseek method, of class FileSystem.
@@ -155,7 +165,7 @@ public class FileSystemTest {
     public void testDirectory() {
         System.out.println("directory");
         List<String> expResult = new ArrayList<>();
-        expResult.add("test\t0B");
+        expResult.add("testFile\t4B");
         List<String> result = fs.directory();
         System.out.println(result);
         assertEquals(expResult, result);
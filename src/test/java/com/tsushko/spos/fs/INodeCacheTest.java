@@ -0,0 +1,103 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests methods of {@link INodeCache} class.
+ *
+ * @author Artem Tsushko
+ */
+public class INodeCacheTest {
+
+    private FileSystemParams params;
+    private InMemoryStorage storage;
+    private FileSystem fs;
+    private INodeCache cache;
+
+    @Before
+    public void setUpFileSystem() {
+        params = FileSystemParams.getInstance(64, 64, 24, 5);
+        storage = InMemoryStorage.getStorage(params.blocksNumber, params.blockSize);
+        fs = new FileSystem(params, storage, true);
+        cache = new INodeCache(fs, 2);
+    }
+
+    @Test
+    public void testWriteBack() {
+        FileSystem.INode iNode = cache.get(5);
+        iNode.length = 10;
+        cache.markDirty(iNode);
+        assertEquals(-1, fs.readINodeFromStorage(5).length);
+        assertSame(iNode, cache.get(5));
+
+        cache.flush();
+        assertEquals(10, fs.readINodeFromStorage(5).length);
+    }
+
+    @Test
+    public void testEvictionWritesLeastRecentlyUsed() {
+        FileSystem.INode iNode = cache.get(5);
+        iNode.length = 10;
+        cache.markDirty(iNode);
+        cache.get(6);
+        cache.get(5);
+        cache.get(7);
+
+        // iNode 6 was evicted, iNode 5 is still cached
+        assertEquals(-1, fs.readINodeFromStorage(5).length);
+        cache.get(8);
+        assertEquals(10, fs.readINodeFromStorage(5).length);
+    }
+
+    @Test
+    public void testPinnedINodeIsNotEvicted() {
+        FileSystem.INode iNode = cache.get(5);
+        cache.pin(iNode);
+        iNode.length = 10;
+        cache.markDirty(iNode);
+        cache.get(6);
+        cache.get(7);
+        cache.get(8);
+        assertSame(iNode, cache.get(5));
+        assertEquals(-1, fs.readINodeFromStorage(5).length);
+
+        cache.unpin(iNode);
+        assertEquals(10, fs.readINodeFromStorage(5).length);
+    }
+
+    @Test
+    public void testFreedINodeIsNotWrittenBack() {
+        FileSystem.INode iNode = cache.get(5);
+        iNode.length = 10;
+        cache.markDirty(iNode);
+        cache.free(iNode, fs.new INode(5));
+        cache.markDirty(iNode);
+        cache.flush(iNode);
+        assertNotSame(iNode, cache.get(5));
+
+        cache.flush();
+        assertEquals(-1, fs.readINodeFromStorage(5).length);
+    }
+
+    @Test
+    public void testOpenFileIsNotDestroyed() throws Exception {
+        fs.create("f");
+        int index = fs.open("f");
+        try {
+            fs.destroy("f");
+            fail("An open file was destroyed");
+        } catch (FileBusyException e) {
+            // the file is still open
+        }
+        fs.write(index, new byte[100]);
+        fs.close(index);
+        fs.destroy("f");
+
+        // the iNode freed is not pinned by the file closed
+        fs.create("g");
+        fs.close(fs.open("g"));
+        fs.destroy("g");
+        assertTrue(fs.directory().isEmpty());
+    }
+}
@@ -2,10 +2,14 @@ package com.tsushko.spos.fs;
 
 import org.junit.*;
 import static org.junit.Assert.*;
+import static com.tsushko.spos.fs.StorageAssert.assertSameBlocks;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 
@@ -93,6 +97,83 @@ public class InMemoryStorageTest {
         testStorage.writeBlock(block, testStorage.getBlocksNumber() + 1);
     }
 
+    @Test
+    public void testReadBlockIntoBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(TEST_BLOCK_SIZE + 2);
+        buffer.position(2);
+        buffer.limit(6);
+        testStorage.readBlock(3, 12, buffer);
+        assertEquals(6, buffer.position());
+        byte[] expected = new byte[TEST_BLOCK_SIZE + 2];
+        Arrays.fill(expected, 2, 6, (byte) (3 - 128));
+        assertArrayEquals(expected, buffer.array());
+    }
+
+    @Test
+    public void testWriteBlockFromBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {1, 2, 3, 4});
+        testStorage.writeBlock(buffer, 7, 2);
+        assertFalse(buffer.hasRemaining());
+        byte[] expected = new byte[TEST_BLOCK_SIZE];
+        Arrays.fill(expected, (byte) (7 - 128));
+        System.arraycopy(buffer.array(), 0, expected, 2, 4);
+        assertArrayEquals(expected, testStorage.readBlock(7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShouldNotReadPastBlockEnd() {
+        testStorage.readBlock(0, 1, ByteBuffer.allocate(TEST_BLOCK_SIZE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShouldNotWritePastBlockEnd() {
+        testStorage.writeBlock(ByteBuffer.allocate(2), 0, TEST_BLOCK_SIZE - 1);
+    }
+
+    @Test
+    public void testReadBlocks() {
+        ByteBuffer buffer = ByteBuffer.allocate(3 * TEST_BLOCK_SIZE);
+        testStorage.readBlocks(5, buffer);
+        assertFalse(buffer.hasRemaining());
+        byte[] expected = new byte[3 * TEST_BLOCK_SIZE];
+        for (int i = 0; i < 3; ++i) {
+            Arrays.fill(expected, i * TEST_BLOCK_SIZE, (i + 1) * TEST_BLOCK_SIZE,
+                    (byte) (5 + i - 128));
+        }
+        assertArrayEquals(expected, buffer.array());
+    }
+
+    @Test
+    public void testWriteBlocks() {
+        byte[] blocks = new byte[2 * TEST_BLOCK_SIZE];
+        for (int i = 0; i < blocks.length; ++i) {
+            blocks[i] = (byte) i;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(blocks);
+        testStorage.writeBlocks(buffer, 9);
+        assertFalse(buffer.hasRemaining());
+        assertArrayEquals(Arrays.copyOfRange(blocks, 0, TEST_BLOCK_SIZE),
+                testStorage.readBlock(9));
+        assertArrayEquals(Arrays.copyOfRange(blocks, TEST_BLOCK_SIZE, blocks.length),
+                testStorage.readBlock(10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShouldNotReadPartOfBlocks() {
+        testStorage.readBlocks(0, ByteBuffer.allocate(TEST_BLOCK_SIZE + 1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testShouldNotWriteBlocksPastStorageEnd() {
+        testStorage.writeBlocks(ByteBuffer.allocate(2 * TEST_BLOCK_SIZE),
+                testStorage.getBlocksNumber() - 1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testShouldNotReadBufferFromOversizeBlockNumber() {
+        testStorage.readBlock(testStorage.getBlocksNumber(), 0, ByteBuffer.allocate(1));
+    }
+
     @Rule
     public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
@@ -111,4 +192,25 @@ public class InMemoryStorageTest {
         }
     }
 
+    @Test
+    public void testReadSerializedFile() throws IOException, ClassNotFoundException {
+        File file = temporaryFolder.newFile();
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
+            oos.writeObject(testStorage);
+        }
+        assertSameBlocks(testStorage, InMemoryStorage.getStorageFromFile(file));
+    }
+
+    @Test
+    public void testSavedFileIsImage() throws IOException, ClassNotFoundException {
+        File file = temporaryFolder.newFile();
+        testStorage.saveToFile(file);
+        assertEquals(MappedFileStorage.HEADER_SIZE + 256 * TEST_BLOCK_SIZE, file.length());
+        try (MappedFileStorage image = MappedFileStorage.getStorageFromFile(file)) {
+            assertSameBlocks(testStorage, image);
+            image.writeBlock(new byte[TEST_BLOCK_SIZE], 7);
+        }
+        Storage restoredStorage = InMemoryStorage.getStorageFromFile(file);
+        assertArrayEquals(new byte[TEST_BLOCK_SIZE], restoredStorage.readBlock(7));
+    }
 }
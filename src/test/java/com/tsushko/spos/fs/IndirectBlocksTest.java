@@ -0,0 +1,129 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests addressing of file blocks through indirect blocks
+ * and mounting of file systems in older data format versions.
+ *
+ * @author Artem Tsushko
+ */
+public class IndirectBlocksTest {
+
+    private FileSystemParams params;
+    private InMemoryStorage storage;
+    private FileSystem fs;
+
+    @Before
+    public void setUpFileSystem() {
+        params = FileSystemParams.getInstance(64, 512, 24, 5);
+        storage = InMemoryStorage.getStorage(params.blocksNumber, params.blockSize);
+        fs = new FileSystem(params, storage, true);
+    }
+
+    @Test
+    public void testMaxFileSize() {
+        // 1 direct link, 16 links in single indirect block
+        // and 16 * 16 links through double indirect block
+        assertEquals(273 * 64, params.maxFileSize);
+    }
+
+    @Test
+    public void testWriteAndReadThroughDoubleIndirectBlock() throws Exception {
+        fs.create("big");
+        int index = fs.open("big");
+        byte[] src = new byte[16 * 1024];
+        for (int i = 0; i < src.length; ++i) {
+            src[i] = (byte) (i * 31);
+        }
+        fs.write(index, src);
+        fs.close(index);
+
+        index = fs.open("big");
+        assertArrayEquals(src, fs.read(index, src.length));
+        fs.close(index);
+    }
+
+    @Test
+    public void testUnalignedWriteAndRead() throws Exception {
+        fs.create("big");
+        int index = fs.open("big");
+        byte[] head = new byte[10];
+        byte[] src = new byte[5 * 64 + 30];
+        for (int i = 0; i < src.length; ++i) {
+            src[i] = (byte) i;
+        }
+        fs.write(index, head);
+        fs.write(index, src);
+
+        // overwrite whole blocks in the middle of the file
+        byte[] middle = new byte[2 * 64];
+        Arrays.fill(middle, (byte) 7);
+        fs.lseek(index, 64);
+        fs.write(index, middle);
+        System.arraycopy(middle, 0, src, 64 - head.length, middle.length);
+
+        fs.lseek(index, head.length);
+        assertArrayEquals(src, fs.read(index, src.length));
+        fs.lseek(index, 64);
+        assertArrayEquals(middle, fs.read(index, middle.length));
+    }
+
+    @Test
+    public void testDestroyFreesIndirectBlocks() throws Exception {
+        fs.unmount();
+        BlockBitmap bitmap = BlockBitmap.load(storage, params);
+        int freeBlocks = bitmap.getFreeBlocksNumber();
+
+        fs = new FileSystem(params, storage);
+        fs.create("big");
+        int index = fs.open("big");
+        fs.write(index, new byte[16 * 1024]);
+        fs.close(index);
+        fs.destroy("big");
+        fs.unmount();
+
+        bitmap = BlockBitmap.load(storage, params);
+        assertEquals(freeBlocks, bitmap.getFreeBlocksNumber());
+    }
+
+    @Test
+    public void testMountVersion1() throws Exception {
+        fs.unmount();
+        ByteBuffer version = ByteBuffer.allocate(Integer.BYTES);
+        version.putInt(1).flip();
+        storage.writeBlock(version, FileSystemParams.SUPER_BLOCK_INDEX, 0);
+
+        FileSystemParams v1Params = FileSystemParams.getInstance(storage, 5);
+        assertEquals(1, v1Params.version);
+        assertEquals(FileSystemParams.INODE_BLOCK_LINKS_NUMBER * 64,
+                v1Params.maxFileSize);
+
+        fs = new FileSystem(v1Params, storage);
+        fs.create("old");
+        int index = fs.open("old");
+        byte[] src = new byte[v1Params.maxFileSize];
+        fs.write(index, src);
+        try {
+            fs.write(index, new byte[1]);
+            fail("Max file size of version 1 was exceeded");
+        } catch (ReadWriteException e) {
+            // expected
+        }
+        fs.lseek(index, 0);
+        assertArrayEquals(src, fs.read(index, src.length));
+    }
+
+    @Test(expected = VersionMismatchException.class)
+    public void testShouldNotMountUnknownVersion() throws Exception {
+        fs.unmount();
+        ByteBuffer version = ByteBuffer.allocate(Integer.BYTES);
+        version.putInt(FileSystemParams.FILE_SYSTEM_VERSION + 1).flip();
+        storage.writeBlock(version, FileSystemParams.SUPER_BLOCK_INDEX, 0);
+        FileSystemParams.getInstance(storage, 5);
+    }
+}
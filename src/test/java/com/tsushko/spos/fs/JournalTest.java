@@ -0,0 +1,288 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the metadata {@link Journal}: the file system is crashed after
+ * every write to the storage in turn, and must be consistent when
+ * it's mounted again.
+ *
+ * @author Artem Tsushko
+ */
+public class JournalTest {
+
+    @Test
+    public void testCrashWithoutCache() throws Exception {
+        FileSystemParams params = FileSystemParams.getInstance(64, 512, 32, 5);
+        testCrashes(FileSystemParams.getInstance(64, 512, 32, 5, 0,
+                Journal.getMinBlocksNumber(params)));
+    }
+
+    @Test
+    public void testCrashWithCache() throws Exception {
+        testCrashes(FileSystemParams.getInstance(64, 512, 32, 5, 8, 64));
+    }
+
+    @Test
+    public void testCreatesAreCommittedTogether() throws Exception {
+        int journaled = countWritesOfCreates(
+                FileSystemParams.getInstance(64, 512, 32, 5, 0, 64));
+        int plain = countWritesOfCreates(
+                FileSystemParams.getInstance(64, 512, 32, 5, 0));
+        assertTrue(journaled + " writes with journal, " + plain + " without",
+                journaled < plain);
+    }
+
+    @Test
+    public void testFreedBlocksAreReused() throws Exception {
+        FileSystemParams params = FileSystemParams.getInstance(64, 4096, 32, 5,
+                FileSystemParams.DEFAULT_BUFFER_CACHE_SIZE, 128);
+        FileSystem fs = new FileSystem(params);
+        // each round frees more blocks than the running transaction modifies
+        for (int i = 0; i < 500; ++i) {
+            fs.create("f");
+            int index = fs.open("f");
+            fs.write(index, new byte[2560]);
+            fs.close(index);
+            fs.destroy("f");
+        }
+    }
+
+    @Test
+    public void testParallelUpdatesFitIntoTransaction() throws Exception {
+        final Journal journal = newJournal();
+        final CountDownLatch started = new CountDownLatch(8);
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < 8; ++i) {
+                final int firstBlock = 100 + i * Journal.MAX_BLOCKS_PER_UPDATE;
+                results.add(executor.submit(() -> {
+                    journal.begin();
+                    try {
+                        started.countDown();
+                        go.await();
+                        for (int j = 0; j < Journal.MAX_BLOCKS_PER_UPDATE; ++j) {
+                            journal.writeBlock(new byte[64], firstBlock + j);
+                        }
+                    } finally {
+                        journal.end();
+                    }
+                    return null;
+                }));
+            }
+            // the updates that don't fit wait for the running ones to end
+            assertFalse(started.await(1, TimeUnit.SECONDS));
+            go.countDown();
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        journal.commit();
+    }
+
+    @Test
+    public void testJournalIsKeptInSuperblock() throws Exception {
+        FileSystemParams params = FileSystemParams.getInstance(64, 512, 32, 5, 0, 64);
+        InMemoryStorage storage = InMemoryStorage.getStorage(512, 64);
+        new FileSystem(params, storage, true).unmount();
+        FileSystemParams mounted = FileSystemParams.getInstance(storage, 5);
+        assertEquals(FileSystemParams.FILE_SYSTEM_VERSION, mounted.version);
+        assertEquals(64, mounted.journalBlocks);
+        assertEquals(params.filesBlockIndex, mounted.filesBlockIndex);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testWriteOfWrongBlock() {
+        newJournal().writeBlock(new byte[64], 512);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteOutOfBlock() {
+        newJournal().writeBlock(ByteBuffer.allocate(8), 3, 60);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReadOutOfImage() {
+        Journal journal = newJournal();
+        journal.writeBlock(new byte[64], 3);
+        journal.readBlock(3, 60, ByteBuffer.allocate(8));
+    }
+
+    @Test
+    public void testPartialBlocksAreNotWritten() {
+        Journal journal = newJournal();
+        try {
+            journal.writeBlocks(ByteBuffer.allocate(100), 3);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertArrayEquals(new byte[64], journal.readBlock(3));
+        }
+        try {
+            journal.writeBlocks(ByteBuffer.allocate(128), 511);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            assertArrayEquals(new byte[64], journal.readBlock(511));
+        }
+    }
+
+    /**
+     * @return the journal of a formatted storage with 64 journal blocks
+     */
+    private Journal newJournal() {
+        FileSystemParams params = FileSystemParams.getInstance(64, 512, 32, 5, 0, 64);
+        InMemoryStorage storage = InMemoryStorage.getStorage(512, 64);
+        Journal journal = new Journal(storage, params);
+        journal.reset();
+        return journal;
+    }
+
+    /**
+     * creates files without committing them, then commits
+     *
+     * @return number of writes to the storage
+     */
+    private int countWritesOfCreates(FileSystemParams params) throws Exception {
+        InMemoryStorage device = InMemoryStorage.getStorage(512, 64);
+        new FileSystem(params, device, true).unmount();
+        CountingStorage storage = new CountingStorage(device, Integer.MAX_VALUE);
+        FileSystem fs = new FileSystem(params, storage);
+        for (int i = 0; i < 10; ++i) {
+            fs.create("f" + i);
+        }
+        if (params.journalBlocks > 0) {
+            assertEquals(0, storage.writes);
+        }
+        fs.sync();
+        return storage.writes;
+    }
+
+    /**
+     * runs the workload crashing after each write to the storage in turn
+     * and checks the file system after each crash
+     */
+    private void testCrashes(FileSystemParams params) throws Exception {
+        int writes = runUntilCrash(params, Integer.MAX_VALUE);
+        for (int crashAfter = 0; crashAfter < writes; ++crashAfter) {
+            runUntilCrash(params, crashAfter);
+        }
+    }
+
+    /**
+     * @return number of writes to the storage before the crash
+     */
+    private int runUntilCrash(FileSystemParams params, int crashAfter) throws Exception {
+        InMemoryStorage device = InMemoryStorage.getStorage(params.blocksNumber,
+                                                           params.blockSize);
+        new FileSystem(params, device, true).unmount();
+        CountingStorage storage = new CountingStorage(device, crashAfter);
+        try {
+            runWorkload(new FileSystem(params, storage));
+        } catch (RuntimeException e) {
+            if (!storage.crashed) {
+                throw e;
+            }
+        }
+        checkConsistency(device);
+        return storage.writes;
+    }
+
+    private void runWorkload(FileSystem fs) throws Exception {
+        for (int i = 0; i < 6; ++i) {
+            fs.create("f" + i);
+        }
+        for (int i = 0; i < 6; ++i) {
+            int index = fs.open("f" + i);
+            fs.write(index, new byte[i * 300]);
+            fs.close(index);
+        }
+        fs.destroy("f1");
+        fs.destroy("f4");
+        fs.create("g1");
+        int index = fs.open("g1");
+        fs.write(index, new byte[2000]);
+        fs.close(index);
+        fs.sync();
+        fs.destroy("f5");
+        fs.create("g2");
+        fs.sync();
+    }
+
+    /**
+     * mounts the file system, replaying the journal, and checks that
+     * each used block belongs either to the metadata or to exactly one
+     * file, and that each used iNode has a directory entry
+     */
+    private void checkConsistency(Storage device) throws Exception {
+        FileSystemParams params = FileSystemParams.getInstance(device, 5, 0);
+        FileSystem fs = new FileSystem(params, device);
+        BlockBitmap bitmap = BlockBitmap.load(device, params);
+
+        BitSet referenced = new BitSet();
+        referenced.set(0, params.filesBlockIndex);
+        int usedINodes = 0;
+        for (int i = 0; i < params.iNodesNumber; ++i) {
+            FileSystem.INode iNode = fs.readINodeFromStorage(i);
+            if (iNode.length == -1) {
+                continue;
+            }
+            ++usedINodes;
+            for (int link = 0; link < iNode.blockIndexes.length; ++link) {
+                int depth = Math.max(0, link - params.directBlockLinksNumber + 1);
+                reference(device, bitmap, referenced, iNode.blockIndexes[link], depth);
+            }
+        }
+        assertEquals("Leaked blocks",
+                params.blocksNumber - referenced.cardinality(),
+                bitmap.getFreeBlocksNumber());
+
+        List<String> entries = fs.directory();
+        assertEquals(usedINodes - 1, entries.size());
+        for (String entry : entries) {
+            String[] fields = entry.split("\t");
+            int length = Integer.parseInt(fields[1].substring(0, fields[1].length() - 1));
+            assertTrue(entry, length >= 0);
+            int index = fs.open(fields[0]);
+            assertEquals(length, fs.read(index, length).length);
+            fs.close(index);
+        }
+    }
+
+    /**
+     * marks the block and the blocks it links to as referenced
+     *
+     * @param depth 0 for a block of a file, 1 for a single indirect block,
+     *              2 for a double indirect block
+     */
+    private void reference(Storage device, BlockBitmap bitmap, BitSet referenced,
+                           int blockIndex, int depth) {
+        if (blockIndex == -1) {
+            return;
+        }
+        assertFalse("Block " + blockIndex + " is referenced twice",
+                referenced.get(blockIndex));
+        assertTrue("Block " + blockIndex + " is referenced, but free",
+                bitmap.isUsed(blockIndex));
+        referenced.set(blockIndex);
+        if (depth > 0) {
+            ByteBuffer links = ByteBuffer.wrap(device.readBlock(blockIndex));
+            while (links.hasRemaining()) {
+                reference(device, bitmap, referenced, links.getInt(), depth - 1);
+            }
+        }
+    }
+}
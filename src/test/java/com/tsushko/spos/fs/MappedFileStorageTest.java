@@ -0,0 +1,208 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Tests methods of {@link MappedFileStorage} class.
+ *
+ * @author Artem Tsushko
+ */
+public class MappedFileStorageTest {
+
+    private MappedFileStorage testStorage;
+    private File imageFile;
+    static final int TEST_BLOCK_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUpExampleStorage() throws IOException {
+        imageFile = temporaryFolder.newFile();
+        testStorage = MappedFileStorage.getStorage(imageFile, 256, TEST_BLOCK_SIZE);
+        byte[] block = new byte[TEST_BLOCK_SIZE];
+        for (int i = 0; i < 256; ++i) {
+            Arrays.fill(block, (byte) (i - 128));
+            testStorage.writeBlock(block,i);
+        }
+    }
+
+    @After
+    public void closeExampleStorage() throws IOException {
+        testStorage.close();
+    }
+
+    @Test
+    public void testReadBlock() {
+        byte[] expected = new byte[TEST_BLOCK_SIZE];
+        byte[] actual;
+        for (int i = 0; i < 256; ++i) {
+            Arrays.fill(expected, (byte) (i - 128));
+            actual = testStorage.readBlock(i);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testShouldNotReadFromNegativeBlockNumber() {
+        testStorage.readBlock(-1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testShouldNotReadFromOversizeBlockNumber() {
+        testStorage.readBlock(testStorage.getBlocksNumber());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShouldNotWriteTooShortBlock() {
+        byte[] block = new byte[TEST_BLOCK_SIZE - 1];
+        testStorage.writeBlock(block, 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testShouldNotWriteToOversizeBlockNumber() {
+        byte[] block = new byte[TEST_BLOCK_SIZE];
+        testStorage.writeBlock(block, testStorage.getBlocksNumber());
+    }
+
+    @Test
+    public void testReadBlockIntoBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(TEST_BLOCK_SIZE + 2);
+        buffer.position(2);
+        buffer.limit(6);
+        testStorage.readBlock(3, 12, buffer);
+        assertEquals(6, buffer.position());
+        byte[] expected = new byte[TEST_BLOCK_SIZE + 2];
+        Arrays.fill(expected, 2, 6, (byte) (3 - 128));
+        assertArrayEquals(expected, buffer.array());
+    }
+
+    @Test
+    public void testWriteBlockFromBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {1, 2, 3, 4});
+        testStorage.writeBlock(buffer, 7, 2);
+        assertFalse(buffer.hasRemaining());
+        byte[] expected = new byte[TEST_BLOCK_SIZE];
+        Arrays.fill(expected, (byte) (7 - 128));
+        System.arraycopy(buffer.array(), 0, expected, 2, 4);
+        assertArrayEquals(expected, testStorage.readBlock(7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShouldNotReadPastBlockEnd() {
+        testStorage.readBlock(0, 1, ByteBuffer.allocate(TEST_BLOCK_SIZE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShouldNotWritePastBlockEnd() {
+        testStorage.writeBlock(ByteBuffer.allocate(2), 0, TEST_BLOCK_SIZE - 1);
+    }
+
+    @Test
+    public void testReadBlocks() {
+        ByteBuffer buffer = ByteBuffer.allocate(3 * TEST_BLOCK_SIZE);
+        testStorage.readBlocks(5, buffer);
+        assertFalse(buffer.hasRemaining());
+        byte[] expected = new byte[3 * TEST_BLOCK_SIZE];
+        for (int i = 0; i < 3; ++i) {
+            Arrays.fill(expected, i * TEST_BLOCK_SIZE, (i + 1) * TEST_BLOCK_SIZE,
+                    (byte) (5 + i - 128));
+        }
+        assertArrayEquals(expected, buffer.array());
+    }
+
+    @Test
+    public void testWriteBlocks() {
+        byte[] blocks = new byte[2 * TEST_BLOCK_SIZE];
+        for (int i = 0; i < blocks.length; ++i) {
+            blocks[i] = (byte) i;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(blocks);
+        testStorage.writeBlocks(buffer, 9);
+        assertFalse(buffer.hasRemaining());
+        assertArrayEquals(Arrays.copyOfRange(blocks, 0, TEST_BLOCK_SIZE),
+                testStorage.readBlock(9));
+        assertArrayEquals(Arrays.copyOfRange(blocks, TEST_BLOCK_SIZE, blocks.length),
+                testStorage.readBlock(10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShouldNotReadPartOfBlocks() {
+        testStorage.readBlocks(0, ByteBuffer.allocate(TEST_BLOCK_SIZE + 1));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testShouldNotWriteBlocksPastStorageEnd() {
+        testStorage.writeBlocks(ByteBuffer.allocate(2 * TEST_BLOCK_SIZE),
+                testStorage.getBlocksNumber() - 1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testShouldNotReadBufferFromOversizeBlockNumber() {
+        testStorage.readBlock(testStorage.getBlocksNumber(), 0, ByteBuffer.allocate(1));
+    }
+
+    @Test
+    public void testReopenImage() throws IOException {
+        testStorage.close();
+        testStorage = MappedFileStorage.getStorageFromFile(imageFile);
+        assertEquals(256, testStorage.getBlocksNumber());
+        assertEquals(TEST_BLOCK_SIZE, testStorage.getBlockSize());
+        byte[] expected = new byte[TEST_BLOCK_SIZE];
+        for (int i = 0; i < 256; ++i) {
+            Arrays.fill(expected, (byte) (i - 128));
+            assertArrayEquals(expected, testStorage.readBlock(i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testShouldNotOpenForeignFile() throws IOException {
+        File file = temporaryFolder.newFile();
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
+            oos.writeObject(InMemoryStorage.getStorage(4, TEST_BLOCK_SIZE));
+        }
+        MappedFileStorage.getStorageFromFile(file);
+    }
+
+    @Test
+    public void testSaveToFile() throws IOException {
+        File file = temporaryFolder.newFile();
+        testStorage.saveToFile(file);
+        MappedFileStorage restoredStorage = MappedFileStorage.getStorageFromFile(file);
+        byte[] expected = new byte[TEST_BLOCK_SIZE];
+        for (int i = 0; i < 256; ++i) {
+            Arrays.fill(expected, (byte) (i - 128));
+            assertArrayEquals(expected, restoredStorage.readBlock(i));
+        }
+        restoredStorage.close();
+    }
+
+    @Test
+    public void testMountFileSystem() throws Exception {
+        File file = temporaryFolder.newFile();
+        FileSystemParams params = FileSystemParams.getInstance(64, 64, 24, 5);
+        FileSystem fileSystem = new FileSystem(params,
+                MappedFileStorage.getStorage(file, 64, 64), true);
+        fileSystem.create("abc");
+        int index = fileSystem.open("abc");
+        fileSystem.write(index, "xyz".getBytes());
+        fileSystem.unmount();
+
+        MappedFileStorage storage = MappedFileStorage.getStorageFromFile(file);
+        fileSystem = new FileSystem(FileSystemParams.getInstance(storage, 5), storage);
+        index = fileSystem.open("abc");
+        assertArrayEquals("xyz".getBytes(), fileSystem.read(index, 3));
+        fileSystem.unmount();
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests positional reads and writes and reads into a caller supplied
+ * array of {@link FileSystem} class.
+ *
+ * @author Artem Tsushko
+ */
+public class PositionalIOTest {
+
+    private FileSystemParams params;
+    private FileSystem fs;
+    private int index;
+    private byte[] contents;
+
+    @Before
+    public void setUpFile() throws Exception {
+        params = FileSystemParams.getInstance(64, 512, 24, 5);
+        fs = new FileSystem(params);
+        fs.create("file");
+        index = fs.open("file");
+        contents = new byte[10 * params.blockSize + 10];
+        for (int i = 0; i < contents.length; ++i) {
+            contents[i] = (byte) i;
+        }
+        fs.write(index, contents);
+    }
+
+    @Test
+    public void testPreadDoesNotMoveCursor() throws Exception {
+        fs.lseek(index, 5);
+        assertArrayEquals(Arrays.copyOfRange(contents, 60, 260),
+                fs.pread(index, 60, 200));
+        assertArrayEquals(Arrays.copyOfRange(contents, 5, 15), fs.read(index, 10));
+    }
+
+    @Test
+    public void testPreadSeesBufferedChanges() throws Exception {
+        fs.lseek(index, params.blockSize + 1);
+        fs.write(index, new byte[] {100, 101});
+        contents[params.blockSize + 1] = 100;
+        contents[params.blockSize + 2] = 101;
+        assertArrayEquals(contents, fs.pread(index, 0, contents.length));
+    }
+
+    @Test
+    public void testPwriteDoesNotMoveCursor() throws Exception {
+        fs.lseek(index, 3);
+        fs.pwrite(index, contents.length - 2, new byte[] {100, 101, 102});
+        assertArrayEquals(Arrays.copyOfRange(contents, 3, 6), fs.read(index, 3));
+        assertArrayEquals(new byte[] {100, 101, 102},
+                fs.pread(index, contents.length - 2, 3));
+    }
+
+    @Test(expected = ReadWriteException.class)
+    public void testPreadBeyondEndOfFile() throws Exception {
+        fs.pread(index, contents.length - 1, 2);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testPwriteBeyondEndOfFile() throws Exception {
+        fs.pwrite(index, contents.length + 1, new byte[1]);
+    }
+
+    @Test
+    public void testReadIntoArray() throws Exception {
+        fs.lseek(index, 0);
+        byte[] dst = new byte[contents.length + 4];
+        fs.read(index, dst, 2, contents.length);
+        assertArrayEquals(contents, Arrays.copyOfRange(dst, 2, contents.length + 2));
+        assertEquals(0, dst[dst.length - 1]);
+    }
+
+    @Test
+    public void testParallelPreads() throws Exception {
+        fs.close(index);
+        index = fs.open("file");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                final int seed = i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        byte[] dst = new byte[100];
+                        for (int j = 0; j < 200; ++j) {
+                            int position = (seed * 997 + j * 131) % (contents.length - 100);
+                            fs.pread(index, position, dst, 0, 100);
+                            if (!Arrays.equals(Arrays.copyOfRange(contents,
+                                    position, position + 100), dst)) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
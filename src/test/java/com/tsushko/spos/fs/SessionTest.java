@@ -0,0 +1,96 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests file descriptors of {@link FileSystem.Session} class.
+ *
+ * @author Artem Tsushko
+ */
+public class SessionTest {
+
+    private FileSystem fs;
+    private FileSystem.Session first;
+    private FileSystem.Session second;
+
+    @Before
+    public void setUpFileSystem() throws Exception {
+        fs = new FileSystem(FileSystemParams.getInstance(64, 512, 24, 2));
+        fs.create("file");
+        first = fs.newSession();
+        second = fs.newSession();
+    }
+
+    @Test
+    public void testSessionsHaveOwnDescriptors() throws Exception {
+        int index = first.open("file");
+        assertEquals(index, second.open("file"));
+        first.close(index);
+        try {
+            first.read(index, 0);
+            fail("The descriptor must be closed");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        second.write(index, new byte[] {1, 2, 3});
+    }
+
+    @Test
+    public void testDescriptorsShareFileButNotPosition() throws Exception {
+        int writer = first.open("file");
+        int reader = second.open("file");
+        first.write(writer, new byte[] {1, 2, 3});
+        second.lseek(reader, 1);
+
+        // the buffered data is seen through the other descriptor
+        assertArrayEquals(new byte[] {2, 3}, second.read(reader, 2));
+        first.write(writer, new byte[] {4});
+        assertArrayEquals(new byte[] {4}, second.read(reader, 1));
+
+        // the file remains open until it's last descriptor is closed
+        first.close(writer);
+        second.lseek(reader, 0);
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, second.read(reader, 4));
+        second.close(reader);
+
+        int index = fs.open("file");
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, fs.read(index, 4));
+    }
+
+    @Test
+    public void testRaiseLimitAtRuntime() throws Exception {
+        first.open("file");
+        first.open("file");
+        try {
+            first.open("file");
+            fail("The limit must be reached");
+        } catch (OpenFilesNumberException e) {
+            // expected
+        }
+
+        // the limit is per session
+        second.open("file");
+
+        first.setMaxOpenFiles(10);
+        for (int i = 0; i < 8; ++i) {
+            first.open("file");
+        }
+        assertEquals(10, first.getMaxOpenFiles());
+    }
+
+    @Test
+    public void testCloseSessionClosesFiles() throws Exception {
+        int index = first.open("file");
+        first.write(index, new byte[] {5});
+        first.close();
+        try {
+            first.read(index, 1);
+            fail("The descriptor must be closed");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        int other = second.open("file");
+        assertArrayEquals(new byte[] {5}, second.read(other, 1));
+    }
+}
@@ -0,0 +1,179 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests serving shell sessions by {@link ShellServer} class.
+ *
+ * @author Artem Tsushko
+ */
+public class ShellServerTest {
+
+    static final int CLIENTS_NUMBER = 50;
+
+    private FileSystem fs;
+    private ShellServer server;
+    private Thread acceptor;
+
+    @Before
+    public void setUpFileSystem() {
+        fs = new FileSystem(FileSystemParams.getInstance(64, 2048, 128, 64));
+    }
+
+    @After
+    public void tearDownServer() throws Exception {
+        if (server != null) {
+            server.close();
+            acceptor.join();
+        }
+    }
+
+    /**
+     * starts the server in a separate thread
+     *
+     * @param address the address to accept connections on
+     */
+    private void startServer(SocketAddress address) throws IOException {
+        server = new ShellServer(fs, address);
+        acceptor = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        acceptor.start();
+    }
+
+    /**
+     * A client of the server, sending commands and reading the responses
+     */
+    private static class Client implements AutoCloseable {
+        final SocketChannel channel;
+        final PrintStream out;
+        final BufferedReader in;
+
+        Client(SocketAddress address) throws IOException {
+            channel = SocketChannel.open(address);
+            out = new PrintStream(Channels.newOutputStream(channel), true);
+            in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel)));
+        }
+
+        /**
+         * sends a command and returns the response without the prompt
+         */
+        String command(String command) throws IOException {
+            out.println(command);
+            String line;
+            do {
+                line = in.readLine();
+            } while (line != null && !line.startsWith("FS> "));
+            return line == null ? null : line.substring("FS> ".length());
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * replays a script creating, writing and reading a file
+     *
+     * @param address address of the server
+     * @param name name of the file
+     * @return response to the read command
+     */
+    private static String replay(SocketAddress address, String name) throws IOException {
+        try (Client client = new Client(address)) {
+            assertEquals("file " + name + " created", client.command("cr " + name));
+            String opened = client.command("op " + name);
+            int index = Integer.parseInt(opened.substring(opened.indexOf('=') + 1));
+            assertEquals("10 bytes written", client.command("wr " + index + " " + name.charAt(1) + " 10"));
+            client.command("sk " + index + " 0");
+            String read = client.command("rd " + index + " 10");
+            client.command("exit");
+            return read;
+        }
+    }
+
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final SocketAddress address = server.getAddress();
+        ExecutorService clients = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < CLIENTS_NUMBER; ++i) {
+                final String name = "f" + (char) ('A' + i % 26) + i / 26;
+                results.add(clients.submit(() -> replay(address, name)));
+            }
+            for (int i = 0; i < CLIENTS_NUMBER; ++i) {
+                char value = (char) ('A' + i % 26);
+                assertEquals("10 bytes read: " + String.valueOf(value).repeat(10),
+                        results.get(i).get());
+            }
+        } finally {
+            clients.shutdown();
+        }
+        assertEquals(CLIENTS_NUMBER, fs.directory().size());
+    }
+
+    @Test
+    public void testSessionCantUseFilesOfAnotherOne() throws Exception {
+        Path socket = Files.createTempDirectory("shell").resolve("fs.sock");
+        startServer(UnixDomainSocketAddress.of(socket));
+        try (Client first = new Client(server.getAddress());
+             Client second = new Client(server.getAddress())) {
+            first.command("cr file");
+            String opened = first.command("op file");
+            int index = Integer.parseInt(opened.substring(opened.indexOf('=') + 1));
+            assertEquals("error: No file opened with index " + index,
+                    second.command("rd " + index + " 0"));
+            assertEquals("error: the disk is shared and can't be reloaded",
+                    second.command("in input 64 64 24 5"));
+
+            // the files opened in the session are closed on exit
+            first.command("exit");
+            assertEquals("file file opened, index=" + index, second.command("op file"));
+        }
+    }
+
+    @Test
+    public void testSessionCantDestroyFileOpenInAnotherOne() throws Exception {
+        startServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        try (Client first = new Client(server.getAddress());
+             Client second = new Client(server.getAddress())) {
+            first.command("cr file");
+            String opened = first.command("op file");
+            int index = Integer.parseInt(opened.substring(opened.indexOf('=') + 1));
+            assertEquals("error: the file file is open.", second.command("de file"));
+            assertEquals("3 bytes written", first.command("wr " + index + " x 3"));
+            first.command("sk " + index + " 0");
+            assertEquals("3 bytes read: xxx", first.command("rd " + index + " 3"));
+
+            first.command("cl " + index);
+            assertEquals("file file destroyed", second.command("de file"));
+        }
+        assertTrue(fs.directory().isEmpty());
+    }
+}
@@ -0,0 +1,28 @@
+package com.tsushko.spos.fs;
+
+import static org.junit.Assert.*;
+
+/**
+ * Assertions on the contents of storages.
+ *
+ * @author Artem Tsushko
+ */
+class StorageAssert {
+
+    private StorageAssert() {
+    }
+
+    /**
+     * asserts that the storages have the same size and the same blocks
+     *
+     * @param expected the storage with expected blocks
+     * @param actual the storage to check
+     */
+    static void assertSameBlocks(Storage expected, Storage actual) {
+        assertEquals(expected.getBlocksNumber(), actual.getBlocksNumber());
+        assertEquals(expected.getBlockSize(), actual.getBlockSize());
+        for (int i = 0; i < expected.getBlocksNumber(); ++i) {
+            assertArrayEquals("block " + i, expected.readBlock(i), actual.readBlock(i));
+        }
+    }
+}
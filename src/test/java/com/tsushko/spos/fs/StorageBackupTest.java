@@ -0,0 +1,125 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static com.tsushko.spos.fs.StorageAssert.assertSameBlocks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Tests full, differential and incremental backups
+ * of {@link StorageBackup} class.
+ *
+ * @author Artem Tsushko
+ */
+public class StorageBackupTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private InMemoryStorage storage;
+    private FileSystem fs;
+
+    @Before
+    public void setUpFileSystem() throws Exception {
+        FileSystemParams params = FileSystemParams.getInstance(64, 512, 24, 5);
+        storage = InMemoryStorage.getStorage(params.blocksNumber, params.blockSize);
+        fs = new FileSystem(params, storage, true);
+        fs.create("a");
+        fs.create("b");
+        write("a", 1000, (byte) 1);
+    }
+
+    @Test
+    public void testRestoreIncrementalChain() throws Exception {
+        File full = backup(StorageBackup.Level.FULL);
+        write("b", 100, (byte) 2);
+        File first = backup(StorageBackup.Level.INCREMENTAL);
+        fs.create("c");
+        write("c", 300, (byte) 3);
+        File second = backup(StorageBackup.Level.INCREMENTAL);
+
+        assertSameBlocks(storage, StorageBackup.restore(full, first, second));
+        assertTrue(first.length() < full.length() / 10);
+    }
+
+    @Test
+    public void testRestoreDifferential() throws Exception {
+        File full = backup(StorageBackup.Level.FULL);
+        write("b", 100, (byte) 2);
+        backup(StorageBackup.Level.INCREMENTAL);
+        fs.destroy("a");
+        File differential = backup(StorageBackup.Level.DIFFERENTIAL);
+        write("b", 100, (byte) 4);
+        File incremental = backup(StorageBackup.Level.INCREMENTAL);
+
+        InMemoryStorage restoredStorage = StorageBackup.restore(full, differential, incremental);
+        assertSameBlocks(storage, restoredStorage);
+
+        FileSystem restored = new FileSystem(
+                FileSystemParams.getInstance(restoredStorage, 5), restoredStorage);
+        assertEquals(1, restored.directory().size());
+        int index = restored.open("b");
+        assertEquals(2, restored.pread(index, 0, 1)[0]);
+        assertEquals(4, restored.pread(index, 100, 1)[0]);
+    }
+
+    @Test
+    public void testChangedBlocksAcrossWords() {
+        ChangeTrackingStorage tracking = new ChangeTrackingStorage(
+                InMemoryStorage.getStorage(512, 64));
+        tracking.writeBlocks(ByteBuffer.allocate(140 * 64), 60);
+        tracking.writeBlock(new byte[64], 511);
+        BitSet expected = new BitSet();
+        expected.set(60, 200);
+        expected.set(511);
+        assertEquals(expected, tracking.startBackup(StorageBackup.Level.INCREMENTAL));
+        tracking.finishBackup(StorageBackup.Level.INCREMENTAL, 0);
+        assertEquals(expected, tracking.startBackup(StorageBackup.Level.DIFFERENTIAL));
+    }
+
+    @Test(expected = IOException.class)
+    public void testShouldNotRestoreBrokenChain() throws Exception {
+        File full = backup(StorageBackup.Level.FULL);
+        write("b", 100, (byte) 2);
+        backup(StorageBackup.Level.INCREMENTAL);
+        write("b", 100, (byte) 3);
+        File second = backup(StorageBackup.Level.INCREMENTAL);
+        StorageBackup.restore(full, second);
+    }
+
+    @Test(expected = IOException.class)
+    public void testShouldNotBackUpIncrementalFirst() throws Exception {
+        backup(StorageBackup.Level.INCREMENTAL);
+    }
+
+    /**
+     * appends bytes to the file
+     */
+    private void write(String name, int count, byte value) throws Exception {
+        byte[] bytes = new byte[count];
+        Arrays.fill(bytes, value);
+        int length = 0;
+        for (String entry : fs.directory()) {
+            if (entry.startsWith(name + "\t")) {
+                length = Integer.parseInt(entry.substring(name.length() + 1,
+                        entry.length() - 1));
+            }
+        }
+        int index = fs.open(name);
+        fs.lseek(index, length);
+        fs.write(index, bytes);
+        fs.close(index);
+    }
+
+    private File backup(StorageBackup.Level level) throws IOException {
+        File file = temporaryFolder.newFile();
+        fs.backup(file, level);
+        return file;
+    }
+}
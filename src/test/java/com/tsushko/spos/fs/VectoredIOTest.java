@@ -0,0 +1,103 @@
+package com.tsushko.spos.fs;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests scattering reads and gathering writes of {@link FileSystem} class.
+ *
+ * @author Artem Tsushko
+ */
+public class VectoredIOTest {
+
+    private FileSystemParams params;
+    private FileSystem fs;
+    private int index;
+
+    @Before
+    public void setUpFile() throws Exception {
+        params = FileSystemParams.getInstance(64, 512, 24, 5);
+        fs = new FileSystem(params);
+        fs.create("file");
+        index = fs.open("file");
+    }
+
+    /**
+     * @param length number of bytes
+     * @param seed value of the first byte
+     * @return array of consecutive byte values
+     */
+    private static byte[] bytes(int length, int seed) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            result[i] = (byte) (seed + i);
+        }
+        return result;
+    }
+
+    @Test
+    public void testWritevConcatenatesBuffers() throws Exception {
+        byte[] header = bytes(10, 0);
+        byte[] payload = bytes(5 * params.blockSize + 7, 50);
+        ByteBuffer direct = ByteBuffer.allocateDirect(params.blockSize);
+        direct.put(bytes(params.blockSize, 100)).flip();
+        fs.writev(index, new ByteBuffer[] {ByteBuffer.wrap(header),
+                ByteBuffer.wrap(payload), direct});
+        assertFalse(direct.hasRemaining());
+
+        int length = header.length + payload.length + params.blockSize;
+        byte[] expected = new byte[length];
+        System.arraycopy(header, 0, expected, 0, header.length);
+        System.arraycopy(payload, 0, expected, header.length, payload.length);
+        System.arraycopy(bytes(params.blockSize, 100), 0,
+                expected, header.length + payload.length, params.blockSize);
+        assertArrayEquals(expected, fs.pread(index, 0, length));
+
+        // the cursor is after the written bytes
+        fs.write(index, new byte[] {1});
+        assertEquals(length + 1, fs.pread(index, 0, length + 1).length);
+    }
+
+    @Test
+    public void testReadvFillsBuffersInOrder() throws Exception {
+        byte[] contents = bytes(4 * params.blockSize + 3, 0);
+        fs.write(index, contents);
+        fs.lseek(index, 0);
+
+        ByteBuffer header = ByteBuffer.allocate(3);
+        ByteBuffer payload = ByteBuffer.allocateDirect(4 * params.blockSize);
+        fs.readv(index, new ByteBuffer[] {header, payload});
+        assertArrayEquals(Arrays.copyOf(contents, 3), header.array());
+        payload.flip();
+        byte[] actual = new byte[payload.remaining()];
+        payload.get(actual);
+        assertArrayEquals(Arrays.copyOfRange(contents, 3, contents.length), actual);
+    }
+
+    @Test
+    public void testFailedReadvKeepsPosition() throws Exception {
+        fs.write(index, bytes(20, 0));
+        fs.lseek(index, 5);
+        try {
+            fs.readv(index, new ByteBuffer[] {ByteBuffer.allocate(10),
+                    ByteBuffer.allocate(10)});
+            fail("End of file must be reached");
+        } catch (ReadWriteException e) {
+            assertArrayEquals(bytes(15, 5), fs.read(index, 15));
+        }
+    }
+
+    @Test(expected = ReadWriteException.class)
+    public void testWritevOverMaxFileSize() throws Exception {
+        fs.writev(index, new ByteBuffer[] {ByteBuffer.allocate(params.maxFileSize),
+                ByteBuffer.allocate(1)});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWritevToDirectory() throws Exception {
+        fs.writev(0, new ByteBuffer[] {ByteBuffer.allocate(1)});
+    }
+}